@@ -30,6 +30,41 @@ public class AvmConfiguration {
      * Enabling this is only really useful when actively modifying the concurrent executor.
      */
     public boolean enableVerboseConcurrentExecutor;
+    /**
+     * If set to true, transactions are executed speculatively against a multi-version view of the state, instead of locking the
+     * addresses they touch.  Conflicts are detected when each transaction commits, in order, and only then is it re-executed.
+     * This favours blocks with few conflicts (or conflicts which can't be seen from the sender/target addresses alone).
+     */
+    public boolean enableSpeculativeExecution;
+    /**
+     * If set to true, each transaction is predicted to touch its sender, its target and any address passed as an ABI argument.
+     * A transaction predicted to touch an address used by an earlier one waits for it to commit, instead of conflicting with it, so
+     * transactions only run in parallel with those they aren't predicted to conflict with.  Mispredictions are still handled by the
+     * lock-based concurrent executor, as usual.  This has no effect when speculative execution is enabled.
+     */
+    public boolean enableAccessPrediction;
+
+    /**
+     * If set to true, transactions don't commit straight into the kernel they are run against but into a buffer over the whole
+     * batch, which is written back to the kernel (once per touched account, sorted by address) when the last transaction of the
+     * batch commits.  Until then, the kernel doesn't see the batch's writes, even those of transactions whose results were already
+     * returned, so callers reading the kernel directly should wait for the batch to complete.  This has no effect when speculative
+     * execution is enabled.
+     */
+    public boolean enableBlockWriteBack;
+
+    /**
+     * The number of bytes of transformed code, object graphs and storage values which can be cached across the transactions run
+     * against a kernel, so hot contracts aren't read from the kernel by every transaction (0 disables the cache).  The cache is
+     * cleared at the end of each batch, unless enableCrossBlockReadCache is set.
+     */
+    public long readCacheSize;
+
+    /**
+     * If set to true, the read cache is kept across batches.  This is only correct if the kernel is never written other than by
+     * this AVM (for example, the caller never reverts a block underneath it).
+     */
+    public boolean enableCrossBlockReadCache;
 
     public AvmConfiguration() {
         // 4 threads is generally a safe, yet useful, number.
@@ -39,5 +74,13 @@ public class AvmConfiguration {
         // By default, none of our verbose options are enabled.
         this.enableVerboseContractErrors = false;
         this.enableVerboseConcurrentExecutor = false;
+        // By default, we use the lock-based concurrent executor.
+        this.enableSpeculativeExecution = false;
+        this.enableAccessPrediction = false;
+        // By default, each transaction is written back to the kernel as soon as it commits.
+        this.enableBlockWriteBack = false;
+        // By default, reads aren't cached across transactions.
+        this.readCacheSize = 0L;
+        this.enableCrossBlockReadCache = false;
     }
 }
@@ -6,8 +6,15 @@ import org.aion.kernel.*;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.function.Predicate;
 
 import org.aion.avm.core.persistence.LoadedDApp;
@@ -20,10 +27,11 @@ import org.aion.avm.internal.JvmError;
 import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.kernel.Transaction.Type;
 import org.aion.parallel.AddressResourceMonitor;
+import org.aion.parallel.HandedOffTasks;
+import org.aion.parallel.SpeculativeResourceMonitor;
 import org.aion.parallel.TransactionTask;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.KernelInterface;
-import org.aion.vm.api.interfaces.SimpleFuture;
 import org.aion.vm.api.interfaces.TransactionContext;
 import org.aion.vm.api.interfaces.TransactionResult;
 import org.slf4j.Logger;
@@ -42,10 +50,14 @@ public class AvmImpl implements AvmInternal {
     // Long-lived state which is book-ended by the startup/shutdown calls.
     private static AvmImpl currentAvm;  // (only here for testing - makes sure that we properly clean these up between invocations)
     private SoftCache<ByteArrayWrapper, LoadedDApp> hotCache;
+    // Parsed code, by the hash of the jar, shared by every DApp with the same code (never invalidated since the key is the content).
+    private SoftCache<ByteArrayWrapper, DAppLoader.ParsedCode> parsedCodeCache;
     private HandoffMonitor handoff;
 
-    // Short-lived state which is reset for each batch of transaction request.
-    private AddressResourceMonitor resourceMonitor;
+    // The submission stream of each kernel we have been run against (weak since callers, not us, decide when a kernel is dead).
+    // Batches sent against the same kernel share a stream so they commit in the order they were sent, while batches sent
+    // against different kernels are independent of each other (they only share the executor threads).
+    private Map<KernelInterface, SubmissionStream> streams;
 
     // Used in the case of a fatal JvmError in the background threads.  A shutdown() is the only option from this point.
     private AvmFailedException backgroundFatalError;
@@ -54,6 +66,11 @@ public class AvmImpl implements AvmInternal {
     private final boolean preserveDebuggability;
     private final boolean enableVerboseContractErrors;
     private final boolean enableVerboseConcurrentExecutor;
+    private final boolean enableSpeculativeExecution;
+    private final boolean enableAccessPrediction;
+    private final boolean enableBlockWriteBack;
+    private final long readCacheSize;
+    private final boolean enableCrossBlockReadCache;
 
     public AvmImpl(IInstrumentationFactory instrumentationFactory, IExternalCapabilities capabilities, AvmConfiguration configuration) {
         this.instrumentationFactory = instrumentationFactory;
@@ -66,6 +83,11 @@ public class AvmImpl implements AvmInternal {
         this.preserveDebuggability = configuration.preserveDebuggability;
         this.enableVerboseContractErrors = configuration.enableVerboseContractErrors;
         this.enableVerboseConcurrentExecutor = configuration.enableVerboseConcurrentExecutor;
+        this.enableSpeculativeExecution = configuration.enableSpeculativeExecution;
+        this.enableAccessPrediction = configuration.enableAccessPrediction;
+        this.enableBlockWriteBack = configuration.enableBlockWriteBack;
+        this.readCacheSize = configuration.readCacheSize;
+        this.enableCrossBlockReadCache = configuration.enableCrossBlockReadCache;
     }
 
     private class AvmExecutorThread extends Thread{
@@ -78,41 +100,30 @@ public class AvmImpl implements AvmInternal {
         public void run() {
             IInstrumentation instrumentation = AvmImpl.this.instrumentationFactory.createInstrumentation();
             InstrumentationHelpers.attachThread(instrumentation);
+            HandedOffTasks handedOffTasks = new HandedOffTasks(this);
             try {
                 // Run as long as we have something to do (null means shutdown).
-                AvmTransactionResult outgoingResult = null;
-                TransactionTask incomingTask = AvmImpl.this.handoff.blockingPollForTransaction(null, null);
+                // Finished tasks are handed off for commit, rather than waiting for their turn, so we can move straight on to the
+                // next task.  We only block once there is nothing new to run, either until a task we handed off commits (or needs
+                // to be re-executed) or, once they have all committed, until new tasks come in.
+                TransactionTask incomingTask = AvmImpl.this.handoff.blockingPollForTransaction();
                 while (null != incomingTask) {
-                    int abortCounter = 0;
-
-                    do {
-                        if (AvmImpl.this.enableVerboseConcurrentExecutor) {
-                            System.out.println(this.getName() + " start  " + incomingTask.getIndex());
-                        }
-
-                        // TODO:  Determine if we can coalesce the IInstrumentation and TransactionTask to avoid this attach/detach.
-                        incomingTask.startNewTransaction();
-                        incomingTask.attachInstrumentationForThread();
-                        outgoingResult = AvmImpl.this.backgroundProcessTransaction(incomingTask);
-                        incomingTask.detachInstrumentationForThread();
-
-                        if (AvmTransactionResult.Code.FAILED_ABORT == outgoingResult.getResultCode()) {
-                            // If this was an abort, we want to clear the abort state on the instrumentation for this thread, since
-                            // this is the point where that is "handled".
-                            // Note that this is safe to do here since the instrumentation isn't exposed to any other threads.
-                            instrumentation.clearAbortState();
-                            
-                            if (AvmImpl.this.enableVerboseConcurrentExecutor) {
-                                System.out.println(this.getName() + " abort  " + incomingTask.getIndex() + " counter " + (++abortCounter));
-                            }
+                    runUntilHandedOff(incomingTask, instrumentation, handedOffTasks);
+
+                    incomingTask = AvmImpl.this.handoff.pollForTransaction();
+                    while ((null == incomingTask) && !handedOffTasks.isEmpty()) {
+                        TransactionTask abortedTask = handedOffTasks.takeAbortedTask();
+                        if (null != abortedTask) {
+                            runUntilHandedOff(abortedTask, instrumentation, handedOffTasks);
+                        } else {
+                            // (this is also woken when new tasks come in)
+                            handedOffTasks.waitForChange();
                         }
-                    }while (AvmTransactionResult.Code.FAILED_ABORT == outgoingResult.getResultCode());
-
-                    if (AvmImpl.this.enableVerboseConcurrentExecutor) {
-                        System.out.println(this.getName() + " finish " + incomingTask.getIndex() + " " + outgoingResult.getResultCode());
+                        incomingTask = AvmImpl.this.handoff.pollForTransaction();
+                    }
+                    if (null == incomingTask) {
+                        incomingTask = AvmImpl.this.handoff.blockingPollForTransaction();
                     }
-
-                    incomingTask = AvmImpl.this.handoff.blockingPollForTransaction(outgoingResult, incomingTask);
                 }
             } catch (JvmError e) {
                 // This is a fatal error the AVM cannot generally happen so request an asynchronous shutdown.
@@ -131,6 +142,65 @@ public class AvmImpl implements AvmInternal {
             }
         }
 
+        /**
+         * Runs the given task until it is handed off for commit (re-executing it if it is aborted).  Before each execution, we first
+         * re-execute any task we already handed off which has since been aborted, since lower tasks may depend on those.
+         */
+        private void runUntilHandedOff(TransactionTask task, IInstrumentation instrumentation, HandedOffTasks handedOffTasks) {
+            // Task indices are only ordered within a stream so we keep a queue for each stream we have tasks from (lowest first, so a
+            // task we take back is run before the one it interrupted).
+            Map<AddressResourceMonitor, PriorityQueue<TransactionTask>> toRun = new LinkedHashMap<>();
+            addToStreamQueue(toRun, task);
+            while (!toRun.isEmpty()) {
+                TransactionTask abortedTask = handedOffTasks.takeAbortedTask();
+                while (null != abortedTask) {
+                    addToStreamQueue(toRun, abortedTask);
+                    abortedTask = handedOffTasks.takeAbortedTask();
+                }
+                TransactionTask incomingTask = pollFirstStreamQueue(toRun);
+
+                if (AvmImpl.this.enableVerboseConcurrentExecutor) {
+                    System.out.println(this.getName() + " start  " + incomingTask.getIndex());
+                }
+
+                // TODO:  Determine if we can coalesce the IInstrumentation and TransactionTask to avoid this attach/detach.
+                handedOffTasks.setRunningTask(incomingTask);
+                incomingTask.startNewTransaction();
+                incomingTask.attachInstrumentationForThread();
+                AvmTransactionResult outgoingResult = AvmImpl.this.backgroundProcessTransaction(incomingTask, handedOffTasks);
+                incomingTask.detachInstrumentationForThread();
+                handedOffTasks.setRunningTask(null);
+
+                if (AvmTransactionResult.Code.FAILED_ABORT == outgoingResult.getResultCode()) {
+                    // If this was an abort, we want to clear the abort state on the instrumentation for this thread, since
+                    // this is the point where that is "handled".
+                    // Note that this is safe to do here since the instrumentation isn't exposed to any other threads.
+                    instrumentation.clearAbortState();
+                    addToStreamQueue(toRun, incomingTask);
+
+                    if (AvmImpl.this.enableVerboseConcurrentExecutor) {
+                        System.out.println(this.getName() + " abort  " + incomingTask.getIndex() + " counter " + incomingTask.getAbortCount());
+                    }
+                } else if (AvmImpl.this.enableVerboseConcurrentExecutor) {
+                    System.out.println(this.getName() + " finish " + incomingTask.getIndex() + " " + outgoingResult.getResultCode());
+                }
+            }
+        }
+
+        private void addToStreamQueue(Map<AddressResourceMonitor, PriorityQueue<TransactionTask>> queues, TransactionTask task) {
+            queues.computeIfAbsent(task.getResourceMonitor(), (ignored) -> new PriorityQueue<>()).add(task);
+        }
+
+        private TransactionTask pollFirstStreamQueue(Map<AddressResourceMonitor, PriorityQueue<TransactionTask>> queues) {
+            // (the streams are independent so it doesn't matter which we run first, only the order within each)
+            Iterator<PriorityQueue<TransactionTask>> iterator = queues.values().iterator();
+            PriorityQueue<TransactionTask> queue = iterator.next();
+            TransactionTask task = queue.poll();
+            if (queue.isEmpty()) {
+                iterator.remove();
+            }
+            return task;
+        }
     }
 
     @Override
@@ -140,9 +210,11 @@ public class AvmImpl implements AvmInternal {
         
         RuntimeAssertionError.assertTrue(null == this.hotCache);
         this.hotCache = new SoftCache<>();
+        RuntimeAssertionError.assertTrue(null == this.parsedCodeCache);
+        this.parsedCodeCache = new SoftCache<>();
 
-        RuntimeAssertionError.assertTrue(null == this.resourceMonitor);
-        this.resourceMonitor = new AddressResourceMonitor();
+        RuntimeAssertionError.assertTrue(null == this.streams);
+        this.streams = Collections.synchronizedMap(new WeakHashMap<>());
 
         Set<Thread> executorThreads = new HashSet<>();
         for (int i = 0; i < this.threadCount; i++){
@@ -154,14 +226,15 @@ public class AvmImpl implements AvmInternal {
         this.handoff.startExecutorThreads();
     }
 
+    /**
+     * Sends a batch of transactions to be run, after any sent before them.  The returned futures can be waited on, in any order,
+     * or have callbacks attached to them (see {@link TransactionResultFuture}).
+     */
     @Override
-    public SimpleFuture<TransactionResult>[] run(KernelInterface kernel, TransactionContext[] transactions) throws IllegalStateException {
+    public TransactionResultFuture[] run(KernelInterface kernel, TransactionContext[] transactions) throws IllegalStateException {
         if (null != this.backgroundFatalError) {
             throw this.backgroundFatalError;
         }
-        // Clear the states of resources
-        this.resourceMonitor.clear();
-
         // Clear the hot cache
         if (transactions.length > 0) {
             long currentBlockNum = transactions[0].getBlockNumber();
@@ -169,15 +242,27 @@ public class AvmImpl implements AvmInternal {
         }
         
         // Create tasks for these new transactions and send them off to be asynchronously executed.
-        TransactionTask[] tasks = new TransactionTask[transactions.length];
-        for (int i = 0; i < transactions.length; i++){
-            tasks[i] = new TransactionTask(kernel, transactions[i], i);
+        // Note that we don't wait for any previous batch to finish:  these tasks are numbered after it so they will commit after it.
+        // Numbering and sending happen under the stream's lock so that concurrent callers using the same kernel can't interleave.
+        SubmissionStream stream = this.streams.computeIfAbsent(kernel, (ignored) -> new SubmissionStream(this.enableSpeculativeExecution
+                ? new SpeculativeResourceMonitor()
+                : new AddressResourceMonitor(this.enableAccessPrediction, this.enableBlockWriteBack, this.readCacheSize, this.enableCrossBlockReadCache)));
+        synchronized (stream) {
+            TransactionTask[] tasks = new TransactionTask[transactions.length];
+            for (int i = 0; i < transactions.length; i++){
+                long index = stream.nextTaskIndex;
+                stream.nextTaskIndex += 1;
+                tasks[i] = new TransactionTask(stream.resourceMonitor, stream.resourceMonitor.parentKernelForTask(kernel, index), transactions[i], index);
+                stream.resourceMonitor.scheduleTask(tasks[i]);
+            }
+            if (tasks.length > 0) {
+                stream.resourceMonitor.markEndOfBatch(tasks[tasks.length - 1]);
+            }
+            return this.handoff.sendTransactionsAsynchronously(tasks);
         }
-
-        return this.handoff.sendTransactionsAsynchronously(tasks);
     }
 
-    private AvmTransactionResult backgroundProcessTransaction(TransactionTask task) {
+    private AvmTransactionResult backgroundProcessTransaction(TransactionTask task, HandedOffTasks handedOffTasks) {
         // to capture any error during validation
         AvmTransactionResult.Code error = null;
 
@@ -204,8 +289,10 @@ public class AvmImpl implements AvmInternal {
         Address sender = ctx.getSenderAddress();
         Address target = (ctx.getTransactionKind() == Type.CREATE.toInt()) ? this.capabilities.generateContractAddress(ctx.getTransaction()) : ctx.getDestinationAddress();
 
-        this.resourceMonitor.acquire(sender.toBytes(), task);
-        this.resourceMonitor.acquire(target.toBytes(), task);
+        // (tasks touching addresses which keep causing aborts first wait for the previous such task to commit)
+        task.getResourceMonitor().waitForSerializedTurn(task);
+        task.getResourceMonitor().acquire(sender, task);
+        task.getResourceMonitor().acquire(target, task);
 
         // nonce check
         if (!task.getThisTransactionalKernel().accountNonceEquals(sender, new BigInteger(1, ctx.getTransaction().getNonce()))) {
@@ -222,13 +309,14 @@ public class AvmImpl implements AvmInternal {
         }
 
         // Task transactional kernel commits are serialized through address resource monitor
-        if (!this.resourceMonitor.commitKernelForTask(task, result.getResultCode().isRejected())){
-            result.setResultCode(AvmTransactionResult.Code.FAILED_ABORT);
-        }
-
+        // (we don't wait for our turn:  the result is published once the task has been committed, possibly by another thread)
         if (AvmTransactionResult.Code.FAILED_ABORT != result.getResultCode()){
             result.setKernelInterface(task.getThisTransactionalKernel());
         }
+        AvmTransactionResult finalResult = result;
+        if (!task.getResourceMonitor().handOffForCommit(task, result.getResultCode().isRejected(), handedOffTasks, () -> this.handoff.publishResult(task, finalResult))){
+            result.setResultCode(AvmTransactionResult.Code.FAILED_ABORT);
+        }
 
         return result;
     }
@@ -252,6 +340,8 @@ public class AvmImpl implements AvmInternal {
         RuntimeAssertionError.assertTrue(this == AvmImpl.currentAvm);
         AvmImpl.currentAvm = null;
         this.hotCache = null;
+        this.parsedCodeCache = null;
+        this.streams = null;
         
         // Note that we don't want to hide the background exception, if one happened, but we do want to complete the shutdown, so we do this at the end.
         if (null != errorDuringShutdown) {
@@ -356,18 +446,23 @@ public class AvmImpl implements AvmInternal {
                 // If we didn't find it there (that is only for reentrant calls so it is rarely found in the stack), try the hot DApp cache.
                 ByteArrayWrapper addressWrapper = new ByteArrayWrapper(recipient.toBytes());
                 LoadedDApp dappInHotCache = this.hotCache.checkout(addressWrapper);
-                //'parentKernel.getTransformedCode(recipient) != null' means this recipient's DApp is not self-destructed.
-                if (thisTransactionKernel.getTransformedCode(recipient) != null) {
+                byte[] immortalDappJar = thisTransactionKernel.getTransformedCode(recipient);
+                // The hot cache is shared by the kernels of all streams but is only keyed by address so the cached DApp is only used if this
+                // kernel still has the code it was loaded from (null code means this recipient's DApp was self-destructed).
+                if ((null != dappInHotCache) && dappInHotCache.isLoadedFrom(immortalDappJar)) {
                     dapp = dappInHotCache;
                 }
                 if (null == dapp) {
                     // If we didn't find it there, just load it.
                     try {
-                        dapp = DAppLoader.loadFromGraph(thisTransactionKernel.getTransformedCode(recipient), this.preserveDebuggability);
+                        dapp = (null != immortalDappJar)
+                                ? DAppLoader.loadFromGraph(ByteBuffer.wrap(immortalDappJar), this.preserveDebuggability, this.parsedCodeCache)
+                                : null;
 
-                        // If the dapp is freshly loaded, we set the block num
+                        // If the dapp is freshly loaded, we set the block num and the code it came from
                         if (null != dapp){
                             dapp.setLoadedBlockNum(ctx.getBlockNumber());
+                            dapp.setLoadedCode(immortalDappJar);
                         }
 
                     } catch (IOException e) {
@@ -379,7 +474,8 @@ public class AvmImpl implements AvmInternal {
                     DAppExecutor.call(this.capabilities, thisTransactionKernel, this, dapp, stateToResume, task, ctx, result, this.enableVerboseContractErrors);
                     if (AvmTransactionResult.Code.SUCCESS == result.getResultCode()) {
                         dapp.cleanForCache();
-                        this.hotCache.checkin(addressWrapper, dapp);
+                        // Tasks of other streams (or speculative ones) don't lock out this DApp so they may have checked in their own copy.
+                        this.hotCache.checkinIfAbsent(addressWrapper, dapp);
                     }
                 }
             }
@@ -397,15 +493,43 @@ public class AvmImpl implements AvmInternal {
     }
 
     @Override
-    public AddressResourceMonitor getResourceMonitor() {
+    public AddressResourceMonitor getResourceMonitor(TransactionTask task) {
         if (null != this.backgroundFatalError) {
             throw this.backgroundFatalError;
         }
-        return resourceMonitor;
+        return task.getResourceMonitor();
+    }
+
+    /**
+     * Get the address resource monitor used by batches run against the given kernel.
+     *
+     * @param kernel A kernel this AVM has been run against.
+     * @return The address resource monitor (null if the AVM hasn't been run against this kernel).
+     */
+    public AddressResourceMonitor getResourceMonitorForKernel(KernelInterface kernel) {
+        SubmissionStream stream = this.streams.get(kernel);
+        return (null != stream)
+                ? stream.resourceMonitor
+                : null;
     }
 
     private void validateCodeCache(long blockNum){
         Predicate<SoftReference<LoadedDApp>> condition = (v) -> null != v.get() && v.get().getLoadedBlockNum() >= blockNum;
         this.hotCache.removeValueIf(condition);
     }
+
+
+    /**
+     * The state shared by all the batches run against one kernel:  their resource monitor and the index of the next task.
+     */
+    private static class SubmissionStream {
+        public final AddressResourceMonitor resourceMonitor;
+        // Guarded by the stream's lock.
+        public long nextTaskIndex;
+
+        public SubmissionStream(AddressResourceMonitor resourceMonitor) {
+            this.resourceMonitor = resourceMonitor;
+            this.nextTaskIndex = 0L;
+        }
+    }
 }
@@ -24,9 +24,10 @@ public interface AvmInternal extends VirtualMachine {
     AvmTransactionResult runInternalTransaction(KernelInterface parentKernel, TransactionTask task, TransactionContext context);
 
     /**
-     * Get the address resource monitor using by the current AVM.
+     * Get the address resource monitor used by the given task (each kernel the AVM is run against has its own).
      *
+     * @param task The current transaction task.
      * @return The address resource monitor.
      */
-    AddressResourceMonitor getResourceMonitor();
+    AddressResourceMonitor getResourceMonitor(TransactionTask task);
 }
\ No newline at end of file
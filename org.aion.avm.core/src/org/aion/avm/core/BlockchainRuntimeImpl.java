@@ -10,6 +10,7 @@ import org.aion.kernel.*;
 import org.aion.kernel.Transaction.Type;
 import org.aion.parallel.TransactionTask;
 
+import java.util.Arrays;
 import java.util.List;
 import org.aion.vm.api.interfaces.KernelInterface;
 import org.aion.vm.api.interfaces.TransactionContext;
@@ -108,9 +109,10 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
     public org.aion.avm.shadow.java.math.BigInteger avm_getBalance(Address address) {
         require(null != address, "Address can't be NULL");
 
-        // Acquire resource before reading
-        avm.getResourceMonitor().acquire(address.unwrap(), this.task);
-        return new org.aion.avm.shadow.java.math.BigInteger(this.kernel.getBalance(org.aion.types.Address.wrap(address.unwrap())));
+        // Acquire resource before reading (shared, since we don't write it)
+        org.aion.types.Address account = toKernelAddress(address);
+        avm.getResourceMonitor(this.task).acquireShared(account, this.task);
+        return new org.aion.avm.shadow.java.math.BigInteger(this.kernel.getBalance(account));
     }
 
     @Override
@@ -120,8 +122,8 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
             ? this.capabilities.generateContractAddress(this.ctx.getTransaction())
             : ctx.getDestinationAddress();
 
-        // Acquire resource before reading
-        avm.getResourceMonitor().acquire(contractAddress.toBytes(), this.task);
+        // Acquire resource before reading (shared, since we don't write it)
+        avm.getResourceMonitor(this.task).acquireShared(contractAddress, this.task);
         return new org.aion.avm.shadow.java.math.BigInteger(this.kernel.getBalance(contractAddress));
     }
 
@@ -129,9 +131,10 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
     public int avm_getCodeSize(Address address) {
         require(null != address, "Address can't be NULL");
 
-        // Acquire resource before reading
-        avm.getResourceMonitor().acquire(address.unwrap(), this.task);
-        byte[] vc = this.kernel.getTransformedCode(org.aion.types.Address.wrap(address.unwrap()));
+        // Acquire resource before reading (shared, since we don't write it)
+        org.aion.types.Address account = toKernelAddress(address);
+        avm.getResourceMonitor(this.task).acquireShared(account, this.task);
+        byte[] vc = this.kernel.getTransformedCode(account);
         return vc == null ? 0 : vc.length;
     }
 
@@ -155,7 +158,7 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
             throw new CallDepthLimitExceededException("Internal call depth cannot be more than 10");
         }
 
-        org.aion.types.Address target = org.aion.types.Address.wrap(targetAddress.unwrap());
+        org.aion.types.Address target = toKernelAddress(targetAddress);
         if (!kernel.destinationAddressIsSafeForThisVM(target)) {
             throw new IllegalArgumentException("Attempt to execute code using a foreign virtual machine");
         }
@@ -202,6 +205,21 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
         return runInternalCall(internalTx);
     }
 
+    private static org.aion.types.Address toKernelAddress(Address address) {
+        // The kernel's address is cached on the DApp's, so using the same address again doesn't build a new one.
+        // (the DApp can still change the bytes through the array it gets from unwrap(), so we compare them and cache our own copy)
+        byte[] raw = address.unwrap();
+        java.lang.Object cached = address.getCachedRuntimeAddress();
+        org.aion.types.Address kernelAddress = null;
+        if ((cached instanceof org.aion.types.Address) && Arrays.equals(((org.aion.types.Address) cached).toBytes(), raw)) {
+            kernelAddress = (org.aion.types.Address) cached;
+        } else {
+            kernelAddress = org.aion.types.Address.wrap(raw.clone());
+            address.setCachedRuntimeAddress(kernelAddress);
+        }
+        return kernelAddress;
+    }
+
     private void require(boolean condition, String message) {
         if (!condition) {
             throw new IllegalArgumentException(message);
@@ -217,12 +235,13 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
             : ctx.getDestinationAddress();
 
         // Acquire beneficiary address, the address of current contract is already locked at this stage.
-        this.avm.getResourceMonitor().acquire(beneficiary.unwrap(), this.task);
+        org.aion.types.Address beneficiaryAddr = toKernelAddress(beneficiary);
+        this.avm.getResourceMonitor(this.task).acquire(beneficiaryAddr, this.task);
 
         // Value transfer
         java.math.BigInteger balanceToTransfer = this.kernel.getBalance(contractAddr);
         this.kernel.adjustBalance(contractAddr, balanceToTransfer.negate());
-        this.kernel.adjustBalance(org.aion.types.Address.wrap(beneficiary.unwrap()), balanceToTransfer);
+        this.kernel.adjustBalance(beneficiaryAddr, balanceToTransfer);
 
         // Delete Account
         // Note that the account being deleted means it will still run but no DApp which sees this delete
@@ -378,7 +397,7 @@ public class BlockchainRuntimeImpl implements IBlockchainRuntime {
         org.aion.types.Address target = (internalCTX.getTransactionKind() == Type.CREATE.toInt())
             ? this.capabilities.generateContractAddress(internalCTX.getTransaction())
             : internalCTX.getDestinationAddress();
-        avm.getResourceMonitor().acquire(target.toBytes(), task);
+        avm.getResourceMonitor(task).acquire(target, task);
 
         // execute the internal transaction
         AvmTransactionResult newResult = null;
@@ -249,7 +249,7 @@ public class DAppCreator {
             dapp.forceInitializeAllClasses();
 
             // Save back the state before we return.
-            byte[] rawGraphData = dapp.saveEntireGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE);
+            byte[] rawGraphData = dapp.saveStoredGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE);
             // Bill for writing this size.
             threadInstrumentation.chargeEnergy(StorageFees.WRITE_PRICE_PER_BYTE * rawGraphData.length);
             kernel.putObjectGraph(dappAddress, rawGraphData);
@@ -1,5 +1,7 @@
 package org.aion.avm.core;
 
+import java.nio.ByteBuffer;
+
 import org.aion.avm.core.persistence.LoadedDApp;
 import org.aion.avm.core.persistence.ReentrantGraph;
 import org.aion.avm.core.util.Helpers;
@@ -31,16 +33,36 @@ public class DAppExecutor {
         // Note that the instrumentation is just a per-thread access to the state stack - we can grab it at any time as it never changes for this thread.
         IInstrumentation threadInstrumentation = IInstrumentation.attachedThreadInstrumentation.get();
         
-        // We need to get the interned classes before load the graph since it might need to instantiate class references.
-        InternedClasses initialClassWrappers = (null != stateToResume)
-            ? stateToResume.getInternedClassWrappers()
-            : new InternedClasses();
-
-        // We are now ready to load the graph (note that we can't do any billing until after we install the InstrumentationHelpers new stack frame).
+        // (the graph from the kernel can be loaded lazily, if this DApp saved it, but the one from the caller is copied in eagerly)
         byte[] rawGraphData = (null != callerState)
                 ? callerState.rawState
                 : kernel.getObjectGraph(dappAddress);
-        int nextHashCode = dapp.loadEntireGraph(initialClassWrappers, rawGraphData);
+        // If this DApp came from the hot cache, its statics might still hold the graph from its last call, if that is still what is stored.
+        InternedClasses residentClassWrappers = (null == callerState)
+                ? dapp.takeResidentGraph(rawGraphData)
+                : null;
+        
+        // We need to get the interned classes before load the graph since it might need to instantiate class references.
+        InternedClasses initialClassWrappers;
+        if (null != stateToResume) {
+            initialClassWrappers = stateToResume.getInternedClassWrappers();
+        } else if (null != residentClassWrappers) {
+            initialClassWrappers = residentClassWrappers;
+        } else {
+            initialClassWrappers = new InternedClasses();
+        }
+
+        // We are now ready to load the graph (note that we can't do any billing until after we install the InstrumentationHelpers new stack frame).
+        int nextHashCode;
+        if (null != callerState) {
+            nextHashCode = dapp.loadEntireGraph(initialClassWrappers, rawGraphData);
+        } else if (null != residentClassWrappers) {
+            // There is nothing to load but we still need the nextHashCode (the first thing in the graph).
+            nextHashCode = ByteBuffer.wrap(rawGraphData).getInt(0);
+        } else {
+            nextHashCode = dapp.loadStoredGraph(initialClassWrappers, rawGraphData);
+        }
+        int graphLength = rawGraphData.length;
         
         // Note that we need to store the state of this invocation on the reentrant stack in case there is another call into the same app.
         // This is required so that the call() mechanism can access it to save/reload its ContractEnvironmentState and so that the underlying
@@ -55,7 +77,12 @@ public class DAppExecutor {
         try {
             // It is now safe for us to bill for the cost of loading the graph (the cost is the same, whether this came from the caller or the disk).
             // (note that we do this under the try since aborts can happen here)
-            threadInstrumentation.chargeEnergy(StorageFees.READ_PRICE_PER_BYTE * rawGraphData.length);
+            threadInstrumentation.chargeEnergy(StorageFees.READ_PRICE_PER_BYTE * graphLength);
+            // If this is the outermost call into this DApp, track whether it writes its graph, in case we can skip saving it.
+            // (not for a reentrant call since the frames of this DApp under it on the stack share the same record of their writes)
+            if (null == stateToResume) {
+                dapp.resetWriteBarriers(nextHashCode);
+            }
             
             // Call the main within the DApp.
             byte[] ret = dapp.callMain();
@@ -72,10 +99,15 @@ public class DAppExecutor {
                 stateToResume.updateNextHashCode(updatedNextHashCode);
             } else {
                 // We are at the "top" so write this back to disk.
-                byte[] postCallGraphData = dapp.saveEntireGraph(threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE);
+                byte[] postCallGraphData = dapp.saveChangedGraph(rawGraphData, threadInstrumentation.peekNextHashCode(), StorageFees.MAX_GRAPH_SIZE);
                 // Bill for writing this size.
                 threadInstrumentation.chargeEnergy(StorageFees.WRITE_PRICE_PER_BYTE * postCallGraphData.length);
-                kernel.putObjectGraph(dappAddress, postCallGraphData);
+                // (if we got back the graph we loaded, there is nothing to write)
+                if (postCallGraphData != rawGraphData) {
+                    kernel.putObjectGraph(dappAddress, postCallGraphData);
+                }
+                // This is the graph the statics now hold, in case this DApp is cached and called again.
+                dapp.noteSavedGraph(postCallGraphData, initialClassWrappers);
             }
 
             result.setResultCode(AvmTransactionResult.Code.SUCCESS);
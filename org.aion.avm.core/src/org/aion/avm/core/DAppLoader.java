@@ -1,14 +1,21 @@
 package org.aion.avm.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.persistence.FieldCodecGenerator;
 import org.aion.avm.core.persistence.LoadedDApp;
+import org.aion.avm.core.persistence.WriteBarrierInjector;
 import org.aion.avm.core.types.ImmortalDappModule;
 import org.aion.avm.core.types.TransformedDappModule;
+import org.aion.avm.core.util.ByteArrayWrapper;
 import org.aion.avm.core.util.Helpers;
+import org.aion.avm.core.util.SoftCache;
 
 
 /**
@@ -25,26 +32,59 @@ public class DAppLoader {
      * @throws IOException If there was a failure decoding the code from the kernel.
      */
     public static LoadedDApp loadFromGraph(byte[] immortalDappJar, boolean preserveDebuggability) throws IOException {
+        return loadFromGraph((null != immortalDappJar) ? ByteBuffer.wrap(immortalDappJar) : null, preserveDebuggability);
+    }
+
+    /**
+     * Same as {@link #loadFromGraph(byte[], boolean)} but reads the contract jar from the remaining bytes of a buffer, so a store
+     * which can hand out a read-only view of the code doesn't need to copy it first.
+     * 
+     * @param immortalDappJar The contract jar (the buffer's position is left unchanged).
+     * @return The DApp instance, or NULL if not exist
+     * @throws IOException If there was a failure decoding the code from the kernel.
+     */
+    public static LoadedDApp loadFromGraph(ByteBuffer immortalDappJar, boolean preserveDebuggability) throws IOException {
+        return loadFromGraph(immortalDappJar, preserveDebuggability, null);
+    }
+
+    /**
+     * Same as {@link #loadFromGraph(ByteBuffer, boolean)} but first looks for the parsed code in the given cache, keyed by the hash of
+     * the jar, so DApps deployed with identical code only have their jar parsed once.
+     * Only the parsed code is shared:  each DApp still gets its own class loader since its statics hold its state.
+     * 
+     * @param immortalDappJar The contract jar (the buffer's position is left unchanged).
+     * @param parsedCodeCache The cache of parsed code, by code hash (null if the code should just be parsed).
+     * @return The DApp instance, or NULL if not exist
+     * @throws IOException If there was a failure decoding the code from the kernel.
+     */
+    public static LoadedDApp loadFromGraph(ByteBuffer immortalDappJar, boolean preserveDebuggability, SoftCache<ByteArrayWrapper, ParsedCode> parsedCodeCache) throws IOException {
         // normal account or account with no code?
-        if (immortalDappJar == null || immortalDappJar.length == 0) {
+        if (immortalDappJar == null || !immortalDappJar.hasRemaining()) {
             return null;
         }
 
-        // parse the code
-        ImmortalDappModule app = ImmortalDappModule.readFromJar(immortalDappJar);
-        
-        // We now need all the classes which will loaded within the class loader for this DApp (includes Helper and userlib classes we add).
-        Map<String, byte[]> allClasses = Helpers.mapIncludingHelperBytecode(app.classes, Helpers.loadDefaultHelperBytecode());
+        ParsedCode code = null;
+        ByteArrayWrapper codeHash = null;
+        if (null != parsedCodeCache) {
+            codeHash = new ByteArrayWrapper(Helpers.sha256(immortalDappJar));
+            code = parsedCodeCache.get(codeHash);
+        }
+        if (null == code) {
+            code = parse(immortalDappJar);
+            if (null != parsedCodeCache) {
+                parsedCodeCache.checkinIfAbsent(codeHash, code);
+            }
+        }
         
         // Construct the per-contract class loader.
-        AvmClassLoader classLoader = NodeEnvironment.singleton.createInvocationClassLoader(allClasses);
+        AvmClassLoader classLoader = NodeEnvironment.singleton.createInvocationClassLoader(code.allClasses);
         
         // Load all the user-defined classes (these are required for both loading and storing state).
         // (we do this in alphabetical order since the persistence model needs consistent read/write order).
-        List<Class<?>> aphabeticalContractClasses = Helpers.getAlphabeticalUserTransformedDappClasses(classLoader, app.classes.keySet());
+        List<Class<?>> aphabeticalContractClasses = Helpers.getAlphabeticalUserTransformedDappClasses(classLoader, code.userClassNames);
 
         // We now have all the information to describe the LoadedDApp.
-        return new LoadedDApp(classLoader, aphabeticalContractClasses, app.mainClass, preserveDebuggability);
+        return new LoadedDApp(classLoader, aphabeticalContractClasses, code.mainClass, preserveDebuggability);
     }
 
     /**
@@ -55,7 +95,7 @@ public class DAppLoader {
      */
     public static LoadedDApp fromTransformed(TransformedDappModule app, boolean preserveDebuggability) {
         // We now need all the classes which will loaded within the class loader for this DApp (includes Helper and userlib classes we add).
-        Map<String, byte[]> allClasses = Helpers.mapIncludingHelperBytecode(app.classes, Helpers.loadDefaultHelperBytecode());
+        Map<String, byte[]> allClasses = Helpers.mapIncludingHelperBytecode(FieldCodecGenerator.addFieldCodecs(WriteBarrierInjector.addWriteBarriers(app.classes)), Helpers.loadDefaultHelperBytecode());
         
         // Construct the per-contract class loader.
         AvmClassLoader classLoader = NodeEnvironment.singleton.createInvocationClassLoader(allClasses);
@@ -67,4 +107,33 @@ public class DAppLoader {
         // We now have all the information to describe the LoadedDApp.
         return new LoadedDApp(classLoader, aphabeticalContractClasses, app.mainClass, preserveDebuggability);
     }
+
+
+    private static ParsedCode parse(ByteBuffer immortalDappJar) throws IOException {
+        // parse the code
+        ImmortalDappModule app = ImmortalDappModule.readFromJar(immortalDappJar);
+        
+        // We now need all the classes which will loaded within the class loader for this DApp (includes Helper and userlib classes we add).
+        // (this includes the generated field codecs, which aren't user classes, so they are left out of the class names)
+        // (the write barriers are added first since the field codecs write fields as part of loading the graph, not running the DApp)
+        Map<String, byte[]> allClasses = Helpers.mapIncludingHelperBytecode(FieldCodecGenerator.addFieldCodecs(WriteBarrierInjector.addWriteBarriers(app.classes)), Helpers.loadDefaultHelperBytecode());
+        return new ParsedCode(Collections.unmodifiableMap(allClasses), Collections.unmodifiableSet(app.classes.keySet()), app.mainClass);
+    }
+
+
+    /**
+     * Everything we need from a contract jar to load a DApp from it, before any classes are defined.
+     * This is immutable so it can be shared by every DApp with the same code.
+     */
+    public static final class ParsedCode {
+        private final Map<String, byte[]> allClasses;
+        private final Set<String> userClassNames;
+        private final String mainClass;
+
+        private ParsedCode(Map<String, byte[]> allClasses, Set<String> userClassNames, String mainClass) {
+            this.allClasses = allClasses;
+            this.userClassNames = userClassNames;
+            this.mainClass = mainClass;
+        }
+    }
 }
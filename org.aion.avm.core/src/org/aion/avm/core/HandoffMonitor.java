@@ -4,152 +4,202 @@ import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.kernel.AvmTransactionResult;
 import org.aion.parallel.TransactionTask;
 
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Set;
-import org.aion.vm.api.interfaces.SimpleFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import org.aion.vm.api.interfaces.TransactionResult;
 
 
 /**
- * Used by the AvmImpl to manage communication between its internal execution thread and the external calling thread.
- * This just provides monitor-protected blocking input/output variables, exception handling, and a safe way to shutdown.
+ * Used by the AvmImpl to manage communication between its internal execution threads and the external calling threads.
+ * This just provides blocking input/output variables, exception handling, and a safe way to shutdown.
  * Note that once an instance of this has been shutdown, it can't be started back up.
- * 
- * NOTE:  This currently assumes only one external thread is interacting with it at any given time.  This means that
- * attempting to send transactions from multiple threads or shutdown with one thread while running a transaction on another
- * would result in undefined behaviour.
+ *
+ * The hand-off is lock-free:  executor threads claim tasks by atomically advancing a cursor over the current batch and complete
+ * the per-index future results.  Threads only block (park) when there is nothing for them to do, and they are
+ * only woken (unparked) when that state changes, so there is no shared monitor for the executor threads to contend on.
+ * Tasks are always handed out in index order since the commit protocol in the AddressResourceMonitor relies on the lowest
+ * uncommitted task already being owned by a running executor thread.
+ *
+ * Batches are pipelined:  a new batch can be sent before the results of the previous ones have been consumed.  The batches are
+ * queued, in order, and executor threads only start claiming tasks from a batch once every task of the previous one was claimed,
+ * so the tail of one batch overlaps with the start of the next.
+ *
+ * Each transaction's result is returned as a {@link TransactionResultFuture}, completed as soon as the result is final, so the
+ * caller can consume the results in any order (or react to them through callbacks, without blocking).  Each batch also has a
+ * completion signal, for when every one of its results is final, after which the monitor drops it.
+ * The stages the caller attaches callbacks to are completed in index order within their batch, never on the thread which made the
+ * result final:  that thread can be committing on behalf of the whole pipeline so a callback which blocked there (on a later result,
+ * for example) could stall or deadlock every commit behind it.  Each batch's stages are completed by one publishing pass at a time,
+ * run on a pool of publishing threads, so a callback which blocks only delays the later stages of its own batch, not those of
+ * other batches (which are published independently, with no order between batches).
+ *
+ * Results are written back by whichever internal thread makes them final (see {@link #publishResult(TransactionTask, AvmTransactionResult)}),
+ * which isn't necessarily the one which ran the task, since tasks can be committed by other threads.
+ *
+ * Multiple external threads may send batches and consume results concurrently:  the batches are queued in the order their
+ * sends completed, and each waiting consumer is only woken by the result it is waiting for.
+ * If anything fails in the background, every outstanding result is completed exceptionally so nobody is left waiting.
+ * NOTE:  Shutting down with one thread while another is still sending or consuming results is undefined behaviour.
  */
 public class HandoffMonitor {
-    private Set<Thread> internalThreads;
-    //private TransactionContext[] incomingTransactions;
+    // Set to null when shutdown is requested (volatile since executor threads check this without any lock).
+    private volatile Set<Thread> internalThreads;
+    // We keep our own copy of the executor threads, since we need to wake them even after a shutdown request.
+    private final Thread[] executorThreads;
 
-    private Queue<TransactionTask> taskQueue;
+    // The batches which still have tasks to claim, in the order they were sent.
+    private final ConcurrentLinkedQueue<Batch> pendingBatches;
+    // The batches which still have results to publish (so we can find a task's batch and know what to fail if something goes wrong).
+    private final Set<Batch> liveBatches;
 
-    private AvmTransactionResult[] outgoingResults;
-    private Throwable backgroundThrowable;
-    //private int nextTransactionIndex;
+    // Runs the passes which complete the stages the caller sees (at most one per batch at a time, so each batch's complete in order).
+    private final ExecutorService publishingExecutor;
+
+    private volatile Throwable backgroundThrowable;
 
     public HandoffMonitor(Set<Thread> threadSet) {
         this.internalThreads = threadSet;
-        this.taskQueue = new LinkedList<>();
+        this.executorThreads = threadSet.toArray(new Thread[threadSet.size()]);
+        this.pendingBatches = new ConcurrentLinkedQueue<>();
+        this.liveBatches = ConcurrentHashMap.newKeySet();
+        this.publishingExecutor = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "AVM result publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
      * Called by the external thread.
      * Called to send new transactions to the internal thread.
-     * 
+     * This doesn't wait for any previously sent transactions to complete:  the new ones are run after them.
+     *
      * @param tasks The tasks for each transaction to run.
      * @return The result of the transactions in the given tasks as a corresponding array of asynchronous futures.
      */
-    public synchronized SimpleFuture<TransactionResult>[] sendTransactionsAsynchronously(TransactionTask[] tasks) {
-        // We lock-step these, so there can't already be a transaction in the hand-off.
-        RuntimeAssertionError.assertTrue(this.taskQueue.isEmpty());
-        RuntimeAssertionError.assertTrue(null == this.outgoingResults);
+    public TransactionResultFuture[] sendTransactionsAsynchronously(TransactionTask[] tasks) {
         RuntimeAssertionError.assertTrue(tasks.length > 0);
         // Also, we can't have already been shut down.
         if (null == this.internalThreads) {
             throw new IllegalStateException("Thread already stopped");
         }
-        
-        // Enqueue the new tasks and wake up the background thread.
-        for (TransactionTask task : tasks) {
-            this.taskQueue.add(task);
-        }
 
-        this.outgoingResults = new AvmTransactionResult[tasks.length];
-        this.notifyAll();
-        
-        // Return the future result, which will do the waiting for us.
+        // Create the futures before the batch is published since the results can be written back as soon as it is.
+        Batch batch = new Batch(tasks);
         ResultWaitFuture[] results = new ResultWaitFuture[tasks.length];
         for (int i = 0; i < results.length; ++i ) {
-            results[i] = new ResultWaitFuture(i);
+            results[i] = new ResultWaitFuture(batch);
+            batch.futures[i] = results[i];
         }
-        return results;
-    }
 
-    public synchronized AvmTransactionResult blockingConsumeResult(int index) {
-        // Wait until we have the result or something went wrong.
-        while ((null == this.outgoingResults[index]) && (null == this.backgroundThrowable)) {
-            // Otherwise, wait until state changes.
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                // We don't use interruption.
-                RuntimeAssertionError.unexpected(e);
-            }
-        }
-        
-        // Throw an exception, if there is one.
-        handleThrowable();
-        
-        // Consume the result and return it.
-        AvmTransactionResult result = this.outgoingResults[index];
-        this.outgoingResults[index] = null;
-        // If this is the last one in the list, drop it.
-        // TODO:  Remove this once we have a more sophisticated handoff mechanism (probably within the parallel executor - we currently
-        // know that we execute the list in-order).
-        if ((index + 1) == this.outgoingResults.length) {
-            this.outgoingResults = null;
+        // Publish the new batch, behind any others still running, and wake up the background threads.
+        this.liveBatches.add(batch);
+        this.pendingBatches.add(batch);
+        wakeAllExecutorThreads();
+
+        // If something failed in the background, it may have done so before it could see this batch (the throwable is set first).
+        if (null != this.backgroundThrowable) {
+            failBatch(batch, this.backgroundThrowable);
         }
-        return result;
+
+        // Return the future results, which will do the waiting for us.
+        return results;
     }
 
     /**
      * Called by the internal thread.
-     * The main blocking point for the internal thread.  It passes in the result from the last transaction it just completed
-     * and then waits until a new transaction comes in or a shutdown is requested.
-     * 
-     * @param previousResult The result of the previous transaction returned by this call.
+     * The main blocking point for the internal thread.  It waits until a new transaction comes in or a shutdown is requested.
+     * (the results of the transactions it ran are written back through publishResult(), not through this)
+     *
      * @return The next transaction to run or null if we should shut down.
      */
-    public synchronized TransactionTask blockingPollForTransaction(AvmTransactionResult previousResult, TransactionTask previousTask) {
-        // We may have been given these transactions as a list but we hand them out to the caller individually.
-        
-        // First, write-back any results that we have and notify anyone listening for that, on the front.
-        if (null != previousResult) {
-            this.outgoingResults[previousTask.getIndex()] = previousResult;
-        }
-        this.notifyAll();
-        
-        // This means that we only actually block when the incoming transactions are null (we make it null when we consume the last element and it becomes non-null when new data enqueued).
-        while ((null != this.internalThreads) && (this.taskQueue.isEmpty())) {
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                // We don't use interruption.
-                RuntimeAssertionError.unexpected(e);
+    public TransactionTask blockingPollForTransaction() {
+        // We only actually block when there is nothing left to claim.  Since the external thread always publishes state
+        // before unparking us, any change which happens between our check and the park will just cause the park to return.
+        Claim claim = null;
+        while ((null == claim) && (null != this.internalThreads)) {
+            claim = claimNextTask();
+            if (null == claim) {
+                LockSupport.park(this);
             }
         }
-        
-        // Unless this was a shutdown request, get the next transaction.
+
+        // Unless this was a shutdown request, make sure that we don't already have a response for the transaction we hand out.
         TransactionTask nextTask = null;
         if (null != this.internalThreads) {
-            // Make sure that we don't already have a response for the transaction we want to hand out.
-            RuntimeAssertionError.assertTrue(null == this.outgoingResults[this.taskQueue.peek().getIndex()]);
+            RuntimeAssertionError.assertTrue(!claim.batch.isResultPublished(claim.slot));
+            nextTask = claim.batch.tasks[claim.slot];
+        }
+        return nextTask;
+    }
 
-            nextTask = this.taskQueue.poll();
+    /**
+     * Called by the internal thread.
+     * Returns the next transaction to run, if there is one, without blocking.
+     *
+     * @return The next transaction to run or null if there is nothing to run right now (or we should shut down).
+     */
+    public TransactionTask pollForTransaction() {
+        TransactionTask nextTask = null;
+        if (null != this.internalThreads) {
+            Claim claim = claimNextTask();
+            if (null != claim) {
+                RuntimeAssertionError.assertTrue(!claim.batch.isResultPublished(claim.slot));
+                nextTask = claim.batch.tasks[claim.slot];
+            }
         }
         return nextTask;
     }
 
+    /**
+     * Called by any internal thread.
+     * Writes back the result of the given task, notifying anyone listening for it.  This allows a task's result to be published by
+     * a thread other than the one which ran it (as is the case when it was committed by another thread).
+     *
+     * @param task A task handed out by this monitor.
+     * @param result The result of the task.
+     */
+    public void publishResult(TransactionTask task, AvmTransactionResult result) {
+        // The tasks of a batch have consecutive indices so we can find the slot directly.
+        boolean isPublished = false;
+        for (Batch batch : this.liveBatches) {
+            long slot = task.getIndex() - batch.tasks[0].getIndex();
+            if ((slot >= 0L) && (slot < batch.tasks.length) && (task == batch.tasks[(int) slot])) {
+                completeResult(batch, (int) slot, result);
+                isPublished = true;
+                break;
+            }
+        }
+        RuntimeAssertionError.assertTrue(isPublished);
+    }
+
     /**
      * Called by the internal thread.
      * This is called if something goes wrong while running the transaction on the internal thread to communicate this problem to the external.
-     * 
+     *
      * @param throwable The exception (expected to be RuntimeException or Error).
      */
-    public synchronized void setBackgroundThrowable(Throwable throwable) {
+    public void setBackgroundThrowable(Throwable throwable) {
         // This will terminate anything the foreground is doing so notify them.
         this.backgroundThrowable = throwable;
-        this.notifyAll();
+        for (Batch batch : this.liveBatches) {
+            failBatch(batch, throwable);
+        }
     }
 
     /**
      * Called by the external thread.
      * Requests all the internal executor threads start.
      */
-    public synchronized void startExecutorThreads(){
+    public void startExecutorThreads(){
         for (Thread t: this.internalThreads){
             t.start();
         }
@@ -162,15 +212,11 @@ public class HandoffMonitor {
     public void stopAndWaitForShutdown() {
         // (called by the foreground thread)
         // Stop the thread and wait for it to join.
-        Set<Thread> backgroundThreads = null;
-        synchronized (this) {
-            backgroundThreads = this.internalThreads;
-            this.internalThreads = null;
-            this.notifyAll();
-        }
-        
+        Set<Thread> backgroundThreads = this.internalThreads;
+        this.internalThreads = null;
+        wakeAllExecutorThreads();
+
         // Join on the thread and throw any exceptions left over.
-        // (note that we can't join under monitor since the thread needs the monitor to exit).
         try {
             for (Thread t : backgroundThreads){
                 t.join();
@@ -179,15 +225,94 @@ public class HandoffMonitor {
             // We don't use interruption.
             RuntimeAssertionError.unexpected(e);
         }
+        // Anything already published is still delivered to its callbacks (not before this, since the executor threads publish until they exit).
+        this.publishingExecutor.shutdown();
         handleThrowable();
     }
 
 
+    private Claim claimNextTask() {
+        // Only move on to the next batch once the head has nothing left to claim, so tasks are still handed out in index order.
+        Claim claim = null;
+        Batch batch = this.pendingBatches.peek();
+        while ((null == claim) && (null != batch)) {
+            int slot = batch.claimNextSlot();
+            if (slot >= 0) {
+                claim = new Claim(batch, slot);
+            } else {
+                // (this is a no-op if another thread already removed it)
+                this.pendingBatches.remove(batch);
+                batch = this.pendingBatches.peek();
+            }
+        }
+        return claim;
+    }
+
+    private void completeResult(Batch batch, int slot, AvmTransactionResult result) {
+        ResultWaitFuture future = batch.futures[slot];
+        if (future.result.complete(result)) {
+            if (0 == batch.unpublishedResults.decrementAndGet()) {
+                // That was the last result so nobody will look for this batch anymore.
+                this.liveBatches.remove(batch);
+            }
+            // The caller's callbacks run on a publishing thread (the batch is only complete once they all have).
+            // Only the request which finds no pass running starts one:  the running pass picks up any requests made while it runs.
+            if (0 == batch.publishRequests.getAndIncrement()) {
+                this.publishingExecutor.execute(() -> publishBatch(batch));
+            }
+        }
+    }
+
+    private static void publishBatch(Batch batch) {
+        // (this is the only pass over this batch, until it returns, so nothing else moves its cursor)
+        int requests = batch.publishRequests.get();
+        do {
+            publishReadyStages(batch);
+            requests = batch.publishRequests.addAndGet(-requests);
+        } while (requests > 0);
+    }
+
+    private static void publishReadyStages(Batch batch) {
+        // Stop at the first result which isn't final, so no stage is completed ahead of an earlier one.
+        boolean isReady = true;
+        while (isReady && !batch.completion.isDone() && (batch.nextStageSlot < batch.futures.length)) {
+            ResultWaitFuture future = batch.futures[batch.nextStageSlot];
+            if (!future.result.isDone()) {
+                isReady = false;
+            } else if (!future.result.isCompletedExceptionally()) {
+                future.publishedResult.complete(future.result.join());
+                batch.nextStageSlot += 1;
+                if (batch.nextStageSlot == batch.futures.length) {
+                    batch.completion.complete(null);
+                }
+            } else {
+                // (the batch failed, in which case every stage is being completed exceptionally)
+                break;
+            }
+        }
+    }
+
+    private void failBatch(Batch batch, Throwable throwable) {
+        // (any results which were already published stay as they are)
+        for (ResultWaitFuture future : batch.futures) {
+            future.result.completeExceptionally(throwable);
+            future.publishedResult.completeExceptionally(throwable);
+        }
+        batch.completion.completeExceptionally(throwable);
+        this.liveBatches.remove(batch);
+    }
+
+    private void wakeAllExecutorThreads() {
+        for (Thread t : this.executorThreads) {
+            LockSupport.unpark(t);
+        }
+    }
+
     /**
      * Called by the external thread.
      */
     private void handleThrowable() {
-        // WARNING:  This is not always called under monitor but this should be safe so long as backgroundThrowable saturates to non-null.
+        // WARNING:  This is not always called in a consistent state but this should be safe so long as backgroundThrowable saturates to non-null.
         if (null != this.backgroundThrowable) {
             // Only RuntimeExceptions and Errors can actually be handled here.
             try {
@@ -204,19 +329,95 @@ public class HandoffMonitor {
     }
 
 
-    private class ResultWaitFuture implements SimpleFuture<TransactionResult> {
-        private final int index;
-        // We will cache the result.
-        private AvmTransactionResult cachedResult;
-        public ResultWaitFuture(int index) {
-            this.index = index;
+    /**
+     * The state of one call to sendTransactionsAsynchronously():  the tasks, the cursor used to claim them, the future result of
+     * each task, and the signal completed once all of those are.
+     */
+    private static class Batch {
+        private final TransactionTask[] tasks;
+        private final AtomicInteger nextSlot;
+        // (filled in before the batch is published)
+        private final ResultWaitFuture[] futures;
+        private final AtomicInteger unpublishedResults;
+        // The number of times a publishing pass was requested since the last one finished looking (non-zero while a pass runs).
+        private final AtomicInteger publishRequests;
+        // The slot of the first result whose stage hasn't yet been completed (only accessed by the batch's publishing pass).
+        private int nextStageSlot;
+        private final CompletableFuture<Void> completion;
+
+        public Batch(TransactionTask[] tasks) {
+            this.tasks = tasks;
+            this.nextSlot = new AtomicInteger(0);
+            this.futures = new ResultWaitFuture[tasks.length];
+            this.unpublishedResults = new AtomicInteger(tasks.length);
+            this.publishRequests = new AtomicInteger(0);
+            this.completion = new CompletableFuture<>();
+        }
+
+        public boolean isResultPublished(int slot) {
+            CompletableFuture<TransactionResult> result = this.futures[slot].result;
+            return result.isDone() && !result.isCompletedExceptionally();
+        }
+
+        /**
+         * @return The slot of the claimed task or -1 if all of them have already been claimed.
+         */
+        public int claimNextSlot() {
+            // We check before incrementing so that idle threads don't keep pushing the cursor past the end.
+            int slot = -1;
+            if (this.nextSlot.get() < this.tasks.length) {
+                int index = this.nextSlot.getAndIncrement();
+                if (index < this.tasks.length) {
+                    slot = index;
+                }
+            }
+            return slot;
+        }
+    }
+
+
+    private static class Claim {
+        public final Batch batch;
+        public final int slot;
+
+        public Claim(Batch batch, int slot) {
+            this.batch = batch;
+            this.slot = slot;
+        }
+    }
+
+
+    private class ResultWaitFuture implements TransactionResultFuture {
+        private final Batch batch;
+        // Completed by whichever internal thread publishes the result.
+        private final CompletableFuture<TransactionResult> result;
+        // The same result, but completed on a publishing thread (this is what the caller attaches callbacks to).
+        private final CompletableFuture<TransactionResult> publishedResult;
+        public ResultWaitFuture(Batch batch) {
+            this.batch = batch;
+            this.result = new CompletableFuture<>();
+            this.publishedResult = new CompletableFuture<>();
         }
         @Override
-        public AvmTransactionResult get() {
-            if (null == this.cachedResult) {
-                this.cachedResult = HandoffMonitor.this.blockingConsumeResult(this.index);
+        public TransactionResult get() {
+            // The result stays in the future so it can be read any number of times, from any thread.
+            TransactionResult value = null;
+            try {
+                value = this.result.join();
+            } catch (CompletionException e) {
+                // This only happens if something failed in the background, which we throw below.
             }
-            return this.cachedResult;
+            HandoffMonitor.this.handleThrowable();
+            return value;
+        }
+        @Override
+        public CompletionStage<TransactionResult> getCompletionStage() {
+            // (the caller can't complete these stages itself)
+            return this.publishedResult.minimalCompletionStage();
+        }
+        @Override
+        public CompletionStage<Void> getBatchCompletionStage() {
+            return this.batch.completion.minimalCompletionStage();
         }
     }
 }
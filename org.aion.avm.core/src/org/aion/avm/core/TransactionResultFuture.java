@@ -0,0 +1,32 @@
+package org.aion.avm.core;
+
+import java.util.concurrent.CompletionStage;
+import org.aion.vm.api.interfaces.SimpleFuture;
+import org.aion.vm.api.interfaces.TransactionResult;
+
+
+/**
+ * The future result of one transaction sent to the AVM.
+ *
+ * Besides blocking in {@link #get()}, the caller can react to the result as soon as it is final (once the transaction has
+ * committed), by attaching actions to {@link #getCompletionStage()}.  It can also react to every transaction of the batch being
+ * final through {@link #getBatchCompletionStage()}.
+ *
+ * If the AVM fails in the background, both stages complete exceptionally with the failure, while {@link #get()} throws it.
+ * Actions attached to these stages run on one of the AVM's result publishing threads (unless they are attached with one of the
+ * async methods), not on the threads executing and committing transactions.  The stages of a batch are completed in transaction
+ * order, so its results can be streamed into a block as they come, but there is no order between the stages of different batches.
+ * An action may block, even on a later result's {@link #get()}, but that delays every later stage of its batch, and it must never
+ * wait for a later stage of the same batch, since that stage is completed by the same thread.
+ */
+public interface TransactionResultFuture extends SimpleFuture<TransactionResult> {
+    /**
+     * @return A stage completed with the result of the transaction.
+     */
+    CompletionStage<TransactionResult> getCompletionStage();
+
+    /**
+     * @return A stage completed once the result of every transaction of the batch this one was sent in is final.
+     */
+    CompletionStage<Void> getBatchCompletionStage();
+}
@@ -2,6 +2,8 @@ package org.aion.avm.core.dappreading;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -11,6 +13,7 @@ import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipException;
 
+import org.aion.avm.core.util.ByteBufferInputStream;
 import org.aion.avm.core.util.Helpers;
 import org.aion.avm.internal.RuntimeAssertionError;
 
@@ -31,8 +34,23 @@ public class LoadedJar {
      * @return The high-level JAR, or null if the input was malformed.
      */
     public static LoadedJar fromBytes(byte[] jar) {
+        return fromStream(new ByteArrayInputStream(jar));
+    }
+
+    /**
+     * Same as {@link #fromBytes(byte[])} but reads the remaining bytes of a buffer (which is left unchanged), so a read-only view of
+     * the stored JAR can be loaded without first copying it into a byte[].
+     * 
+     * @param jar The in-memory JAR file.
+     * @return The high-level JAR, or null if the input was malformed.
+     */
+    public static LoadedJar fromBuffer(ByteBuffer jar) {
+        return fromStream(new ByteBufferInputStream(jar));
+    }
+
+    private static LoadedJar fromStream(InputStream jar) {
         LoadedJar result = null;
-        try (ByteArrayInputStream byteReader = new ByteArrayInputStream(jar)) {
+        try (InputStream byteReader = jar) {
             result = safeLoadFromBytes(byteReader);
         } catch (ZipException e) {
             // This is corrupt input so just return null.
@@ -51,7 +69,7 @@ public class LoadedJar {
         return result;
     }
 
-    private static LoadedJar safeLoadFromBytes(ByteArrayInputStream byteReader) throws IOException, SizeException {
+    private static LoadedJar safeLoadFromBytes(InputStream byteReader) throws IOException, SizeException {
         Map<String, byte[]> classBytesByQualifiedNames = new HashMap<>();
         String mainClassName = null;
         
@@ -122,45 +122,50 @@ public class ByteBufferObjectDeserializer implements IObjectDeserializer {
             // We can deserialize this one, but first see if we need to call a superclass.
             internalDeserializeFieldsFromRoot(rootClass, thisClass.getSuperclass(), instance);
             
-            // Now, serialize the fields in this level.
-            try {
-                Field[] fields = this.cache.getInstanceFields(thisClass);
-                for (Field field : fields) {
-                    // We need to crack the type, here.
-                    Class<?> type = field.getType();
-                    if (boolean.class == type) {
-                        boolean val = this.readBoolean();
-                        field.setBoolean(instance, val);
-                    } else if (byte.class == type) {
-                        byte val = this.readByte();
-                        field.setByte(instance, val);
-                    } else if (short.class == type) {
-                        short val = this.readShort();
-                        field.setShort(instance, val);
-                    } else if (char.class == type) {
-                        char val = this.readChar();
-                        field.setChar(instance, val);
-                    } else if (int.class == type) {
-                        int val = this.readInt();
-                        field.setInt(instance, val);
-                    } else if (float.class == type) {
-                        float val = this.readFloat();
-                        field.setFloat(instance, val);
-                    } else if (long.class == type) {
-                        long val = this.readLong();
-                        field.setLong(instance, val);
-                    } else if (double.class == type) {
-                        double val = this.readDouble();
-                        field.setDouble(instance, val);
-                    } else {
-                        // Object types require further logic.
-                        Object val = this.readObject();
-                        field.set(instance, val);
+            // Now, deserialize the fields in this level (directly, if this class has a generated codec).
+            IFieldCodec codec = this.cache.getFieldCodec(thisClass);
+            if (null != codec) {
+                codec.deserializeFields(instance, this);
+            } else {
+                try {
+                    Field[] fields = this.cache.getInstanceFields(thisClass);
+                    for (Field field : fields) {
+                        // We need to crack the type, here.
+                        Class<?> type = field.getType();
+                        if (boolean.class == type) {
+                            boolean val = this.readBoolean();
+                            field.setBoolean(instance, val);
+                        } else if (byte.class == type) {
+                            byte val = this.readByte();
+                            field.setByte(instance, val);
+                        } else if (short.class == type) {
+                            short val = this.readShort();
+                            field.setShort(instance, val);
+                        } else if (char.class == type) {
+                            char val = this.readChar();
+                            field.setChar(instance, val);
+                        } else if (int.class == type) {
+                            int val = this.readInt();
+                            field.setInt(instance, val);
+                        } else if (float.class == type) {
+                            float val = this.readFloat();
+                            field.setFloat(instance, val);
+                        } else if (long.class == type) {
+                            long val = this.readLong();
+                            field.setLong(instance, val);
+                        } else if (double.class == type) {
+                            double val = this.readDouble();
+                            field.setDouble(instance, val);
+                        } else {
+                            // Object types require further logic.
+                            Object val = this.readObject();
+                            field.set(instance, val);
+                        }
                     }
+                } catch (IllegalAccessException e) {
+                    // Reflection errors can't happen since we set this up so we could access it.
+                    throw RuntimeAssertionError.unexpected(e);
                 }
-            } catch (IllegalAccessException e) {
-                // Reflection errors can't happen since we set this up so we could access it.
-                throw RuntimeAssertionError.unexpected(e);
             }
         }
     }
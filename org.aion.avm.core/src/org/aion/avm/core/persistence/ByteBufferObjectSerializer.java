@@ -1,6 +1,7 @@
 package org.aion.avm.core.persistence;
 
 import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.IdentityHashMap;
@@ -11,14 +12,26 @@ import org.aion.avm.internal.RuntimeAssertionError;
 
 
 public class ByteBufferObjectSerializer implements IObjectSerializer {
-    private final ByteBuffer buffer;
+    // This is replaced by a larger buffer if it fills up before the maximumSizeInBytes.
+    private ByteBuffer buffer;
+    private final int maximumSizeInBytes;
     private final SortedFieldCache cache;
     private final IGlobalResolver resolver;
     private final IPersistenceNameMapper classNameMapper;
     private final InstanceIndexMapper instanceMapper;
 
     public ByteBufferObjectSerializer(ByteBuffer buffer, Queue<Object> out_ToProcessQueue, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper) {
+        // A buffer given without a maximum size is never grown.
+        this(buffer, buffer.limit(), out_ToProcessQueue, cache, resolver, classNameMapper);
+    }
+
+    /**
+     * Creates a serializer which grows its buffer, as needed, up to maximumSizeInBytes.  Running past that throws
+     * BufferOverflowException, same as running off the end of a buffer which can't grow.
+     */
+    public ByteBufferObjectSerializer(ByteBuffer buffer, int maximumSizeInBytes, Queue<Object> out_ToProcessQueue, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper) {
         this.buffer = buffer;
+        this.maximumSizeInBytes = maximumSizeInBytes;
         this.cache = cache;
         this.resolver = resolver;
         this.classNameMapper = classNameMapper;
@@ -27,41 +40,49 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
 
     @Override
     public void writeBoolean(boolean value) {
+        ensureRemaining(Byte.BYTES);
         this.buffer.put((byte) (value ? 0x1 : 0x0));
     }
 
     @Override
     public void writeByte(byte value) {
+        ensureRemaining(Byte.BYTES);
         this.buffer.put(value);
     }
 
     @Override
     public void writeShort(short value) {
+        ensureRemaining(Short.BYTES);
         this.buffer.putShort(value);
     }
 
     @Override
     public void writeChar(char value) {
+        ensureRemaining(Character.BYTES);
         this.buffer.putChar(value);
     }
 
     @Override
     public void writeInt(int value) {
+        ensureRemaining(Integer.BYTES);
         this.buffer.putInt(value);
     }
 
     @Override
     public void writeFloat(float value) {
+        ensureRemaining(Float.BYTES);
         this.buffer.putFloat(value);
     }
 
     @Override
     public void writeLong(long value) {
+        ensureRemaining(Long.BYTES);
         this.buffer.putLong(value);
     }
 
     @Override
     public void writeDouble(double value) {
+        ensureRemaining(Double.BYTES);
         this.buffer.putDouble(value);
     }
 
@@ -73,19 +94,23 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
         // 3) Class - Classes need to be interned, so they can't just be instantiated like normal instances
         // 4) Instance - Regular instances are the final case since they only have meaning within a graph
         if (null == value) {
+            ensureRemaining(Byte.BYTES);
             this.buffer.put(ReferenceConstants.REF_NULL);
         } else {
             int constantIdentifier = this.resolver.getAsConstant(value);
             if (0 != constantIdentifier) {
+                ensureRemaining(Byte.BYTES + Integer.BYTES);
                 this.buffer.put(ReferenceConstants.REF_CONSTANT);
                 this.buffer.putInt(constantIdentifier);
             } else {
                 String internalClassName = this.resolver.getAsInternalClassName(value);
                 if (null != internalClassName) {
+                    ensureRemaining(Byte.BYTES);
                     this.buffer.put(ReferenceConstants.REF_CLASS);
                     internalWriteClassName(internalClassName);
                 } else {
                     int instanceIndex = instanceMapper.getIndexForInstance(value);
+                    ensureRemaining(Byte.BYTES + Integer.BYTES);
                     this.buffer.put(ReferenceConstants.REF_NORMAL);
                     this.buffer.putInt(instanceIndex);
                 }
@@ -98,6 +123,14 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
         internalWriteClassName(internalClassName);
     }
 
+    /**
+     * @return The buffer currently being written, positioned after what has been written (this won't be the buffer the serializer was
+     * created with if it had to grow).
+     */
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
     @Override
     public void automaticallySerializeToRoot(Class<?> rootClass, Object instance) {
         // This is called after any root information has been serialized, including class name and root instance variables.
@@ -113,45 +146,50 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
             // We can serialize this one, but first see if we need to call a superclass.
             internalSerializeFieldsToRoot(rootClass, thisClass.getSuperclass(), instance);
             
-            // Now, serialize the fields in this level.
-            try {
-                Field[] fields = this.cache.getInstanceFields(thisClass);
-                for (Field field : fields) {
-                    // We need to crack the type, here.
-                    Class<?> type = field.getType();
-                    if (boolean.class == type) {
-                        boolean val = field.getBoolean(instance);
-                        this.writeBoolean(val);
-                    } else if (byte.class == type) {
-                        byte val = field.getByte(instance);
-                        this.writeByte(val);
-                    } else if (short.class == type) {
-                        short val = field.getShort(instance);
-                        this.writeShort(val);
-                    } else if (char.class == type) {
-                        char val = field.getChar(instance);
-                        this.writeChar(val);
-                    } else if (int.class == type) {
-                        int val = field.getInt(instance);
-                        this.writeInt(val);
-                    } else if (float.class == type) {
-                        float actual = field.getFloat(instance);
-                        this.writeFloat(actual);
-                    } else if (long.class == type) {
-                        long val = field.getLong(instance);
-                        this.writeLong(val);
-                    } else if (double.class == type) {
-                        double actual = field.getDouble(instance);
-                        this.writeDouble(actual);
-                    } else {
-                        // Object types require further logic.
-                        Object target = field.get(instance);
-                        this.writeObject(target);
+            // Now, serialize the fields in this level (directly, if this class has a generated codec).
+            IFieldCodec codec = this.cache.getFieldCodec(thisClass);
+            if (null != codec) {
+                codec.serializeFields(instance, this);
+            } else {
+                try {
+                    Field[] fields = this.cache.getInstanceFields(thisClass);
+                    for (Field field : fields) {
+                        // We need to crack the type, here.
+                        Class<?> type = field.getType();
+                        if (boolean.class == type) {
+                            boolean val = field.getBoolean(instance);
+                            this.writeBoolean(val);
+                        } else if (byte.class == type) {
+                            byte val = field.getByte(instance);
+                            this.writeByte(val);
+                        } else if (short.class == type) {
+                            short val = field.getShort(instance);
+                            this.writeShort(val);
+                        } else if (char.class == type) {
+                            char val = field.getChar(instance);
+                            this.writeChar(val);
+                        } else if (int.class == type) {
+                            int val = field.getInt(instance);
+                            this.writeInt(val);
+                        } else if (float.class == type) {
+                            float actual = field.getFloat(instance);
+                            this.writeFloat(actual);
+                        } else if (long.class == type) {
+                            long val = field.getLong(instance);
+                            this.writeLong(val);
+                        } else if (double.class == type) {
+                            double actual = field.getDouble(instance);
+                            this.writeDouble(actual);
+                        } else {
+                            // Object types require further logic.
+                            Object target = field.get(instance);
+                            this.writeObject(target);
+                        }
                     }
+                } catch (IllegalAccessException e) {
+                    // Reflection errors can't happen since we set this up so we could access it.
+                    throw RuntimeAssertionError.unexpected(e);
                 }
-            } catch (IllegalAccessException e) {
-                // Reflection errors can't happen since we set this up so we could access it.
-                throw RuntimeAssertionError.unexpected(e);
             }
         }
     }
@@ -162,10 +200,30 @@ public class ByteBufferObjectSerializer implements IObjectSerializer {
         // We limit class names to 255 UTF-8 bytes so read the length byte.
         RuntimeAssertionError.assertTrue(utf8.length > 0);
         RuntimeAssertionError.assertTrue(utf8.length <= 255);
+        ensureRemaining(Byte.BYTES + utf8.length);
         this.buffer.put((byte) utf8.length);
         this.buffer.put(utf8);
     }
 
+    private void ensureRemaining(int bytes) {
+        if (this.buffer.remaining() < bytes) {
+            int requiredSize = this.buffer.position() + bytes;
+            if (requiredSize > this.maximumSizeInBytes) {
+                throw new BufferOverflowException();
+            }
+            // Double the size so that a large graph only grows the buffer a few times.
+            int newSize = Math.min(Math.max(requiredSize, 2 * this.buffer.limit()), this.maximumSizeInBytes);
+            if (newSize <= this.buffer.capacity()) {
+                this.buffer.limit(newSize);
+            } else {
+                ByteBuffer grown = ByteBuffer.allocate(newSize);
+                this.buffer.flip();
+                grown.put(this.buffer);
+                this.buffer = grown;
+            }
+        }
+    }
+
 
     private static class InstanceIndexMapper {
         private int nextInstanceIndex;
@@ -45,6 +45,27 @@ public class Deserializer {
         return nextHashCode;
     }
 
+    /**
+     * Loads the graph lazily, using the offsets recorded when it was serialized:  only the class statics are populated, here.  The instances they
+     * reference are created as stubs which are populated from the graph the first time they are used (see LazyInstanceLoader).
+     * Note that the inputBuffer must not be changed while any of these stubs are still alive since they will read from it.
+     * 
+     * @return The nextHashCode serialized within the graph.
+     */
+    public static int deserializeGraphLazilyAndNextHashCode(ByteBuffer inputBuffer, int[] instanceOffsets, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, Class<?>[] sortedRoots) {
+        // We define the storage as big-endian.
+        RuntimeAssertionError.assertTrue(ByteOrder.BIG_ENDIAN == inputBuffer.order());
+        LazyInstanceLoader loader = new LazyInstanceLoader(inputBuffer, instanceOffsets, cache, resolver, classNameMapper);
+        
+        int nextHashCode = inputBuffer.getInt();
+        // The loader is the instance list so the statics just get stubs for the instances they reference.
+        ByteBufferObjectDeserializer objectDeserializer = new ByteBufferObjectDeserializer(inputBuffer, loader, cache, resolver, classNameMapper);
+        deserializeClassStatics(objectDeserializer, cache, sortedRoots);
+        loader.populateQueuedInstances();
+        
+        return nextHashCode;
+    }
+
 
 
     private static void deserializeClassStatics(ByteBufferObjectDeserializer objectDeserializer, SortedFieldCache cache, Class<?>[] sortedRoots) {
@@ -0,0 +1,200 @@
+package org.aion.avm.core.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.internal.IObjectDeserializer;
+import org.aion.avm.internal.IObjectSerializer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+
+/**
+ * Generates an {@link IFieldCodec} for each class of a DApp, so the automatic graph serialization can read and write instance
+ * fields directly, instead of through reflection.
+ * The codec for a class is named by appending {@link #CODEC_SUFFIX} to the class name, so it lands in the same package (and is
+ * defined by the same class loader).  Since it still can't see private fields, we also drop "private" from instance fields, much
+ * like {@link AutomaticGraphVisitor} drops "final" (nothing else, in the DApp, was compiled to access them so this changes nothing
+ * else about how the classes behave).
+ * This only depends on the transformed classes so it is done when the code is loaded (not when it is deployed), meaning it also
+ * applies to DApps which were deployed before it existed.
+ */
+public class FieldCodecGenerator implements Opcodes {
+    public static final String CODEC_SUFFIX = "$avm_codec";
+
+    private static final String CODEC_INTERFACE = Type.getInternalName(IFieldCodec.class);
+    private static final String SERIALIZER = Type.getInternalName(IObjectSerializer.class);
+    private static final String DESERIALIZER = Type.getInternalName(IObjectDeserializer.class);
+
+    /**
+     * Returns a copy of the given DApp classes with their instance fields made visible to their package and a codec class added for
+     * each class which declares instance fields.
+     * 
+     * @param classes The transformed DApp classes, by .-style name.
+     * @return The classes to load, instead.
+     */
+    public static Map<String, byte[]> addFieldCodecs(Map<String, byte[]> classes) {
+        Map<String, byte[]> result = new HashMap<>(classes);
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            String codecName = entry.getKey() + CODEC_SUFFIX;
+            // (if the DApp happens to already have a class by this name, that class just keeps using the reflective path)
+            if (!classes.containsKey(codecName)) {
+                ClassReader reader = new ClassReader(entry.getValue());
+                FieldCollector collector = new FieldCollector();
+                reader.accept(collector, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                if (!collector.isInterface && !collector.instanceFields.isEmpty()) {
+                    if (collector.hasPrivateInstanceField) {
+                        result.put(entry.getKey(), widenInstanceFields(reader));
+                    }
+                    result.put(codecName, generateCodec(collector.className, collector.instanceFields));
+                }
+            }
+        }
+        return result;
+    }
+
+
+    private static byte[] widenInstanceFields(ClassReader reader) {
+        // (passing the reader to the writer means the methods are copied over without being rebuilt)
+        ClassWriter writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(Opcodes.ASM6, writer) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                int newAccess = (0 == (ACC_STATIC & access))
+                        ? (~ACC_PRIVATE) & access
+                        : access;
+                return super.visitField(newAccess, name, descriptor, signature, value);
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static byte[] generateCodec(String className, List<String[]> instanceFields) {
+        // Sorted by name, the same way SortedFieldCache sorts them.
+        instanceFields.sort((f1, f2) -> f1[0].compareTo(f2[0]));
+        String codecName = className + CODEC_SUFFIX;
+        
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(V10, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, codecName, null, "java/lang/Object", new String[] { CODEC_INTERFACE });
+        
+        MethodVisitor constructor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(ALOAD, 0);
+        constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+        
+        // void serializeFields(Object instance, IObjectSerializer serializer):  serializer.writeX(((C) instance).field) for each field.
+        MethodVisitor serialize = classWriter.visitMethod(ACC_PUBLIC, "serializeFields", "(Ljava/lang/Object;L" + SERIALIZER + ";)V", null, null);
+        serialize.visitCode();
+        serialize.visitVarInsn(ALOAD, 1);
+        serialize.visitTypeInsn(CHECKCAST, className);
+        serialize.visitVarInsn(ASTORE, 3);
+        for (String[] field : instanceFields) {
+            String descriptor = field[1];
+            boolean isReference = isReference(descriptor);
+            serialize.visitVarInsn(ALOAD, 2);
+            serialize.visitVarInsn(ALOAD, 3);
+            serialize.visitFieldInsn(GETFIELD, className, field[0], descriptor);
+            String writeDescriptor = isReference
+                    ? "(Ljava/lang/Object;)V"
+                    : "(" + descriptor + ")V";
+            serialize.visitMethodInsn(INVOKEINTERFACE, SERIALIZER, "write" + suffixForDescriptor(descriptor), writeDescriptor, true);
+        }
+        serialize.visitInsn(RETURN);
+        serialize.visitMaxs(0, 0);
+        serialize.visitEnd();
+        
+        // void deserializeFields(Object instance, IObjectDeserializer deserializer):  ((C) instance).field = deserializer.readX() for each field.
+        MethodVisitor deserialize = classWriter.visitMethod(ACC_PUBLIC, "deserializeFields", "(Ljava/lang/Object;L" + DESERIALIZER + ";)V", null, null);
+        deserialize.visitCode();
+        deserialize.visitVarInsn(ALOAD, 1);
+        deserialize.visitTypeInsn(CHECKCAST, className);
+        deserialize.visitVarInsn(ASTORE, 3);
+        for (String[] field : instanceFields) {
+            String descriptor = field[1];
+            boolean isReference = isReference(descriptor);
+            deserialize.visitVarInsn(ALOAD, 3);
+            deserialize.visitVarInsn(ALOAD, 2);
+            String readDescriptor = isReference
+                    ? "()Ljava/lang/Object;"
+                    : "()" + descriptor;
+            deserialize.visitMethodInsn(INVOKEINTERFACE, DESERIALIZER, "read" + suffixForDescriptor(descriptor), readDescriptor, true);
+            if (isReference && !"Ljava/lang/Object;".equals(descriptor)) {
+                // (for an array descriptor, the internal name is the descriptor, itself)
+                deserialize.visitTypeInsn(CHECKCAST, Type.getType(descriptor).getInternalName());
+            }
+            deserialize.visitFieldInsn(PUTFIELD, className, field[0], descriptor);
+        }
+        deserialize.visitInsn(RETURN);
+        deserialize.visitMaxs(0, 0);
+        deserialize.visitEnd();
+        
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private static boolean isReference(String descriptor) {
+        char first = descriptor.charAt(0);
+        return ('L' == first) || ('[' == first);
+    }
+
+    private static String suffixForDescriptor(String descriptor) {
+        switch (descriptor.charAt(0)) {
+            case 'Z':
+                return "Boolean";
+            case 'B':
+                return "Byte";
+            case 'S':
+                return "Short";
+            case 'C':
+                return "Char";
+            case 'I':
+                return "Int";
+            case 'F':
+                return "Float";
+            case 'J':
+                return "Long";
+            case 'D':
+                return "Double";
+            default:
+                return "Object";
+        }
+    }
+
+
+    private static class FieldCollector extends ClassVisitor {
+        public String className;
+        public boolean isInterface;
+        public boolean hasPrivateInstanceField;
+        // {name, descriptor} of each instance field.
+        public final List<String[]> instanceFields = new ArrayList<>();
+
+        public FieldCollector() {
+            super(Opcodes.ASM6);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.className = name;
+            this.isInterface = (0 != (ACC_INTERFACE & access));
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            if (0 == (ACC_STATIC & access)) {
+                this.instanceFields.add(new String[] { name, descriptor });
+                this.hasPrivateInstanceField |= (0 != (ACC_PRIVATE & access));
+            }
+            return null;
+        }
+    }
+}
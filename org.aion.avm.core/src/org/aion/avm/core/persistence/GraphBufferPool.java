@@ -0,0 +1,45 @@
+package org.aion.avm.core.persistence;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Holds the buffer each thread serializes graphs into, so that saving a graph doesn't need to allocate (and zero) a buffer big enough
+ * for the largest possible graph every time.
+ * The buffer starts small, since most graphs are, and the ByteBufferObjectSerializer grows it if a graph doesn't fit.  The grown
+ * buffer is what is returned to the pool so the thread only pays for the growth once.
+ *
+ * Only the serialized bytes are copied out of the buffer so it can be reused as soon as the graph has been saved.
+ */
+class GraphBufferPool {
+    private static final int INITIAL_SIZE_IN_BYTES = 16 * 1024;
+    // Serialization isn't nested but we remove the buffer while it is in use so that a nested user would get its own.
+    private static final ThreadLocal<ByteBuffer> POOLED_BUFFER = new ThreadLocal<>();
+
+    /**
+     * Takes the calling thread's buffer out of the pool.
+     *
+     * @param maximumSizeInBytes The size limit on what will be serialized into the buffer (its limit is never set past this).
+     * @return An empty buffer.
+     */
+    public static ByteBuffer acquire(int maximumSizeInBytes) {
+        ByteBuffer buffer = POOLED_BUFFER.get();
+        if (null != buffer) {
+            POOLED_BUFFER.set(null);
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocate(INITIAL_SIZE_IN_BYTES);
+        }
+        buffer.limit(Math.min(buffer.capacity(), maximumSizeInBytes));
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the calling thread's pool, once nothing refers to what was serialized into it.
+     *
+     * @param buffer The buffer from acquire() or the buffer it was grown into.
+     */
+    public static void release(ByteBuffer buffer) {
+        POOLED_BUFFER.set(buffer);
+    }
+}
@@ -0,0 +1,16 @@
+package org.aion.avm.core.persistence;
+
+import org.aion.avm.internal.IObjectDeserializer;
+import org.aion.avm.internal.IObjectSerializer;
+
+
+/**
+ * Reads or writes the instance fields declared by one specific class, in the same (sorted) order as the reflective path in
+ * {@link ByteBufferObjectSerializer} and {@link ByteBufferObjectDeserializer}.
+ * Implementations are generated by {@link FieldCodecGenerator} and loaded next to the class they handle.
+ */
+public interface IFieldCodec {
+    void serializeFields(Object instance, IObjectSerializer serializer);
+
+    void deserializeFields(Object instance, IObjectDeserializer deserializer);
+}
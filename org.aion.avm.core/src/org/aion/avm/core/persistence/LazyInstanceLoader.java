@@ -0,0 +1,114 @@
+package org.aion.avm.core.persistence;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.aion.avm.internal.ILazyLoader;
+import org.aion.avm.internal.IObject;
+import org.aion.avm.internal.PackageConstants;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * Holds the instances of a graph which is being loaded lazily, using the offsets recorded when the graph was serialized to find them.
+ * An instance is only created, as a stub, when a reference to it is first read and it is only populated when it is first used (the
+ * DApp's code calls lazyLoad() before every field access).  This means that the cost of loading the graph follows what the DApp
+ * actually touches, not the size of the graph.
+ * This acts as the instance list of the deserializers reading the graph, since they only index it to resolve a reference.
+ *
+ * Instances of the runtime's own classes (strings, arrays, etc) are populated as soon as they are created, instead, since the runtime
+ * doesn't lazyLoad() every instance it reaches into (only the DApp's classes get that from the transformation).  These are small
+ * and only reached through the DApp's own objects, so this doesn't add much.
+ */
+class LazyInstanceLoader extends AbstractList<Object> implements ILazyLoader {
+    private final ByteBuffer graph;
+    private final int[] instanceOffsets;
+    private final Object[] instances;
+    private final SortedFieldCache cache;
+    private final IGlobalResolver resolver;
+    private final IPersistenceNameMapper classNameMapper;
+    private final Method deserializeSelfMethod;
+    // The runtime instances which have been created but not yet populated (we don't populate them as they are created since that
+    // happens while another instance is being populated and could otherwise recurse as deeply as the graph).
+    private final Queue<Object> toPopulateQueue;
+
+    public LazyInstanceLoader(ByteBuffer graph, int[] instanceOffsets, SortedFieldCache cache, IGlobalResolver resolver, IPersistenceNameMapper classNameMapper) {
+        this.graph = graph;
+        this.instanceOffsets = instanceOffsets;
+        this.instances = new Object[instanceOffsets.length];
+        this.cache = cache;
+        this.resolver = resolver;
+        this.classNameMapper = classNameMapper;
+        this.deserializeSelfMethod = cache.getDeserializeSelfMethod();
+        this.toPopulateQueue = new ArrayDeque<>();
+    }
+
+    @Override
+    public Object get(int index) {
+        Object instance = this.instances[index];
+        if (null == instance) {
+            String internalClassName = deserializerForInstance(index).readClassName();
+            // The readIndex is the index within the stored graph, same as when it is loaded eagerly.
+            instance = this.cache.getNewInstance(internalClassName, index);
+            this.instances[index] = instance;
+            if (isRuntimeClass(internalClassName)) {
+                this.toPopulateQueue.add(instance);
+            } else {
+                ((org.aion.avm.shadow.java.lang.Object) instance).setLazyLoader(this);
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public int size() {
+        return this.instances.length;
+    }
+
+    @Override
+    public void loadInstance(IObject instance) {
+        populate(instance);
+        populateQueuedInstances();
+    }
+
+    /**
+     * Populates any runtime instances which were created as stubs but not yet populated.  This must be called after anything which
+     * could create stubs (loading the statics or an instance) before returning to the DApp.
+     */
+    public void populateQueuedInstances() {
+        while (!this.toPopulateQueue.isEmpty()) {
+            populate(this.toPopulateQueue.remove());
+        }
+    }
+
+
+    private void populate(Object instance) {
+        int index = ((org.aion.avm.shadow.java.lang.Object) instance).readIndex;
+        ByteBufferObjectDeserializer deserializer = deserializerForInstance(index);
+        // Read the class name, but just to advance the cursor.
+        deserializer.readClassName();
+        try {
+            this.deserializeSelfMethod.invoke(instance, null, deserializer);
+        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+            // Reflection errors can't happen since we set this up so we could access it.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private ByteBufferObjectDeserializer deserializerForInstance(int index) {
+        // Each read gets its own cursor since the instances are read in whatever order the DApp reaches them.
+        ByteBuffer buffer = this.graph.duplicate();
+        buffer.position(this.instanceOffsets[index]);
+        return new ByteBufferObjectDeserializer(buffer, this, this.cache, this.resolver, this.classNameMapper);
+    }
+
+    private static boolean isRuntimeClass(String className) {
+        return className.startsWith(PackageConstants.kShadowDotPrefix)
+                || className.startsWith(PackageConstants.kShadowApiDotPrefix)
+                || className.startsWith(PackageConstants.kArrayWrapperDotPrefix);
+    }
+}
@@ -5,6 +5,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.aion.avm.core.util.DebugNameResolver;
@@ -72,8 +74,22 @@ public class LoadedDApp {
     private Field runtimeBlockchainRuntimeField;
     private Method mainMethod;
     private long loadedBlockNum;
+    // The transformed code this DApp was loaded from, so that a cached instance is only resumed where that is still the code.
+    private byte[] loadedCode;
     private final boolean preserveDebuggability;
 
+    // The stored graph which the statics held at the end of the last successful call, along with the interned classes it was built
+    // with, so that the next call can skip loading the graph if it is still the one in storage (see cleanForCache()).
+    private byte[] residentGraphData;
+    private InternedClasses residentInternedClasses;
+    // What the resident graph will be if the current call is successful.
+    private byte[] savedGraphData;
+    private InternedClasses savedInternedClasses;
+    // The last graph serialized by saveStoredGraph() and the offset of each of its instances, so that graph can be loaded lazily if
+    // it is the one we are next asked to load.  This record never leaves this instance:  the stored graph is only ever the plain graph.
+    private byte[] indexedGraphData;
+    private int[] indexedInstanceOffsets;
+
     /**
      * Creates the LoadedDApp to represent the classes related to DApp at address.
      * 
@@ -110,7 +126,19 @@ public class LoadedDApp {
      * @return The nextHashCode serialized within the graph.
      */
     public int loadEntireGraph(InternedClasses internedClassMap, byte[] rawGraphData) {
-        ByteBuffer inputBuffer = ByteBuffer.wrap(rawGraphData);
+        return loadEntireGraph(internedClassMap, ByteBuffer.wrap(rawGraphData));
+    }
+
+    /**
+     * Same as {@link #loadEntireGraph(InternedClasses, byte[])} but reads the graph directly from a buffer (which can be a read-only
+     * view of the stored graph), rather than requiring it be copied into a byte[] first.
+     * NOTE:  The buffer must start at index 0 (a slice), since the graph is read twice, and is consumed by this call.
+     * 
+     * @param internedClassMap The interned classes, in case class references need to be instantiated.
+     * @param inputBuffer The buffer holding all and only a completely serialized graph.
+     * @return The nextHashCode serialized within the graph.
+     */
+    public int loadEntireGraph(InternedClasses internedClassMap, ByteBuffer inputBuffer) {
         List<Object> existingObjectIndex = null;
         StandardGlobalResolver resolver = new StandardGlobalResolver(internedClassMap, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
@@ -118,6 +146,30 @@ public class LoadedDApp {
         return nextHashCode;
     }
 
+    /**
+     * Requests that the Classes in the receiver be populated from a graph read from storage.
+     * If this is the graph last saved by saveStoredGraph() (compared by content), we know where its instances are so it is loaded
+     * lazily:  only the statics are populated here and the instances are populated as they are used, reading from storedGraphData
+     * (which must not be changed, afterward).  Any other graph is loaded eagerly, as by loadEntireGraph().
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param internedClassMap The interned classes, in case class references need to be instantiated.
+     * @param storedGraphData The graph, as stored.
+     * @return The nextHashCode serialized within the graph.
+     */
+    public int loadStoredGraph(InternedClasses internedClassMap, byte[] storedGraphData) {
+        boolean isIndexed = (null != this.indexedGraphData)
+                && ((this.indexedGraphData == storedGraphData) || Arrays.equals(this.indexedGraphData, storedGraphData));
+        if (!isIndexed) {
+            return loadEntireGraph(internedClassMap, storedGraphData);
+        }
+        int[] instanceOffsets = this.indexedInstanceOffsets;
+        StandardGlobalResolver resolver = new StandardGlobalResolver(internedClassMap, this.loader);
+        StandardNameMapper classNameMapper = new StandardNameMapper();
+        ByteBuffer inputBuffer = ByteBuffer.wrap(storedGraphData).asReadOnlyBuffer();
+        return Deserializer.deserializeGraphLazilyAndNextHashCode(inputBuffer, instanceOffsets, resolver, this.fieldCache, classNameMapper, this.sortedClasses);
+    }
+
     /**
      * Requests that the Classes in the receiver be walked and all referenced objects be serialized into a graph.
      * NOTE:  The caller is expected to manage billing - none of that is done in here.
@@ -127,16 +179,71 @@ public class LoadedDApp {
      * @return The enter serialized object graph.
      */
     public byte[] saveEntireGraph(int nextHashCode, int maximumSizeInBytes) {
-        ByteBuffer outputBuffer = ByteBuffer.allocate(maximumSizeInBytes);
         List<Object> out_instanceIndex = null;
         List<Integer> out_calleeToCallerIndexMap = null;
         StandardGlobalResolver resolver = new StandardGlobalResolver(null, this.loader);
         StandardNameMapper classNameMapper = new StandardNameMapper();
-        Serializer.serializeEntireGraph(outputBuffer, out_instanceIndex, out_calleeToCallerIndexMap, resolver, this.fieldCache, classNameMapper, nextHashCode, this.sortedClasses);
-        
-        byte[] finalBytes = new byte[outputBuffer.position()];
-        System.arraycopy(outputBuffer.array(), 0, finalBytes, 0, finalBytes.length);
-        return finalBytes;
+        ByteBuffer outputBuffer = GraphBufferPool.acquire(maximumSizeInBytes);
+        try {
+            outputBuffer = Serializer.serializeEntireGraph(outputBuffer, maximumSizeInBytes, out_instanceIndex, out_calleeToCallerIndexMap, null, resolver, this.fieldCache, classNameMapper, nextHashCode, this.sortedClasses);
+            return Arrays.copyOf(outputBuffer.array(), outputBuffer.position());
+        } finally {
+            GraphBufferPool.release(outputBuffer);
+        }
+    }
+
+    /**
+     * Same as {@link #saveEntireGraph(int, int)} except that the offset of each instance in the graph is also recorded, so that
+     * loadStoredGraph() can load this graph lazily if it is the one read back from storage.
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param nextHashCode The nextHashCode to serialize into the graph so that this can be resumed in the future.
+     * @param maximumSizeInBytes The size limit on the serialized graph size.
+     * @return The graph, as it should be stored.
+     */
+    public byte[] saveStoredGraph(int nextHashCode, int maximumSizeInBytes) {
+        List<Integer> out_instanceOffsets = new ArrayList<>();
+        StandardGlobalResolver resolver = new StandardGlobalResolver(null, this.loader);
+        StandardNameMapper classNameMapper = new StandardNameMapper();
+        ByteBuffer outputBuffer = GraphBufferPool.acquire(maximumSizeInBytes);
+        try {
+            outputBuffer = Serializer.serializeEntireGraph(outputBuffer, maximumSizeInBytes, null, null, out_instanceOffsets, resolver, this.fieldCache, classNameMapper, nextHashCode, this.sortedClasses);
+            byte[] graph = Arrays.copyOf(outputBuffer.array(), outputBuffer.position());
+            this.indexedGraphData = graph;
+            this.indexedInstanceOffsets = out_instanceOffsets.stream().mapToInt(Integer::intValue).toArray();
+            return graph;
+        } finally {
+            GraphBufferPool.release(outputBuffer);
+        }
+    }
+
+    /**
+     * Clears the record kept by the write barriers in the DApp's code, so that a later call to saveChangedGraph() can tell if anything
+     * in the graph was written after this point.
+     * This should be called once the graph has been loaded, before the DApp starts running.
+     * 
+     * @param nextHashCode The nextHashCode of the loaded graph (objects allocated from here on aren't part of it).
+     */
+    public void resetWriteBarriers(int nextHashCode) {
+        this.runtimeSetup.resetGraphWritten(nextHashCode);
+    }
+
+    /**
+     * Same as {@link #saveStoredGraph(int, int)} except that, if the write barriers show that nothing was written since
+     * resetWriteBarriers() was called, the graph isn't walked since it must still be the one which was loaded.
+     * In that case, the loaded graph is returned as it is, with its original nextHashCode:  any objects allocated by the call were never
+     * stored anywhere, so their hash codes can be handed out again (just as they are after a call which fails).
+     * NOTE:  The caller is expected to manage billing - none of that is done in here.
+     * 
+     * @param loadedGraphData The graph which was loaded before the DApp ran, as stored.
+     * @param nextHashCode The nextHashCode to serialize into the graph so that this can be resumed in the future.
+     * @param maximumSizeInBytes The size limit on the serialized graph size.
+     * @return The graph, as it should be stored (the loadedGraphData instance, itself, if nothing was written).
+     */
+    public byte[] saveChangedGraph(byte[] loadedGraphData, int nextHashCode, int maximumSizeInBytes) {
+        return this.runtimeSetup.clearGraphWritten()
+                ? saveStoredGraph(nextHashCode, maximumSizeInBytes)
+                : loadedGraphData;
     }
 
     public ReentrantGraph captureStateAsCaller(int nextHashCode, int maxGraphSize) {
@@ -280,9 +387,50 @@ public class LoadedDApp {
 
     /**
      * Called before the DApp is about to be put into a cache.  This is so it can put itself into a "resumable" state.
+     * The statics keep the graph they hold at the end of the call (the one last passed to noteSavedGraph()) so that, if that graph
+     * is still the one stored when this DApp is next called, it doesn't need to be loaded again (see takeResidentGraph()).
+     * Note that this is only called after a successful call since anything else leaves the statics holding a graph which was never
+     * stored.
      */
     public void cleanForCache() {
-        // TODO: Implement - we want to wipe the statics so it no longer keeps its graph alive.
+        this.residentGraphData = this.savedGraphData;
+        this.residentInternedClasses = this.savedInternedClasses;
+        this.savedGraphData = null;
+        this.savedInternedClasses = null;
+    }
+
+    /**
+     * Records the graph saved at the end of the outermost call into this DApp, which is what the statics will be resumed from if it
+     * is put into the cache.
+     * 
+     * @param storedGraphData The graph, as stored.
+     * @param internedClassMap The interned classes used by the graph.
+     */
+    public void noteSavedGraph(byte[] storedGraphData, InternedClasses internedClassMap) {
+        this.savedGraphData = storedGraphData;
+        this.savedInternedClasses = internedClassMap;
+    }
+
+    /**
+     * Checks if the statics still hold the given stored graph, from the last call, meaning that it doesn't need to be loaded.
+     * Either way, the statics are no longer considered to hold any stored graph after this call (since the caller is about to run
+     * something which could change them), until the next call to cleanForCache().
+     * 
+     * @param storedGraphData The graph currently stored for this DApp.
+     * @return The interned classes the statics were built with, if they hold this graph, or null if it must be loaded.
+     */
+    public InternedClasses takeResidentGraph(byte[] storedGraphData) {
+        // Any kernel-level rollback of the last call (or a call which ran without this instance) means the stored graph is different.
+        boolean isResident = (null != this.residentGraphData)
+                && ((this.residentGraphData == storedGraphData) || Arrays.equals(this.residentGraphData, storedGraphData));
+        InternedClasses internedClasses = isResident
+                ? this.residentInternedClasses
+                : null;
+        this.residentGraphData = null;
+        this.residentInternedClasses = null;
+        this.savedGraphData = null;
+        this.savedInternedClasses = null;
+        return internedClasses;
     }
 
 
@@ -350,4 +498,18 @@ public class LoadedDApp {
     public long getLoadedBlockNum() {
         return loadedBlockNum;
     }
+
+    public void setLoadedCode(byte[] loadedCode) {
+        this.loadedCode = loadedCode;
+    }
+
+    /**
+     * @param transformedCode The transformed code currently stored for this DApp's address (null if there is none).
+     * @return True if this DApp was loaded from that code (compared by content).
+     */
+    public boolean isLoadedFrom(byte[] transformedCode) {
+        return (null != this.loadedCode)
+                && (null != transformedCode)
+                && ((this.loadedCode == transformedCode) || Arrays.equals(this.loadedCode, transformedCode));
+    }
 }
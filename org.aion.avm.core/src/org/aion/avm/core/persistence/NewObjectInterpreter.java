@@ -0,0 +1,164 @@
+package org.aion.avm.core.persistence;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.aion.avm.internal.PackageConstants;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
+
+
+/**
+ * Used by the WriteBarrierInjector to decide which writes can't change the object graph of a DApp.  Specifically, this determines which
+ * values are always objects allocated within the method being analyzed:  the result of a NEW, of an array wrapper's initArray(), or the
+ * "this" pointer of a constructor.  Such an object can only become part of the graph by being stored into an object which already is
+ * (which has its own barrier), so writes into it need no barrier.
+ * Like ConstructorThisInterpreter, this sits on top of the BasicInterpreter, adding only this piece of meta-data.
+ *
+ * WARNING:  This implementation assumes that the first call to newValue(), within a constructor, is made for the "this" pointer.
+ */
+public class NewObjectInterpreter extends Interpreter<NewObjectInterpreter.NewObjectValue> {
+    private static final String INIT_ARRAY_NAME = "initArray";
+
+    private final BasicInterpreter underlying;
+    private boolean isNextThis;
+
+    /**
+     * @param isConstructor True if the method being analyzed is a constructor (meaning its "this" is new).
+     */
+    public NewObjectInterpreter(boolean isConstructor) {
+        super(Opcodes.ASM6);
+        this.underlying = new BasicInterpreter();
+        // NOTE:  This is based on the assumption that a non-static method's first newValue() call is for "this".
+        this.isNextThis = isConstructor;
+    }
+
+    @Override
+    public NewObjectValue newValue(Type type) {
+        NewObjectValue result = null;
+        BasicValue original = this.underlying.newValue(type);
+        if (null != original) {
+            // WARNING:  This is where we assume that we are being asked to describe the "this" of the constructor.
+            result = new NewObjectValue(this.isNextThis, original);
+            this.isNextThis = false;
+        }
+        return result;
+    }
+
+    @Override
+    public NewObjectValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+        // Of the constants and such, only NEW allocates an object.
+        BasicValue basic = this.underlying.newOperation(insn);
+        return new NewObjectValue(Opcodes.NEW == insn.getOpcode(), basic);
+    }
+
+    @Override
+    public NewObjectValue copyOperation(AbstractInsnNode insn, NewObjectValue value) throws AnalyzerException {
+        // We are just moving the value around so it is still the same object.
+        BasicValue basic = this.underlying.copyOperation(insn, value.underlying);
+        return new NewObjectValue(value.isNew, basic);
+    }
+
+    @Override
+    public NewObjectValue unaryOperation(AbstractInsnNode insn, NewObjectValue value) throws AnalyzerException {
+        // Only a CHECKCAST gives back the same object (the rest create a different result, possibly null).
+        BasicValue basic = this.underlying.unaryOperation(insn, value.underlying);
+        return (null != basic)
+                ? new NewObjectValue((Opcodes.CHECKCAST == insn.getOpcode()) && value.isNew, basic)
+                : null;
+    }
+
+    @Override
+    public NewObjectValue binaryOperation(AbstractInsnNode insn, NewObjectValue value1, NewObjectValue value2) throws AnalyzerException {
+        // These create a different result (possibly null), none of which are objects we allocated.
+        BasicValue basic = this.underlying.binaryOperation(insn, value1.underlying, value2.underlying);
+        return (null != basic)
+                ? new NewObjectValue(false, basic)
+                : null;
+    }
+
+    @Override
+    public NewObjectValue ternaryOperation(AbstractInsnNode insn, NewObjectValue value1, NewObjectValue value2, NewObjectValue value3) throws AnalyzerException {
+        // These create a different result (possibly null), none of which are objects we allocated.
+        BasicValue basic = this.underlying.ternaryOperation(insn, value1.underlying, value2.underlying, value3.underlying);
+        return (null != basic)
+                ? new NewObjectValue(false, basic)
+                : null;
+    }
+
+    @Override
+    public NewObjectValue naryOperation(AbstractInsnNode insn, List<? extends NewObjectValue> values) throws AnalyzerException {
+        // The only call we know returns a new object is the one which allocates an array (in the transformed code, that is what
+        // replaces NEWARRAY and ANEWARRAY).
+        List<BasicValue> basics = values.stream().map((value) -> value.underlying).collect(Collectors.toList());
+        BasicValue basic = this.underlying.naryOperation(insn, basics);
+        return (null != basic)
+                ? new NewObjectValue(isArrayAllocation(insn), basic)
+                : null;
+    }
+
+    @Override
+    public void returnOperation(AbstractInsnNode insn, NewObjectValue value, NewObjectValue expected) throws AnalyzerException {
+        this.underlying.returnOperation(insn, value.underlying, expected.underlying);
+    }
+
+    @Override
+    public NewObjectValue merge(NewObjectValue value1, NewObjectValue value2) {
+        boolean isNew = value1.isNew && value2.isNew;
+        BasicValue basic = this.underlying.merge(value1.underlying, value2.underlying);
+        return new NewObjectValue(isNew, basic);
+    }
+
+
+    private static boolean isArrayAllocation(AbstractInsnNode insn) {
+        boolean isAllocation = false;
+        if (Opcodes.INVOKESTATIC == insn.getOpcode()) {
+            MethodInsnNode call = (MethodInsnNode) insn;
+            isAllocation = call.owner.startsWith(PackageConstants.kArrayWrapperSlashPrefix) && INIT_ARRAY_NAME.equals(call.name);
+        }
+        return isAllocation;
+    }
+
+
+    /**
+     * The Value we want to use is just an additional piece of meta-data (is this an object allocated in this method) sitting on top of
+     * the BasicValue.
+     * Note that the "equals()" implementation of Value is incredibly important!  If this is missing, infinite loops can
+     * occur in the Analyzer since it assumes it isn't making progress (every time it merges 2 types, there is a change).
+     */
+    public static class NewObjectValue implements Value {
+        public final boolean isNew;
+        public final BasicValue underlying;
+
+        private NewObjectValue(boolean isNew, BasicValue underlying) {
+            RuntimeAssertionError.assertTrue(null != underlying);
+            this.isNew = isNew;
+            this.underlying = underlying;
+        }
+        @Override
+        public int getSize() {
+            return this.underlying.getSize();
+        }
+        @Override
+        public int hashCode() {
+            return this.underlying.hashCode();
+        }
+        @Override
+        public boolean equals(Object obj) {
+            boolean isEqual = (this == obj);
+            if (!isEqual && (obj instanceof NewObjectValue)) {
+                NewObjectValue other = (NewObjectValue) obj;
+                isEqual = (this.isNew == other.isNew) && this.underlying.equals(other.underlying);
+            }
+            return isEqual;
+        }
+    }
+}
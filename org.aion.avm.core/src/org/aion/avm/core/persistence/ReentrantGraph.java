@@ -2,6 +2,7 @@ package org.aion.avm.core.persistence;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -11,23 +12,27 @@ import java.util.List;
  */
 public class ReentrantGraph {
     public static ReentrantGraph captureCallerState(IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
-        ByteBuffer buffer = ByteBuffer.allocate(maximumSizeInBytes);
         List<Object> existingObjectIndex = new ArrayList<>();
-        Serializer.serializeEntireGraph(buffer, existingObjectIndex, null, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
-        byte[] finalBytes = new byte[buffer.position()];
-        System.arraycopy(buffer.array(), 0, finalBytes, 0, finalBytes.length);
+        byte[] finalBytes = serializeIntoPooledBuffer(existingObjectIndex, null, resolver, cache, classNameMapper, maximumSizeInBytes, nextHashCode, sortedRoots);
         return new ReentrantGraph(finalBytes, existingObjectIndex, null);
     }
 
     public static ReentrantGraph captureCalleeState(IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
-        ByteBuffer calleeBuffer = ByteBuffer.allocate(maximumSizeInBytes);
         List<Integer> calleeToCallerMapping = new ArrayList<>();
-        Serializer.serializeEntireGraph(calleeBuffer, null, calleeToCallerMapping, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
-        byte[] calleeBytes = new byte[calleeBuffer.position()];
-        System.arraycopy(calleeBuffer.array(), 0, calleeBytes, 0, calleeBytes.length);
+        byte[] calleeBytes = serializeIntoPooledBuffer(null, calleeToCallerMapping, resolver, cache, classNameMapper, maximumSizeInBytes, nextHashCode, sortedRoots);
         return new ReentrantGraph(calleeBytes, null, calleeToCallerMapping);
     }
 
+    private static byte[] serializeIntoPooledBuffer(List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int maximumSizeInBytes, int nextHashCode, Class<?>[] sortedRoots) {
+        ByteBuffer buffer = GraphBufferPool.acquire(maximumSizeInBytes);
+        try {
+            buffer = Serializer.serializeEntireGraph(buffer, maximumSizeInBytes, out_instanceIndex, out_calleeToCallerIndexMap, null, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        } finally {
+            GraphBufferPool.release(buffer);
+        }
+    }
+
 
     public final byte[] rawState;
     private final List<Object> existingObjectIndex;
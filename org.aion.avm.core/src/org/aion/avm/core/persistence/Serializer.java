@@ -17,6 +17,25 @@ import org.aion.avm.internal.RuntimeAssertionError;
 public class Serializer {
     // (Should make this Map a list since the graph is probably dense?)
     public static void serializeEntireGraph(ByteBuffer outputBuffer, List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int nextHashCode, Class<?>[] sortedRoots) {
+        serializeEntireGraph(outputBuffer, out_instanceIndex, out_calleeToCallerIndexMap, null, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
+    }
+
+    /**
+     * Same as the other serializeEntireGraph() but can also record where each instance starts in the outputBuffer (used to load the graph
+     * lazily, if it is read back - see LoadedDApp.saveStoredGraph()).
+     */
+    public static void serializeEntireGraph(ByteBuffer outputBuffer, List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, List<Integer> out_instanceOffsets, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int nextHashCode, Class<?>[] sortedRoots) {
+        // The outputBuffer can't grow so the graph is always written into it.
+        serializeEntireGraph(outputBuffer, outputBuffer.limit(), out_instanceIndex, out_calleeToCallerIndexMap, out_instanceOffsets, resolver, cache, classNameMapper, nextHashCode, sortedRoots);
+    }
+
+    /**
+     * Same as the other serializeEntireGraph() but the outputBuffer is replaced with a larger one if the graph doesn't fit, up to
+     * maximumSizeInBytes (used with the GraphBufferPool, so the buffer doesn't need to be allocated at the maximum size).
+     * 
+     * @return The buffer the graph was serialized into (the outputBuffer, unless it had to grow), positioned at the end of the graph.
+     */
+    public static ByteBuffer serializeEntireGraph(ByteBuffer outputBuffer, int maximumSizeInBytes, List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, List<Integer> out_instanceOffsets, IGlobalResolver resolver, SortedFieldCache cache, IPersistenceNameMapper classNameMapper, int nextHashCode, Class<?>[] sortedRoots) {
         // We define the storage as big-endian.
         RuntimeAssertionError.assertTrue(ByteOrder.BIG_ENDIAN == outputBuffer.order());
         // We cannot be both serializing to build an index (that is done when serializing caller state before entering a callee frame)
@@ -24,25 +43,25 @@ public class Serializer {
         // In the common case, we are doing neither (these arguments are only used for reentrant calls).
         RuntimeAssertionError.assertTrue((null == out_instanceIndex) || (null == out_calleeToCallerIndexMap));
         
-        // We can write the next hash, first, since we already know it.
-        outputBuffer.putInt(nextHashCode);
-        
         // We are going to perform a breadth-first traversal so we need a queue.
         Queue<Object> toProcessQueue = new LinkedList<>();
         // Create the object serializer (it maintains the state of the serialization and can also be passed in to objects to request that they serialize).
-        ByteBufferObjectSerializer objectSerializer = new ByteBufferObjectSerializer(outputBuffer, toProcessQueue, cache, resolver, classNameMapper);
+        // (all writes go through this since it owns the buffer once it might grow)
+        ByteBufferObjectSerializer objectSerializer = new ByteBufferObjectSerializer(outputBuffer, maximumSizeInBytes, toProcessQueue, cache, resolver, classNameMapper);
         
-        // Next, we serialize all the class statics from the user's classes.
-        serializeClassStatics(objectSerializer, cache, sortedRoots);
+        // Next, we serialize all the class statics from the user's classes (after the next hash, since we already know it).
+        serializeClassStatics(objectSerializer, cache, nextHashCode, sortedRoots);
         
         // Finally, we serialize the rest of the graph.
-        serializeGraphFromWorkQueue(out_instanceIndex, out_calleeToCallerIndexMap, objectSerializer, cache, toProcessQueue);
+        serializeGraphFromWorkQueue(out_instanceIndex, out_calleeToCallerIndexMap, out_instanceOffsets, objectSerializer, cache, toProcessQueue);
+        return objectSerializer.getBuffer();
     }
 
 
 
-    private static void serializeClassStatics(ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, Class<?>[] sortedRoots) {
+    private static void serializeClassStatics(ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, int nextHashCode, Class<?>[] sortedRoots) {
         try {
+            objectSerializer.writeInt(nextHashCode);
             for (Class<?> clazz : sortedRoots) {
                 serializeOneClass(objectSerializer, cache, clazz);
             }
@@ -63,13 +82,20 @@ public class Serializer {
         serializeFieldsForClass(objectSerializer, fields);
     }
 
-    private static void serializeGraphFromWorkQueue(List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, Queue<Object> toProcessQueue) {
+    private static void serializeGraphFromWorkQueue(List<Object> out_instanceIndex, List<Integer> out_calleeToCallerIndexMap, List<Integer> out_instanceOffsets, ByteBufferObjectSerializer objectSerializer, SortedFieldCache cache, Queue<Object> toProcessQueue) {
         Method serializeSelfMethod = cache.getSerializeSelfMethod();
         Field readIndexField = cache.getReadIndexField();
         
         try {
             while (!toProcessQueue.isEmpty()) {
                 Object instance = toProcessQueue.remove();
+                // If the graph was loaded lazily, this could still be a stub so make sure it has its data before we write it.
+                if (instance instanceof org.aion.avm.shadow.java.lang.Object) {
+                    ((org.aion.avm.shadow.java.lang.Object) instance).lazyLoad();
+                }
+                if (null != out_instanceOffsets) {
+                    out_instanceOffsets.add(objectSerializer.getBuffer().position());
+                }
                 // We first need to serialize the class name.
                 String internalClassName = instance.getClass().getName();
                 objectSerializer.writeClassName(internalClassName);
@@ -81,6 +107,9 @@ public class Serializer {
                     out_calleeToCallerIndexMap.add(readIndex);
                 }
             }
+        } catch (BufferOverflowException e) {
+            // This is if we run off the end of the buffer writing the class name, which is an example of out of energy.
+            throw new OutOfEnergyException();
         } catch (InvocationTargetException e) {
             Throwable cause = e.getCause();
             if (cause instanceof OutOfEnergyException) {
@@ -9,6 +9,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.aion.avm.core.classloading.AvmClassLoader;
 import org.aion.avm.internal.RuntimeAssertionError;
 
 
@@ -23,6 +24,8 @@ public class SortedFieldCache {
     private final Map<Class<?>, Field[]> constantFields;
     private final Map<Class<?>, Field[]> staticFields;
     private final Map<Class<?>, Field[]> instanceFields;
+    // (null values are cached, too, for classes which have no codec)
+    private final Map<Class<?>, IFieldCodec> fieldCodecs;
     private final ClassLoader dappClassLoader;
     private final Method serializeSelf;
     private final Method deserializeSelf;
@@ -33,6 +36,7 @@ public class SortedFieldCache {
         this.constantFields = new HashMap<>();
         this.staticFields = new HashMap<>();
         this.instanceFields = new HashMap<>();
+        this.fieldCodecs = new HashMap<>();
         this.dappClassLoader = dappClassLoader;
         this.serializeSelf = serializeSelf;
         this.deserializeSelf = deserializeSelf;
@@ -83,6 +87,37 @@ public class SortedFieldCache {
         return result;
     }
 
+    /**
+     * Returns the generated codec for the instance fields declared by clazz (see {@link FieldCodecGenerator}), if there is one.
+     * 
+     * @param clazz The class declaring the fields.
+     * @return The codec, or null if the fields must be accessed reflectively (through getInstanceFields()).
+     */
+    public IFieldCodec getFieldCodec(Class<?> clazz) {
+        IFieldCodec result = this.fieldCodecs.get(clazz);
+        if ((null == result) && !this.fieldCodecs.containsKey(clazz)) {
+            String codecName = clazz.getName() + FieldCodecGenerator.CODEC_SUFFIX;
+            // Only the DApp's own loader has codecs and only for the classes it was given, so check it has this one before loading it.
+            if ((clazz.getClassLoader() == this.dappClassLoader)
+                    && (this.dappClassLoader instanceof AvmClassLoader)
+                    && (null != ((AvmClassLoader) this.dappClassLoader).getUserClassBytecode(codecName))) {
+                try {
+                    Class<?> codecClass = this.dappClassLoader.loadClass(codecName);
+                    // The DApp can have a class of its own by this name (a nested class called "avm_codec"), in which case the generator
+                    // left it alone and this class uses the reflective path.  DApp code can't implement IFieldCodec so this tells them apart.
+                    if (IFieldCodec.class.isAssignableFrom(codecClass)) {
+                        result = (IFieldCodec) codecClass.getConstructor().newInstance();
+                    }
+                } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                    // We generated this class so it must be there and be constructible.
+                    throw RuntimeAssertionError.unexpected(e);
+                }
+            }
+            this.fieldCodecs.put(clazz, result);
+        }
+        return result;
+    }
+
     public Method getSerializeSelfMethod() {
         return this.serializeSelf;
     }
@@ -0,0 +1,254 @@
+package org.aion.avm.core.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.aion.avm.core.util.DescriptorParser;
+import org.aion.avm.internal.Helper;
+import org.aion.avm.internal.PackageConstants;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+
+
+/**
+ * Adds write barriers to the classes of a DApp:  a call to "H.markGraphWritten()" ahead of anything in the DApp's code which could
+ * change its persistent object graph.
+ * The barriers only record that something was written, not what, which is enough to let a call which never wrote anything skip
+ * walking, serializing, and storing its graph (what it would produce is the graph it loaded - see LoadedDApp.saveChangedGraph()).
+ * This means they need to be conservative:  in addition to every PUTSTATIC, we put one ahead of any call into the runtime which can
+ * change an object it is given (array stores, System.arraycopy(), Arrays.fill(), String.getChars(), any StringBuilder/StringBuffer
+ * call, and Throwable.initCause()).  Calls into the DApp's own classes need nothing since their writes have their own barriers.
+ * The exception is a write into an object allocated during the call:  it can't be part of the graph until it is stored into an object
+ * which already is, and that store has its own barrier.  So:
+ * -a PUTFIELD, array store, or one of the calls above, whose target is known to be allocated within the method (see
+ *  {@link NewObjectInterpreter}:  "this" in a constructor, or the result of a NEW or initArray(), even once stored in a local) gets no barrier
+ * -any other PUTFIELD calls "H.markFieldWritten(Object)" with its target, which checks at runtime if that object was allocated during
+ *  the call (this is what lets a method like ABIDecoder.decodeOneInteger(), which updates its decoder's position, avoid the flag)
+ * LIMITATION:  This is still conservative.  Array stores and runtime calls which write into an object passed in from elsewhere (a
+ * parameter, a field, or a method's return value) always set the flag, even if that object was allocated during the call.  So does
+ * every PUTSTATIC, even if it stores the value the field already had.  The graph is then walked and serialized as it was before
+ * write barriers existed, so this only costs the chance to skip that work.
+ * Like {@link FieldCodecGenerator}, this is done when the code is loaded (not when it is deployed), meaning it also applies to DApps
+ * which were deployed before it existed.
+ */
+public class WriteBarrierInjector {
+    private static final String HELPER_NAME = Helper.RUNTIME_HELPER_NAME;
+    private static final String MARK_NAME = "markGraphWritten";
+    private static final String MARK_DESCRIPTOR = "()V";
+    private static final String MARK_FIELD_NAME = "markFieldWritten";
+    private static final String MARK_FIELD_DESCRIPTOR = "(Ljava/lang/Object;)V";
+    private static final String INIT_NAME = "<init>";
+    // The DUP2/DUP2_X1 dance to copy the target of a PUTFIELD to the top of the stack needs at most 2 more slots.
+    private static final int MARK_FIELD_EXTRA_STACK = 2;
+    // Used by writtenArgument() when the object written by a call is its receiver.
+    private static final int RECEIVER = -1;
+
+    private static final String OBJECT_ARRAY_INTERFACE = PackageConstants.kInternalSlashPrefix + "IObjectArray";
+    private static final Set<String> MUTABLE_SHADOW_CLASSES = Set.of(
+            PackageConstants.kShadowSlashPrefix + "java/lang/StringBuilder",
+            PackageConstants.kShadowSlashPrefix + "java/lang/StringBuffer",
+            PackageConstants.kShadowSlashPrefix + "java/lang/Appendable"
+    );
+    // These change one of their arguments (or, for initCause, a Throwable which could be of a DApp-defined subclass).
+    // (these are all the runtime methods which write into an array they are given, other than those of the classes above)
+    private static final Set<String> MUTATING_METHOD_NAMES = Set.of(
+            "avm_arraycopy",
+            "avm_fill",
+            "avm_getChars",
+            "avm_initCause"
+    );
+
+    /**
+     * Returns a copy of the given DApp classes with the write barriers added to all of their methods.
+     *
+     * @param classes The transformed DApp classes, by .-style name.
+     * @return The classes to load, instead.
+     */
+    public static Map<String, byte[]> addWriteBarriers(Map<String, byte[]> classes) {
+        Map<String, byte[]> result = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            ClassReader reader = new ClassReader(entry.getValue());
+            // (the barriers add no branches so the existing frames are still correct and each method raises its own maxStack, if needed)
+            ClassWriter writer = new ClassWriter(reader, 0);
+            reader.accept(new ClassVisitor(Opcodes.ASM6, writer) {
+                private String className;
+                
+                @Override
+                public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                    this.className = name;
+                    super.visit(version, access, name, signature, superName, interfaces);
+                }
+                
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    MethodVisitor downstream = super.visitMethod(access, name, descriptor, signature, exceptions);
+                    return new BarrierMethodNode(this.className, downstream, access, name, descriptor, signature, exceptions);
+                }
+            }, 0);
+            result.put(entry.getKey(), writer.toByteArray());
+        }
+        return result;
+    }
+
+    /**
+     * Exposed for testing:  true if the given call can change the object graph of the DApp which makes it.
+     */
+    static boolean isMutatingCall(String owner, String name) {
+        return (name.equals("set") && (owner.startsWith(PackageConstants.kArrayWrapperSlashPrefix) || owner.equals(OBJECT_ARRAY_INTERFACE)))
+                || MUTABLE_SHADOW_CLASSES.contains(owner)
+                || MUTATING_METHOD_NAMES.contains(name);
+    }
+
+    /**
+     * Returns the index of the argument a mutating call writes into (or RECEIVER, if it writes into the object it is called on).
+     */
+    private static int writtenArgument(String name) {
+        int argument;
+        switch (name) {
+            case "avm_arraycopy":
+                // System.arraycopy(src, srcPos, dest, destPos, length)
+                argument = 2;
+                break;
+            case "avm_fill":
+                // Arrays.fill(array, ...)
+                argument = 0;
+                break;
+            case "avm_getChars":
+                // String/StringBuilder/StringBuffer.getChars(srcBegin, srcEnd, dst, dstBegin)
+                argument = 2;
+                break;
+            default:
+                argument = RECEIVER;
+        }
+        return argument;
+    }
+
+
+    /**
+     * Collects a method so it can be analyzed with the NewObjectInterpreter, then adds the barriers and passes it on downstream.
+     */
+    private static class BarrierMethodNode extends MethodNode {
+        private final String className;
+        private final MethodVisitor downstream;
+
+        public BarrierMethodNode(String className, MethodVisitor downstream, int access, String name, String descriptor, String signature, String[] exceptions) {
+            super(Opcodes.ASM6, access, name, descriptor, signature, exceptions);
+            this.className = className;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void visitEnd() {
+            super.visitEnd();
+            
+            // The MethodNode is fully populated so we can now find which values are objects allocated within it.
+            Frame<NewObjectInterpreter.NewObjectValue>[] frames;
+            try {
+                frames = new Analyzer<>(new NewObjectInterpreter(INIT_NAME.equals(this.name))).analyze(this.className, this);
+            } catch (AnalyzerException e) {
+                // This code was verified when it was deployed so we don't expect this but, without the frames, we can still put a barrier
+                // ahead of every write.
+                frames = null;
+            }
+            
+            // The frames are indexed by the position of each instruction in the original list so we walk a copy of it.
+            AbstractInsnNode[] instructions = this.instructions.toArray();
+            boolean needsExtraStack = false;
+            for (int i = 0; i < instructions.length; ++i) {
+                AbstractInsnNode instruction = instructions[i];
+                // (this is null if the instruction is unreachable, in which case we treat it as though we had no analysis)
+                Frame<NewObjectInterpreter.NewObjectValue> frame = (null != frames) ? frames[i] : null;
+                InsnList barrier = null;
+                int opcode = instruction.getOpcode();
+                if (Opcodes.PUTSTATIC == opcode) {
+                    barrier = createMarkGraphWritten();
+                } else if (Opcodes.PUTFIELD == opcode) {
+                    // Here, the stack looks like: ... OBJECT, VAR (top)
+                    if (null == frame) {
+                        // Without the analysis, we can't even be sure OBJECT isn't an uninitialized "this", which can't be passed to a method.
+                        barrier = createMarkGraphWritten();
+                    } else if (!isNewObject(frame, 1)) {
+                        barrier = createMarkFieldWritten(((FieldInsnNode) instruction).desc);
+                        needsExtraStack = true;
+                    }
+                } else if (instruction instanceof MethodInsnNode) {
+                    MethodInsnNode call = (MethodInsnNode) instruction;
+                    if (isMutatingCall(call.owner, call.name) && ((null == frame) || !isNewObject(frame, depthOfWrittenObject(call)))) {
+                        barrier = createMarkGraphWritten();
+                    }
+                }
+                if (null != barrier) {
+                    this.instructions.insertBefore(instruction, barrier);
+                }
+            }
+            if (needsExtraStack) {
+                this.maxStack += MARK_FIELD_EXTRA_STACK;
+            }
+            this.accept(this.downstream);
+        }
+
+        private static boolean isNewObject(Frame<NewObjectInterpreter.NewObjectValue> frame, int depth) {
+            // Note that we treat anything we can't find on the stack as something which could be in the graph.
+            int index = frame.getStackSize() - 1 - depth;
+            return (depth >= 0) && (index >= 0) && frame.getStack(index).isNew;
+        }
+
+        private static int depthOfWrittenObject(MethodInsnNode call) {
+            int argumentCount = Type.getArgumentTypes(call.desc).length;
+            int argument = writtenArgument(call.name);
+            int depth;
+            if (RECEIVER == argument) {
+                // (a static call has no receiver so we don't know what it writes)
+                depth = (Opcodes.INVOKESTATIC != call.getOpcode()) ? argumentCount : -1;
+            } else {
+                // (this is negative if the call doesn't have that argument, which has the same meaning)
+                depth = argumentCount - 1 - argument;
+            }
+            return depth;
+        }
+
+        private static InsnList createMarkGraphWritten() {
+            InsnList list = new InsnList();
+            list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, HELPER_NAME, MARK_NAME, MARK_DESCRIPTOR, false));
+            return list;
+        }
+
+        private static InsnList createMarkFieldWritten(String descriptor) {
+            // This is the same stack manipulation the LazyLoadingMethodVisitor uses to call lazyLoad() on the target of a PUTFIELD.
+            InsnList list = new InsnList();
+            if ((1 == descriptor.length()) && ((DescriptorParser.LONG == descriptor.charAt(0)) || (DescriptorParser.DOUBLE == descriptor.charAt(0)))) {
+                // ... OBJECT, VAR1, VAR2 (top) -> ... VAR1, VAR2, OBJECT, VAR1, VAR2 (top)
+                list.add(new InsnNode(Opcodes.DUP2_X1));
+                // -> ... VAR1, VAR2, OBJECT, OBJECT (top)
+                list.add(new InsnNode(Opcodes.POP2));
+                list.add(new InsnNode(Opcodes.DUP));
+                // -> ... VAR1, VAR2, OBJECT (top)
+                list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, HELPER_NAME, MARK_FIELD_NAME, MARK_FIELD_DESCRIPTOR, false));
+                // -> ... OBJECT, VAR1, VAR2 (top)
+                list.add(new InsnNode(Opcodes.DUP_X2));
+                list.add(new InsnNode(Opcodes.POP));
+            } else {
+                // ... OBJECT, VAR (top) -> ... OBJECT, VAR, OBJECT (top)
+                list.add(new InsnNode(Opcodes.DUP2));
+                list.add(new InsnNode(Opcodes.POP));
+                // -> ... OBJECT, VAR (top)
+                list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, HELPER_NAME, MARK_FIELD_NAME, MARK_FIELD_DESCRIPTOR, false));
+            }
+            return list;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.aion.avm.core.types;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.attribute.FileTime;
 import java.util.Map;
 import java.util.jar.Attributes;
@@ -35,7 +36,21 @@ public class ImmortalDappModule {
      * @throws IOException An error occurred while reading the JAR contents.
      */
     public static ImmortalDappModule readFromJar(byte[] jar) throws IOException {
-        LoadedJar loadedJar = LoadedJar.fromBytes(jar);
+        return fromLoadedJar(LoadedJar.fromBytes(jar));
+    }
+
+    /**
+     * Same as {@link #readFromJar(byte[])} but reads the remaining bytes of a buffer (like a read-only view of the stored code).
+     * 
+     * @param jar The JAR bytes.
+     * @return The module, or null if the contents of the JAR were insufficient for a Dapp.
+     * @throws IOException An error occurred while reading the JAR contents.
+     */
+    public static ImmortalDappModule readFromJar(ByteBuffer jar) throws IOException {
+        return fromLoadedJar(LoadedJar.fromBuffer(jar));
+    }
+
+    private static ImmortalDappModule fromLoadedJar(LoadedJar loadedJar) {
         Map<String, byte[]> classes = loadedJar.classBytesByQualifiedNames;
         String mainClass = loadedJar.mainClassName;
         // To be a valid Dapp, this must specify a main class and have at least one class.
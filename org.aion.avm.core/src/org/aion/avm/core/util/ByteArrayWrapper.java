@@ -18,6 +18,14 @@ public final class ByteArrayWrapper
         this.data = data;
     }
 
+    /**
+     * @return The wrapped array (not a copy).
+     */
+    public byte[] unwrap()
+    {
+        return data;
+    }
+
     @Override
     public boolean equals(Object object)
     {
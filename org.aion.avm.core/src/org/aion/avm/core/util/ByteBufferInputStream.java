@@ -0,0 +1,50 @@
+package org.aion.avm.core.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An InputStream over the remaining bytes of a ByteBuffer, so that a buffer (possibly a read-only view of a mapped file) can be
+ * handed to stream-based readers, like JarInputStream, without first copying it into a byte[].
+ * The stream reads from its own duplicate of the buffer so the position of the original is never changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return this.buffer.hasRemaining()
+                ? (0xff & this.buffer.get())
+                : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (0 == length) {
+            return 0;
+        }
+        if (!this.buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, this.buffer.remaining());
+        this.buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.max(0L, Math.min(count, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return this.buffer.remaining();
+    }
+}
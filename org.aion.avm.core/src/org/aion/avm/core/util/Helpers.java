@@ -17,6 +17,9 @@ import org.objectweb.asm.ClassWriter;
 import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -154,6 +157,24 @@ public class Helpers {
         return bytes;
     }
 
+    /**
+     * Computes the SHA-256 hash of the remaining bytes of a buffer (the buffer's position is left unchanged).
+     * This is what we use to identify code by its content.
+     *
+     * @param data
+     * @return
+     */
+    public static byte[] sha256(ByteBuffer data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to provide SHA-256.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
     /**
      * Converts a fully qualified class name into it's JVM internal form.
      *
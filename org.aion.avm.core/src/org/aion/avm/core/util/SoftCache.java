@@ -29,6 +29,16 @@ public class SoftCache<K, V> {
                 : null;
     }
 
+    /**
+     * Like checkout(), except that the value is left in the cache.  This is only appropriate for values which can be shared (immutable).
+     */
+    public V get(K key) {
+        SoftReference<V> wrapper = this.underlyingMap.get(key);
+        return (null != wrapper)
+                ? wrapper.get()
+                : null;
+    }
+
     public void checkin(K key, V value) {
         SoftReference<V> previous = this.underlyingMap.put(key, new SoftReference<>(value));
         // We don't expect collisions in this cache - that would imply that consumers disagree about cache state.
@@ -36,6 +46,16 @@ public class SoftCache<K, V> {
         RuntimeAssertionError.assertTrue(null == previous);
     }
 
+    /**
+     * Like checkin(), except that a collision is expected:  if the key is already present, the existing value is kept.
+     * An entry whose value has already been cleared is treated as absent, so it is replaced.
+     */
+    public void checkinIfAbsent(K key, V value) {
+        this.underlyingMap.compute(key, (k, existing) -> ((null != existing) && (null != existing.get()))
+                ? existing
+                : new SoftReference<>(value));
+    }
+
     public void removeKeyIf(Predicate<K> condition){
         this.underlyingMap.keySet().removeIf(condition);
     }
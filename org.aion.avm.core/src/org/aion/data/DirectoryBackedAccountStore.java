@@ -1,13 +1,19 @@
 package org.aion.data;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
 import org.aion.avm.core.util.Helpers;
@@ -16,15 +22,34 @@ import org.aion.avm.internal.RuntimeAssertionError;
 public class DirectoryBackedAccountStore implements IAccountStore {
     private static final String FILE_NAME_CODE = "code";
     private static final String FILE_NAME_TRANSFORMED_CODE = "transformed_code";
+    private static final String FILE_NAME_TRANSFORMED_CODE_HASH = "transformed_code_hash";
 
     private static final String FILE_NAME_BALANCE = "balance";
     private static final String FILE_NAME_NONCE = "nonce";
     private static final String FILE_PREFIX_KEY = "key_";
     private static final String FILE_GRAPH = "graph";
+    private static final String FILE_GRAPH_CHUNKS = "graph_chunks";
+    private static final String FILE_PREFIX_GRAPH_CHUNK = "graph_chunk_";
+    private static final int CHUNK_HASH_BYTES = 32;
 
     private final File accountDirectory;
+    // Where we record the files we write so the data store can force them on flush (null if nobody will flush).
+    private final Set<Path> unflushedPaths;
+    // Where the transformed code is stored, by hash, if it is shared with other accounts (null if each account keeps its own copy).
+    private final DirectoryCodeTable codeTable;
+
     public DirectoryBackedAccountStore(File accountDirectory) {
+        this(accountDirectory, null);
+    }
+
+    public DirectoryBackedAccountStore(File accountDirectory, Set<Path> unflushedPaths) {
+        this(accountDirectory, unflushedPaths, null);
+    }
+
+    DirectoryBackedAccountStore(File accountDirectory, Set<Path> unflushedPaths, DirectoryCodeTable codeTable) {
         this.accountDirectory = accountDirectory;
+        this.unflushedPaths = unflushedPaths;
+        this.codeTable = codeTable;
     }
 
     @Override
@@ -34,12 +59,36 @@ public class DirectoryBackedAccountStore implements IAccountStore {
 
     @Override
     public byte[] getTransformedCode() {
-        return readFile(FILE_NAME_TRANSFORMED_CODE);
+        byte[] hash = (null != this.codeTable)
+                ? readFile(FILE_NAME_TRANSFORMED_CODE_HASH)
+                : null;
+        // (accounts written without a code table have their own copy)
+        return (null != hash)
+                ? this.codeTable.get(hash)
+                : readFile(FILE_NAME_TRANSFORMED_CODE);
     }
 
     @Override
     public void setTransformedCode(byte[] code) {
-        writeFile(FILE_NAME_TRANSFORMED_CODE, code);
+        if (null != this.codeTable) {
+            // (acquire before releasing so setting the same code again doesn't delete it)
+            byte[] previousHash = readFile(FILE_NAME_TRANSFORMED_CODE_HASH);
+            if (null != code) {
+                writeFile(FILE_NAME_TRANSFORMED_CODE_HASH, this.codeTable.acquire(code));
+            } else if (null != previousHash) {
+                deleteFile(FILE_NAME_TRANSFORMED_CODE_HASH);
+            }
+            if (null != previousHash) {
+                this.codeTable.release(previousHash);
+            }
+            // Any copy of its own from before the account had a code table is now stale.
+            File ownCopy = new File(this.accountDirectory, FILE_NAME_TRANSFORMED_CODE);
+            if (ownCopy.exists()) {
+                deleteFile(FILE_NAME_TRANSFORMED_CODE);
+            }
+        } else {
+            writeFile(FILE_NAME_TRANSFORMED_CODE, code);
+        }
     }
 
     @Override
@@ -108,15 +157,61 @@ public class DirectoryBackedAccountStore implements IAccountStore {
 
     @Override
     public void setObjectGraph(byte[] data) {
-        writeFile(FILE_GRAPH, data);
+        // The graph is stored as the list of the hashes of its chunks, with each chunk in a file named by its hash, so we only need to
+        // write the chunks which changed since the graph was last written.
+        Set<String> previousChunks = readGraphChunkNames();
+        List<byte[]> chunks = GraphChunker.split(data);
+        ByteBuffer hashes = ByteBuffer.allocate(chunks.size() * CHUNK_HASH_BYTES);
+        Set<String> currentChunks = new HashSet<>();
+        for (byte[] chunk : chunks) {
+            byte[] hash = Helpers.sha256(ByteBuffer.wrap(chunk));
+            hashes.put(hash);
+            String fileName = FILE_PREFIX_GRAPH_CHUNK + Helpers.bytesToHexString(hash);
+            // (the same chunk can appear more than once)
+            if (currentChunks.add(fileName) && !previousChunks.contains(fileName)) {
+                writeFile(fileName, chunk);
+            }
+        }
+        // (the chunks are written before the list and the stale ones deleted after it so the list never names a missing chunk)
+        writeFile(FILE_GRAPH_CHUNKS, hashes.array());
+        for (String fileName : previousChunks) {
+            if (!currentChunks.contains(fileName)) {
+                deleteFile(fileName);
+            }
+        }
+        // Any graph written before it was stored in chunks is now stale.
+        if (new File(this.accountDirectory, FILE_GRAPH).exists()) {
+            deleteFile(FILE_GRAPH);
+        }
     }
 
     @Override
     public byte[] getObjectGraph() {
-        return readFile(FILE_GRAPH);
+        byte[] hashes = readFile(FILE_GRAPH_CHUNKS);
+        if (null == hashes) {
+            // (the graph might have been written before it was stored in chunks)
+            return readFile(FILE_GRAPH);
+        }
+        ByteArrayOutputStream graph = new ByteArrayOutputStream();
+        for (int i = 0; i < hashes.length; i += CHUNK_HASH_BYTES) {
+            byte[] chunk = readFile(FILE_PREFIX_GRAPH_CHUNK + Helpers.bytesToHexString(Arrays.copyOfRange(hashes, i, i + CHUNK_HASH_BYTES)));
+            graph.write(chunk, 0, chunk.length);
+        }
+        return graph.toByteArray();
     }
 
 
+    private Set<String> readGraphChunkNames() {
+        Set<String> names = new HashSet<>();
+        byte[] hashes = readFile(FILE_GRAPH_CHUNKS);
+        if (null != hashes) {
+            for (int i = 0; i < hashes.length; i += CHUNK_HASH_BYTES) {
+                names.add(FILE_PREFIX_GRAPH_CHUNK + Helpers.bytesToHexString(Arrays.copyOfRange(hashes, i, i + CHUNK_HASH_BYTES)));
+            }
+        }
+        return names;
+    }
+
     private byte[] readFile(String fileName) {
         Path oneFile = new File(this.accountDirectory, fileName).toPath();
         try {
@@ -134,12 +229,25 @@ public class DirectoryBackedAccountStore implements IAccountStore {
         Path oneFile = new File(this.accountDirectory, fileName).toPath();
         try {
             Files.write(oneFile, data);
+            if (null != this.unflushedPaths) {
+                this.unflushedPaths.add(oneFile);
+                // (the directory, too, in case this created the file)
+                this.unflushedPaths.add(this.accountDirectory.toPath());
+            }
         } catch (IOException e) {
             // This implementation doesn't handle exceptions.
             throw RuntimeAssertionError.unexpected(e);
         }
     }
 
+    private void deleteFile(String fileName) {
+        boolean didDelete = new File(this.accountDirectory, fileName).delete();
+        RuntimeAssertionError.assertTrue(didDelete);
+        if (null != this.unflushedPaths) {
+            this.unflushedPaths.add(this.accountDirectory.toPath());
+        }
+    }
+
     private long decodeLong(byte[] data) {
         long value = (
                 ((long)(0xff & data[0]) << 56)
@@ -1,36 +1,60 @@
 package org.aion.data;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.aion.avm.core.util.Helpers;
 import org.aion.avm.internal.RuntimeAssertionError;
 
 
+/**
+ * Each account is a directory of files.  Transformed code is kept once per distinct content, in a shared directory (see
+ * {@link DirectoryCodeTable}), with each account only storing the hash of its code.
+ */
 public class DirectoryBackedDataStore implements IDataStore {
+    private static final String DIRECTORY_NAME_CODE = "transformed_code";
+
     private final File topLevelDirectory;
+    // The files (and directories) changed since the last flush, shared with the account stores so we only force what was written.
+    private final Set<Path> unflushedPaths;
+    private final DirectoryCodeTable codeTable;
+
     public DirectoryBackedDataStore(File topLevelDirectory) {
         this.topLevelDirectory = topLevelDirectory;
+        this.unflushedPaths = Collections.synchronizedSet(new HashSet<>());
+        this.codeTable = new DirectoryCodeTable(new File(topLevelDirectory, DIRECTORY_NAME_CODE), this.unflushedPaths);
     }
 
     @Override
     public IAccountStore openAccount(byte[] address) {
         File directory = getSubDirectory(address);
         return directory.isDirectory()
-                ? new DirectoryBackedAccountStore(directory)
+                ? new DirectoryBackedAccountStore(directory, this.unflushedPaths, this.codeTable)
                 : null;
     }
 
     @Override
     public IAccountStore createAccount(byte[] address) {
         File directory = getSubDirectory(address);
+        this.unflushedPaths.add(this.topLevelDirectory.toPath());
         return directory.mkdir()
-                ? new DirectoryBackedAccountStore(directory)
+                ? new DirectoryBackedAccountStore(directory, this.unflushedPaths, this.codeTable)
                 : null;
     }
 
     @Override
     public void deleteAccount(byte[] address) {
         File directory = getSubDirectory(address);
+        // Drop this account's reference to its code before its files go.
+        new DirectoryBackedAccountStore(directory, this.unflushedPaths, this.codeTable).setTransformedCode(null);
         for (File file : directory.listFiles()) {
             // The account structure is flat so this better be just a regular file.
             RuntimeAssertionError.assertTrue(file.isFile());
@@ -39,6 +63,28 @@ public class DirectoryBackedDataStore implements IDataStore {
         }
         boolean didDelete = directory.delete();
         RuntimeAssertionError.assertTrue(didDelete);
+        this.unflushedPaths.add(this.topLevelDirectory.toPath());
+    }
+
+    @Override
+    public boolean flush() {
+        List<Path> paths;
+        synchronized (this.unflushedPaths) {
+            paths = new ArrayList<>(this.unflushedPaths);
+            this.unflushedPaths.clear();
+        }
+        for (Path path : paths) {
+            // (anything deleted since it was written has nothing left to force, other than its directory)
+            if (path.toFile().exists()) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    channel.force(true);
+                } catch (IOException e) {
+                    // This implementation doesn't handle exceptions.
+                    throw RuntimeAssertionError.unexpected(e);
+                }
+            }
+        }
+        return true;
     }
 
 
@@ -0,0 +1,101 @@
+package org.aion.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * The on-disk equivalent of {@link MemoryCodeTable}, used by {@link DirectoryBackedDataStore}:  each distinct piece of transformed
+ * code is written once, in a file named by the hex of its hash, next to a file counting the accounts which reference it.
+ */
+class DirectoryCodeTable {
+    private static final String FILE_SUFFIX_REFERENCES = ".refs";
+
+    private final File codeDirectory;
+    private final Set<Path> unflushedPaths;
+
+    public DirectoryCodeTable(File codeDirectory, Set<Path> unflushedPaths) {
+        this.codeDirectory = codeDirectory;
+        this.unflushedPaths = unflushedPaths;
+    }
+
+    public synchronized byte[] acquire(byte[] code) {
+        byte[] hash = Helpers.sha256(ByteBuffer.wrap(code));
+        String name = Helpers.bytesToHexString(hash);
+        if (!this.codeDirectory.isDirectory()) {
+            boolean didCreate = this.codeDirectory.mkdir();
+            RuntimeAssertionError.assertTrue(didCreate);
+            this.unflushedPaths.add(this.codeDirectory.getParentFile().toPath());
+        }
+        // (the code is written before its count so we never count references to code which isn't there)
+        int references = readReferences(name);
+        if (0 == references) {
+            writeFile(name, code);
+        }
+        writeFile(name + FILE_SUFFIX_REFERENCES, ByteBuffer.allocate(Integer.BYTES).putInt(references + 1).array());
+        return hash;
+    }
+
+    public byte[] get(byte[] hash) {
+        return readFile(Helpers.bytesToHexString(hash));
+    }
+
+    public synchronized void release(byte[] hash) {
+        String name = Helpers.bytesToHexString(hash);
+        int references = readReferences(name);
+        RuntimeAssertionError.assertTrue(references > 0);
+        if (1 == references) {
+            // (the count is deleted first for the same reason it is written last)
+            deleteFile(name + FILE_SUFFIX_REFERENCES);
+            deleteFile(name);
+        } else {
+            writeFile(name + FILE_SUFFIX_REFERENCES, ByteBuffer.allocate(Integer.BYTES).putInt(references - 1).array());
+        }
+    }
+
+
+    private int readReferences(String name) {
+        byte[] data = readFile(name + FILE_SUFFIX_REFERENCES);
+        return (null != data)
+                ? ByteBuffer.wrap(data).getInt()
+                : 0;
+    }
+
+    private byte[] readFile(String fileName) {
+        Path oneFile = new File(this.codeDirectory, fileName).toPath();
+        try {
+            return Files.readAllBytes(oneFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private void writeFile(String fileName, byte[] data) {
+        Path oneFile = new File(this.codeDirectory, fileName).toPath();
+        try {
+            Files.write(oneFile, data);
+            this.unflushedPaths.add(oneFile);
+            this.unflushedPaths.add(this.codeDirectory.toPath());
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private void deleteFile(String fileName) {
+        boolean didDelete = new File(this.codeDirectory, fileName).delete();
+        RuntimeAssertionError.assertTrue(didDelete);
+        this.unflushedPaths.add(this.codeDirectory.toPath());
+    }
+}
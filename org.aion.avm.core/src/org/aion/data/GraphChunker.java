@@ -0,0 +1,61 @@
+package org.aion.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Splits a serialized object graph into chunks so that a store can address them individually and only write the ones which changed.
+ * The boundaries are chosen by the content (wherever a rolling "gear" hash of the last 64 bytes hits a pattern), not by offset, so a
+ * graph which grew or shrank in one place still shares the chunks before and after that place with its previous version.
+ */
+class GraphChunker {
+    public static final int MIN_CHUNK_SIZE = 512;
+    public static final int MAX_CHUNK_SIZE = 8 * 1024;
+    // A boundary is where the top 11 bits of the hash are all zero, giving chunks of about 2 KiB, past the minimum.
+    private static final long BOUNDARY_MASK = 0x7FFL << 53;
+    // The table needs to be the same every time (Random is specified to produce the same sequence for the same seed).
+    private static final long GEAR_SEED = 0x6772617068L;
+    private static final long[] GEAR = buildGear();
+
+    /**
+     * Splits the given graph into chunks.  Concatenating them gives back the original data.
+     *
+     * @param data The serialized graph.
+     * @return The chunks, in order (empty if the data is empty).
+     */
+    public static List<byte[]> split(byte[] data) {
+        List<byte[]> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < data.length) {
+            int end = findEnd(data, start);
+            chunks.add(Arrays.copyOfRange(data, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+
+    private static int findEnd(byte[] data, int start) {
+        int limit = Math.min(data.length, start + MAX_CHUNK_SIZE);
+        long hash = 0L;
+        for (int i = start + MIN_CHUNK_SIZE; i < limit; ++i) {
+            hash = (hash << 1) + GEAR[0xff & data[i]];
+            if (0L == (hash & BOUNDARY_MASK)) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static long[] buildGear() {
+        Random random = new Random(GEAR_SEED);
+        long[] gear = new long[256];
+        for (int i = 0; i < gear.length; ++i) {
+            gear[i] = random.nextLong();
+        }
+        return gear;
+    }
+}
@@ -1,6 +1,7 @@
 package org.aion.data;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
@@ -80,4 +81,30 @@ public interface IAccountStore {
      * @return The raw serialized graph read.
      */
     public byte[] getObjectGraph();
+
+    /**
+     * Reads the transformed code as a read-only buffer, starting at index 0.
+     * Stores which can hand out a view of their own storage override this so the code isn't copied.
+     * 
+     * @return The transformed code stored for this account (null if there isn't any).
+     */
+    public default ByteBuffer getTransformedCodeBuffer() {
+        byte[] code = getTransformedCode();
+        return (null != code)
+                ? ByteBuffer.wrap(code).asReadOnlyBuffer()
+                : null;
+    }
+
+    /**
+     * Reads the serialized application object graph as a read-only buffer, starting at index 0.
+     * Stores which can hand out a view of their own storage override this so the graph isn't copied.
+     * 
+     * @return The raw serialized graph read (null if there isn't one).
+     */
+    public default ByteBuffer getObjectGraphBuffer() {
+        byte[] graph = getObjectGraph();
+        return (null != graph)
+                ? ByteBuffer.wrap(graph).asReadOnlyBuffer()
+                : null;
+    }
 }
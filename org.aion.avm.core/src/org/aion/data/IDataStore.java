@@ -1,5 +1,7 @@
 package org.aion.data;
 
+import org.aion.types.Address;
+
 
 /**
  * The abstract interface over the top-level of the account storage abstraction.
@@ -28,4 +30,44 @@ public interface IDataStore {
      * @param address The address of the account.
      */
     public void deleteAccount(byte[] address);
+
+    /**
+     * Same as {@link #openAccount(byte[])}, for callers which already hold an {@link Address}.
+     * Stores which key their accounts by {@link Address} override this so the lookup doesn't allocate.
+     * 
+     * @param address The address of the account.
+     * @return The account, or null if no such account exists.
+     */
+    public default IAccountStore openAccount(Address address) {
+        return openAccount(address.toBytes());
+    }
+
+    /**
+     * Same as {@link #createAccount(byte[])}, for callers which already hold an {@link Address}.
+     * 
+     * @param address The address to use for the new account.
+     * @return The account.
+     */
+    public default IAccountStore createAccount(Address address) {
+        return createAccount(address.toBytes());
+    }
+
+    /**
+     * Same as {@link #deleteAccount(byte[])}, for callers which already hold an {@link Address}.
+     * 
+     * @param address The address of the account.
+     */
+    public default void deleteAccount(Address address) {
+        deleteAccount(address.toBytes());
+    }
+
+    /**
+     * Forces everything written so far to durable storage, so it would survive the machine (not just the process) failing.
+     * Stores which only live in memory keep the default, which does nothing and returns false.
+     * 
+     * @return True if everything written is now durable, false if this store can't make that promise.
+     */
+    public default boolean flush() {
+        return false;
+    }
 }
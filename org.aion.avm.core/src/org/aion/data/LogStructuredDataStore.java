@@ -0,0 +1,561 @@
+package org.aion.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.types.Address;
+
+
+/**
+ * A data store which keeps every account in a single, append-only, log file with an in-memory index of where the current value of
+ * everything is.
+ *
+ * Each write appends one record (the account, what was written and the new value) to the end of the log and points the index at
+ * it, so writing costs one append rather than the file creation or replacement (and directory lookups) of the
+ * {@link DirectoryBackedDataStore}.  Reads look the value up in the index and read it from the log (small values, like the balance,
+ * nonce and most storage values, are kept in the index so they are never read back).  Opening a store replays the log to build the
+ * index, dropping an incomplete record at the end (one which was being written when the process died).
+ *
+ * The records which were replaced (or belong to deleted accounts) stay in the log until it is compacted:  once the log is more than
+ * twice the size of the records still in use, these are copied to a new log which then replaces the old one.
+ *
+ * Like the DirectoryBackedDataStore, this doesn't force writes to disk unless asked to (see {@link #flush()}), except when compaction
+ * replaces the log.
+ */
+public class LogStructuredDataStore implements IDataStore {
+    private static final String LOG_FILE_NAME = "accounts.log";
+    private static final String COMPACTION_FILE_NAME = "accounts.log.compacting";
+
+    private static final byte RECORD_CREATE = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_CODE = 3;
+    private static final byte RECORD_TRANSFORMED_CODE = 4;
+    private static final byte RECORD_BALANCE = 5;
+    private static final byte RECORD_NONCE = 6;
+    private static final byte RECORD_GRAPH = 7;
+    private static final byte RECORD_STORAGE = 8;
+
+    private static final int CHECKSUM_BYTES = Integer.BYTES;
+    // Values up to this size are kept in the index, as well as in the log.
+    private static final int INLINE_VALUE_BYTES = 64;
+    // We don't bother compacting logs smaller than this.
+    private static final long MIN_COMPACTION_BYTES = 1024L * 1024L;
+
+    private final File logFile;
+    private final File compactionFile;
+    private final Map<Address, AccountIndex> accounts;
+    private FileChannel log;
+    private long logBytes;
+    // The bytes of the records in the log which the index still refers to.
+    private long liveBytes;
+
+    /**
+     * Opens the store in the given directory, creating its log if there isn't one.
+     *
+     * @param directory The directory which holds the log.
+     */
+    public LogStructuredDataStore(File directory) {
+        this.logFile = new File(directory, LOG_FILE_NAME);
+        this.compactionFile = new File(directory, COMPACTION_FILE_NAME);
+        this.accounts = new HashMap<>();
+        openAndReplay();
+    }
+
+    /**
+     * Closes the log.  The store can't be used after this.
+     */
+    public synchronized void close() {
+        try {
+            this.log.close();
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    /**
+     * Copies the records still in use to a new log, which replaces the current one.  This happens automatically as the log grows,
+     * so is only exposed for testing.
+     */
+    public synchronized void compact() {
+        try {
+            Files.deleteIfExists(this.compactionFile.toPath());
+            try (FileChannel compacted = FileChannel.open(this.compactionFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long position = 0L;
+                for (Map.Entry<Address, AccountIndex> account : this.accounts.entrySet()) {
+                    byte[] address = account.getKey().toBytes();
+                    AccountIndex index = account.getValue();
+                    position += writeRecord(compacted, position, RECORD_CREATE, address, null, null);
+                    position += copyRecord(compacted, position, RECORD_CODE, address, null, index.code);
+                    position += copyRecord(compacted, position, RECORD_TRANSFORMED_CODE, address, null, index.transformedCode);
+                    position += copyRecord(compacted, position, RECORD_BALANCE, address, null, index.balance);
+                    position += copyRecord(compacted, position, RECORD_NONCE, address, null, index.nonce);
+                    position += copyRecord(compacted, position, RECORD_GRAPH, address, null, index.graph);
+                    for (Map.Entry<ByteArrayWrapper, Entry> data : index.storage.entrySet()) {
+                        position += copyRecord(compacted, position, RECORD_STORAGE, address, data.getKey().unwrap(), data.getValue());
+                    }
+                }
+                compacted.force(true);
+            }
+            this.log.close();
+            Files.move(this.compactionFile.toPath(), this.logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        // The new log is only the records we just wrote, so rebuilding the index from it is cheap and keeps one path for reading logs.
+        openAndReplay();
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        try {
+            this.log.force(false);
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        return true;
+    }
+
+    /**
+     * @return The size of the log, in bytes (only exposed for testing).
+     */
+    public synchronized long getLogBytes() {
+        return this.logBytes;
+    }
+
+    @Override
+    public IAccountStore openAccount(byte[] address) {
+        return openAccount(Address.wrap(address));
+    }
+
+    @Override
+    public IAccountStore createAccount(byte[] address) {
+        return createAccount(Address.wrap(address));
+    }
+
+    @Override
+    public void deleteAccount(byte[] address) {
+        deleteAccount(Address.wrap(address));
+    }
+
+    @Override
+    public synchronized IAccountStore openAccount(Address address) {
+        return this.accounts.containsKey(address)
+                ? new LogStructuredAccountStore(address)
+                : null;
+    }
+
+    @Override
+    public synchronized IAccountStore createAccount(Address address) {
+        if (this.accounts.containsKey(address)) {
+            return null;
+        }
+        append(RECORD_CREATE, address, null, null);
+        return new LogStructuredAccountStore(address);
+    }
+
+    @Override
+    public synchronized void deleteAccount(Address address) {
+        if (this.accounts.containsKey(address)) {
+            append(RECORD_DELETE, address, null, null);
+        }
+    }
+
+
+    private void openAndReplay() {
+        this.accounts.clear();
+        this.liveBytes = 0L;
+        long validBytes = 0L;
+        try {
+            long fileBytes = this.logFile.length();
+            if (fileBytes > 0L) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.logFile)))) {
+                    CRC32 checksum = new CRC32();
+                    while (true) {
+                        byte[] body;
+                        int expectedChecksum;
+                        try {
+                            int bodyLength = input.readInt();
+                            if ((bodyLength < (1 + Address.SIZE)) || (bodyLength > (fileBytes - validBytes))) {
+                                // Not a length we could have written so this is the remains of an incomplete write.
+                                break;
+                            }
+                            body = new byte[bodyLength];
+                            input.readFully(body);
+                            expectedChecksum = input.readInt();
+                        } catch (EOFException e) {
+                            // An incomplete record at the end of the log.
+                            break;
+                        }
+                        checksum.reset();
+                        checksum.update(body);
+                        if ((int) checksum.getValue() != expectedChecksum) {
+                            break;
+                        }
+                        applyRecord(validBytes, ByteBuffer.wrap(body));
+                        validBytes += Integer.BYTES + body.length + CHECKSUM_BYTES;
+                    }
+                }
+            }
+            this.log = FileChannel.open(this.logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Drop anything after the last complete record so we append after it.
+            this.log.truncate(validBytes);
+            this.logBytes = validBytes;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    // Applies a record to the index, given the record's body (everything after the length prefix) and where the record starts.
+    private void applyRecord(long recordOffset, ByteBuffer body) {
+        int recordBytes = Integer.BYTES + body.remaining() + CHECKSUM_BYTES;
+        byte type = body.get();
+        byte[] rawAddress = new byte[Address.SIZE];
+        body.get(rawAddress);
+        Address address = Address.wrap(rawAddress);
+        if (RECORD_CREATE == type) {
+            dropAccount(address);
+            AccountIndex index = new AccountIndex(recordBytes);
+            this.accounts.put(address, index);
+            this.liveBytes += recordBytes;
+            return;
+        }
+        if (RECORD_DELETE == type) {
+            // (the delete record itself is never needed after compaction)
+            dropAccount(address);
+            return;
+        }
+        ByteArrayWrapper key = null;
+        if (RECORD_STORAGE == type) {
+            byte[] rawKey = new byte[body.getInt()];
+            body.get(rawKey);
+            key = new ByteArrayWrapper(rawKey);
+        }
+        int valueLength = body.getInt();
+        byte[] inline = null;
+        if ((valueLength >= 0) && (valueLength <= INLINE_VALUE_BYTES)) {
+            inline = new byte[valueLength];
+            body.duplicate().get(inline);
+        }
+        long valueOffset = recordOffset + Integer.BYTES + body.position();
+        Entry entry = (valueLength >= 0)
+                ? new Entry(valueOffset, valueLength, recordBytes, inline)
+                : null;
+
+        AccountIndex index = this.accounts.get(address);
+        RuntimeAssertionError.assertTrue(null != index);
+        Entry previous;
+        switch (type) {
+            case RECORD_CODE:
+                previous = index.code;
+                index.code = entry;
+                break;
+            case RECORD_TRANSFORMED_CODE:
+                previous = index.transformedCode;
+                index.transformedCode = entry;
+                break;
+            case RECORD_BALANCE:
+                previous = index.balance;
+                index.balance = entry;
+                break;
+            case RECORD_NONCE:
+                previous = index.nonce;
+                index.nonce = entry;
+                break;
+            case RECORD_GRAPH:
+                previous = index.graph;
+                index.graph = entry;
+                break;
+            case RECORD_STORAGE:
+                previous = (null != entry)
+                        ? index.storage.put(key, entry)
+                        : index.storage.remove(key);
+                break;
+            default:
+                throw RuntimeAssertionError.unreachable("Unknown record type: " + type);
+        }
+        if (null != previous) {
+            this.liveBytes -= previous.recordBytes;
+        }
+        if (null != entry) {
+            this.liveBytes += recordBytes;
+        }
+    }
+
+    private void dropAccount(Address address) {
+        AccountIndex index = this.accounts.remove(address);
+        if (null != index) {
+            this.liveBytes -= index.liveBytes();
+        }
+    }
+
+    // Appends a record to the log and applies it to the index.
+    private void append(byte type, Address address, byte[] key, byte[] value) {
+        try {
+            long recordOffset = this.logBytes;
+            ByteBuffer record = serializeRecord(type, address.toBytes(), key, value);
+            writeFully(this.log, recordOffset, record);
+            this.logBytes += record.limit();
+            // Apply the body (which skips the length prefix and checksum) the same way replay would.
+            applyRecord(recordOffset, record.position(Integer.BYTES).limit(record.limit() - CHECKSUM_BYTES).slice());
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        if ((this.logBytes > MIN_COMPACTION_BYTES) && (this.logBytes > (2 * this.liveBytes))) {
+            compact();
+        }
+    }
+
+    private long copyRecord(FileChannel target, long position, byte type, byte[] address, byte[] key, Entry entry) throws IOException {
+        return (null != entry)
+                ? writeRecord(target, position, type, address, key, readValue(entry))
+                : 0L;
+    }
+
+    private static long writeRecord(FileChannel target, long position, byte type, byte[] address, byte[] key, byte[] value) throws IOException {
+        ByteBuffer record = serializeRecord(type, address, key, value);
+        writeFully(target, position, record);
+        return record.limit();
+    }
+
+    // Records are:  length of the body, body (type, address, optional storage key, optional value) and checksum of the body.
+    private static ByteBuffer serializeRecord(byte type, byte[] address, byte[] key, byte[] value) {
+        boolean hasValue = (RECORD_CREATE != type) && (RECORD_DELETE != type);
+        int bodyLength = 1 + address.length
+                + ((null != key) ? (Integer.BYTES + key.length) : 0)
+                + (hasValue ? (Integer.BYTES + ((null != value) ? value.length : 0)) : 0);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + bodyLength + CHECKSUM_BYTES);
+        record.putInt(bodyLength);
+        record.put(type);
+        record.put(address);
+        if (null != key) {
+            record.putInt(key.length);
+            record.put(key);
+        }
+        if (hasValue) {
+            if (null != value) {
+                record.putInt(value.length);
+                record.put(value);
+            } else {
+                record.putInt(-1);
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), Integer.BYTES, bodyLength);
+        record.putInt((int) checksum.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void writeFully(FileChannel target, long position, ByteBuffer buffer) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += target.write(buffer, offset);
+        }
+        buffer.rewind();
+    }
+
+    private byte[] readValue(Entry entry) {
+        if (null == entry) {
+            return null;
+        }
+        if (null != entry.inline) {
+            return entry.inline;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(entry.valueLength);
+        try {
+            long offset = entry.valueOffset;
+            while (buffer.hasRemaining()) {
+                int read = this.log.read(buffer, offset);
+                // The index only points at complete records.
+                RuntimeAssertionError.assertTrue(read > 0);
+                offset += read;
+            }
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        return buffer.array();
+    }
+
+    private AccountIndex indexOf(Address address) {
+        AccountIndex index = this.accounts.get(address);
+        // Using an account after deleting it is a usage error.
+        RuntimeAssertionError.assertTrue(null != index);
+        return index;
+    }
+
+
+    /**
+     * Where the current value of something is in the log.
+     */
+    private static final class Entry {
+        public final long valueOffset;
+        public final int valueLength;
+        // The size of the whole record, so we know how much of the log becomes garbage when this is replaced.
+        public final int recordBytes;
+        // The value itself, if it is small enough to keep in the index (null otherwise).
+        public final byte[] inline;
+
+        public Entry(long valueOffset, int valueLength, int recordBytes, byte[] inline) {
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.recordBytes = recordBytes;
+            this.inline = inline;
+        }
+    }
+
+
+    /**
+     * The entries of one account (null means never written).
+     */
+    private static final class AccountIndex {
+        public final int createRecordBytes;
+        public Entry code;
+        public Entry transformedCode;
+        public Entry balance;
+        public Entry nonce;
+        public Entry graph;
+        public final Map<ByteArrayWrapper, Entry> storage;
+
+        public AccountIndex(int createRecordBytes) {
+            this.createRecordBytes = createRecordBytes;
+            this.storage = new HashMap<>();
+        }
+
+        public long liveBytes() {
+            long bytes = this.createRecordBytes + recordBytes(this.code) + recordBytes(this.transformedCode) + recordBytes(this.balance)
+                    + recordBytes(this.nonce) + recordBytes(this.graph);
+            for (Entry entry : this.storage.values()) {
+                bytes += entry.recordBytes;
+            }
+            return bytes;
+        }
+
+        private static long recordBytes(Entry entry) {
+            return (null != entry) ? entry.recordBytes : 0L;
+        }
+    }
+
+
+    /**
+     * A view of one account in the store.  Every call goes to the store's index so views can come and go freely.
+     */
+    private final class LogStructuredAccountStore implements IAccountStore {
+        private final Address address;
+
+        public LogStructuredAccountStore(Address address) {
+            this.address = address;
+        }
+
+        @Override
+        public void setCode(byte[] code) {
+            write(RECORD_CODE, null, code);
+        }
+
+        @Override
+        public byte[] getTransformedCode() {
+            synchronized (LogStructuredDataStore.this) {
+                return readValue(indexOf(this.address).transformedCode);
+            }
+        }
+
+        @Override
+        public void setTransformedCode(byte[] code) {
+            write(RECORD_TRANSFORMED_CODE, null, code);
+        }
+
+        @Override
+        public BigInteger getBalance() {
+            byte[] data;
+            synchronized (LogStructuredDataStore.this) {
+                data = readValue(indexOf(this.address).balance);
+            }
+            return (null != data)
+                    ? new BigInteger(data)
+                    : BigInteger.ZERO;
+        }
+
+        @Override
+        public void setBalance(BigInteger balance) {
+            write(RECORD_BALANCE, null, balance.toByteArray());
+        }
+
+        @Override
+        public long getNonce() {
+            byte[] data;
+            synchronized (LogStructuredDataStore.this) {
+                data = readValue(indexOf(this.address).nonce);
+            }
+            return (null != data)
+                    ? ByteBuffer.wrap(data).getLong()
+                    : 0L;
+        }
+
+        @Override
+        public void setNonce(long nonce) {
+            write(RECORD_NONCE, null, ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+        }
+
+        @Override
+        public byte[] getData(byte[] key) {
+            synchronized (LogStructuredDataStore.this) {
+                return readValue(indexOf(this.address).storage.get(new ByteArrayWrapper(key)));
+            }
+        }
+
+        @Override
+        public void setData(byte[] key, byte[] value) {
+            write(RECORD_STORAGE, key, value);
+        }
+
+        @Override
+        public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+            Map<ByteArrayWrapper, byte[]> result = new HashMap<>();
+            synchronized (LogStructuredDataStore.this) {
+                for (Map.Entry<ByteArrayWrapper, Entry> data : indexOf(this.address).storage.entrySet()) {
+                    result.put(data.getKey(), readValue(data.getValue()));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void setObjectGraph(byte[] data) {
+            write(RECORD_GRAPH, null, data);
+        }
+
+        @Override
+        public byte[] getObjectGraph() {
+            synchronized (LogStructuredDataStore.this) {
+                return readValue(indexOf(this.address).graph);
+            }
+        }
+
+        private void write(byte type, byte[] key, byte[] value) {
+            synchronized (LogStructuredDataStore.this) {
+                indexOf(this.address);
+                append(type, this.address, key, value);
+            }
+        }
+    }
+}
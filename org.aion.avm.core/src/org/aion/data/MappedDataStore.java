@@ -0,0 +1,630 @@
+package org.aion.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.types.Address;
+
+
+/**
+ * A data store which appends every write, as a record, to memory-mapped segment files and keeps an in-memory index of where the
+ * current value of everything is.
+ *
+ * The point of this store is that reads don't copy:  {@link IAccountStore#getObjectGraphBuffer()} and
+ * {@link IAccountStore#getTransformedCodeBuffer()} return read-only views directly over the mapped segment, which can be handed to
+ * the deserializer and the DAppLoader as they are.  Since records are never moved or overwritten, a view stays valid (and
+ * unchanged) for as long as the store is open, even after the value is replaced.
+ *
+ * A record never spans segments:  when one doesn't fit in what is left of the current segment, a new segment is started (sized
+ * for the record, if it is larger than the usual segment size).  Opening a store replays the segments to build the index, dropping
+ * an incomplete record at the end.  Writes reach the disk when the OS writes back the mapped pages, or on {@link #flush()}.
+ *
+ * Replaced values (and deleted accounts) are reclaimed by compaction (see {@link #compact()}), which happens on its own once more
+ * than half of what was written, and at least a segment's worth, is garbage.  It rewrites the current values into the segments of
+ * a new "generation" and only switches to them once they are on disk, so a crash leaves either the old or the new generation.
+ * Views handed out before still map the old segments, which are deleted from the directory, so they stay valid too.
+ */
+public class MappedDataStore implements IDataStore {
+    private static final String SEGMENT_FILE_PREFIX = "segment_";
+    private static final String GENERATION_FILE_NAME = "generation";
+    private static final String NEW_GENERATION_FILE_NAME = "generation.new";
+    private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final byte RECORD_CREATE = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_CODE = 3;
+    private static final byte RECORD_TRANSFORMED_CODE = 4;
+    private static final byte RECORD_BALANCE = 5;
+    private static final byte RECORD_NONCE = 6;
+    private static final byte RECORD_GRAPH = 7;
+    private static final byte RECORD_STORAGE = 8;
+
+    private static final int CHECKSUM_BYTES = Integer.BYTES;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final List<FileChannel> channels;
+    private final List<MappedByteBuffer> segments;
+    private final Map<Address, AccountIndex> accounts;
+    // The generation of the segments, incremented by each compaction.
+    private int generation;
+    // Where the next record goes in the last segment.
+    private int writeOffset;
+    // The bytes of all the records in the segments and of those which no longer hold anything current.
+    private long totalBytes;
+    private long supersededBytes;
+
+    /**
+     * Opens the store in the given directory, with the default segment size.
+     *
+     * @param directory The directory which holds the segment files.
+     */
+    public MappedDataStore(File directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the store in the given directory.
+     *
+     * @param directory The directory which holds the segment files.
+     * @param segmentBytes The size of new segments (a record larger than this gets a segment of its own).
+     */
+    public MappedDataStore(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.channels = new ArrayList<>();
+        this.segments = new ArrayList<>();
+        this.accounts = new HashMap<>();
+        openAndReplay();
+    }
+
+    /**
+     * Forces the segments to disk and closes them.  The store, and any views it handed out, can't be used after this.
+     */
+    public synchronized void close() {
+        flush();
+        try {
+            for (FileChannel channel : this.channels) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the current value of everything into new segments and deletes the old ones, reclaiming the space of everything which
+     * was replaced or deleted.  This is done automatically, as values are written, so there is normally no need to call it.
+     */
+    public synchronized void compact() {
+        List<FileChannel> oldChannels = new ArrayList<>(this.channels);
+        List<MappedByteBuffer> oldSegments = new ArrayList<>(this.segments);
+        Map<Address, AccountIndex> oldAccounts = new HashMap<>(this.accounts);
+        int oldGeneration = this.generation;
+
+        this.channels.clear();
+        this.segments.clear();
+        this.accounts.clear();
+        this.generation = oldGeneration + 1;
+        this.totalBytes = 0L;
+        this.supersededBytes = 0L;
+        mapSegment(0, this.segmentBytes);
+        this.writeOffset = 0;
+        for (Map.Entry<Address, AccountIndex> account : oldAccounts.entrySet()) {
+            Address address = account.getKey();
+            AccountIndex index = account.getValue();
+            append(RECORD_CREATE, address, null, null);
+            appendCopy(oldSegments, RECORD_CODE, address, null, index.code);
+            appendCopy(oldSegments, RECORD_TRANSFORMED_CODE, address, null, index.transformedCode);
+            appendCopy(oldSegments, RECORD_BALANCE, address, null, index.balance);
+            appendCopy(oldSegments, RECORD_NONCE, address, null, index.nonce);
+            appendCopy(oldSegments, RECORD_GRAPH, address, null, index.graph);
+            for (Map.Entry<ByteArrayWrapper, Entry> data : index.storage.entrySet()) {
+                appendCopy(oldSegments, RECORD_STORAGE, address, data.getKey().unwrap(), data.getValue());
+            }
+        }
+
+        // The new generation only replaces the old one once it is entirely on disk.
+        flush();
+        writeGeneration(this.generation);
+        try {
+            for (FileChannel channel : oldChannels) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        // (the mappings of views handed out before outlive the files, and anything we can't delete now is deleted on the next open)
+        deleteSegmentsOfOtherGenerations();
+    }
+
+    /**
+     * @return The number of segment files (only exposed for testing).
+     */
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    @Override
+    public IAccountStore openAccount(byte[] address) {
+        return openAccount(Address.wrap(address));
+    }
+
+    @Override
+    public IAccountStore createAccount(byte[] address) {
+        return createAccount(Address.wrap(address));
+    }
+
+    @Override
+    public void deleteAccount(byte[] address) {
+        deleteAccount(Address.wrap(address));
+    }
+
+    @Override
+    public synchronized IAccountStore openAccount(Address address) {
+        return this.accounts.containsKey(address)
+                ? new MappedAccountStore(address)
+                : null;
+    }
+
+    @Override
+    public synchronized IAccountStore createAccount(Address address) {
+        if (this.accounts.containsKey(address)) {
+            return null;
+        }
+        append(RECORD_CREATE, address, null, null);
+        compactIfWasteful();
+        return new MappedAccountStore(address);
+    }
+
+    @Override
+    public synchronized void deleteAccount(Address address) {
+        if (this.accounts.containsKey(address)) {
+            append(RECORD_DELETE, address, null, null);
+            compactIfWasteful();
+        }
+    }
+
+
+    private void openAndReplay() {
+        // Only the generation which was last completely written counts:  anything else is left over from a compaction.
+        this.generation = readGeneration();
+        deleteSegmentsOfOtherGenerations();
+        CRC32 checksum = new CRC32();
+        for (int segmentIndex = 0; new File(this.directory, segmentFileName(this.generation, segmentIndex)).exists(); ++segmentIndex) {
+            MappedByteBuffer segment = mapSegment(segmentIndex, 0);
+            int offset = 0;
+            while (true) {
+                // Anything which isn't a complete record ends the segment:  the zeros after the last record, or an incomplete one.
+                int bodyLength = ((segment.capacity() - offset) >= Integer.BYTES) ? segment.getInt(offset) : 0;
+                if ((bodyLength < (1 + Address.SIZE)) || (bodyLength > (segment.capacity() - offset - Integer.BYTES - CHECKSUM_BYTES))) {
+                    break;
+                }
+                ByteBuffer body = slice(segment, offset + Integer.BYTES, bodyLength);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != segment.getInt(offset + Integer.BYTES + bodyLength)) {
+                    break;
+                }
+                applyRecord(segmentIndex, offset + Integer.BYTES, body);
+                offset += Integer.BYTES + bodyLength + CHECKSUM_BYTES;
+            }
+            // Clear whatever an incomplete write left behind so it can't be mistaken for part of a record appended after it.
+            for (int i = offset; (i < segment.capacity()) && (i < (offset + Integer.BYTES)); ++i) {
+                segment.put(i, (byte) 0);
+            }
+            this.writeOffset = offset;
+        }
+        if (this.segments.isEmpty()) {
+            mapSegment(0, this.segmentBytes);
+            this.writeOffset = 0;
+        }
+    }
+
+    private MappedByteBuffer mapSegment(int segmentIndex, int newSegmentBytes) {
+        File file = new File(this.directory, segmentFileName(this.generation, segmentIndex));
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // (mapping past the end of a new file grows it, filled with zeros)
+            long size = Math.max(channel.size(), newSegmentBytes);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            this.channels.add(channel);
+            this.segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private static String segmentFileName(int generation, int segmentIndex) {
+        return String.format("%s%08d_%08d", SEGMENT_FILE_PREFIX, generation, segmentIndex);
+    }
+
+    private int readGeneration() {
+        File file = new File(this.directory, GENERATION_FILE_NAME);
+        try {
+            return file.exists()
+                    ? ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getInt()
+                    : 0;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    // Replaces the generation file, atomically, once the new contents are on disk.
+    private void writeGeneration(int generation) {
+        File newFile = new File(this.directory, NEW_GENERATION_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, generation));
+            channel.force(true);
+            Files.move(newFile.toPath(), new File(this.directory, GENERATION_FILE_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    private void deleteSegmentsOfOtherGenerations() {
+        String currentPrefix = String.format("%s%08d_", SEGMENT_FILE_PREFIX, this.generation);
+        File[] files = this.directory.listFiles((ignored, name) -> name.startsWith(SEGMENT_FILE_PREFIX) && !name.startsWith(currentPrefix));
+        if (null != files) {
+            for (File file : files) {
+                // (this fails while the file is still mapped, on some platforms, in which case it is deleted on the next open)
+                file.delete();
+            }
+        }
+    }
+
+    private void compactIfWasteful() {
+        if (this.supersededBytes > Math.max(this.segmentBytes, this.totalBytes / 2)) {
+            compact();
+        }
+    }
+
+    // Applies a record to the index, given the record's body (everything after the length prefix) and where the body starts.
+    private void applyRecord(int segmentIndex, int bodyOffset, ByteBuffer body) {
+        int recordBytes = Integer.BYTES + body.remaining() + CHECKSUM_BYTES;
+        this.totalBytes += recordBytes;
+        byte type = body.get();
+        byte[] rawAddress = new byte[Address.SIZE];
+        body.get(rawAddress);
+        Address address = Address.wrap(rawAddress);
+        if (RECORD_CREATE == type) {
+            this.accounts.put(address, new AccountIndex(recordBytes));
+            return;
+        }
+        if (RECORD_DELETE == type) {
+            // (the delete record itself is garbage as soon as the account is gone)
+            this.supersededBytes += this.accounts.remove(address).getRecordBytes() + recordBytes;
+            return;
+        }
+        ByteArrayWrapper key = null;
+        if (RECORD_STORAGE == type) {
+            byte[] rawKey = new byte[body.getInt()];
+            body.get(rawKey);
+            key = new ByteArrayWrapper(rawKey);
+        }
+        int valueLength = body.getInt();
+        Entry entry = (valueLength >= 0)
+                ? new Entry(segmentIndex, bodyOffset + body.position(), valueLength, recordBytes)
+                : null;
+
+        AccountIndex index = this.accounts.get(address);
+        RuntimeAssertionError.assertTrue(null != index);
+        Entry previous;
+        switch (type) {
+            case RECORD_CODE:
+                previous = index.code;
+                index.code = entry;
+                break;
+            case RECORD_TRANSFORMED_CODE:
+                previous = index.transformedCode;
+                index.transformedCode = entry;
+                break;
+            case RECORD_BALANCE:
+                previous = index.balance;
+                index.balance = entry;
+                break;
+            case RECORD_NONCE:
+                previous = index.nonce;
+                index.nonce = entry;
+                break;
+            case RECORD_GRAPH:
+                previous = index.graph;
+                index.graph = entry;
+                break;
+            case RECORD_STORAGE:
+                previous = (null != entry)
+                        ? index.storage.put(key, entry)
+                        : index.storage.remove(key);
+                break;
+            default:
+                throw RuntimeAssertionError.unreachable("Unknown record type: " + type);
+        }
+        // A record without a value is the same as no record at all, so it is garbage right away.
+        if (null != previous) {
+            this.supersededBytes += previous.recordBytes;
+        }
+        if (null == entry) {
+            this.supersededBytes += recordBytes;
+        }
+    }
+
+    // Appends a record to the last segment (starting a new one if it doesn't fit) and applies it to the index.
+    private void append(byte type, Address address, byte[] key, byte[] value) {
+        boolean hasValue = (RECORD_CREATE != type) && (RECORD_DELETE != type);
+        int bodyLength = 1 + Address.SIZE
+                + ((null != key) ? (Integer.BYTES + key.length) : 0)
+                + (hasValue ? (Integer.BYTES + ((null != value) ? value.length : 0)) : 0);
+        int recordBytes = Integer.BYTES + bodyLength + CHECKSUM_BYTES;
+
+        int segmentIndex = this.segments.size() - 1;
+        if (recordBytes > (this.segments.get(segmentIndex).capacity() - this.writeOffset)) {
+            segmentIndex += 1;
+            mapSegment(segmentIndex, Math.max(this.segmentBytes, recordBytes));
+            this.writeOffset = 0;
+        }
+        MappedByteBuffer segment = this.segments.get(segmentIndex);
+        int bodyOffset = this.writeOffset + Integer.BYTES;
+
+        // Write the body first and the length prefix last, so a reader never finds a length with a partial body behind it.
+        ByteBuffer body = slice(segment, bodyOffset, bodyLength);
+        body.put(type);
+        body.put(address.toBytes());
+        if (null != key) {
+            body.putInt(key.length);
+            body.put(key);
+        }
+        if (hasValue) {
+            if (null != value) {
+                body.putInt(value.length);
+                body.put(value);
+            } else {
+                body.putInt(-1);
+            }
+        }
+        body.flip();
+        CRC32 checksum = new CRC32();
+        checksum.update(body.duplicate());
+        segment.putInt(bodyOffset + bodyLength, (int) checksum.getValue());
+        segment.putInt(this.writeOffset, bodyLength);
+        this.writeOffset += recordBytes;
+
+        applyRecord(segmentIndex, bodyOffset, body);
+    }
+
+    // Appends a record with the value of the given entry, read from the given segments, unless there is no such entry.
+    private void appendCopy(List<MappedByteBuffer> fromSegments, byte type, Address address, byte[] key, Entry entry) {
+        if (null != entry) {
+            byte[] value = new byte[entry.valueLength];
+            slice(fromSegments.get(entry.segmentIndex), entry.valueOffset, entry.valueLength).get(value);
+            append(type, address, key, value);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private ByteBuffer view(Entry entry) {
+        return (null != entry)
+                ? slice(this.segments.get(entry.segmentIndex), entry.valueOffset, entry.valueLength).asReadOnlyBuffer()
+                : null;
+    }
+
+    private byte[] copy(Entry entry) {
+        ByteBuffer view = view(entry);
+        if (null == view) {
+            return null;
+        }
+        byte[] value = new byte[view.remaining()];
+        view.get(value);
+        return value;
+    }
+
+    private AccountIndex indexOf(Address address) {
+        AccountIndex index = this.accounts.get(address);
+        // Using an account after deleting it is a usage error.
+        RuntimeAssertionError.assertTrue(null != index);
+        return index;
+    }
+
+
+    /**
+     * Where the current value of something is in the segments.
+     */
+    private static final class Entry {
+        public final int segmentIndex;
+        public final int valueOffset;
+        public final int valueLength;
+        // The size of the whole record holding the value.
+        public final int recordBytes;
+
+        public Entry(int segmentIndex, int valueOffset, int valueLength, int recordBytes) {
+            this.segmentIndex = segmentIndex;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.recordBytes = recordBytes;
+        }
+    }
+
+
+    /**
+     * The entries of one account (null means never written).
+     */
+    private static final class AccountIndex {
+        // The size of the record which created the account.
+        public final int createRecordBytes;
+        public Entry code;
+        public Entry transformedCode;
+        public Entry balance;
+        public Entry nonce;
+        public Entry graph;
+        public final Map<ByteArrayWrapper, Entry> storage = new HashMap<>();
+
+        public AccountIndex(int createRecordBytes) {
+            this.createRecordBytes = createRecordBytes;
+        }
+
+        /**
+         * @return The size of all the records the account's current values are in.
+         */
+        public long getRecordBytes() {
+            long bytes = this.createRecordBytes;
+            for (Entry entry : new Entry[] {this.code, this.transformedCode, this.balance, this.nonce, this.graph}) {
+                bytes += (null != entry) ? entry.recordBytes : 0;
+            }
+            for (Entry entry : this.storage.values()) {
+                bytes += entry.recordBytes;
+            }
+            return bytes;
+        }
+    }
+
+
+    /**
+     * A view of one account in the store.  Every call goes to the store's index so views can come and go freely.
+     */
+    private final class MappedAccountStore implements IAccountStore {
+        private final Address address;
+
+        public MappedAccountStore(Address address) {
+            this.address = address;
+        }
+
+        @Override
+        public void setCode(byte[] code) {
+            write(RECORD_CODE, null, code);
+        }
+
+        @Override
+        public byte[] getTransformedCode() {
+            synchronized (MappedDataStore.this) {
+                return copy(indexOf(this.address).transformedCode);
+            }
+        }
+
+        @Override
+        public ByteBuffer getTransformedCodeBuffer() {
+            synchronized (MappedDataStore.this) {
+                return view(indexOf(this.address).transformedCode);
+            }
+        }
+
+        @Override
+        public void setTransformedCode(byte[] code) {
+            write(RECORD_TRANSFORMED_CODE, null, code);
+        }
+
+        @Override
+        public BigInteger getBalance() {
+            byte[] data;
+            synchronized (MappedDataStore.this) {
+                data = copy(indexOf(this.address).balance);
+            }
+            return (null != data)
+                    ? new BigInteger(data)
+                    : BigInteger.ZERO;
+        }
+
+        @Override
+        public void setBalance(BigInteger balance) {
+            write(RECORD_BALANCE, null, balance.toByteArray());
+        }
+
+        @Override
+        public long getNonce() {
+            ByteBuffer data;
+            synchronized (MappedDataStore.this) {
+                data = view(indexOf(this.address).nonce);
+            }
+            return (null != data)
+                    ? data.getLong()
+                    : 0L;
+        }
+
+        @Override
+        public void setNonce(long nonce) {
+            write(RECORD_NONCE, null, ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+        }
+
+        @Override
+        public byte[] getData(byte[] key) {
+            synchronized (MappedDataStore.this) {
+                return copy(indexOf(this.address).storage.get(new ByteArrayWrapper(key)));
+            }
+        }
+
+        @Override
+        public void setData(byte[] key, byte[] value) {
+            write(RECORD_STORAGE, key, value);
+        }
+
+        @Override
+        public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+            Map<ByteArrayWrapper, byte[]> result = new HashMap<>();
+            synchronized (MappedDataStore.this) {
+                for (Map.Entry<ByteArrayWrapper, Entry> data : indexOf(this.address).storage.entrySet()) {
+                    result.put(data.getKey(), copy(data.getValue()));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void setObjectGraph(byte[] data) {
+            write(RECORD_GRAPH, null, data);
+        }
+
+        @Override
+        public byte[] getObjectGraph() {
+            synchronized (MappedDataStore.this) {
+                return copy(indexOf(this.address).graph);
+            }
+        }
+
+        @Override
+        public ByteBuffer getObjectGraphBuffer() {
+            synchronized (MappedDataStore.this) {
+                return view(indexOf(this.address).graph);
+            }
+        }
+
+        private void write(byte type, byte[] key, byte[] value) {
+            synchronized (MappedDataStore.this) {
+                indexOf(this.address);
+                append(type, this.address, key, value);
+                compactIfWasteful();
+            }
+        }
+    }
+}
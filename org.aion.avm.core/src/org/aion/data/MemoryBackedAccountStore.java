@@ -1,20 +1,31 @@
 package org.aion.data;
 
 import java.math.BigInteger;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
 
 
 public class MemoryBackedAccountStore implements IAccountStore {
+    // Transformed code is held by hash in this table, which the data store shares between its accounts (we keep its entry).
+    private final MemoryCodeTable codeTable;
     private BigInteger balance = BigInteger.ZERO;
     private long nonce = 0;
     private byte[] code = null;
-    private byte[] transformedCode = null;
-    private final Map<ByteArrayWrapper, byte[]> storage = new HashMap<>();
+    private MemoryCodeTable.SharedCode transformedCode = null;
+    // (concurrent for the same reason as the accounts in MemoryBackedDataStore:  executor threads read it while the commit stage writes it)
+    private final Map<ByteArrayWrapper, byte[]> storage = new ConcurrentHashMap<>();
     private byte[] graph = null;
 
+    public MemoryBackedAccountStore() {
+        this(new MemoryCodeTable());
+    }
+
+    MemoryBackedAccountStore(MemoryCodeTable codeTable) {
+        this.codeTable = codeTable;
+    }
+
     @Override
     public void setCode(byte[] code) {
         this.code = code;
@@ -22,12 +33,21 @@ public class MemoryBackedAccountStore implements IAccountStore {
 
     @Override
     public byte[] getTransformedCode() {
-        return this.transformedCode;
+        return (null != this.transformedCode)
+                ? this.transformedCode.code
+                : null;
     }
 
     @Override
     public void setTransformedCode(byte[] code) {
-        this.transformedCode = code;
+        // (acquire before releasing so setting the same code again doesn't drop it from the table)
+        MemoryCodeTable.SharedCode previous = this.transformedCode;
+        this.transformedCode = (null != code)
+                ? this.codeTable.acquire(code)
+                : null;
+        if (null != previous) {
+            this.codeTable.release(previous);
+        }
     }
 
     @Override
@@ -57,7 +77,12 @@ public class MemoryBackedAccountStore implements IAccountStore {
 
     @Override
     public void setData(byte[] key, byte[] value) {
-        this.storage.put(new ByteArrayWrapper(key), value);
+        // The concurrent map can't hold null so storing null removes the key (reading it gives null either way).
+        if (null != value) {
+            this.storage.put(new ByteArrayWrapper(key), value);
+        } else {
+            this.storage.remove(new ByteArrayWrapper(key));
+        }
     }
 
     @Override
@@ -74,4 +99,11 @@ public class MemoryBackedAccountStore implements IAccountStore {
     public byte[] getObjectGraph() {
         return this.graph;
     }
+
+    /**
+     * Called when the account is deleted, to drop its reference to its transformed code.
+     */
+    void releaseTransformedCode() {
+        setTransformedCode(null);
+    }
 }
@@ -1,33 +1,56 @@
 package org.aion.data;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.types.Address;
 
 
+/**
+ * Accounts are keyed by {@link Address} (which caches its hash) so callers already holding one don't allocate a key per lookup.
+ * Transformed code is stored once per distinct content (see {@link MemoryCodeTable}), since many accounts are deployed with the same code.
+ */
 public class MemoryBackedDataStore implements IDataStore {
-    private final Map<ByteArrayWrapper, MemoryBackedAccountStore> accounts = new HashMap<>();
+    // (concurrent since the executor threads read accounts while the commit stage commits a transaction which creates new ones)
+    private final Map<Address, MemoryBackedAccountStore> accounts = new ConcurrentHashMap<>();
+    private final MemoryCodeTable codeTable = new MemoryCodeTable();
 
     @Override
     public IAccountStore openAccount(byte[] address) {
-        return this.accounts.get(new ByteArrayWrapper(address));
+        return openAccount(Address.wrap(address));
     }
 
     @Override
     public IAccountStore createAccount(byte[] address) {
-        ByteArrayWrapper wrapper = new ByteArrayWrapper(address);
-        MemoryBackedAccountStore existing = this.accounts.get(wrapper);
+        return createAccount(Address.wrap(address));
+    }
+
+    @Override
+    public void deleteAccount(byte[] address) {
+        deleteAccount(Address.wrap(address));
+    }
+
+    @Override
+    public IAccountStore openAccount(Address address) {
+        return this.accounts.get(address);
+    }
+
+    @Override
+    public IAccountStore createAccount(Address address) {
+        MemoryBackedAccountStore existing = this.accounts.get(address);
         MemoryBackedAccountStore created = null;
         if (null == existing) {
-            created = new MemoryBackedAccountStore();
-            this.accounts.put(wrapper, created);
+            created = new MemoryBackedAccountStore(this.codeTable);
+            this.accounts.put(address, created);
         }
         return created;
     }
 
     @Override
-    public void deleteAccount(byte[] address) {
-        this.accounts.remove(new ByteArrayWrapper(address));
+    public void deleteAccount(Address address) {
+        MemoryBackedAccountStore removed = this.accounts.remove(address);
+        if (null != removed) {
+            removed.releaseTransformedCode();
+        }
     }
 }
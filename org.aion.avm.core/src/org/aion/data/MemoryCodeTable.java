@@ -0,0 +1,68 @@
+package org.aion.data;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.RuntimeAssertionError;
+
+
+/**
+ * Holds transformed code by the hash of its content so that accounts deployed with identical code share one copy.
+ * Each account references its code through the entry it acquired and the copy is dropped once the last reference to it is released.
+ * Like the accounts of {@link MemoryBackedDataStore}, this is read by the executor threads while the commit stage writes it, so it
+ * is thread-safe:  each reference count is only changed within an atomic update of its entry, so code can't be dropped while it
+ * is being acquired again.
+ */
+class MemoryCodeTable {
+    private final ConcurrentHashMap<ByteArrayWrapper, SharedCode> codeByHash = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a reference to the given code, storing it if this is the first.
+     * The account keeps the returned entry, rather than the hash, so reading its code is just reading the entry (no lookup or key
+     * needs to be built on that path, which is taken for every call).
+     * 
+     * @param code The transformed code.
+     * @return The shared entry now holding the code.
+     */
+    public SharedCode acquire(byte[] code) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(Helpers.sha256(ByteBuffer.wrap(code)));
+        return this.codeByHash.compute(hash, (ignored, shared) -> {
+            SharedCode acquired = (null != shared)
+                    ? shared
+                    : new SharedCode(hash, code);
+            acquired.references += 1;
+            return acquired;
+        });
+    }
+
+    /**
+     * Drops a reference acquired by {@link #acquire(byte[])}, removing the code once nothing references it.
+     * 
+     * @param released The entry returned when the reference was acquired.
+     */
+    public void release(SharedCode released) {
+        this.codeByHash.compute(released.hash, (ignored, shared) -> {
+            RuntimeAssertionError.assertTrue(released == shared);
+            shared.references -= 1;
+            // (returning null removes the entry)
+            return (0 != shared.references)
+                    ? shared
+                    : null;
+        });
+    }
+
+
+    public static class SharedCode {
+        private final ByteArrayWrapper hash;
+        public final byte[] code;
+        // Only changed within an atomic update of the entry.
+        private int references;
+
+        private SharedCode(ByteArrayWrapper hash, byte[] code) {
+            this.hash = hash;
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package org.aion.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.types.Address;
+
+
+/**
+ * A data store which makes the writes of a whole block durable, and atomic, by writing them to a write-ahead log before applying
+ * them to another ("backing") store.
+ *
+ * Writes are held in memory (where reads see them) until {@link #commitBlock()}, which appends all of them to the log as a single
+ * record and forces it to disk once (a group commit), before applying them to the backing store.  If the process dies before the
+ * record is complete, none of the block's writes happened.  If it dies after, opening the store replays the log into the backing
+ * store, so the block is applied even if the backing store only got some of it.  Replaying is always safe since every logged write
+ * is absolute (a value, a new account or a delete) and replaying them in order ends in the same state however much of them was
+ * already applied.
+ *
+ * The log is truncated (a checkpoint) once it grows large, but only if the backing store can promise everything written to it is
+ * durable (see {@link IDataStore#flush()}).  With a backing store which can't, like the MemoryBackedDataStore, the log is never
+ * truncated and is, effectively, the store.
+ */
+public class WriteAheadLogDataStore implements IDataStore {
+    private static final String LOG_FILE_NAME = "blocks.wal";
+    // Once the log is larger than this, we try to checkpoint after committing a block.
+    private static final long CHECKPOINT_BYTES = 16L * 1024L * 1024L;
+
+    private static final byte WRITE_CREATE = 1;
+    private static final byte WRITE_DELETE = 2;
+    private static final byte WRITE_CODE = 3;
+    private static final byte WRITE_TRANSFORMED_CODE = 4;
+    private static final byte WRITE_BALANCE = 5;
+    private static final byte WRITE_NONCE = 6;
+    private static final byte WRITE_GRAPH = 7;
+    private static final byte WRITE_STORAGE = 8;
+
+    private static final int CHECKSUM_BYTES = Integer.BYTES;
+
+    private final IDataStore backing;
+    private final File logFile;
+    // The writes of the current block, in order, and the view of them which reads consult before the backing store.
+    private final List<Write> blockWrites;
+    private final Map<Address, PendingAccount> pending;
+    private FileChannel log;
+    private long logBytes;
+
+    /**
+     * Opens the store, replaying any blocks in the log (in the given directory) into the backing store.
+     *
+     * @param directory The directory which holds the log.
+     * @param backing The store the blocks are applied to.
+     */
+    public WriteAheadLogDataStore(File directory, IDataStore backing) {
+        this.backing = backing;
+        this.logFile = new File(directory, LOG_FILE_NAME);
+        this.blockWrites = new ArrayList<>();
+        this.pending = new HashMap<>();
+        openAndReplay();
+    }
+
+    /**
+     * Durably commits the writes made since the last call (the block):  they are logged, in one record, forced to disk and then
+     * applied to the backing store.
+     */
+    public synchronized void commitBlock() {
+        if (this.blockWrites.isEmpty()) {
+            return;
+        }
+        try {
+            ByteBuffer record = serializeBlock(this.blockWrites);
+            long offset = this.logBytes;
+            while (record.hasRemaining()) {
+                offset += this.log.write(record, offset);
+            }
+            // The only time we wait for the disk:  once per block.
+            this.log.force(false);
+            this.logBytes = offset;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+        for (Write write : this.blockWrites) {
+            apply(write);
+        }
+        this.blockWrites.clear();
+        this.pending.clear();
+
+        if (this.logBytes > CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Discards the writes made since the last commit.
+     */
+    public synchronized void abandonBlock() {
+        this.blockWrites.clear();
+        this.pending.clear();
+    }
+
+    /**
+     * Truncates the log if the backing store can make everything applied to it durable.  This happens automatically as the log grows
+     * so is only exposed for testing.
+     *
+     * @return True if the log was truncated.
+     */
+    public synchronized boolean checkpoint() {
+        boolean durable = this.backing.flush();
+        if (durable) {
+            try {
+                this.log.truncate(0L);
+                this.log.force(false);
+                this.logBytes = 0L;
+            } catch (IOException e) {
+                // This implementation doesn't handle exceptions.
+                throw RuntimeAssertionError.unexpected(e);
+            }
+        }
+        return durable;
+    }
+
+    /**
+     * Closes the log, abandoning any uncommitted writes.  The store can't be used after this.
+     */
+    public synchronized void close() {
+        abandonBlock();
+        try {
+            this.log.close();
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    /**
+     * @return The size of the log, in bytes (only exposed for testing).
+     */
+    public synchronized long getLogBytes() {
+        return this.logBytes;
+    }
+
+    @Override
+    public boolean flush() {
+        // Only committed blocks are durable so the uncommitted writes don't count against this.
+        return true;
+    }
+
+    @Override
+    public IAccountStore openAccount(byte[] address) {
+        return openAccount(Address.wrap(address));
+    }
+
+    @Override
+    public IAccountStore createAccount(byte[] address) {
+        return createAccount(Address.wrap(address));
+    }
+
+    @Override
+    public void deleteAccount(byte[] address) {
+        deleteAccount(Address.wrap(address));
+    }
+
+    @Override
+    public synchronized IAccountStore openAccount(Address address) {
+        return exists(address)
+                ? new WriteAheadAccountStore(address)
+                : null;
+    }
+
+    @Override
+    public synchronized IAccountStore createAccount(Address address) {
+        if (exists(address)) {
+            return null;
+        }
+        write(new Write(WRITE_CREATE, address, null, null));
+        return new WriteAheadAccountStore(address);
+    }
+
+    @Override
+    public synchronized void deleteAccount(Address address) {
+        if (exists(address)) {
+            write(new Write(WRITE_DELETE, address, null, null));
+        }
+    }
+
+
+    private void openAndReplay() {
+        long validBytes = 0L;
+        try {
+            long fileBytes = this.logFile.length();
+            if (fileBytes > 0L) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.logFile)))) {
+                    CRC32 checksum = new CRC32();
+                    while (true) {
+                        byte[] body;
+                        int expectedChecksum;
+                        try {
+                            int bodyLength = input.readInt();
+                            if ((bodyLength < Integer.BYTES) || (bodyLength > (fileBytes - validBytes))) {
+                                // Not a length we could have written so this is the remains of an incomplete write.
+                                break;
+                            }
+                            body = new byte[bodyLength];
+                            input.readFully(body);
+                            expectedChecksum = input.readInt();
+                        } catch (EOFException e) {
+                            // An incomplete block at the end of the log:  it was never committed.
+                            break;
+                        }
+                        checksum.reset();
+                        checksum.update(body);
+                        if ((int) checksum.getValue() != expectedChecksum) {
+                            break;
+                        }
+                        for (Write write : deserializeBlock(ByteBuffer.wrap(body))) {
+                            apply(write);
+                        }
+                        validBytes += Integer.BYTES + body.length + CHECKSUM_BYTES;
+                    }
+                }
+            }
+            this.log = FileChannel.open(this.logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Drop anything after the last complete block so we append after it.
+            this.log.truncate(validBytes);
+            this.logBytes = validBytes;
+        } catch (IOException e) {
+            // This implementation doesn't handle exceptions.
+            throw RuntimeAssertionError.unexpected(e);
+        }
+    }
+
+    // Blocks are:  length of the body, body (count of writes, then the writes) and checksum of the body.
+    private static ByteBuffer serializeBlock(List<Write> writes) {
+        int bodyLength = Integer.BYTES;
+        for (Write write : writes) {
+            bodyLength += 1 + Address.SIZE
+                    + ((null != write.key) ? (Integer.BYTES + write.key.length) : 0)
+                    + (write.hasValue() ? (Integer.BYTES + ((null != write.value) ? write.value.length : 0)) : 0);
+        }
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + bodyLength + CHECKSUM_BYTES);
+        record.putInt(bodyLength);
+        record.putInt(writes.size());
+        for (Write write : writes) {
+            record.put(write.type);
+            record.put(write.address.toBytes());
+            if (null != write.key) {
+                record.putInt(write.key.length);
+                record.put(write.key);
+            }
+            if (write.hasValue()) {
+                if (null != write.value) {
+                    record.putInt(write.value.length);
+                    record.put(write.value);
+                } else {
+                    record.putInt(-1);
+                }
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), Integer.BYTES, bodyLength);
+        record.putInt((int) checksum.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static List<Write> deserializeBlock(ByteBuffer body) {
+        int count = body.getInt();
+        List<Write> writes = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            byte type = body.get();
+            byte[] address = new byte[Address.SIZE];
+            body.get(address);
+            byte[] key = null;
+            if (WRITE_STORAGE == type) {
+                key = new byte[body.getInt()];
+                body.get(key);
+            }
+            byte[] value = null;
+            if ((WRITE_CREATE != type) && (WRITE_DELETE != type)) {
+                int valueLength = body.getInt();
+                if (valueLength >= 0) {
+                    value = new byte[valueLength];
+                    body.get(value);
+                }
+            }
+            writes.add(new Write(type, Address.wrap(address), key, value));
+        }
+        return writes;
+    }
+
+    // Applies a committed write to the backing store (this must give the same result no matter how many times it is repeated).
+    private void apply(Write write) {
+        IAccountStore account = this.backing.openAccount(write.address);
+        switch (write.type) {
+            case WRITE_CREATE:
+                // The account didn't exist when this was written so, if it does now, this is a replay and it must start empty again.
+                if (null != account) {
+                    this.backing.deleteAccount(write.address);
+                }
+                this.backing.createAccount(write.address);
+                break;
+            case WRITE_DELETE:
+                if (null != account) {
+                    this.backing.deleteAccount(write.address);
+                }
+                break;
+            case WRITE_CODE:
+                account.setCode(write.value);
+                break;
+            case WRITE_TRANSFORMED_CODE:
+                account.setTransformedCode(write.value);
+                break;
+            case WRITE_BALANCE:
+                account.setBalance(new BigInteger(write.value));
+                break;
+            case WRITE_NONCE:
+                account.setNonce(ByteBuffer.wrap(write.value).getLong());
+                break;
+            case WRITE_GRAPH:
+                account.setObjectGraph(write.value);
+                break;
+            case WRITE_STORAGE:
+                account.setData(write.key, write.value);
+                break;
+            default:
+                throw RuntimeAssertionError.unreachable("Unknown write type: " + write.type);
+        }
+    }
+
+    private void write(Write write) {
+        this.blockWrites.add(write);
+        PendingAccount account = this.pending.get(write.address);
+        if (null == account) {
+            account = new PendingAccount();
+            this.pending.put(write.address, account);
+        }
+        switch (write.type) {
+            case WRITE_CREATE:
+            case WRITE_DELETE:
+                // Either way, nothing in the backing store (or written earlier in the block) is visible any more.
+                account.reset = true;
+                account.exists = (WRITE_CREATE == write.type);
+                account.fields.clear();
+                account.storage.clear();
+                break;
+            case WRITE_STORAGE:
+                account.storage.put(new ByteArrayWrapper(write.key), write.value);
+                break;
+            default:
+                account.fields.put(write.type, write.value);
+                break;
+        }
+    }
+
+    private boolean exists(Address address) {
+        PendingAccount account = this.pending.get(address);
+        return ((null != account) && account.reset)
+                ? account.exists
+                : (null != this.backing.openAccount(address));
+    }
+
+    // Reads a field through the block's writes, falling back to the backing store.
+    private byte[] read(Address address, byte type, byte[] key) {
+        PendingAccount account = this.pending.get(address);
+        if (null != account) {
+            if (WRITE_STORAGE == type) {
+                ByteArrayWrapper wrappedKey = new ByteArrayWrapper(key);
+                if (account.storage.containsKey(wrappedKey)) {
+                    return account.storage.get(wrappedKey);
+                }
+            } else if (account.fields.containsKey(type)) {
+                return account.fields.get(type);
+            }
+            if (account.reset) {
+                // (an account created in this block only has what was written to it)
+                return null;
+            }
+        }
+        IAccountStore backingAccount = this.backing.openAccount(address);
+        // Using an account after deleting it is a usage error.
+        RuntimeAssertionError.assertTrue(null != backingAccount);
+        switch (type) {
+            case WRITE_TRANSFORMED_CODE:
+                return backingAccount.getTransformedCode();
+            case WRITE_BALANCE:
+                return backingAccount.getBalance().toByteArray();
+            case WRITE_NONCE:
+                return ByteBuffer.allocate(Long.BYTES).putLong(backingAccount.getNonce()).array();
+            case WRITE_GRAPH:
+                return backingAccount.getObjectGraph();
+            case WRITE_STORAGE:
+                return backingAccount.getData(key);
+            default:
+                throw RuntimeAssertionError.unreachable("Unreadable write type: " + type);
+        }
+    }
+
+
+    /**
+     * One logged write:  the value of a field or storage key, or the creation or deletion of an account.
+     */
+    private static final class Write {
+        public final byte type;
+        public final Address address;
+        public final byte[] key;
+        // Balance and nonce are stored encoded, as they are in the log.
+        public final byte[] value;
+
+        public Write(byte type, Address address, byte[] key, byte[] value) {
+            this.type = type;
+            this.address = address;
+            this.key = key;
+            this.value = value;
+        }
+
+        public boolean hasValue() {
+            return (WRITE_CREATE != this.type) && (WRITE_DELETE != this.type);
+        }
+    }
+
+
+    /**
+     * What the current block wrote to one account.
+     */
+    private static final class PendingAccount {
+        // True if the account was created or deleted in this block, so the backing store's version is no longer visible.
+        public boolean reset;
+        // Only meaningful if reset.
+        public boolean exists;
+        public final Map<Byte, byte[]> fields = new HashMap<>();
+        // (null values are written as such, so use containsKey)
+        public final Map<ByteArrayWrapper, byte[]> storage = new HashMap<>();
+    }
+
+
+    /**
+     * A view of one account in the store.  Every call goes through the store so views can come and go freely.
+     */
+    private final class WriteAheadAccountStore implements IAccountStore {
+        private final Address address;
+
+        public WriteAheadAccountStore(Address address) {
+            this.address = address;
+        }
+
+        @Override
+        public void setCode(byte[] code) {
+            writeField(WRITE_CODE, null, code);
+        }
+
+        @Override
+        public byte[] getTransformedCode() {
+            synchronized (WriteAheadLogDataStore.this) {
+                return read(this.address, WRITE_TRANSFORMED_CODE, null);
+            }
+        }
+
+        @Override
+        public void setTransformedCode(byte[] code) {
+            writeField(WRITE_TRANSFORMED_CODE, null, code);
+        }
+
+        @Override
+        public BigInteger getBalance() {
+            byte[] data;
+            synchronized (WriteAheadLogDataStore.this) {
+                data = read(this.address, WRITE_BALANCE, null);
+            }
+            return (null != data)
+                    ? new BigInteger(data)
+                    : BigInteger.ZERO;
+        }
+
+        @Override
+        public void setBalance(BigInteger balance) {
+            writeField(WRITE_BALANCE, null, balance.toByteArray());
+        }
+
+        @Override
+        public long getNonce() {
+            byte[] data;
+            synchronized (WriteAheadLogDataStore.this) {
+                data = read(this.address, WRITE_NONCE, null);
+            }
+            return (null != data)
+                    ? ByteBuffer.wrap(data).getLong()
+                    : 0L;
+        }
+
+        @Override
+        public void setNonce(long nonce) {
+            writeField(WRITE_NONCE, null, ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+        }
+
+        @Override
+        public byte[] getData(byte[] key) {
+            synchronized (WriteAheadLogDataStore.this) {
+                return read(this.address, WRITE_STORAGE, key);
+            }
+        }
+
+        @Override
+        public void setData(byte[] key, byte[] value) {
+            writeField(WRITE_STORAGE, key, value);
+        }
+
+        @Override
+        public Map<ByteArrayWrapper, byte[]> getStorageEntries() {
+            synchronized (WriteAheadLogDataStore.this) {
+                PendingAccount account = pending.get(this.address);
+                Map<ByteArrayWrapper, byte[]> result = new HashMap<>();
+                if ((null == account) || !account.reset) {
+                    IAccountStore backingAccount = backing.openAccount(this.address);
+                    RuntimeAssertionError.assertTrue(null != backingAccount);
+                    result.putAll(backingAccount.getStorageEntries());
+                }
+                if (null != account) {
+                    result.putAll(account.storage);
+                }
+                return result;
+            }
+        }
+
+        @Override
+        public void setObjectGraph(byte[] data) {
+            writeField(WRITE_GRAPH, null, data);
+        }
+
+        @Override
+        public byte[] getObjectGraph() {
+            synchronized (WriteAheadLogDataStore.this) {
+                return read(this.address, WRITE_GRAPH, null);
+            }
+        }
+
+        private void writeField(byte type, byte[] key, byte[] value) {
+            synchronized (WriteAheadLogDataStore.this) {
+                RuntimeAssertionError.assertTrue(exists(this.address));
+                write(new Write(type, this.address, key, value));
+            }
+        }
+    }
+}
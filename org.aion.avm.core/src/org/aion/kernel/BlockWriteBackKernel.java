@@ -0,0 +1,278 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * A kernel which absorbs the commits of every transaction of a block, in the order they commit, and only writes them back to its
+ * "parent" once, at the end of the block (see {@link #commit()}).
+ *
+ * The committed writes are merged into one {@link TransactionalKernel} write-set so an account touched by many transactions of the
+ * block is only written back once, with its net changes, and the accounts are written back sorted by address.  Later transactions
+ * read the merged state through this kernel, falling back to the parent for anything the block didn't write.
+ *
+ * Unlike the other kernels, this one is shared by concurrently running transactions:  each of them only touches the accounts it
+ * holds (through the resource monitor) but they all share the write-set, so reads take a read lock while writes (which only come
+ * from commits, one at a time) and the write back take the write lock.
+ */
+public class BlockWriteBackKernel implements KernelInterface {
+    private final KernelInterface parent;
+    private final ReentrantReadWriteLock lock;
+    // The writes of the transactions committed since the last write back (replaced on each write back).
+    private TransactionalKernel buffer;
+
+    public BlockWriteBackKernel(KernelInterface parent) {
+        this.parent = parent;
+        this.lock = new ReentrantReadWriteLock();
+        this.buffer = new TransactionalKernel(parent);
+    }
+
+    @Override
+    public TransactionalKernel makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    /**
+     * Writes everything committed since the last write back through to the parent, in one batch sorted by address.
+     * Transactions can keep reading and committing through this kernel afterward.
+     */
+    @Override
+    public void commit() {
+        commitTo(this.parent);
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.commitInAddressOrderTo(target);
+            this.buffer = new TransactionalKernel(this.parent);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void createAccount(Address address) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.createAccount(address);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.hasAccountState(address);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        // getCode is an interface for fvm, the avm should not call this method.
+        throw new AssertionError("This class does not implement this method.");
+    }
+
+    @Override
+    public void putCode(Address address, byte[] code) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.putCode(address, code);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.getTransformedCode(address);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setTransformedCode(Address address, byte[] bytes) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.setTransformedCode(address, bytes);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void putObjectGraph(Address address, byte[] bytes) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.putObjectGraph(address, bytes);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.getObjectGraph(address);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.putStorage(address, key, value);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.getStorage(address, key);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAccount(Address address) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.deleteAccount(address);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.getBalance(address);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.adjustBalance(address, delta);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.getNonce(address);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void incrementNonce(Address address) {
+        this.lock.writeLock().lock();
+        try {
+            this.buffer.incrementNonce(address);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        // The parent can only decide for accounts the block hasn't written yet:  it would see the nonce from before the block.
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.hasWritesTo(address)
+                    ? this.buffer.getNonce(address).equals(nonce)
+                    : this.parent.accountNonceEquals(address, nonce);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        // (as with the nonce, the parent would see the balance from before the block)
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.hasWritesTo(address)
+                    ? (this.buffer.getBalance(address).compareTo(amount) >= 0)
+                    : this.parent.accountBalanceIsAtLeast(address, amount);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return this.parent.isValidEnergyLimitForCreate(energyLimit);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return this.parent.isValidEnergyLimitForNonCreate(energyLimit);
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        // This method may have special logic in the kernel. Here it is just adjustBalance.
+        adjustBalance(address, amount);
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        // This method may have special logic in the kernel. Here it is just adjustBalance.
+        adjustBalance(address, cost);
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        // This method may have special logic in the kernel. Here it is just adjustBalance.
+        adjustBalance(address, fee);
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        return this.parent.getBlockHashByNumber(blockNumber);
+    }
+
+    @Override
+    public void removeStorage(Address address, byte[] key) {
+        throw new AssertionError("This class does not implement this method.");
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        this.lock.readLock().lock();
+        try {
+            return this.buffer.destinationAddressIsSafeForThisVM(address);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+}
@@ -11,7 +11,7 @@ import org.aion.vm.api.interfaces.KernelInterface;
 
 
 /**
- * In in-memory cached used by the TransactionalKernel in order to store results of in-flight transactions prior to commit.
+ * An in-memory kernel, with no parent, which can be used to hold the results of in-flight transactions prior to commit.
  */
 public class CachingKernel implements KernelInterface {
     private final IDataStore dataStore;
@@ -51,12 +51,12 @@ public class CachingKernel implements KernelInterface {
 
     @Override
     public void createAccount(Address address) {
-        this.dataStore.createAccount(address.toBytes());
+        this.dataStore.createAccount(address);
     }
 
     @Override
     public boolean hasAccountState(Address address) {
-        return this.dataStore.openAccount(address.toBytes()) != null;
+        return this.dataStore.openAccount(address) != null;
     }
 
     @Override
@@ -69,12 +69,12 @@ public class CachingKernel implements KernelInterface {
     public void putCode(Address address, byte[] code) {
         // Note that saving empty code is invalid since a valid JAR is not empty.
         RuntimeAssertionError.assertTrue((null != code) && (code.length > 0));
-        lazyCreateAccount(address.toBytes()).setCode(code);
+        lazyCreateAccount(address).setCode(code);
     }
 
     @Override
     public byte[] getTransformedCode(Address address) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
             ? account.getTransformedCode()
             : null;
@@ -83,27 +83,27 @@ public class CachingKernel implements KernelInterface {
     @Override
     public void setTransformedCode(Address address, byte[] code) {
         RuntimeAssertionError.assertTrue((null != code) && (code.length > 0));
-        lazyCreateAccount(address.toBytes()).setTransformedCode(code);
+        lazyCreateAccount(address).setTransformedCode(code);
     }
 
     @Override
     public void putObjectGraph(Address address, byte[] bytes) {
-        lazyCreateAccount(address.toBytes()).setObjectGraph(bytes);
+        lazyCreateAccount(address).setObjectGraph(bytes);
     }
 
     @Override
     public byte[] getObjectGraph(Address address) {
-        return lazyCreateAccount(address.toBytes()).getObjectGraph();
+        return lazyCreateAccount(address).getObjectGraph();
     }
 
     @Override
     public void putStorage(Address address, byte[] key, byte[] value) {
-        lazyCreateAccount(address.toBytes()).setData(key, value);
+        lazyCreateAccount(address).setData(key, value);
     }
 
     @Override
     public byte[] getStorage(Address address, byte[] key) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? account.getData(key)
                 : null;
@@ -111,12 +111,12 @@ public class CachingKernel implements KernelInterface {
 
     @Override
     public void deleteAccount(Address address) {
-        this.dataStore.deleteAccount(address.toBytes());
+        this.dataStore.deleteAccount(address);
     }
 
     @Override
     public BigInteger getBalance(Address address) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? account.getBalance()
                 : BigInteger.ZERO;
@@ -129,7 +129,7 @@ public class CachingKernel implements KernelInterface {
 
     @Override
     public BigInteger getNonce(Address address) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? BigInteger.valueOf(account.getNonce())
                 : BigInteger.ZERO;
@@ -137,7 +137,7 @@ public class CachingKernel implements KernelInterface {
 
     @Override
     public void incrementNonce(Address address) {
-        IAccountStore account = lazyCreateAccount(address.toBytes());
+        IAccountStore account = lazyCreateAccount(address);
         long start = account.getNonce();
         account.setNonce(start + 1);
     }
@@ -188,7 +188,7 @@ public class CachingKernel implements KernelInterface {
     }
 
 
-    private IAccountStore lazyCreateAccount(byte[] address) {
+    private IAccountStore lazyCreateAccount(Address address) {
         IAccountStore account = this.dataStore.openAccount(address);
         if (null == account) {
             account = this.dataStore.createAccount(address);
@@ -197,7 +197,7 @@ public class CachingKernel implements KernelInterface {
     }
 
     private void internalAdjustBalance(Address address, BigInteger delta) {
-        IAccountStore account = lazyCreateAccount(address.toBytes());
+        IAccountStore account = lazyCreateAccount(address);
         BigInteger start = account.getBalance();
         account.setBalance(start.add(delta));
     }
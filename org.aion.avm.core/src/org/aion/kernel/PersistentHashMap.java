@@ -0,0 +1,307 @@
+package org.aion.kernel;
+
+import java.util.function.BiConsumer;
+
+
+/**
+ * An immutable hash map which shares structure between versions (a hash array mapped trie).
+ *
+ * Every update returns a new map which only copies the path of nodes from the root to the changed entry (at most 7 nodes of at
+ * most 32 entries each) and shares everything else with the map it was derived from.  This makes keeping any number of versions
+ * around as cheap as keeping their differences, and makes a "copy" free:  the map itself is the copy.
+ *
+ * Keys must be immutable and have a stable hashCode (ideally cached, like Address's).  Null keys and values are not supported.
+ */
+final class PersistentHashMap<K, V> {
+    private static final int BITS_PER_LEVEL = 5;
+    private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0);
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    // Null when the map is empty.
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (null != this.root)
+                ? (V) this.root.get(key, key.hashCode(), 0)
+                : null;
+    }
+
+    /**
+     * @return A map with the given mapping, or this map if it already had exactly this value (by identity) for the key.
+     */
+    public PersistentHashMap<K, V> put(K key, V value) {
+        int hash = key.hashCode();
+        if (null == this.root) {
+            return new PersistentHashMap<>(BitmapNode.EMPTY.put(key, hash, value, 0), 1);
+        }
+        Node newRoot = this.root.put(key, hash, value, 0);
+        if (newRoot == this.root) {
+            return this;
+        }
+        // (replacing a value doesn't change the size)
+        int newSize = (null == this.root.get(key, hash, 0)) ? (this.size + 1) : this.size;
+        return new PersistentHashMap<>(newRoot, newSize);
+    }
+
+    /**
+     * @return A map without the given key, or this map if it didn't have the key.
+     */
+    public PersistentHashMap<K, V> remove(K key) {
+        if (null == this.root) {
+            return this;
+        }
+        Node newRoot = this.root.remove(key, key.hashCode(), 0);
+        if (newRoot == this.root) {
+            return this;
+        }
+        return (null != newRoot)
+                ? new PersistentHashMap<>(newRoot, this.size - 1)
+                : empty();
+    }
+
+    /**
+     * Visits every entry, in an order which depends only on the keys' hashes (and not on the order they were put).
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> consumer) {
+        if (null != this.root) {
+            this.root.forEach((BiConsumer<Object, Object>) consumer);
+        }
+    }
+
+
+    private static interface Node {
+        Object get(Object key, int hash, int shift);
+
+        Node put(Object key, int hash, Object value, int shift);
+
+        /**
+         * @return The node without the key (null if that leaves it empty), or this node if it didn't have the key.
+         */
+        Node remove(Object key, int hash, int shift);
+
+        void forEach(BiConsumer<Object, Object> consumer);
+    }
+
+
+    /**
+     * An interior node with up to 32 slots, one for each value of the 5 bits of the hash at its level.  Only the occupied slots are
+     * stored:  the bitmap says which ones they are.  Each occupied slot is a key and value pair or, if keys share these bits, a null
+     * key and the child node holding them.
+     */
+    private static final class BitmapNode implements Node {
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] slots;
+
+        private BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        @Override
+        public Object get(Object key, int hash, int shift) {
+            int bit = bitFor(hash, shift);
+            if (0 == (this.bitmap & bit)) {
+                return null;
+            }
+            int index = indexOf(bit);
+            Object slotKey = this.slots[index];
+            Object slotValue = this.slots[index + 1];
+            if (null == slotKey) {
+                return ((Node) slotValue).get(key, hash, shift + BITS_PER_LEVEL);
+            }
+            return key.equals(slotKey) ? slotValue : null;
+        }
+
+        @Override
+        public Node put(Object key, int hash, Object value, int shift) {
+            int bit = bitFor(hash, shift);
+            int index = indexOf(bit);
+            if (0 == (this.bitmap & bit)) {
+                Object[] newSlots = new Object[this.slots.length + 2];
+                System.arraycopy(this.slots, 0, newSlots, 0, index);
+                newSlots[index] = key;
+                newSlots[index + 1] = value;
+                System.arraycopy(this.slots, index, newSlots, index + 2, this.slots.length - index);
+                return new BitmapNode(this.bitmap | bit, newSlots);
+            }
+            Object slotKey = this.slots[index];
+            Object slotValue = this.slots[index + 1];
+            if (null == slotKey) {
+                Node child = (Node) slotValue;
+                Node newChild = child.put(key, hash, value, shift + BITS_PER_LEVEL);
+                return (newChild == child)
+                        ? this
+                        : replaceSlot(index, null, newChild);
+            }
+            if (key.equals(slotKey)) {
+                return (value == slotValue)
+                        ? this
+                        : replaceSlot(index, slotKey, value);
+            }
+            // A different key with the same bits at this level:  push both down into a new child.
+            return replaceSlot(index, null, createChild(slotKey, slotValue, key, hash, value, shift + BITS_PER_LEVEL));
+        }
+
+        @Override
+        public Node remove(Object key, int hash, int shift) {
+            int bit = bitFor(hash, shift);
+            if (0 == (this.bitmap & bit)) {
+                return this;
+            }
+            int index = indexOf(bit);
+            Object slotKey = this.slots[index];
+            Object slotValue = this.slots[index + 1];
+            if (null == slotKey) {
+                Node child = (Node) slotValue;
+                Node newChild = child.remove(key, hash, shift + BITS_PER_LEVEL);
+                if (newChild == child) {
+                    return this;
+                }
+                return (null != newChild)
+                        ? replaceSlot(index, null, newChild)
+                        : removeSlot(bit, index);
+            }
+            return key.equals(slotKey)
+                    ? removeSlot(bit, index)
+                    : this;
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> consumer) {
+            for (int i = 0; i < this.slots.length; i += 2) {
+                if (null == this.slots[i]) {
+                    ((Node) this.slots[i + 1]).forEach(consumer);
+                } else {
+                    consumer.accept(this.slots[i], this.slots[i + 1]);
+                }
+            }
+        }
+
+        private int indexOf(int bit) {
+            return 2 * Integer.bitCount(this.bitmap & (bit - 1));
+        }
+
+        private BitmapNode replaceSlot(int index, Object key, Object value) {
+            Object[] newSlots = this.slots.clone();
+            newSlots[index] = key;
+            newSlots[index + 1] = value;
+            return new BitmapNode(this.bitmap, newSlots);
+        }
+
+        private BitmapNode removeSlot(int bit, int index) {
+            if (this.bitmap == bit) {
+                return null;
+            }
+            Object[] newSlots = new Object[this.slots.length - 2];
+            System.arraycopy(this.slots, 0, newSlots, 0, index);
+            System.arraycopy(this.slots, index + 2, newSlots, index, newSlots.length - index);
+            return new BitmapNode(this.bitmap & ~bit, newSlots);
+        }
+
+        private static int bitFor(int hash, int shift) {
+            return 1 << ((hash >>> shift) & LEVEL_MASK);
+        }
+
+        private static Node createChild(Object key1, Object value1, Object key2, int hash2, Object value2, int shift) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+            }
+            return EMPTY.put(key1, hash1, value1, shift).put(key2, hash2, value2, shift);
+        }
+    }
+
+
+    /**
+     * A leaf holding the keys whose entire hashes are equal, searched linearly.
+     */
+    private static final class CollisionNode implements Node {
+        private final int hash;
+        // Key and value pairs.
+        private final Object[] entries;
+
+        private CollisionNode(int hash, Object[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        @Override
+        public Object get(Object key, int hash, int shift) {
+            int index = indexOf(key);
+            return (index >= 0) ? this.entries[index + 1] : null;
+        }
+
+        @Override
+        public Node put(Object key, int hash, Object value, int shift) {
+            if (hash != this.hash) {
+                // The new key only shares some of the bits so this collision node moves down under a bitmap node.
+                BitmapNode parent = new BitmapNode(BitmapNode.bitFor(this.hash, shift), new Object[] { null, this });
+                return parent.put(key, hash, value, shift);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (value == this.entries[index + 1]) {
+                    return this;
+                }
+                Object[] newEntries = this.entries.clone();
+                newEntries[index + 1] = value;
+                return new CollisionNode(this.hash, newEntries);
+            }
+            Object[] newEntries = new Object[this.entries.length + 2];
+            System.arraycopy(this.entries, 0, newEntries, 0, this.entries.length);
+            newEntries[this.entries.length] = key;
+            newEntries[this.entries.length + 1] = value;
+            return new CollisionNode(this.hash, newEntries);
+        }
+
+        @Override
+        public Node remove(Object key, int hash, int shift) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (2 == this.entries.length) {
+                return null;
+            }
+            Object[] newEntries = new Object[this.entries.length - 2];
+            System.arraycopy(this.entries, 0, newEntries, 0, index);
+            System.arraycopy(this.entries, index + 2, newEntries, index, newEntries.length - index);
+            return new CollisionNode(this.hash, newEntries);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> consumer) {
+            for (int i = 0; i < this.entries.length; i += 2) {
+                consumer.accept(this.entries[i], this.entries[i + 1]);
+            }
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < this.entries.length; i += 2) {
+                if (key.equals(this.entries[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * An in-memory kernel, with no parent, whose state is a persistent (structure-sharing) map of immutable accounts.
+ *
+ * Every write replaces the account it touches, and the path to it in the map, leaving the previous state intact.  This means the
+ * current state can be captured with {@link #snapshot()}, and a new kernel started from it with {@link #fork()}, in constant time
+ * and without copying anything:  forks share all the accounts (and storage) they haven't written so any number of them can be
+ * used at once (speculative blocks, simulations, read-only calls) with memory proportional to what each one changed.
+ * Restoring a snapshot is equally cheap, which makes it a rollback.
+ *
+ * Writes to one kernel are serialized but reads never wait:  they see the state as of the last completed write.  Forks don't see
+ * each other's writes.
+ */
+public class PersistentStateKernel implements KernelInterface {
+    private volatile PersistentHashMap<Address, AccountState> accounts;
+
+    /**
+     * Creates an instance with no accounts.
+     */
+    public PersistentStateKernel() {
+        this.accounts = PersistentHashMap.empty();
+    }
+
+    /**
+     * Creates an instance which starts from the given snapshot (of any instance).
+     *
+     * @param snapshot The state to start from.
+     */
+    public PersistentStateKernel(Snapshot snapshot) {
+        this.accounts = snapshot.accounts;
+    }
+
+    /**
+     * @return The current state, which later writes to this kernel won't change.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this.accounts);
+    }
+
+    /**
+     * Replaces the current state with the given snapshot (of any instance), discarding everything written since.
+     *
+     * @param snapshot The state to return to.
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        this.accounts = snapshot.accounts;
+    }
+
+    /**
+     * @return A new, independent, kernel which starts from the current state of this one.
+     */
+    public PersistentStateKernel fork() {
+        return new PersistentStateKernel(snapshot());
+    }
+
+    @Override
+    public KernelInterface makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    @Override
+    public void commit() {
+        throw new AssertionError("This class does not implement this method.");
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        throw new AssertionError("This class does not implement this method.");
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        throw new AssertionError("No equivalent concept in the Avm.");
+    }
+
+    @Override
+    public synchronized void createAccount(Address address) {
+        this.accounts = this.accounts.put(address, AccountState.EMPTY);
+    }
+
+    @Override
+    public synchronized void deleteAccount(Address address) {
+        this.accounts = this.accounts.remove(address);
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        return null != this.accounts.get(address);
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        // getCode is an interface for fvm, the avm should not call this method.
+        throw new AssertionError("This class does not implement this method.");
+    }
+
+    @Override
+    public synchronized void putCode(Address address, byte[] code) {
+        AccountState account = accountOrEmpty(address);
+        update(address, new AccountState(code, account.transformedCode, account.objectGraph, account.balance, account.nonce, account.storage));
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        AccountState account = this.accounts.get(address);
+        return (null != account)
+                ? account.transformedCode
+                : null;
+    }
+
+    @Override
+    public synchronized void setTransformedCode(Address address, byte[] bytes) {
+        AccountState account = accountOrEmpty(address);
+        update(address, new AccountState(account.code, bytes, account.objectGraph, account.balance, account.nonce, account.storage));
+    }
+
+    @Override
+    public synchronized void putObjectGraph(Address address, byte[] bytes) {
+        AccountState account = accountOrEmpty(address);
+        update(address, new AccountState(account.code, account.transformedCode, bytes, account.balance, account.nonce, account.storage));
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        AccountState account = this.accounts.get(address);
+        return (null != account)
+                ? account.objectGraph
+                : null;
+    }
+
+    @Override
+    public synchronized void putStorage(Address address, byte[] key, byte[] value) {
+        AccountState account = accountOrEmpty(address);
+        ByteArrayWrapper wrappedKey = new ByteArrayWrapper(key);
+        PersistentHashMap<ByteArrayWrapper, byte[]> storage = (null != value)
+                ? account.storage.put(wrappedKey, value)
+                : account.storage.remove(wrappedKey);
+        update(address, new AccountState(account.code, account.transformedCode, account.objectGraph, account.balance, account.nonce, storage));
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        AccountState account = this.accounts.get(address);
+        return (null != account)
+                ? account.storage.get(new ByteArrayWrapper(key))
+                : null;
+    }
+
+    @Override
+    public synchronized void removeStorage(Address address, byte[] key) {
+        AccountState account = this.accounts.get(address);
+        if (null != account) {
+            PersistentHashMap<ByteArrayWrapper, byte[]> storage = account.storage.remove(new ByteArrayWrapper(key));
+            update(address, new AccountState(account.code, account.transformedCode, account.objectGraph, account.balance, account.nonce, storage));
+        }
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        AccountState account = this.accounts.get(address);
+        return (null != account)
+                ? account.balance
+                : BigInteger.ZERO;
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        internalAdjustBalance(address, delta);
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        AccountState account = this.accounts.get(address);
+        return (null != account)
+                ? BigInteger.valueOf(account.nonce)
+                : BigInteger.ZERO;
+    }
+
+    @Override
+    public synchronized void incrementNonce(Address address) {
+        AccountState account = accountOrEmpty(address);
+        update(address, new AccountState(account.code, account.transformedCode, account.objectGraph, account.balance, account.nonce + 1, account.storage));
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        return nonce.compareTo(this.getNonce(address)) == 0;
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        return this.getBalance(address).compareTo(amount) >= 0;
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return energyLimit > 0;
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return energyLimit > 0;
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        // Like the TestingKernel, this only knows about the contract address prefix (a real kernel stores out-of-band meta-data).
+        byte[] code = getTransformedCode(address);
+        return (code == null) || (address.toBytes()[0] == TestingKernel.AVM_CONTRACT_PREFIX);
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        // This method may have special logic in the kernel. Here it is just adjustBalance.
+        internalAdjustBalance(address, amount);
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        // This method may have special logic in the kernel. Here it is just adjustBalance.
+        internalAdjustBalance(address, cost);
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        // This method may have special logic in the kernel. Here it is just adjustBalance.
+        internalAdjustBalance(address, fee);
+    }
+
+
+    private synchronized void internalAdjustBalance(Address address, BigInteger delta) {
+        AccountState account = accountOrEmpty(address);
+        update(address, new AccountState(account.code, account.transformedCode, account.objectGraph, account.balance.add(delta), account.nonce, account.storage));
+    }
+
+    // Must be called with the monitor held (as are all the writes).
+    private AccountState accountOrEmpty(Address address) {
+        AccountState account = this.accounts.get(address);
+        return (null != account)
+                ? account
+                : AccountState.EMPTY;
+    }
+
+    // Must be called with the monitor held (as are all the writes).
+    private void update(Address address, AccountState account) {
+        this.accounts = this.accounts.put(address, account);
+    }
+
+
+    /**
+     * The state of a PersistentStateKernel at some point.  This is immutable so it can be kept, shared and restored freely.
+     */
+    public static final class Snapshot {
+        private final PersistentHashMap<Address, AccountState> accounts;
+
+        private Snapshot(PersistentHashMap<Address, AccountState> accounts) {
+            this.accounts = accounts;
+        }
+
+        /**
+         * @return The number of accounts which exist in this state.
+         */
+        public int accountCount() {
+            return this.accounts.size();
+        }
+    }
+
+
+    /**
+     * An immutable account:  writes create a new instance which shares the unchanged fields, including the storage map.
+     */
+    private static final class AccountState {
+        public static final AccountState EMPTY = new AccountState(null, null, null, BigInteger.ZERO, 0L, PersistentHashMap.empty());
+
+        public final byte[] code;
+        public final byte[] transformedCode;
+        public final byte[] objectGraph;
+        public final BigInteger balance;
+        public final long nonce;
+        public final PersistentHashMap<ByteArrayWrapper, byte[]> storage;
+
+        public AccountState(byte[] code, byte[] transformedCode, byte[] objectGraph, BigInteger balance, long nonce, PersistentHashMap<ByteArrayWrapper, byte[]> storage) {
+            this.code = code;
+            this.transformedCode = transformedCode;
+            this.objectGraph = objectGraph;
+            this.balance = balance;
+            this.nonce = nonce;
+            this.storage = storage;
+        }
+    }
+}
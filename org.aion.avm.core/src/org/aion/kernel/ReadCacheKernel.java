@@ -0,0 +1,376 @@
+package org.aion.kernel;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * A kernel which caches the transformed code, object graphs and storage values read from its "parent", across transactions, within
+ * a bound on the number of bytes it holds.
+ *
+ * Each transaction starts with an empty {@link TransactionalKernel} so, without this, every transaction calling a hot contract
+ * would read its code and graph from the parent again.  Writes go straight through to the parent and replace the cached values, so
+ * the cache stays valid as long as the parent is only written through this kernel (otherwise, it must be cleared, see
+ * {@link #clear()}).  Values the parent doesn't have are cached too.  Once the cached bytes exceed the bound, whole accounts are
+ * evicted in least-recently-used order.
+ *
+ * Like the {@link BlockWriteBackKernel}, this is shared by concurrently running transactions.  Reading through to the parent
+ * happens outside of the lock so a value read is only cached if its account wasn't written (or evicted) in the meantime:  a slow
+ * read can't replace a newer value.
+ */
+public class ReadCacheKernel implements KernelInterface {
+    // An estimate of what each cached account and value costs on top of the bytes of the value itself.
+    private static final int ACCOUNT_OVERHEAD_BYTES = 96;
+    private static final int VALUE_OVERHEAD_BYTES = 64;
+    // Cached in place of a value the parent doesn't have (compared by identity).
+    private static final byte[] ABSENT = new byte[0];
+
+    private volatile KernelInterface parent;
+    private final long maxBytes;
+    private final ReentrantLock lock;
+    // Guarded by the lock and kept in least-recently-used order.
+    private final LinkedHashMap<Address, CachedAccount> accounts;
+    private long cachedBytes;
+
+    /**
+     * @param parent The kernel to read through to (and write through to).
+     * @param maxBytes The number of bytes of cached values (plus an estimate of their overhead) above which accounts are evicted.
+     */
+    public ReadCacheKernel(KernelInterface parent, long maxBytes) {
+        this.parent = parent;
+        this.maxBytes = maxBytes;
+        this.lock = new ReentrantLock();
+        this.accounts = new LinkedHashMap<>(16, 0.75f, true);
+        this.cachedBytes = 0L;
+    }
+
+    /**
+     * Replaces the kernel read through to, keeping everything cached.  Must only be called while no transaction is using this kernel,
+     * with a parent holding the state the cached values were read from (or null, to let go of the parent until it is set again).
+     *
+     * @param parent The kernel to read through to (and write through to).
+     */
+    public void setParent(KernelInterface parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Drops everything cached.  Must be called if the parent could have been written without going through this kernel.
+     */
+    public void clear() {
+        this.lock.lock();
+        try {
+            for (CachedAccount account : this.accounts.values()) {
+                // (so a read still in progress doesn't cache what it read in a new account)
+                account.version += 1;
+            }
+            this.accounts.clear();
+            this.cachedBytes = 0L;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public TransactionalKernel makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    @Override
+    public void commit() {
+        // Nothing is buffered here:  writes are already in the parent.
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        throw new AssertionError("This class does not implement this method.");
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        return readThrough(address, CachedAccount.TRANSFORMED_CODE, null);
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        return readThrough(address, CachedAccount.OBJECT_GRAPH, null);
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        return readThrough(address, CachedAccount.STORAGE, new ByteArrayWrapper(key));
+    }
+
+    @Override
+    public void setTransformedCode(Address address, byte[] bytes) {
+        this.parent.setTransformedCode(address, bytes);
+        writeThrough(address, CachedAccount.TRANSFORMED_CODE, null, bytes);
+    }
+
+    @Override
+    public void putObjectGraph(Address address, byte[] bytes) {
+        this.parent.putObjectGraph(address, bytes);
+        writeThrough(address, CachedAccount.OBJECT_GRAPH, null, bytes);
+    }
+
+    @Override
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        this.parent.putStorage(address, key, value);
+        writeThrough(address, CachedAccount.STORAGE, new ByteArrayWrapper(key), value);
+    }
+
+    @Override
+    public void removeStorage(Address address, byte[] key) {
+        this.parent.removeStorage(address, key);
+        writeThrough(address, CachedAccount.STORAGE, new ByteArrayWrapper(key), null);
+    }
+
+    @Override
+    public void createAccount(Address address) {
+        this.parent.createAccount(address);
+        evict(address);
+    }
+
+    @Override
+    public void deleteAccount(Address address) {
+        this.parent.deleteAccount(address);
+        evict(address);
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        return this.parent.hasAccountState(address);
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        return this.parent.getCode(address);
+    }
+
+    @Override
+    public void putCode(Address address, byte[] code) {
+        this.parent.putCode(address, code);
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        return this.parent.getBalance(address);
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        this.parent.adjustBalance(address, delta);
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        return this.parent.getNonce(address);
+    }
+
+    @Override
+    public void incrementNonce(Address address) {
+        this.parent.incrementNonce(address);
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        return this.parent.accountNonceEquals(address, nonce);
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        return this.parent.accountBalanceIsAtLeast(address, amount);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return this.parent.isValidEnergyLimitForCreate(energyLimit);
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return this.parent.isValidEnergyLimitForNonCreate(energyLimit);
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        this.parent.refundAccount(address, amount);
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        this.parent.deductEnergyCost(address, cost);
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        this.parent.payMiningFee(address, fee);
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        return this.parent.getBlockHashByNumber(blockNumber);
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        return this.parent.destinationAddressIsSafeForThisVM(address);
+    }
+
+
+    private byte[] readThrough(Address address, int slot, ByteArrayWrapper key) {
+        CachedAccount account;
+        long version;
+        this.lock.lock();
+        try {
+            account = this.accounts.get(address);
+            if (null == account) {
+                account = new CachedAccount();
+                this.accounts.put(address, account);
+                this.cachedBytes += ACCOUNT_OVERHEAD_BYTES;
+            }
+            byte[] cached = account.get(slot, key);
+            if (null != cached) {
+                return (ABSENT == cached) ? null : cached;
+            }
+            version = account.version;
+        } finally {
+            this.lock.unlock();
+        }
+
+        byte[] value;
+        switch (slot) {
+            case CachedAccount.TRANSFORMED_CODE:
+                value = this.parent.getTransformedCode(address);
+                break;
+            case CachedAccount.OBJECT_GRAPH:
+                value = this.parent.getObjectGraph(address);
+                break;
+            default:
+                value = this.parent.getStorage(address, key.unwrap());
+                break;
+        }
+
+        this.lock.lock();
+        try {
+            // Only cache this if nothing replaced or evicted the account while we were reading.
+            if ((account.version == version) && (account == this.accounts.get(address))) {
+                this.cachedBytes += account.put(slot, key, (null != value) ? value : ABSENT);
+                evictOverBound();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return value;
+    }
+
+    private void writeThrough(Address address, int slot, ByteArrayWrapper key, byte[] value) {
+        this.lock.lock();
+        try {
+            CachedAccount account = this.accounts.get(address);
+            if (null != account) {
+                account.version += 1;
+                this.cachedBytes += account.put(slot, key, (null != value) ? value : ABSENT);
+                evictOverBound();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void evict(Address address) {
+        this.lock.lock();
+        try {
+            CachedAccount account = this.accounts.remove(address);
+            if (null != account) {
+                account.version += 1;
+                this.cachedBytes -= ACCOUNT_OVERHEAD_BYTES + account.bytes;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void evictOverBound() {
+        Iterator<CachedAccount> eldest = this.accounts.values().iterator();
+        while ((this.cachedBytes > this.maxBytes) && eldest.hasNext()) {
+            CachedAccount account = eldest.next();
+            eldest.remove();
+            account.version += 1;
+            this.cachedBytes -= ACCOUNT_OVERHEAD_BYTES + account.bytes;
+        }
+    }
+
+
+    /**
+     * The values cached for one account.  Null means not cached, while ABSENT means the parent doesn't have the value.
+     */
+    private static class CachedAccount {
+        public static final int TRANSFORMED_CODE = 0;
+        public static final int OBJECT_GRAPH = 1;
+        public static final int STORAGE = 2;
+
+        // Incremented whenever the account is written or evicted, so an in-progress read knows not to cache what it read.
+        public long version;
+        // The size of the cached values, not counting the overhead of the account itself.
+        public long bytes;
+        public byte[] transformedCode;
+        public byte[] objectGraph;
+        // (created on first use since most accounts never have their storage read)
+        public Map<ByteArrayWrapper, byte[]> storage;
+
+        public byte[] get(int slot, ByteArrayWrapper key) {
+            byte[] value;
+            switch (slot) {
+                case TRANSFORMED_CODE:
+                    value = this.transformedCode;
+                    break;
+                case OBJECT_GRAPH:
+                    value = this.objectGraph;
+                    break;
+                default:
+                    value = (null != this.storage) ? this.storage.get(key) : null;
+                    break;
+            }
+            return value;
+        }
+
+        /**
+         * @return The change in the size of the account.
+         */
+        public long put(int slot, ByteArrayWrapper key, byte[] value) {
+            byte[] previous;
+            switch (slot) {
+                case TRANSFORMED_CODE:
+                    previous = this.transformedCode;
+                    this.transformedCode = value;
+                    break;
+                case OBJECT_GRAPH:
+                    previous = this.objectGraph;
+                    this.objectGraph = value;
+                    break;
+                default:
+                    if (null == this.storage) {
+                        this.storage = new HashMap<>();
+                    }
+                    previous = this.storage.put(key, value);
+                    break;
+            }
+            long delta = sizeOf(value) - sizeOf(previous);
+            this.bytes += delta;
+            return delta;
+        }
+
+        private static long sizeOf(byte[] value) {
+            return (null != value) ? (VALUE_OVERHEAD_BYTES + value.length) : 0L;
+        }
+    }
+}
@@ -34,9 +34,9 @@ public class TestingKernel implements KernelInterface {
      */
     public TestingKernel() {
         this.dataStore = new MemoryBackedDataStore();
-        IAccountStore premined = this.dataStore.createAccount(PREMINED_ADDRESS.toBytes());
+        IAccountStore premined = this.dataStore.createAccount(PREMINED_ADDRESS);
         premined.setBalance(PREMINED_AMOUNT);
-        premined = this.dataStore.createAccount(BIG_PREMINED_ADDRESS.toBytes());
+        premined = this.dataStore.createAccount(BIG_PREMINED_ADDRESS);
         premined.setBalance(PREMINED_BIG_AMOUNT);
     }
 
@@ -48,9 +48,9 @@ public class TestingKernel implements KernelInterface {
     public TestingKernel(File onDiskRoot) {
         this.dataStore = new DirectoryBackedDataStore(onDiskRoot);
         // Try to open the account, creating it if doesn't exist.
-        IAccountStore premined = this.dataStore.openAccount(PREMINED_ADDRESS.toBytes());
+        IAccountStore premined = this.dataStore.openAccount(PREMINED_ADDRESS);
         if (null == premined) {
-            premined = this.dataStore.createAccount(PREMINED_ADDRESS.toBytes());
+            premined = this.dataStore.createAccount(PREMINED_ADDRESS);
         }
         premined.setBalance(PREMINED_AMOUNT);
     }
@@ -82,12 +82,12 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public void createAccount(Address address) {
-        this.dataStore.createAccount(address.toBytes());
+        this.dataStore.createAccount(address);
     }
 
     @Override
     public boolean hasAccountState(Address address) {
-        return this.dataStore.openAccount(address.toBytes()) != null;
+        return this.dataStore.openAccount(address) != null;
     }
 
     @Override
@@ -98,7 +98,7 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public void putCode(Address address, byte[] code) {
-        lazyCreateAccount(address.toBytes()).setCode(code);
+        lazyCreateAccount(address).setCode(code);
     }
 
     @Override
@@ -108,27 +108,27 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public void setTransformedCode(Address address, byte[] bytes) {
-        lazyCreateAccount(address.toBytes()).setTransformedCode(bytes);
+        lazyCreateAccount(address).setTransformedCode(bytes);
     }
 
     @Override
     public void putObjectGraph(Address address, byte[] bytes) {
-        lazyCreateAccount(address.toBytes()).setObjectGraph(bytes);
+        lazyCreateAccount(address).setObjectGraph(bytes);
     }
 
     @Override
     public byte[] getObjectGraph(Address address) {
-        return lazyCreateAccount(address.toBytes()).getObjectGraph();
+        return lazyCreateAccount(address).getObjectGraph();
     }
 
     @Override
     public void putStorage(Address address, byte[] key, byte[] value) {
-        lazyCreateAccount(address.toBytes()).setData(key, value);
+        lazyCreateAccount(address).setData(key, value);
     }
 
     @Override
     public byte[] getStorage(Address address, byte[] key) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? account.getData(key)
                 : null;
@@ -136,12 +136,12 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public void deleteAccount(Address address) {
-        this.dataStore.deleteAccount(address.toBytes());
+        this.dataStore.deleteAccount(address);
     }
 
     @Override
     public BigInteger getBalance(Address address) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? account.getBalance()
                 : BigInteger.ZERO;
@@ -154,7 +154,7 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public BigInteger getNonce(Address address) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? BigInteger.valueOf(account.getNonce())
                 : BigInteger.ZERO;
@@ -162,7 +162,7 @@ public class TestingKernel implements KernelInterface {
 
     @Override
     public void incrementNonce(Address address) {
-        IAccountStore account = lazyCreateAccount(address.toBytes());
+        IAccountStore account = lazyCreateAccount(address);
         long start = account.getNonce();
         account.setNonce(start + 1);
     }
@@ -187,7 +187,7 @@ public class TestingKernel implements KernelInterface {
         return energyLimit > 0;
     }
 
-    private IAccountStore lazyCreateAccount(byte[] address) {
+    private IAccountStore lazyCreateAccount(Address address) {
         IAccountStore account = this.dataStore.openAccount(address);
         if (null == account) {
             account = this.dataStore.createAccount(address);
@@ -223,13 +223,13 @@ public class TestingKernel implements KernelInterface {
 
 
     private void internalAdjustBalance(Address address, BigInteger delta) {
-        IAccountStore account = lazyCreateAccount(address.toBytes());
+        IAccountStore account = lazyCreateAccount(address);
         BigInteger start = account.getBalance();
         account.setBalance(start.add(delta));
     }
 
     private byte[] internalGetCode(Address address) {
-        IAccountStore account = this.dataStore.openAccount(address.toBytes());
+        IAccountStore account = this.dataStore.openAccount(address);
         return (null != account)
                 ? account.getTransformedCode()
                 : null;
@@ -2,12 +2,14 @@ package org.aion.kernel;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.function.Consumer;
+import java.util.Map;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.KernelInterface;
 
@@ -15,23 +17,50 @@ import org.aion.vm.api.interfaces.KernelInterface;
 /**
  * A transactional implementation of the KernelInterface which only writes back to its "parent" on commit.
  * 
- * This uses a relatively extensible pattern for its implementation, building a transaction log rather than its own actual direct implementation.
- * This means that changes to the interface should mostly just translate into a new kind of transaction log entry, in this implementation.
- * Special attention needs to be paid to read-and-write operations (such as adjustBalance()) and anything involving deletes.
+ * The writes are kept in a write-set, per account, which coalesces them as they come in:  storage and the code and graph slots
+ * keep only the last value written, balance adjustments are summed into one delta and nonce increments are counted.  Reads are
+ * served from the write-set, falling back to the parent, and commit writes each account's net changes back to the parent once,
+ * rather than replaying every intermediate write.
+ * Special attention needs to be paid to read-and-write operations (such as adjustBalance()) and anything involving deletes:  a
+ * delete drops the account's earlier writes so, on commit, it is applied before the writes which came after it.
+ *
+ * Nested transactional kernels (one per internal call) don't resolve reads by asking each parent in turn.  Instead, the chain of
+ * transactional kernels above the first non-transactional one (the "base") shares an overlay:  for each account, the write-sets
+ * of every kernel in the chain which wrote to it, ordered by depth.  A read looks the account up once and only visits the
+ * write-sets of the kernels on its own lineage (skipping those of siblings which were already committed or abandoned) before
+ * falling back to the base.
+ * Abandoning a kernel (rollback) requires nothing:  its write-sets are simply no longer on anyone's lineage and are dropped the
+ * next time the account is written.  Committing a kernel into its parent merges its write-sets into the parent's and withdraws
+ * them from the overlay.
+ * Note that a kernel can't see the uncommitted writes of its children but does see the writes its ancestors make while it is
+ * still running.
  */
 public class TransactionalKernel implements KernelInterface {
     private final KernelInterface parent;
-    private final CachingKernel writeCache;
-    private final List<Consumer<KernelInterface>> writeLog;
-    private final Set<ByteArrayWrapper> deletedAccountProjection;
-    private final Set<ByteArrayWrapper> cachedAccountBalances;
+    // The non-transactional kernel at the bottom of the chain, where reads end up if no kernel on our lineage has the data.
+    private final KernelInterface base;
+    // Shared by the whole chain:  the write-sets of each account, ordered by the depth of the kernel they belong to.
+    // (accounts are keyed by the Address itself, which caches its hash, so a lookup doesn't allocate)
+    private final Map<Address, List<AccountWrites>> overlay;
+    // The kernels from the bottom of the chain up to (and including) us, indexed by depth.
+    private final TransactionalKernel[] lineage;
+    // (insertion-ordered so that commit is deterministic)
+    private final Map<Address, AccountWrites> writeSet;
 
     public TransactionalKernel(KernelInterface parent) {
         this.parent = parent;
-        this.writeCache = new CachingKernel();
-        this.writeLog = new ArrayList<>();
-        this.deletedAccountProjection = new HashSet<>();
-        this.cachedAccountBalances = new HashSet<>();
+        if (parent instanceof TransactionalKernel) {
+            TransactionalKernel transactionalParent = (TransactionalKernel) parent;
+            this.base = transactionalParent.base;
+            this.overlay = transactionalParent.overlay;
+            this.lineage = Arrays.copyOf(transactionalParent.lineage, transactionalParent.lineage.length + 1);
+        } else {
+            this.base = parent;
+            this.overlay = new HashMap<>();
+            this.lineage = new TransactionalKernel[1];
+        }
+        this.lineage[this.lineage.length - 1] = this;
+        this.writeSet = new LinkedHashMap<>();
     }
 
     @Override
@@ -45,8 +74,12 @@ public class TransactionalKernel implements KernelInterface {
      */
     @Override
     public void commit() {
-        for (Consumer<KernelInterface> mutation : this.writeLog) {
-            mutation.accept(this.parent);
+        commitTo(this.parent);
+        if (this.parent instanceof TransactionalKernel) {
+            // Our writes are now in our parent's write-sets so they must no longer be seen in ours.
+            for (Map.Entry<Address, AccountWrites> entry : this.writeSet.entrySet()) {
+                this.overlay.get(entry.getKey()).remove(entry.getValue());
+            }
         }
     }
 
@@ -56,32 +89,55 @@ public class TransactionalKernel implements KernelInterface {
      */
     @Override
     public void commitTo(KernelInterface target) {
-        for (Consumer<KernelInterface> mutation : this.writeLog) {
-            mutation.accept(target);
+        for (AccountWrites writes : this.writeSet.values()) {
+            writes.applyTo(target);
+        }
+    }
+
+    /**
+     * Same as {@link #commitTo(KernelInterface)} but writes the accounts back sorted by address, rather than in the order they were
+     * first written, so a store underneath the target sees them in key order.
+     */
+    void commitInAddressOrderTo(KernelInterface target) {
+        List<AccountWrites> sorted = new ArrayList<>(this.writeSet.values());
+        sorted.sort((one, other) -> one.address.compareTo(other.address));
+        for (AccountWrites writes : sorted) {
+            writes.applyTo(target);
         }
     }
 
+    /**
+     * @return True if this kernel has uncommitted writes to the given account.
+     */
+    boolean hasWritesTo(Address address) {
+        return this.writeSet.containsKey(address);
+    }
+
     @Override
     public void createAccount(Address address) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.createAccount(address);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
-        this.deletedAccountProjection.remove(new ByteArrayWrapper(address.toBytes()));
+        AccountWrites writes = writesForUpdate(address);
+        writes.isCreated = true;
+        writes.isWritten = true;
+        writes.isDeletedProjection = false;
         // Say that we have this cached so we don't go back to any old version in the parent (even though it is unlikely we will create over delete).
-        this.cachedAccountBalances.add(new ByteArrayWrapper(address.toBytes()));
+        writes.isBalanceCached = true;
     }
 
     @Override
     public boolean hasAccountState(Address address) {
+        List<AccountWrites> versions = this.overlay.get(address);
         boolean result = false;
-        if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
-            result = this.writeCache.hasAccountState(address);
-            if (!result) {
-                result = this.parent.hasAccountState(address);
+        boolean isResolved = false;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; !isResolved && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            if (isVisible(writes) && (writes.isDeletedProjection || writes.isWritten)) {
+                result = !writes.isDeletedProjection;
+                isResolved = true;
             }
         }
+        if (!isResolved) {
+            result = this.base.hasAccountState(address);
+        }
         return result;
     }
 
@@ -93,166 +149,193 @@ public class TransactionalKernel implements KernelInterface {
 
     @Override
     public void putCode(Address address, byte[] code) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.putCode(address, code);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        // Note that saving empty code is invalid since a valid JAR is not empty.
+        RuntimeAssertionError.assertTrue((null != code) && (code.length > 0));
+        AccountWrites writes = writesForUpdate(address);
+        writes.code = code;
+        writes.isWritten = true;
     }
 
     @Override
     public byte[] getTransformedCode(Address address) {
+        List<AccountWrites> versions = this.overlay.get(address);
         byte[] result = null;
-        if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
-            result = this.writeCache.getTransformedCode(address);
-            if (null == result) {
-                result = this.parent.getTransformedCode(address);
+        boolean isResolved = false;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; !isResolved && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            if (isVisible(writes) && (writes.isDeletedProjection || (null != writes.transformedCode))) {
+                result = writes.transformedCode;
+                isResolved = true;
             }
         }
+        if (!isResolved) {
+            result = this.base.getTransformedCode(address);
+        }
         return result;
     }
 
     @Override
     public void setTransformedCode(Address address, byte[] bytes) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.setTransformedCode(address, bytes);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        RuntimeAssertionError.assertTrue((null != bytes) && (bytes.length > 0));
+        AccountWrites writes = writesForUpdate(address);
+        writes.transformedCode = bytes;
+        writes.isWritten = true;
     }
 
     @Override
     public void putObjectGraph(Address address, byte[] bytes) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.putObjectGraph(address, bytes);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        AccountWrites writes = writesForUpdate(address);
+        writes.objectGraph = bytes;
+        writes.isWritten = true;
     }
 
     @Override
     public byte[] getObjectGraph(Address address) {
-        byte[] result = this.writeCache.getObjectGraph(address);
+        List<AccountWrites> versions = this.overlay.get(address);
+        byte[] result = null;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; (null == result) && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            if (isVisible(writes)) {
+                result = writes.objectGraph;
+            }
+        }
         if (null == result) {
-            result = this.parent.getObjectGraph(address);
+            result = this.base.getObjectGraph(address);
         }
         return result;
     }
 
     @Override
     public void putStorage(Address address, byte[] key, byte[] value) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.putStorage(address, key, value);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        AccountWrites writes = writesForUpdate(address);
+        if (null == writes.storage) {
+            writes.storage = new LinkedHashMap<>();
+        }
+        writes.storage.put(new ByteArrayWrapper(key), value);
+        writes.isWritten = true;
     }
 
     @Override
     public byte[] getStorage(Address address, byte[] key) {
         // We issue these requests from the given address, only, so it is safe for us to decide that we permit reads after deletes.
         // The direct reason why this happens is that DApps which are already running are permitted to continue running but may need to lazyLoad.
-        byte[] result = this.writeCache.getStorage(address, key);
+        List<AccountWrites> versions = this.overlay.get(address);
+        byte[] result = null;
+        ByteArrayWrapper storageKey = null;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; (null == result) && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            if (isVisible(writes) && (null != writes.storage)) {
+                if (null == storageKey) {
+                    storageKey = new ByteArrayWrapper(key);
+                }
+                result = writes.storage.get(storageKey);
+            }
+        }
         if (null == result) {
-            result = this.parent.getStorage(address, key);
+            result = this.base.getStorage(address, key);
         }
         return result;
     }
 
     @Override
     public void deleteAccount(Address address) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.deleteAccount(address);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
-        this.deletedAccountProjection.add(new ByteArrayWrapper(address.toBytes()));
-        this.cachedAccountBalances.remove(new ByteArrayWrapper(address.toBytes()));
+        // Everything written to the account so far is gone.
+        AccountWrites writes = writesForUpdate(address);
+        writes.clear();
+        writes.isDeleted = true;
+        writes.isDeletedProjection = true;
+        writes.isBalanceCached = false;
     }
 
     @Override
     public BigInteger getBalance(Address address) {
+        List<AccountWrites> versions = this.overlay.get(address);
         BigInteger result = BigInteger.ZERO;
-        if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
-            result = this.writeCache.getBalance(address);
-            if (result.equals(BigInteger.ZERO)) {
-                result = this.parent.getBalance(address);
+        boolean isResolved = false;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; !isResolved && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            if (isVisible(writes)) {
+                // Unless a kernel has the whole balance cached, it only holds the sum of its adjustments so we keep going down.
+                // (a deleted account has no adjustments, since adjusting it ends the projected delete)
+                result = result.add(writes.balanceDelta);
+                isResolved = writes.isDeletedProjection || writes.isBalanceCached;
             }
         }
+        if (!isResolved) {
+            result = this.base.getBalance(address).add(result);
+        }
         return result;
     }
 
     @Override
     public void adjustBalance(Address address, BigInteger delta) {
-        // This is a read-then-write operation so we need to make sure that there is an entry in our cache, first, before we can apply the mutation.
-        if (!this.cachedAccountBalances.contains(new ByteArrayWrapper(address.toBytes()))) {
-            // We can only re-cache this if we didn't already delete it.
-            // If it was deleted, we need to fake the lazy creation and start it at zero.
-            if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
-                BigInteger balance = this.parent.getBalance(address);
-                this.writeCache.adjustBalance(address, balance);
-            } else {
-                this.writeCache.adjustBalance(address, BigInteger.ZERO);
-            }
-            this.cachedAccountBalances.add(new ByteArrayWrapper(address.toBytes()));
+        // We don't read our parent's balance, here, so that an adjustment alone doesn't depend on it (only getBalance() does).
+        // We just accumulate the adjustments unless the account was deleted, in which case we now hold the whole balance.
+        // If this was previously deleted, fake the lazy re-creation, starting it at zero.
+        AccountWrites writes = writesForUpdate(address);
+        if (writes.isDeletedProjection) {
+            writes.isDeletedProjection = false;
+            writes.isBalanceCached = true;
         }
-        // If this was previously deleted, fake the lazy re-creation.
-        this.deletedAccountProjection.remove(new ByteArrayWrapper(address.toBytes()));
-
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.adjustBalance(address, delta);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        writes.balanceDelta = writes.balanceDelta.add(delta);
+        writes.isBalanceAdjusted = true;
+        writes.isWritten = true;
     }
 
     @Override
     public BigInteger getNonce(Address address) {
-        BigInteger result = BigInteger.ZERO;
-        if (!this.deletedAccountProjection.contains(new ByteArrayWrapper(address.toBytes()))) {
-            result = this.writeCache.getNonce(address);
-            if (result.equals(BigInteger.ZERO)) {
-                result = this.parent.getNonce(address);
+        List<AccountWrites> versions = this.overlay.get(address);
+        long increments = 0L;
+        boolean isResolved = false;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; !isResolved && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            if (isVisible(writes)) {
+                // As with the balance, a kernel only holds the increments it made so we keep going down, unless the account was deleted
+                // (which restarts its nonce at zero).
+                increments += writes.nonceIncrements;
+                isResolved = writes.isDeletedProjection;
             }
         }
+        BigInteger result = BigInteger.valueOf(increments);
+        if (!isResolved) {
+            result = this.base.getNonce(address).add(result);
+        }
         return result;
     }
 
     @Override
     public void incrementNonce(Address address) {
-        Consumer<KernelInterface> write = (kernel) -> {
-            kernel.incrementNonce(address);
-        };
-        write.accept(writeCache);
-        writeLog.add(write);
+        AccountWrites writes = writesForUpdate(address);
+        writes.nonceIncrements += 1;
+        writes.isWritten = true;
     }
 
     @Override
     public boolean accountNonceEquals(Address address, BigInteger nonce) {
-        // Delegate the check to our parent. The actual KernelInterface given to us by the kernel
+        // Delegate the check to our base (where all our parents would delegate it). The actual KernelInterface given to us by the kernel
         // has an opportunity to do some special case logic here when it wishes.
-        return this.parent.accountNonceEquals(address, nonce);
+        return this.base.accountNonceEquals(address, nonce);
     }
 
     @Override
     public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
-        // Delegate the check to our parent. The actual KernelInterface given to us by the kernel
+        // Delegate the check to our base (where all our parents would delegate it). The actual KernelInterface given to us by the kernel
         // has an opportunity to do some special case logic here when it wishes.
-        return this.parent.accountBalanceIsAtLeast(address, amount);
+        return this.base.accountBalanceIsAtLeast(address, amount);
     }
 
     @Override
     public boolean isValidEnergyLimitForCreate(long energyLimit) {
-        // Delegate the check to our parent. The actual KernelInterface given to us by the kernel
+        // Delegate the check to our base (where all our parents would delegate it). The actual KernelInterface given to us by the kernel
         // has an opportunity to do some special case logic here when it wishes.
-        return this.parent.isValidEnergyLimitForCreate(energyLimit);
+        return this.base.isValidEnergyLimitForCreate(energyLimit);
     }
 
     @Override
     public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
-        // Delegate the check to our parent. The actual KernelInterface given to us by the kernel
+        // Delegate the check to our base (where all our parents would delegate it). The actual KernelInterface given to us by the kernel
         // has an opportunity to do some special case logic here when it wishes.
-        return this.parent.isValidEnergyLimitForNonCreate(energyLimit);
+        return this.base.isValidEnergyLimitForNonCreate(energyLimit);
     }
 
     @Override
@@ -287,6 +370,117 @@ public class TransactionalKernel implements KernelInterface {
     public boolean destinationAddressIsSafeForThisVM(Address address) {
         // We need to delegate to our parent kernel to apply whatever logic is defined there.
         // The only exception to this is cases where we already stored code in our cache so see if that is there.
-        return (null != this.writeCache.getTransformedCode(address)) || this.parent.destinationAddressIsSafeForThisVM(address);
+        List<AccountWrites> versions = this.overlay.get(address);
+        boolean result = false;
+        for (int i = (null != versions) ? (versions.size() - 1) : -1; !result && (i >= 0); --i) {
+            AccountWrites writes = versions.get(i);
+            result = isVisible(writes) && (null != writes.transformedCode);
+        }
+        return result || this.base.destinationAddressIsSafeForThisVM(address);
+    }
+
+
+    private AccountWrites writesForUpdate(Address address) {
+        AccountWrites writes = this.writeSet.get(address);
+        if (null == writes) {
+            writes = new AccountWrites(this, address);
+            this.writeSet.put(address, writes);
+
+            // Drop the write-sets of kernels which are no longer live (abandoned, or committed siblings of a lineage which
+            // diverged from ours) then insert ours after those of our ancestors (and before those of our running descendants).
+            List<AccountWrites> versions = this.overlay.computeIfAbsent(address, (ignored) -> new ArrayList<>());
+            int depth = this.lineage.length - 1;
+            versions.removeIf((other) -> {
+                int commonDepth = Math.min(depth, other.owner.lineage.length - 1);
+                return other.owner.lineage[commonDepth] != this.lineage[commonDepth];
+            });
+            int position = 0;
+            while ((position < versions.size()) && (versions.get(position).owner.lineage.length <= depth)) {
+                position += 1;
+            }
+            versions.add(position, writes);
+        }
+        return writes;
+    }
+
+    /**
+     * @return True if the write-set belongs to us or one of our ancestors (as opposed to a child or an abandoned kernel).
+     */
+    private boolean isVisible(AccountWrites writes) {
+        int depth = writes.owner.lineage.length - 1;
+        return (depth < this.lineage.length) && (this.lineage[depth] == writes.owner);
+    }
+
+
+    /**
+     * The net writes to one account.  If the account was deleted, these are only the writes made after the (last) delete.
+     */
+    private static class AccountWrites {
+        private final TransactionalKernel owner;
+        private final Address address;
+        // True if the account was deleted, which has to be applied before the rest.
+        private boolean isDeleted;
+        private boolean isCreated;
+        // True if anything was written since the account was last deleted (which lazily creates it).
+        private boolean isWritten;
+        // True if the account reads as deleted (a delete which wasn't followed by a create or balance adjustment).
+        private boolean isDeletedProjection;
+        // True if balanceDelta is the whole balance, not an adjustment to the parent's.
+        private boolean isBalanceCached;
+        private boolean isBalanceAdjusted;
+        private BigInteger balanceDelta;
+        private long nonceIncrements;
+        private byte[] code;
+        private byte[] transformedCode;
+        private byte[] objectGraph;
+        // (created on first use since most accounts we write to never have their storage touched)
+        private Map<ByteArrayWrapper, byte[]> storage;
+
+        public AccountWrites(TransactionalKernel owner, Address address) {
+            this.owner = owner;
+            this.address = address;
+            this.balanceDelta = BigInteger.ZERO;
+        }
+
+        public void clear() {
+            this.isCreated = false;
+            this.isWritten = false;
+            this.isBalanceAdjusted = false;
+            this.balanceDelta = BigInteger.ZERO;
+            this.nonceIncrements = 0L;
+            this.code = null;
+            this.transformedCode = null;
+            this.objectGraph = null;
+            this.storage = null;
+        }
+
+        public void applyTo(KernelInterface target) {
+            if (this.isDeleted) {
+                target.deleteAccount(this.address);
+            }
+            if (this.isCreated) {
+                target.createAccount(this.address);
+            }
+            if (null != this.code) {
+                target.putCode(this.address, this.code);
+            }
+            if (null != this.transformedCode) {
+                target.setTransformedCode(this.address, this.transformedCode);
+            }
+            if (null != this.objectGraph) {
+                target.putObjectGraph(this.address, this.objectGraph);
+            }
+            if (null != this.storage) {
+                for (Map.Entry<ByteArrayWrapper, byte[]> entry : this.storage.entrySet()) {
+                    target.putStorage(this.address, entry.getKey().unwrap(), entry.getValue());
+                }
+            }
+            if (this.isBalanceAdjusted) {
+                target.adjustBalance(this.address, this.balanceDelta);
+            }
+            for (long i = 0L; i < this.nonceIncrements; ++i) {
+                target.incrementNonce(this.address);
+            }
+        }
     }
 }
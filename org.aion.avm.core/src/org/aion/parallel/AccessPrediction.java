@@ -0,0 +1,133 @@
+package org.aion.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aion.avm.userlib.abi.ABIToken;
+import org.aion.kernel.Transaction.Type;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.TransactionContext;
+
+/**
+ * A package private class predicting which addresses a transaction will touch, before it runs.
+ *
+ * The prediction is the sender, the target and, if the transaction data is a call encoded in the ABI format, every address passed
+ * as an argument (including within arrays).  This is only a prediction:  a DApp can touch addresses which aren't passed in, and
+ * data which happens to look like the ABI can name addresses which are never touched.  Neither case is a correctness problem since
+ * the {@link AddressResourceMonitor} still detects the actual conflicts.
+ *
+ * The ABI data is scanned in place, only copying the addresses found (directly into the {@link Address} keys the monitor uses), and scanning stops at the first thing it can't parse.
+ */
+final class AccessPrediction {
+    private static final int ADDRESS_LENGTH = 32;
+
+    private AccessPrediction() {
+    }
+
+    /**
+     * @param ctx The transaction.
+     * @return The addresses the transaction is predicted to touch (possibly with duplicates).
+     */
+    static List<Address> predictAddresses(TransactionContext ctx) {
+        List<Address> addresses = new ArrayList<>();
+        addresses.add(ctx.getSenderAddress());
+        if (ctx.getTransactionKind() != Type.CREATE.toInt()) {
+            Address target = ctx.getDestinationAddress();
+            if (null != target) {
+                addresses.add(target);
+            }
+            byte[] data = ctx.getTransactionData();
+            if (null != data) {
+                // The method name is just the first element so we don't need to treat it differently.
+                int position = 0;
+                while ((position >= 0) && (position < data.length)) {
+                    position = scanElement(data, position, addresses);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Scans one ABI-encoded element, collecting any addresses within it.
+     *
+     * @return The position after the element, or -1 if the data couldn't be parsed.
+     */
+    private static int scanElement(byte[] data, int position, List<Address> addresses) {
+        byte token = data[position];
+        int next;
+        switch (token) {
+            case ABIToken.NULL:
+                // A null is followed by the type it stands for (2 bytes, for a 2D array).
+                next = ((position + 1 < data.length) && (ABIToken.ARRAY == data[position + 1])) ? (position + 3) : (position + 2);
+                break;
+            case ABIToken.BYTE:
+            case ABIToken.BOOLEAN:
+                next = position + 1 + Byte.BYTES;
+                break;
+            case ABIToken.CHAR:
+            case ABIToken.SHORT:
+                next = position + 1 + Short.BYTES;
+                break;
+            case ABIToken.INT:
+            case ABIToken.FLOAT:
+                next = position + 1 + Integer.BYTES;
+                break;
+            case ABIToken.LONG:
+            case ABIToken.DOUBLE:
+                next = position + 1 + Long.BYTES;
+                break;
+            case ABIToken.A_BYTE:
+            case ABIToken.A_BOOLEAN:
+            case ABIToken.STRING:
+                next = skipArray(data, position + 1, Byte.BYTES);
+                break;
+            case ABIToken.A_CHAR:
+            case ABIToken.A_SHORT:
+                next = skipArray(data, position + 1, Short.BYTES);
+                break;
+            case ABIToken.A_INT:
+            case ABIToken.A_FLOAT:
+                next = skipArray(data, position + 1, Integer.BYTES);
+                break;
+            case ABIToken.A_LONG:
+            case ABIToken.A_DOUBLE:
+                next = skipArray(data, position + 1, Long.BYTES);
+                break;
+            case ABIToken.ADDRESS:
+                next = position + 1 + ADDRESS_LENGTH;
+                if (next <= data.length) {
+                    byte[] address = new byte[ADDRESS_LENGTH];
+                    System.arraycopy(data, position + 1, address, 0, ADDRESS_LENGTH);
+                    addresses.add(Address.wrap(address));
+                }
+                break;
+            case ABIToken.ARRAY: {
+                // An array of objects:  the element type, the length, then each element (with its own token).
+                int length = readLength(data, position + 2);
+                next = (length >= 0) ? (position + 2 + Short.BYTES) : -1;
+                for (int i = 0; (next >= 0) && (next < data.length) && (i < length); ++i) {
+                    next = scanElement(data, next, addresses);
+                }
+                break;
+            }
+            default:
+                next = -1;
+                break;
+        }
+        return (next <= data.length) ? next : -1;
+    }
+
+    private static int skipArray(byte[] data, int lengthPosition, int bytesPerElement) {
+        int length = readLength(data, lengthPosition);
+        return (length >= 0)
+                ? (lengthPosition + Short.BYTES + (length * bytesPerElement))
+                : -1;
+    }
+
+    private static int readLength(byte[] data, int position) {
+        return (position + Short.BYTES <= data.length)
+                ? (short) ((data[position] << Byte.SIZE) | (data[position + 1] & 0xff))
+                : -1;
+    }
+}
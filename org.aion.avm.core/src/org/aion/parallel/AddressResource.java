@@ -1,41 +1,84 @@
 package org.aion.parallel;
 
-import java.util.PriorityQueue;
+import org.aion.types.Address;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A package private class represent resource from address.
  *
- * Each {@link AddressResource} keeps a {@link PriorityQueue} of tasks waiting to acquire the resource.
+ * Each {@link AddressResource} keeps the tasks waiting to acquire (or holding) the resource, ordered by task index, along with
+ * the mode each of them asked for.  A resource is either owned exclusively by one task or shared by any number of readers.
+ * All state is guarded by the lock of the stripe the resource lives in (see {@link #getStripeLock()}).
  */
 
 class AddressResource {
 
     /**
-     * Priority queue of {@link TransactionTask}
-     * The priority is determined by the index of the transaction.
+     * Requests for the resource, ordered by the index of the transaction, mapped to true if exclusive access is wanted.
      * See {@link TransactionTask#compareTo(TransactionTask)}
+     * A task stays in here until it releases the resource, even once granted.
      */
-    private PriorityQueue<TransactionTask> waitingQueue;
-
-    private boolean isOwned;
+    private TreeMap<TransactionTask, Boolean> waitingQueue;
 
     private TransactionTask ownedBy;
 
-    AddressResource(){
-        this.waitingQueue = new PriorityQueue<>();
-        this.isOwned = false;
+    private Set<TransactionTask> sharedBy;
+
+    private final Address address;
+
+    private final ReentrantLock stripeLock;
+
+    AddressResource(Address address, ReentrantLock stripeLock){
+        this.waitingQueue = new TreeMap<>();
         this.ownedBy = null;
+        this.sharedBy = new HashSet<>();
+        this.address = address;
+        this.stripeLock = stripeLock;
+    }
+
+    Address getAddress() {
+        return address;
+    }
+
+    ReentrantLock getStripeLock() {
+        return stripeLock;
     }
 
-    boolean addToWaitingQueue(TransactionTask task){
-        if (!waitingQueue.contains(task)) {
-            waitingQueue.add(task);
-            if (isNextOwner(task) && null != ownedBy && task != ownedBy) {
-                ownedBy.setAbortState();
-                return true;
+    /**
+     * Adds the task's request to the waiting queue (upgrading a previous shared request, if exclusive access is now wanted).
+     * Any holder with a higher index than the task which conflicts with the request is put into abort state:  a writer aborts
+     * every later holder while a reader only aborts a later writer.
+     *
+     * @return True if any holder was put into abort state.
+     */
+    boolean addToWaitingQueue(TransactionTask task, boolean isExclusive){
+        Boolean previous = waitingQueue.get(task);
+        if ((null != previous) && (previous || !isExclusive)) {
+            return false;
+        }
+        waitingQueue.put(task, isExclusive);
+
+        boolean didAbort = false;
+        if ((null != ownedBy) && (ownedBy.getIndex() > task.getIndex())) {
+            ownedBy.setAbortState();
+            didAbort = true;
+        }
+        if (isExclusive) {
+            for (TransactionTask reader : sharedBy) {
+                if (reader.getIndex() > task.getIndex()) {
+                    reader.setAbortState();
+                    didAbort = true;
+                }
             }
         }
-        return false;
+        return didAbort;
     }
 
     void removeFromWaitingQueue(TransactionTask task){
@@ -43,24 +86,80 @@ class AddressResource {
     }
 
     boolean isOwned() {
-        return isOwned;
+        return (null != ownedBy) || !sharedBy.isEmpty();
     }
 
     boolean isNextOwner(TransactionTask task){
-        return (task.getIndex() == waitingQueue.peek().getIndex());
+        return (task.getIndex() == waitingQueue.firstKey().getIndex());
+    }
+
+    /**
+     * The resource can be granted to a task iff the task already holds it in a sufficient mode (acquire is reentrant) or:
+     *      For exclusive access:  nobody else holds it and the task is the next owner.
+     *      For shared access:  nobody holds it exclusively and no lower task is waiting for exclusive access.
+     */
+    boolean isGrantableTo(TransactionTask task, boolean isExclusive){
+        boolean isGrantable;
+        if (task == ownedBy) {
+            isGrantable = true;
+        } else if (isExclusive) {
+            isGrantable = (null == ownedBy)
+                    && (sharedBy.isEmpty() || ((1 == sharedBy.size()) && sharedBy.contains(task)))
+                    && isNextOwner(task);
+        } else {
+            isGrantable = sharedBy.contains(task)
+                    || ((null == ownedBy) && !waitingQueue.headMap(task).containsValue(Boolean.TRUE));
+        }
+        return isGrantable;
     }
 
     TransactionTask getOwnedBy() {
         return ownedBy;
     }
 
-    void setOwner(TransactionTask task){
-        this.ownedBy = task;
-        this.isOwned = null != task;
+    void setOwner(TransactionTask task, boolean isExclusive){
+        if (isExclusive) {
+            sharedBy.remove(task);
+            ownedBy = task;
+        } else if (task != ownedBy) {
+            sharedBy.add(task);
+        }
+    }
+
+    void removeOwner(TransactionTask task){
+        if (task == ownedBy) {
+            ownedBy = null;
+        }
+        sharedBy.remove(task);
     }
 
     TransactionTask getNextOwner(){
-        return this.waitingQueue.peek();
+        return waitingQueue.isEmpty() ? null : waitingQueue.firstKey();
+    }
+
+    /**
+     * Returns the waiting tasks which may be able to take the resource now:  the next owner and, if it only wants to read,
+     * every reader after it up to the first writer.
+     */
+    List<TransactionTask> getNextOwners(){
+        List<TransactionTask> ret = new ArrayList<>();
+        for (Map.Entry<TransactionTask, Boolean> request : waitingQueue.entrySet()) {
+            if (request.getValue() && !ret.isEmpty()) {
+                break;
+            }
+            ret.add(request.getKey());
+            if (request.getValue()) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * A resource which is neither owned nor waited on can be dropped from the resource table (it will be re-created on demand).
+     */
+    boolean isUnused(){
+        return !isOwned() && waitingQueue.isEmpty();
     }
 
     @Override
@@ -72,4 +171,3 @@ class AddressResource {
         return ret;
     }
 }
-
@@ -1,55 +1,247 @@
 package org.aion.parallel;
 
 import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.kernel.BlockWriteBackKernel;
+import org.aion.kernel.ReadCacheKernel;
+import org.aion.kernel.Transaction.Type;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+import org.aion.vm.api.interfaces.TransactionContext;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Used by executor threads to communicate with each other.
  * Executor threads can only acquire/release {@link AddressResource}, commit result through this monitor.
- * A new monitor will be created for each batch of transactions.
+ * One monitor is shared by all batches of transactions:  task indices keep increasing across batches so the tasks of a batch
+ * can start running before the previous batch has finished committing, while still committing after it.
+ * Resources are dropped from the table once released by their last user so the table only holds addresses in use.
+ *
+ * The resource table is partitioned into lock stripes so that acquisitions of unrelated addresses don't serialize on one lock.
+ * Rather than waking every waiting thread when something changes, waiting threads block on their own {@link TransactionTask}
+ * and are only signalled when they may be able to proceed:  the next owners of a released resource, the next task to commit,
+ * or a task which was just put into abort state (see {@link TransactionTask#setAbortState()}).
+ *
+ * The monitor also keeps {@link ConflictStatistics} across batches.  Tasks whose sender or target is an address which keeps causing
+ * aborts are run in index order with each other (each waits for the previous one to commit before acquiring anything), rather than
+ * repeatedly aborting each other, while all other tasks stay fully parallel.
+ *
+ * Executor threads don't have to wait for their turn to commit:  they can hand a finished task off to the commit stage and move on
+ * (see {@link #handOffForCommit(TransactionTask, boolean, HandedOffTasks, Runnable)}).  Handed off tasks are committed in index
+ * order by whichever thread hands off (or commits) the task which completes the run of tasks ready to commit.
+ *
+ * If block write-back is enabled, tasks don't commit straight into the kernel they are run against but into a
+ * {@link BlockWriteBackKernel} on top of it, which is only written back once the last task of each batch commits.
+ * If a read cache is enabled, tasks read the kernel through a {@link ReadCacheKernel}, which every commit (or write back) goes
+ * through, so it stays valid across the batch.
  */
 public class AddressResourceMonitor {
     static boolean DEBUG = false;
 
-    // Map for resource retrieval
-    private HashMap<AddressWrapper, AddressResource> resources;
+    // The number of stripes the resource table is split into (must be a power of 2).
+    private static final int STRIPE_COUNT = 64;
 
-    // Ownership records for each task. It provide fast resource release.
-    private HashMap<TransactionTask, Set<AddressResource>> ownerships;
+    // The smallest number of entries we let the table of serialized tasks grow to before dropping those which have committed.
+    private static final int MIN_PRUNE_SIZE = 1024;
 
-    // Private monitor for safety
-    private final Object sync;
+    // Map for resource retrieval, partitioned by address hash.  Each map is guarded by its corresponding lock.
+    private final HashMap<Address, AddressResource>[] resources;
+    private final ReentrantLock[] stripeLocks;
+
+    // Ownership records for each task (including resources it is still queued on). It provide fast resource release.
+    // (each set is only ever touched by the thread running the task which owns it)
+    private final ConcurrentHashMap<TransactionTask, Set<AddressResource>> ownerships;
 
     // Commit counter used to serialize transaction commit
-    private int commitCounter;
+    private volatile long commitCounter;
+
+    // Tasks blocked waiting for their turn to commit, keyed by index, so the previous committer can signal only its successor.
+    private final ConcurrentHashMap<Long, TransactionTask> waitingCommits;
+
+    private final ConflictStatistics statistics;
+
+    // True if tasks are also serialized based on the addresses they are predicted to touch (not just hot ones).
+    private final boolean enableAccessPrediction;
+
+    // The index of the last task scheduled which touches each hot (or predicted) address (the caller serializes scheduling so this
+    // isn't shared) and the size at which we next drop the entries for committed tasks.
+    private final HashMap<Address, Long> lastSerializedTasks;
+    private int lastSerializedTasksPruneSize;
 
+    // Serialized tasks blocked waiting for a task to commit, keyed by the index of that task.
+    private final ConcurrentHashMap<Long, Set<TransactionTask>> waitingSerializedTasks;
+
+    // Tasks handed off for commit, keyed by index, waiting for all lower tasks to commit.
+    private final ConcurrentHashMap<Long, HandedOffCommit> handedOffCommits;
+
+    // Held by the thread applying handed off commits so that only one thread does so at a time.
+    private final ReentrantLock commitStageLock;
+
+    // True if tasks commit into a block-scoped write-back kernel rather than into the kernel they are run against.
+    private final boolean enableBlockWriteBack;
+    // The bound on the bytes of the read cache (0 if reads aren't cached) and true if the cache is kept across batches.
+    private final long readCacheSize;
+    private final boolean enableCrossBlockReadCache;
+    // The kernels stacked on top of the kernel we are run against (created with the first batch, if enabled).
+    private volatile ReadCacheKernel readCache;
+    private volatile BlockWriteBackKernel blockKernel;
+    // The kernel our tasks use as their parent and the index of the last task given it, both guarded by the taskParentLock.
+    // (dropped once that task commits, so that an idle monitor doesn't keep the kernel we are run against reachable)
+    private final Object taskParentLock;
+    private KernelInterface taskParentKernel;
+    private long lastTaskWithParent;
+
+    /**
+     * Creates a monitor with none of the optional behaviour enabled (see the other constructor).
+     */
     public AddressResourceMonitor()
     {
-        this.resources = new HashMap<>();
-        this.ownerships = new HashMap<>();
-        this.sync = new Object();
+        this(false, false, 0L, false);
+    }
+
+    /**
+     * @param enableAccessPrediction True if tasks should be serialized based on the addresses they are predicted to touch, rather
+     * than only when they touch known-hot addresses (see {@link #scheduleTask(TransactionTask)}).
+     * @param enableBlockWriteBack True if the commits of each batch should be merged and only written back to the kernel the batch
+     * is run against once the whole batch has committed (see {@link #parentKernelForTask(KernelInterface, long)}).
+     * @param readCacheSize The bound on the bytes of code, graphs and storage cached across tasks (0 to disable the read cache).
+     * @param enableCrossBlockReadCache True if the read cache is kept across batches, rather than cleared at the end of each.
+     */
+    @SuppressWarnings("unchecked")
+    public AddressResourceMonitor(boolean enableAccessPrediction, boolean enableBlockWriteBack, long readCacheSize, boolean enableCrossBlockReadCache)
+    {
+        this.resources = new HashMap[STRIPE_COUNT];
+        this.stripeLocks = new ReentrantLock[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            this.resources[i] = new HashMap<>();
+            this.stripeLocks[i] = new ReentrantLock();
+        }
+        this.ownerships = new ConcurrentHashMap<>();
         this.commitCounter = 0;
+        this.waitingCommits = new ConcurrentHashMap<>();
+        this.statistics = new ConflictStatistics();
+        this.enableAccessPrediction = enableAccessPrediction;
+        this.lastSerializedTasks = new HashMap<>();
+        this.lastSerializedTasksPruneSize = MIN_PRUNE_SIZE;
+        this.waitingSerializedTasks = new ConcurrentHashMap<>();
+        this.handedOffCommits = new ConcurrentHashMap<>();
+        this.commitStageLock = new ReentrantLock();
+        this.enableBlockWriteBack = enableBlockWriteBack;
+        this.readCacheSize = readCacheSize;
+        this.enableCrossBlockReadCache = enableCrossBlockReadCache;
+        this.readCache = null;
+        this.blockKernel = null;
+        this.taskParentLock = new Object();
+        this.taskParentKernel = null;
+        this.lastTaskWithParent = -1L;
     }
 
     /**
-     * Reset the state of the address resource monitor.
-     * This method will be called for each batch of transaction request.
-     *
+     * Reset the state of the address resource monitor, including the commit counter (so the next task index must be 0).
+     * It must only be called when no executor thread is using the monitor.
      */
     public void clear(){
-        synchronized (sync) {
-            this.resources.clear();
-            this.ownerships.clear();
-            this.commitCounter = 0;
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            this.stripeLocks[i].lock();
+            try {
+                this.resources[i].clear();
+            } finally {
+                this.stripeLocks[i].unlock();
+            }
+        }
+        this.ownerships.clear();
+        this.waitingCommits.clear();
+        this.commitCounter = 0;
+        this.statistics.clear();
+        this.lastSerializedTasks.clear();
+        this.waitingSerializedTasks.clear();
+        this.handedOffCommits.clear();
+    }
+
+    /**
+     * Called for each task, in index order, when the tasks for a new batch of transactions are created.
+     * If the sender or target of the task is hot, the task is serialized after the previous task which touched a hot address
+     * in common with it (see {@link #waitForSerializedTurn(TransactionTask)}).
+     *
+     * If access prediction is enabled, this is done for every address the task is predicted to touch (see {@link AccessPrediction}),
+     * hot or not.  The tasks then form a conflict graph where each task waits for the last earlier one it shares an address with,
+     * so the tasks of each connected component run in order while separate components run in parallel.
+     *
+     * @param task The new task.
+     */
+    public void scheduleTask(TransactionTask task) {
+        TransactionContext ctx = task.getExternalTransactionCtx();
+        List<Address> addresses;
+        if (this.enableAccessPrediction) {
+            addresses = AccessPrediction.predictAddresses(ctx);
+        } else {
+            Address target = (ctx.getTransactionKind() == Type.CREATE.toInt()) ? null : ctx.getDestinationAddress();
+            addresses = (null != target)
+                    ? List.of(ctx.getSenderAddress(), target)
+                    : List.of(ctx.getSenderAddress());
+        }
+
+        boolean isSerialized = false;
+        long serializedAfter = -1L;
+        for (Address address : addresses) {
+            boolean isHot = this.statistics.isHot(address);
+            if (isHot || this.enableAccessPrediction) {
+                Long previous = this.lastSerializedTasks.put(address, task.getIndex());
+                // (a previous task which already committed doesn't constrain us, and we may see the same address twice)
+                if ((null != previous) && (previous >= this.commitCounter) && (previous < task.getIndex()) && (previous > serializedAfter)) {
+                    serializedAfter = previous;
+                }
+                isSerialized |= isHot;
+            } else {
+                this.lastSerializedTasks.remove(address);
+            }
+        }
+        if (isSerialized || (serializedAfter >= 0L)) {
+            task.setSerializedAfterIndex(serializedAfter);
+        }
+
+        // With access prediction, every address seen ends up in here so we drop those which no longer constrain anything.
+        if (this.lastSerializedTasks.size() > this.lastSerializedTasksPruneSize) {
+            long committed = this.commitCounter;
+            this.lastSerializedTasks.values().removeIf((index) -> index < committed);
+            this.lastSerializedTasksPruneSize = Math.max(MIN_PRUNE_SIZE, 2 * this.lastSerializedTasks.size());
+        }
+    }
+
+    /**
+     * Blocks until the task the given task is serialized after (if any) has committed or the task is put into abort state.
+     * Called by executor thread before the task acquires any resource.
+     *
+     * @param task The requesting task.
+     */
+    public void waitForSerializedTurn(TransactionTask task) {
+        long serializedAfter = task.getSerializedAfterIndex();
+        if (serializedAfter >= 0L) {
+            // Register ourselves, first, so that the committer can find us after advancing the counter.
+            Set<TransactionTask> waiters = this.waitingSerializedTasks.computeIfAbsent(serializedAfter, (ignored) -> ConcurrentHashMap.newKeySet());
+            waiters.add(task);
+            task.prepareToWait();
+            while ((this.commitCounter <= serializedAfter) && !task.inAbortState()){
+                task.waitForSignal();
+                task.prepareToWait();
+            }
+            task.finishWaiting();
+            this.waitingSerializedTasks.computeIfPresent(serializedAfter, (ignored, remaining) -> {
+                remaining.remove(task);
+                return remaining.isEmpty() ? null : remaining;
+            });
         }
     }
 
     /**
-     * Acquire a resource for given task.
-     * Called by executor thread when access of a address is needed.
+     * Acquire a resource for given task, exclusively.
+     * Called by executor thread when access of a address is needed (to write it or to read it in ways not covered by
+     * {@link #acquireShared(Address, TransactionTask)}).
      *
      * This method block when another executor thread is holding the resource
      *
@@ -61,37 +253,90 @@ public class AddressResourceMonitor {
      * @param address The address requested.
      * @param task The requester task.
      */
+    public void acquire(Address address, TransactionTask task){
+        acquire(address, task, true);
+    }
+
+    /**
+     * Same as {@link #acquire(Address, TransactionTask)}, for callers which only hold the raw address.
+     *
+     * @param address The address requested.
+     * @param task The requester task.
+     */
     public void acquire(byte[] address, TransactionTask task){
-        synchronized (sync) {
-            AddressWrapper addressWrapper = new AddressWrapper(address);
-            AddressResource resource = getResource(addressWrapper);
+        acquire(Address.wrap(address), task, true);
+    }
+
+    /**
+     * Acquire a resource for given task, for reading only.
+     * Any number of tasks can share a resource, so read-only access of a popular address doesn't serialize its readers.
+     *
+     * This method block when another executor thread is holding the resource exclusively, or a lower task is waiting to.
+     * A task with a lower index later acquiring the resource exclusively will put this task into abort state, since it
+     * should have seen that task's writes.
+     *
+     * @param address The address requested.
+     * @param task The requester task.
+     */
+    public void acquireShared(Address address, TransactionTask task){
+        acquire(address, task, false);
+    }
+
+    /**
+     * Same as {@link #acquireShared(Address, TransactionTask)}, for callers which only hold the raw address.
+     *
+     * @param address The address requested.
+     * @param task The requester task.
+     */
+    public void acquireShared(byte[] address, TransactionTask task){
+        acquire(Address.wrap(address), task, false);
+    }
+
+    private void acquire(Address address, TransactionTask task, boolean isExclusive){
+        int stripe = stripeForAddress(address);
+        ReentrantLock lock = this.stripeLocks[stripe];
+
+        lock.lock();
+        try {
+            AddressResource resource = getResource(stripe, address);
 
             // Add task to the waiting queue.
-            if (resource.addToWaitingQueue(task)) {
-                sync.notifyAll();
+            // Any later holder which conflicts with us is put into abort state (which wakes it, if it is waiting).
+            if (resource.addToWaitingQueue(task, isExclusive)) {
+                this.statistics.recordAddressAbort(address);
             }
+            // Record this now, not just once granted, so that an abort still removes us from this waiting queue on release.
+            recordOwnership(resource, task);
 
             long startTime = 0;
             long endTime = 0;
 
             if (DEBUG) {
-                int holder = null != resource.getOwnedBy() ? resource.getOwnedBy().getIndex() : -1;
-                int nextOwner = null != resource.getNextOwner() ? resource.getNextOwner().getIndex() : -1;
-                System.out.println("Request " + task.getIndex() + " " + resource.toString() + " hold by " + holder +
+                long holder = null != resource.getOwnedBy() ? resource.getOwnedBy().getIndex() : -1;
+                long nextOwner = null != resource.getNextOwner() ? resource.getNextOwner().getIndex() : -1;
+                System.out.println("Request " + task.getIndex() + (isExclusive ? " exclusive " : " shared ") + resource.toString() + " hold by " + holder +
                         " nextOwner " + nextOwner + " locked " + resource.isOwned() + " inAbortState " + task.inAbortState());
                 startTime = System.nanoTime();
             }
 
-            // Resource res is granted to task iff
-            // res is not hold by other task && task is the next owner
-            while ((resource.isOwned() || !resource.isNextOwner(task)) && task != resource.getOwnedBy()
-                    && !task.inAbortState()){
+            // Resource res is granted to task iff (see AddressResource.isGrantableTo())
+            // exclusive: res is not hold by other task && task is the next owner
+            // shared: res is not hold exclusively by other task && no lower task is waiting for exclusive access
+            // Note that we publish ourselves as waiting before checking so that a signal between the check and the wait isn't lost.
+            if (!resource.isGrantableTo(task, isExclusive)) {
+                this.statistics.recordAddressContention(address);
+            }
+            task.prepareToWait();
+            while (!resource.isGrantableTo(task, isExclusive) && !task.inAbortState()){
+                lock.unlock();
                 try {
-                    sync.wait();
-                }catch (InterruptedException e){
-                    RuntimeAssertionError.unreachable("Waiting executor thread received interruption: ACQUIRE");
+                    task.waitForSignal();
+                } finally {
+                    lock.lock();
                 }
+                task.prepareToWait();
             }
+            task.finishWaiting();
 
             if (!task.inAbortState()) {
                 if (DEBUG) {
@@ -99,8 +344,7 @@ public class AddressResourceMonitor {
                     System.out.println("Acquire " + task.getIndex() + " " + resource.toString()
                             + " waitingTime " + (endTime - startTime)/1000 + " \u00B5s");
                 }
-                resource.setOwner(task);
-                recordOwnership(resource, task);
+                resource.setOwner(task, isExclusive);
             }else{
                 if (DEBUG) {
                     endTime = System.nanoTime();
@@ -110,6 +354,8 @@ public class AddressResourceMonitor {
             }
 
             if (DEBUG) System.out.flush();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -117,23 +363,34 @@ public class AddressResourceMonitor {
      * Release all resource holding by given task.
      * Called by executor thread when the task finished/need restart.
      *
-     * This method will not block.
+     * This method will not block (beyond briefly taking the stripe lock of each resource).
+     * Only the tasks which may now take each released resource are woken.
      *
      * @param task The requesting task.
      */
     private void releaseResourcesForTask(TransactionTask task){
-        RuntimeAssertionError.assertTrue(Thread.holdsLock(sync));
-
         Set<AddressResource> toRemove = ownerships.remove(task);
         if (null != toRemove) {
             for (AddressResource resource : toRemove) {
-                resource.removeFromWaitingQueue(task);
-                if (task == resource.getOwnedBy()) {
-                    resource.setOwner(null);
+                List<TransactionTask> nextOwners = null;
+                ReentrantLock lock = resource.getStripeLock();
+                lock.lock();
+                try {
+                    resource.removeFromWaitingQueue(task);
+                    resource.removeOwner(task);
+                    nextOwners = resource.getNextOwners();
+                    if (resource.isUnused()) {
+                        this.resources[stripeForAddress(resource.getAddress())].remove(resource.getAddress());
+                    }
+                    if (DEBUG) {
+                        long nextOwnerIndex = !nextOwners.isEmpty() ? nextOwners.get(0).getIndex() : -1;
+                        System.out.println("Release " + task.getIndex() + " " + resource.toString() + " nextOwner " + nextOwnerIndex);
+                    }
+                } finally {
+                    lock.unlock();
                 }
-                if (DEBUG) {
-                    int nextOwner = null != resource.getNextOwner() ? resource.getNextOwner().getIndex() : -1;
-                    System.out.println("Release " + task.getIndex() + " " + resource.toString() + " nextOwner " + nextOwner);
+                for (TransactionTask nextOwner : nextOwners) {
+                    nextOwner.signal();
                 }
             }
         }
@@ -157,48 +414,264 @@ public class AddressResourceMonitor {
     public boolean commitKernelForTask(TransactionTask task, boolean isRejected){
         boolean ret = false;
 
-        synchronized (sync){
+        // Note that no task can put us into abort state once it is our turn since that could only be done by a task with a lower index.
+        if (waitForCommitTurn(task)){
+            if (!isRejected) {
+                task.getThisTransactionalKernel().commit();
+                task.outputFlush();
+            }
+            endBatchIfLast(task);
+            ret = true;
+        }
 
-            while (this.commitCounter != task.getIndex() && !task.inAbortState()){
-                try {
-                    sync.wait();
-                }catch (InterruptedException e){
-                    RuntimeAssertionError.unreachable("Waiting executor thread received interruption: COMMIT");
+        // Release resources before passing the turn on since the next task could otherwise observe them as still owned.
+        releaseResourcesForTask(task);
+
+        recordTaskOutcome(task, ret);
+
+        if (ret) {
+            passCommitTurn(task);
+            // The tasks after us may have been handed off already.
+            applyHandedOffCommits();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Hand the given task off for commit, without waiting for its turn, so the executor thread can move on to another task.
+     * The commit will be serialized as the index of the task:  it is applied by whichever thread completes the run of tasks
+     * ready to commit, which then releases all resource hold by task and calls onCommitted (to publish the result).
+     *
+     * Until it commits, the task can still be put into abort state by a lower task.  In that case, the given executor is told
+     * so it can take the task back and re-execute it (see {@link HandedOffTasks}).
+     *
+     * This method will not block (beyond committing the tasks which are ready, if no other thread is already doing so).
+     *
+     * @param task The requesting task.
+     * @param isRejected True only if the transaction relating to this task was rejected.
+     * @param executor The tasks of the calling executor thread.
+     * @param onCommitted Called once the task has committed (possibly by another thread).
+     *
+     * @return True if the task was handed off. False if task need to abort (its resources have been released).
+     */
+    public boolean handOffForCommit(TransactionTask task, boolean isRejected, HandedOffTasks executor, Runnable onCommitted) {
+        // Publish who to tell before checking the abort state so that an abort racing with this can't be missed.
+        task.setHandedOffTo(executor);
+        boolean ret = !task.inAbortState();
+        if (ret) {
+            executor.add(task);
+            this.handedOffCommits.put(task.getIndex(), new HandedOffCommit(task, isRejected, onCommitted));
+            applyHandedOffCommits();
+        } else {
+            task.setHandedOffTo(null);
+            releaseResourcesForTask(task);
+            recordTaskOutcome(task, false);
+        }
+        return ret;
+    }
+
+    /**
+     * Withdraw a handed off task, which was put into abort state, from the commit stage so it can be re-executed.
+     * Called by the executor thread which handed it off.
+     *
+     * @param task The aborted task.
+     */
+    void withdrawAbortedTask(TransactionTask task) {
+        // Nobody can commit this in the meantime since tasks in abort state are never committed.
+        this.handedOffCommits.remove(task.getIndex());
+        task.setHandedOffTo(null);
+        releaseResourcesForTask(task);
+        recordTaskOutcome(task, false);
+    }
+
+    private void applyHandedOffCommits() {
+        boolean isReady = true;
+        while (isReady && this.commitStageLock.tryLock()) {
+            try {
+                // Note that the task whose turn it is can't be put into abort state since nothing lower is left to do that.
+                HandedOffCommit next = this.handedOffCommits.get(this.commitCounter);
+                while ((null != next) && !next.task.inAbortState()) {
+                    TransactionTask task = next.task;
+                    this.handedOffCommits.remove(task.getIndex());
+                    if (!next.isRejected) {
+                        task.getThisTransactionalKernel().commit();
+                        task.outputFlush();
+                    }
+                    endBatchIfLast(task);
+                    HandedOffTasks executor = task.getHandedOffTo();
+                    task.setHandedOffTo(null);
+                    releaseResourcesForTask(task);
+                    recordTaskOutcome(task, true);
+                    passCommitTurn(task);
+                    next.onCommitted.run();
+                    executor.onCommitted(task);
+                    next = this.handedOffCommits.get(this.commitCounter);
                 }
+            } finally {
+                this.commitStageLock.unlock();
             }
+            // Another thread may have handed off the next task after we looked but before we unlocked (so it couldn't take the lock).
+            HandedOffCommit next = this.handedOffCommits.get(this.commitCounter);
+            isReady = (null != next) && !next.task.inAbortState();
+        }
+    }
 
-            if (!task.inAbortState()){
-                if (!isRejected) {
-                    task.getThisTransactionalKernel().commit();
-                    task.outputFlush();
+    /**
+     * Returns the kernel which the task with the given index should use as the parent of its transactional kernel.
+     * Called when the tasks for a new batch of transactions are created.
+     *
+     * If block write-back is enabled, this is a {@link BlockWriteBackKernel} on top of the given kernel, shared by all the tasks, so
+     * the given kernel only sees the merged writes of each batch, once the batch has committed (see {@link #markEndOfBatch(TransactionTask)}).
+     * If the read cache is enabled, a {@link ReadCacheKernel} sits between the given kernel and the tasks (or the write-back kernel).
+     * These are let go of once the last task given them has committed, so that the monitor (which the AVM keeps for as long as the
+     * given kernel is reachable) doesn't keep the given kernel reachable itself.  The next batch stacks them up again.
+     *
+     * @param kernel The kernel the batch is being run against.
+     * @param index The index of the task (counted across all batches).
+     * @return The parent kernel for the task (the given kernel, unless block write-back or the read cache is enabled).
+     */
+    public KernelInterface parentKernelForTask(KernelInterface kernel, long index) {
+        synchronized (this.taskParentLock) {
+            this.lastTaskWithParent = index;
+            if (null == this.taskParentKernel) {
+                KernelInterface parent = kernel;
+                if (this.readCacheSize > 0L) {
+                    // (a read cache kept across batches outlives the chain, so it is only pointed back at the kernel)
+                    if (null == this.readCache) {
+                        this.readCache = new ReadCacheKernel(parent, this.readCacheSize);
+                    } else {
+                        this.readCache.setParent(parent);
+                    }
+                    parent = this.readCache;
                 }
-                this.commitCounter++;
-                ret = true;
+                if (this.enableBlockWriteBack) {
+                    this.blockKernel = new BlockWriteBackKernel(parent);
+                    parent = this.blockKernel;
+                }
+                this.taskParentKernel = parent;
             }
+            return this.taskParentKernel;
+        }
+    }
 
-            releaseResourcesForTask(task);
+    /**
+     * Called, once the tasks for a new batch of transactions are created, with the last of them.  If block write-back is enabled,
+     * everything the batch committed is written back to the kernel when that task commits (before its result is published).  Unless
+     * it is kept across batches, the read cache is then cleared (since the caller may write to the kernel between batches).
+     *
+     * @param task The last task of the batch.
+     */
+    public void markEndOfBatch(TransactionTask task) {
+        task.setEndOfBatch();
+    }
+
+    private void endBatchIfLast(TransactionTask task) {
+        if (task.isEndOfBatch()) {
+            BlockWriteBackKernel kernel = this.blockKernel;
+            if (null != kernel) {
+                kernel.commit();
+            }
+            ReadCacheKernel cache = this.readCache;
+            if ((null != cache) && !this.enableCrossBlockReadCache) {
+                cache.clear();
+            }
+            releaseTaskParentIfIdle(task);
+        }
+    }
 
-            // Only wake up others when all resources are released
-            sync.notifyAll();
+    private void releaseTaskParentIfIdle(TransactionTask task) {
+        synchronized (this.taskParentLock) {
+            // If no later task has been given the parent, nothing will use it until the next batch builds it again.
+            if (task.getIndex() == this.lastTaskWithParent) {
+                this.taskParentKernel = null;
+                this.blockKernel = null;
+                ReadCacheKernel cache = this.readCache;
+                if (null != cache) {
+                    if (this.enableCrossBlockReadCache) {
+                        cache.setParent(null);
+                    } else {
+                        this.readCache = null;
+                    }
+                }
+            }
         }
+    }
 
-        return ret;
+    /**
+     * Blocks until it is the given task's turn to commit or the task is put into abort state.
+     *
+     * @param task The requesting task.
+     * @return True if it is now the task's turn to commit. False if the task need to abort.
+     */
+    boolean waitForCommitTurn(TransactionTask task) {
+        // Register ourselves, first, so that the previous committer can find us after advancing the counter.
+        this.waitingCommits.put(task.getIndex(), task);
+        task.prepareToWait();
+        while (this.commitCounter != task.getIndex() && !task.inAbortState()){
+            task.waitForSignal();
+            task.prepareToWait();
+        }
+        task.finishWaiting();
+        this.waitingCommits.remove(task.getIndex());
+        return !task.inAbortState();
+    }
+
+    /**
+     * Passes the turn to commit from the given task (which must currently hold it) to the next task, waking it if it is waiting.
+     *
+     * @param task The task which just committed.
+     */
+    void passCommitTurn(TransactionTask task) {
+        long nextIndex = task.getIndex() + 1;
+        this.commitCounter = nextIndex;
+        TransactionTask nextCommitter = this.waitingCommits.get(nextIndex);
+        if (null != nextCommitter) {
+            nextCommitter.signal();
+        }
+        Set<TransactionTask> serializedTasks = this.waitingSerializedTasks.get(task.getIndex());
+        if (null != serializedTasks) {
+            for (TransactionTask serializedTask : serializedTasks) {
+                serializedTask.signal();
+            }
+        }
+    }
+
+    /**
+     * @return The conflict statistics gathered by this monitor.
+     */
+    public ConflictStatistics getConflictStatistics() {
+        return this.statistics;
     }
 
-    private AddressResource getResource(AddressWrapper addr){
-        RuntimeAssertionError.assertTrue(Thread.holdsLock(sync));
+    private void recordTaskOutcome(TransactionTask task, boolean isCommitted) {
+        TransactionContext ctx = task.getExternalTransactionCtx();
+        if (null != ctx) {
+            this.statistics.recordTaskOutcome(ctx.getBlockNumber(), task.isSerialized(), isCommitted, task.getAbortCount());
+        }
+        if (!isCommitted) {
+            task.incrementAbortCount();
+        }
+    }
 
-        AddressResource ret = resources.get(addr);
+    private int stripeForAddress(Address addr) {
+        int hash = addr.hashCode();
+        // Spread the higher bits down since we only use the low bits to pick the stripe.
+        return (hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1);
+    }
+
+    private AddressResource getResource(int stripe, Address addr){
+        RuntimeAssertionError.assertTrue(this.stripeLocks[stripe].isHeldByCurrentThread());
+
+        AddressResource ret = resources[stripe].get(addr);
         if (null == ret){
-            ret = new AddressResource();
-            resources.put(addr, ret);
+            ret = new AddressResource(addr, this.stripeLocks[stripe]);
+            resources[stripe].put(addr, ret);
         }
         return ret;
     }
 
     private void recordOwnership(AddressResource res, TransactionTask task){
-        RuntimeAssertionError.assertTrue(Thread.holdsLock(sync));
-
         Set<AddressResource> entry = ownerships.get(task);
         if (null == entry){
             entry = new HashSet<>();
@@ -208,10 +681,19 @@ public class AddressResourceMonitor {
     }
 
     void testReleaseResourcesForTask(TransactionTask task){
-        synchronized (sync) {
-            releaseResourcesForTask(task);
-            sync.notifyAll();
+        releaseResourcesForTask(task);
+    }
+
+
+    private static class HandedOffCommit {
+        public final TransactionTask task;
+        public final boolean isRejected;
+        public final Runnable onCommitted;
+
+        public HandedOffCommit(TransactionTask task, boolean isRejected, Runnable onCommitted) {
+            this.task = task;
+            this.isRejected = isRejected;
+            this.onCommitted = onCommitted;
         }
     }
 }
-
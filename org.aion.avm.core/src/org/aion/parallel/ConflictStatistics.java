@@ -0,0 +1,172 @@
+package org.aion.parallel;
+
+import org.aion.types.Address;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conflict statistics gathered by an {@link AddressResourceMonitor}, across all the batches run through it.
+ *
+ * Per address, this counts how often a task was aborted to yield it and how often a task had to wait for it.  These counts are
+ * halved whenever a new block is seen so an address only stays hot while it keeps causing aborts.  An address which caused at least
+ * {@link #HOT_ABORT_THRESHOLD} (decayed) aborts is considered hot:  the monitor then runs the tasks touching it in index order.
+ *
+ * Per block, this counts the aborts, the tasks which were serialized because they touched a hot address (or were predicted to
+ * conflict with an earlier task), and the aborts saved by doing so.  The latter is an estimate:  each serialized task which completed
+ * without being aborted is counted as one saved abort, since these tasks would otherwise have been likely to conflict.  Only the most
+ * recent blocks are kept.
+ */
+public class ConflictStatistics {
+    // The number of (decayed) aborts after which an address is considered hot.
+    public static final int HOT_ABORT_THRESHOLD = 3;
+
+    // The number of blocks we keep per-block counters for.
+    private static final int MAX_TRACKED_BLOCKS = 64;
+
+    private final ConcurrentHashMap<Address, AddressCounters> addresses;
+    private final ConcurrentSkipListMap<Long, BlockCounters> blocks;
+    // The highest block number we have decayed the address counters for.
+    private long lastDecayedBlock;
+
+    ConflictStatistics() {
+        this.addresses = new ConcurrentHashMap<>();
+        this.blocks = new ConcurrentSkipListMap<>();
+        this.lastDecayedBlock = -1L;
+    }
+
+    synchronized void clear() {
+        this.addresses.clear();
+        this.blocks.clear();
+        this.lastDecayedBlock = -1L;
+    }
+
+    /**
+     * @param address An address.
+     * @return True if tasks touching the address should run in index order.
+     */
+    public boolean isHot(byte[] address) {
+        return isHot(Address.wrap(address));
+    }
+
+    /**
+     * @param address An address.
+     * @return The (decayed) number of times a task was aborted to yield the address.
+     */
+    public int getAbortCount(byte[] address) {
+        AddressCounters counters = this.addresses.get(Address.wrap(address));
+        return (null != counters) ? counters.aborts.get() : 0;
+    }
+
+    /**
+     * @param address An address.
+     * @return The (decayed) number of times a task had to wait to acquire the address.
+     */
+    public int getContentionCount(byte[] address) {
+        AddressCounters counters = this.addresses.get(Address.wrap(address));
+        return (null != counters) ? counters.contentions.get() : 0;
+    }
+
+    /**
+     * @param blockNumber A block number.
+     * @return The number of times a task of the block was aborted (0 if the block isn't known).
+     */
+    public long getAbortCountForBlock(long blockNumber) {
+        BlockCounters counters = this.blocks.get(blockNumber);
+        return (null != counters) ? counters.aborts.get() : 0L;
+    }
+
+    /**
+     * @param blockNumber A block number.
+     * @return The number of tasks of the block which were run in index order since they touched a hot address (or were predicted to
+     * conflict).
+     */
+    public long getSerializedTaskCountForBlock(long blockNumber) {
+        BlockCounters counters = this.blocks.get(blockNumber);
+        return (null != counters) ? counters.serializedTasks.get() : 0L;
+    }
+
+    /**
+     * @param blockNumber A block number.
+     * @return The estimated number of aborts saved by serializing tasks of the block.
+     */
+    public long getAbortsSavedForBlock(long blockNumber) {
+        BlockCounters counters = this.blocks.get(blockNumber);
+        return (null != counters) ? counters.abortsSaved.get() : 0L;
+    }
+
+    boolean isHot(Address address) {
+        AddressCounters counters = this.addresses.get(address);
+        return (null != counters) && (counters.aborts.get() >= HOT_ABORT_THRESHOLD);
+    }
+
+    void recordAddressAbort(Address address) {
+        this.addresses.computeIfAbsent(address, (ignored) -> new AddressCounters()).aborts.incrementAndGet();
+    }
+
+    void recordAddressContention(Address address) {
+        this.addresses.computeIfAbsent(address, (ignored) -> new AddressCounters()).contentions.incrementAndGet();
+    }
+
+    /**
+     * Records the outcome of one execution of a task.
+     *
+     * @param blockNumber The block of the task.
+     * @param isSerialized True if the task was run in index order since it touched a hot address (or was predicted to conflict).
+     * @param isCommitted True if the task committed, false if it was aborted.
+     * @param previousAborts The number of times this task had already been aborted.
+     */
+    void recordTaskOutcome(long blockNumber, boolean isSerialized, boolean isCommitted, int previousAborts) {
+        BlockCounters counters = countersForBlock(blockNumber);
+        if (!isCommitted) {
+            counters.aborts.incrementAndGet();
+        } else if (isSerialized) {
+            counters.serializedTasks.incrementAndGet();
+            if (0 == previousAborts) {
+                counters.abortsSaved.incrementAndGet();
+            }
+        }
+    }
+
+    private BlockCounters countersForBlock(long blockNumber) {
+        BlockCounters counters = this.blocks.get(blockNumber);
+        if (null == counters) {
+            counters = this.blocks.computeIfAbsent(blockNumber, (ignored) -> new BlockCounters());
+            startBlock(blockNumber);
+        }
+        return counters;
+    }
+
+    private synchronized void startBlock(long blockNumber) {
+        if (blockNumber > this.lastDecayedBlock) {
+            this.lastDecayedBlock = blockNumber;
+            for (Map.Entry<Address, AddressCounters> entry : this.addresses.entrySet()) {
+                AddressCounters counters = entry.getValue();
+                counters.aborts.getAndUpdate((count) -> count / 2);
+                counters.contentions.getAndUpdate((count) -> count / 2);
+                if ((0 == counters.aborts.get()) && (0 == counters.contentions.get())) {
+                    // Note that this could drop a count recorded concurrently, which is fine for statistics.
+                    this.addresses.remove(entry.getKey(), counters);
+                }
+            }
+            while (this.blocks.size() > MAX_TRACKED_BLOCKS) {
+                this.blocks.pollFirstEntry();
+            }
+        }
+    }
+
+
+    private static class AddressCounters {
+        public final AtomicInteger aborts = new AtomicInteger();
+        public final AtomicInteger contentions = new AtomicInteger();
+    }
+
+    private static class BlockCounters {
+        public final AtomicLong aborts = new AtomicLong();
+        public final AtomicLong serializedTasks = new AtomicLong();
+        public final AtomicLong abortsSaved = new AtomicLong();
+    }
+}
@@ -0,0 +1,101 @@
+package org.aion.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The tasks one executor thread is responsible for:  the task it is currently running and the tasks it has handed off for
+ * commit (see {@link AddressResourceMonitor#handOffForCommit(TransactionTask, boolean, HandedOffTasks, Runnable)}) which haven't
+ * committed yet.
+ *
+ * A handed off task still holds its resources so a lower task can still put it into abort state.  Nobody else can re-execute it
+ * so, when that happens, the running task is also put into abort state and the executor thread is woken:  it must then take the
+ * aborted task back (see {@link #takeAbortedTask()}) and re-execute it before doing anything else.  Otherwise, the executor could
+ * be waiting on something which depends on the aborted task, which is waiting for the executor.
+ */
+public class HandedOffTasks {
+    private final Thread executorThread;
+    // The task the executor thread is currently running (null if it is between tasks).
+    private volatile TransactionTask runningTask;
+    // Only touched by the executor thread.
+    private final List<TransactionTask> tasks;
+
+    public HandedOffTasks(Thread executorThread) {
+        this.executorThread = executorThread;
+        this.runningTask = null;
+        this.tasks = new ArrayList<>();
+    }
+
+    /**
+     * Called by the executor thread when it starts or stops running a task.
+     *
+     * @param task The task now running, or null.
+     */
+    public void setRunningTask(TransactionTask task) {
+        this.runningTask = task;
+    }
+
+    /**
+     * Called by the executor thread.
+     *
+     * @return True if none of the tasks handed off by the executor thread are still waiting to commit.
+     */
+    public boolean isEmpty() {
+        this.tasks.removeIf((task) -> this != task.getHandedOffTo());
+        return this.tasks.isEmpty();
+    }
+
+    /**
+     * Called by the executor thread to take back one of its handed off tasks which was put into abort state.  The task is withdrawn
+     * from the commit stage (releasing its resources) so it can be re-executed.
+     *
+     * @return The lowest aborted task, or null if there are none.
+     */
+    public TransactionTask takeAbortedTask() {
+        TransactionTask aborted = null;
+        for (TransactionTask task : this.tasks) {
+            if ((this == task.getHandedOffTo()) && task.inAbortState() && ((null == aborted) || (task.getIndex() < aborted.getIndex()))) {
+                aborted = task;
+            }
+        }
+        if (null != aborted) {
+            this.tasks.remove(aborted);
+            aborted.getResourceMonitor().withdrawAbortedTask(aborted);
+        }
+        return aborted;
+    }
+
+    /**
+     * Called by the executor thread to block until one of its handed off tasks commits or is aborted, or something else wakes it.
+     * Note that this can return spuriously so the caller must re-check what it is waiting for.
+     */
+    public void waitForChange() {
+        LockSupport.park(this);
+    }
+
+    /**
+     * Called by the executor thread, from within the monitor, when it hands off a task.
+     */
+    void add(TransactionTask task) {
+        this.tasks.add(task);
+    }
+
+    /**
+     * Called by the committing thread once a task handed off by this executor has committed.
+     */
+    void onCommitted(TransactionTask task) {
+        LockSupport.unpark(this.executorThread);
+    }
+
+    /**
+     * Called by whichever thread put a task handed off by this executor into abort state.
+     */
+    void onAborted(TransactionTask task) {
+        TransactionTask running = this.runningTask;
+        if ((null != running) && (task != running)) {
+            running.setAbortState();
+        }
+        LockSupport.unpark(this.executorThread);
+    }
+}
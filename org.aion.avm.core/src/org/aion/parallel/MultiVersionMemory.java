@@ -0,0 +1,172 @@
+package org.aion.parallel;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * A package private class holding the speculative writes of every uncommitted task, used by {@link SpeculativeResourceMonitor}.
+ *
+ * For every {@link StateKey} written by those tasks, this keeps the value written by the latest execution of each task index.
+ * A task reading state sees the writes of all lower tasks which haven't yet committed, applied on top of the base kernel, as
+ * though those tasks had already committed.  Once a task commits, its writes are in the base kernel so they are dropped.
+ *
+ * Balance and nonce changes are stored as deltas, unless the task replaced the whole value, so that tasks which only adjust a
+ * value (paying the miner, for example) don't conflict with each other:  a read sums the deltas down to the closest full value.
+ *
+ * If a lower task which hasn't yet committed created or deleted the account, the read starts from an empty account instead of
+ * the base kernel.  This is only a guess (creation doesn't necessarily clear the account) but validation will catch it if wrong.
+ *
+ * Note that reads must be resolved while holding the read lock of the base kernel, and the commit frontier moved while holding
+ * its write lock, so that a read never sees a task's writes both in the base kernel and in this memory.
+ */
+class MultiVersionMemory {
+    private final ConcurrentHashMap<StateKey, ConcurrentSkipListMap<Long, Entry>> data;
+    private final ConcurrentHashMap<Long, Set<StateKey>> keysWrittenByTask;
+    // All tasks with a lower index than this have committed into the base kernel.
+    private volatile long commitFrontier;
+
+    MultiVersionMemory() {
+        this.data = new ConcurrentHashMap<>();
+        this.keysWrittenByTask = new ConcurrentHashMap<>();
+        this.commitFrontier = 0;
+    }
+
+    void clear() {
+        this.data.clear();
+        this.keysWrittenByTask.clear();
+        this.commitFrontier = 0;
+    }
+
+    /**
+     * Resolves a read of the given key by the given task index.
+     *
+     * @param key The state to read.
+     * @param readerIndex The index of the reading task.
+     * @param baseRead Reads the key from the base kernel, if no lower task replaced it.
+     * @return The value, as seen by the reader.
+     */
+    Object read(StateKey key, long readerIndex, Supplier<Object> baseRead) {
+        long floor = this.commitFrontier;
+        boolean startsEmpty = false;
+        if (StateKey.Kind.LIFECYCLE != key.getKind()) {
+            ConcurrentSkipListMap<Long, Entry> lifecycles = this.data.get(key.lifecycleKey());
+            Map.Entry<Long, Entry> lifecycle = (null != lifecycles) ? lifecycles.lowerEntry(readerIndex) : null;
+            if ((null != lifecycle) && (lifecycle.getKey() >= floor)) {
+                // Anything written before the account was created/deleted is gone (the creating/deleting task's own writes come after it).
+                floor = lifecycle.getKey();
+                startsEmpty = true;
+            }
+        }
+
+        Object value = null;
+        boolean isFound = false;
+        BigInteger delta = BigInteger.ZERO;
+        ConcurrentSkipListMap<Long, Entry> versions = this.data.get(key);
+        if ((null != versions) && (floor < readerIndex)) {
+            for (Entry entry : versions.subMap(floor, true, readerIndex, false).descendingMap().values()) {
+                if (entry.isDelta) {
+                    delta = delta.add((BigInteger) entry.value);
+                } else {
+                    value = entry.value;
+                    isFound = true;
+                    break;
+                }
+            }
+        }
+        if (!isFound) {
+            value = startsEmpty
+                    ? emptyValue(key.getKind())
+                    : baseRead.get();
+        }
+        if (delta.signum() != 0) {
+            value = ((BigInteger) value).add(delta);
+        }
+        return value;
+    }
+
+    /**
+     * Publishes the writes of one execution of a task, replacing those of any previous execution.
+     *
+     * @param writerIndex The index of the writing task.
+     * @param writes The entry for every key written by the task.
+     */
+    void publish(long writerIndex, Map<StateKey, Entry> writes) {
+        // Install the new values before removing stale ones so readers never see a gap where a previous value existed.
+        for (Map.Entry<StateKey, Entry> write : writes.entrySet()) {
+            this.data.compute(write.getKey(), (key, versions) -> {
+                ConcurrentSkipListMap<Long, Entry> updated = (null != versions) ? versions : new ConcurrentSkipListMap<>();
+                updated.put(writerIndex, write.getValue());
+                return updated;
+            });
+        }
+        Set<StateKey> previousKeys = this.keysWrittenByTask.put(writerIndex, writes.keySet());
+        if (null != previousKeys) {
+            for (StateKey previousKey : previousKeys) {
+                if (!writes.containsKey(previousKey)) {
+                    removeEntry(previousKey, writerIndex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called once the task with the given index has committed into the base kernel (while still holding its write lock).
+     * Its entries are dropped since readers now find its writes in the base kernel.
+     */
+    void markCommitted(long index) {
+        this.commitFrontier = index + 1;
+        Set<StateKey> keys = this.keysWrittenByTask.remove(index);
+        if (null != keys) {
+            for (StateKey key : keys) {
+                removeEntry(key, index);
+            }
+        }
+    }
+
+    private void removeEntry(StateKey key, long writerIndex) {
+        // We drop the whole key once it has no entries, atomically, so that the memory only holds what uncommitted tasks wrote.
+        this.data.computeIfPresent(key, (ignored, versions) -> {
+            versions.remove(writerIndex);
+            return versions.isEmpty() ? null : versions;
+        });
+    }
+
+    private static Object emptyValue(StateKey.Kind kind) {
+        return ((StateKey.Kind.BALANCE == kind) || (StateKey.Kind.NONCE == kind))
+                ? BigInteger.ZERO
+                : null;
+    }
+
+
+    /**
+     * A single task's write to one key:  either the new value or (for balance and nonce) the amount it was adjusted by.
+     */
+    static class Entry {
+        public final boolean isDelta;
+        public final Object value;
+
+        private Entry(boolean isDelta, Object value) {
+            this.isDelta = isDelta;
+            this.value = value;
+        }
+
+        static Entry value(Object value) {
+            return new Entry(false, value);
+        }
+
+        static Entry delta(BigInteger delta) {
+            return new Entry(true, delta);
+        }
+
+        /**
+         * @return The result of applying the given adjustment after this write.
+         */
+        Entry adjustedBy(BigInteger delta) {
+            return new Entry(this.isDelta, ((BigInteger) this.value).add(delta));
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package org.aion.parallel;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Supplier;
+
+import org.aion.avm.internal.RuntimeAssertionError;
+import org.aion.kernel.TransactionalKernel;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * A package private, read-only view of the state as seen by one task in speculative execution mode.
+ *
+ * Reads are resolved against the {@link MultiVersionMemory} (the writes of lower-indexed tasks) on top of the base kernel, and
+ * the value of every read is recorded so that it can be validated once it is the task's turn to commit:  at that point, all lower
+ * tasks have committed so, if every read would still return the same value, the task would execute exactly the same way.
+ * The task's own writes are buffered in its {@link TransactionalKernel}, which is built on top of this view, and are only
+ * applied to the base kernel by the {@link SpeculativeResourceMonitor}, at commit.
+ */
+class SpeculativeKernel implements KernelInterface {
+    private final MultiVersionMemory memory;
+    private final KernelInterface base;
+    // Guards the base kernel:  reads take the read lock while commits take the write lock.
+    private final ReadWriteLock baseLock;
+    private final long index;
+
+    // The reads of the current execution (only touched by the thread running the task).
+    private final Map<StateKey, Object> readSet;
+    private boolean isReadSetConsistent;
+
+    SpeculativeKernel(MultiVersionMemory memory, KernelInterface base, ReadWriteLock baseLock, long index) {
+        this.memory = memory;
+        this.base = base;
+        this.baseLock = baseLock;
+        this.index = index;
+        this.readSet = new HashMap<>();
+        this.isReadSetConsistent = true;
+    }
+
+    KernelInterface getBaseKernel() {
+        return this.base;
+    }
+
+    /**
+     * Called when the task is about to re-execute, to discard the read set of the previous execution.
+     */
+    void startNextExecution() {
+        this.readSet.clear();
+        this.isReadSetConsistent = true;
+    }
+
+    /**
+     * Publishes the writes buffered in the task's kernel as this task's entries in the multi-version memory.
+     *
+     * @param taskKernel The transactional kernel of the task, built on top of this view (null if the transaction was rejected).
+     */
+    void publishWrites(TransactionalKernel taskKernel) {
+        WriteSetRecorder recorder = new WriteSetRecorder();
+        if (null != taskKernel) {
+            taskKernel.commitTo(recorder);
+        }
+        this.memory.publish(this.index, recorder.writes);
+    }
+
+    /**
+     * Re-reads everything read by this execution.  This is only meaningful once all lower tasks have committed.
+     *
+     * @return True if every read would still return the same value.
+     */
+    boolean validateReadSet() {
+        boolean isValid = this.isReadSetConsistent;
+        Iterator<Map.Entry<StateKey, Object>> iterator = this.readSet.entrySet().iterator();
+        while (isValid && iterator.hasNext()) {
+            Map.Entry<StateKey, Object> recorded = iterator.next();
+            isValid = Objects.deepEquals(recorded.getValue(), resolve(recorded.getKey()));
+        }
+        return isValid;
+    }
+
+    @Override
+    public KernelInterface makeChildKernelInterface() {
+        return new TransactionalKernel(this);
+    }
+
+    @Override
+    public void commit() {
+        throw RuntimeAssertionError.unreachable("Speculative writes are committed by the SpeculativeResourceMonitor.");
+    }
+
+    @Override
+    public void commitTo(KernelInterface target) {
+        throw RuntimeAssertionError.unreachable("Speculative writes are committed by the SpeculativeResourceMonitor.");
+    }
+
+    @Override
+    public boolean hasAccountState(Address address) {
+        return (Boolean) trackedRead(StateKey.forAccount(StateKey.Kind.LIFECYCLE, address));
+    }
+
+    @Override
+    public byte[] getCode(Address address) {
+        // getCode is an interface for fvm, the avm should not call this method.
+        throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+    }
+
+    @Override
+    public byte[] getTransformedCode(Address address) {
+        return (byte[]) trackedRead(StateKey.forAccount(StateKey.Kind.TRANSFORMED_CODE, address));
+    }
+
+    @Override
+    public byte[] getObjectGraph(Address address) {
+        return (byte[]) trackedRead(StateKey.forAccount(StateKey.Kind.OBJECT_GRAPH, address));
+    }
+
+    @Override
+    public byte[] getStorage(Address address, byte[] key) {
+        return (byte[]) trackedRead(StateKey.forStorage(address, key));
+    }
+
+    @Override
+    public BigInteger getBalance(Address address) {
+        return (BigInteger) trackedRead(StateKey.forAccount(StateKey.Kind.BALANCE, address));
+    }
+
+    @Override
+    public BigInteger getNonce(Address address) {
+        return (BigInteger) trackedRead(StateKey.forAccount(StateKey.Kind.NONCE, address));
+    }
+
+    @Override
+    public boolean accountNonceEquals(Address address, BigInteger nonce) {
+        // Note that this bypasses any special-case logic in the base kernel since the nonce may have been speculatively written.
+        return nonce.compareTo(getNonce(address)) == 0;
+    }
+
+    @Override
+    public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+        // Note that this bypasses any special-case logic in the base kernel since the balance may have been speculatively written.
+        return getBalance(address).compareTo(amount) >= 0;
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForCreate(long energyLimit) {
+        return readBase(() -> this.base.isValidEnergyLimitForCreate(energyLimit));
+    }
+
+    @Override
+    public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+        return readBase(() -> this.base.isValidEnergyLimitForNonCreate(energyLimit));
+    }
+
+    @Override
+    public boolean destinationAddressIsSafeForThisVM(Address address) {
+        // Code speculatively deployed by a lower task is AVM code, so we only need to ask the base kernel if there is none.
+        return (null != getTransformedCode(address)) || readBase(() -> this.base.destinationAddressIsSafeForThisVM(address));
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        throw RuntimeAssertionError.unreachable("No equivalent concept in the Avm.");
+    }
+
+    @Override
+    public void createAccount(Address address) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void putCode(Address address, byte[] code) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void setTransformedCode(Address address, byte[] code) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void putObjectGraph(Address address, byte[] bytes) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void putStorage(Address address, byte[] key, byte[] value) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void removeStorage(Address address, byte[] key) {
+        throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+    }
+
+    @Override
+    public void deleteAccount(Address address) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void adjustBalance(Address address, BigInteger delta) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void incrementNonce(Address address) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void deductEnergyCost(Address address, BigInteger cost) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void refundAccount(Address address, BigInteger amount) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+    @Override
+    public void payMiningFee(Address address, BigInteger fee) {
+        throw RuntimeAssertionError.unreachable("Speculative view is read-only.");
+    }
+
+
+    private Object trackedRead(StateKey key) {
+        Object value = resolve(key);
+        if (this.readSet.containsKey(key)) {
+            // If we already read a different value for this key, this execution has seen an inconsistent state.
+            if (!Objects.deepEquals(this.readSet.get(key), value)) {
+                this.isReadSetConsistent = false;
+            }
+        } else {
+            this.readSet.put(key, value);
+        }
+        return value;
+    }
+
+    private Object resolve(StateKey key) {
+        return readBase(() -> this.memory.read(key, this.index, () -> readBaseUnlocked(key)));
+    }
+
+    private Object readBaseUnlocked(StateKey key) {
+        Address address = key.getAddress();
+        Object value = null;
+        switch (key.getKind()) {
+            case BALANCE:
+                value = this.base.getBalance(address);
+                break;
+            case NONCE:
+                value = this.base.getNonce(address);
+                break;
+            case TRANSFORMED_CODE:
+                value = this.base.getTransformedCode(address);
+                break;
+            case OBJECT_GRAPH:
+                value = this.base.getObjectGraph(address);
+                break;
+            case STORAGE:
+                value = this.base.getStorage(address, key.getStorageKey());
+                break;
+            case LIFECYCLE:
+                value = this.base.hasAccountState(address);
+                break;
+            default:
+                throw RuntimeAssertionError.unreachable("Unknown kind: " + key.getKind());
+        }
+        return value;
+    }
+
+    private <T> T readBase(Supplier<T> baseRead) {
+        this.baseLock.readLock().lock();
+        try {
+            return baseRead.get();
+        } finally {
+            this.baseLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Replays a task's write log to compute the final value of every key it wrote, reading any starting values through the view.
+     */
+    private class WriteSetRecorder implements KernelInterface {
+        private final Map<StateKey, MultiVersionMemory.Entry> writes = new HashMap<>();
+
+        @Override
+        public void adjustBalance(Address address, BigInteger delta) {
+            adjust(StateKey.forAccount(StateKey.Kind.BALANCE, address), delta);
+        }
+
+        @Override
+        public void incrementNonce(Address address) {
+            adjust(StateKey.forAccount(StateKey.Kind.NONCE, address), BigInteger.ONE);
+        }
+
+        @Override
+        public void putStorage(Address address, byte[] key, byte[] value) {
+            this.writes.put(StateKey.forStorage(address, key), MultiVersionMemory.Entry.value(value));
+        }
+
+        @Override
+        public void putObjectGraph(Address address, byte[] bytes) {
+            this.writes.put(StateKey.forAccount(StateKey.Kind.OBJECT_GRAPH, address), MultiVersionMemory.Entry.value(bytes));
+        }
+
+        @Override
+        public void setTransformedCode(Address address, byte[] code) {
+            this.writes.put(StateKey.forAccount(StateKey.Kind.TRANSFORMED_CODE, address), MultiVersionMemory.Entry.value(code));
+        }
+
+        @Override
+        public void putCode(Address address, byte[] code) {
+            // The original code is never read by the AVM so there is nothing to publish.
+        }
+
+        @Override
+        public void createAccount(Address address) {
+            this.writes.put(StateKey.forAccount(StateKey.Kind.LIFECYCLE, address), MultiVersionMemory.Entry.value(Boolean.TRUE));
+        }
+
+        @Override
+        public void deleteAccount(Address address) {
+            StateKey lifecycle = StateKey.forAccount(StateKey.Kind.LIFECYCLE, address);
+            // Our earlier writes to this account are gone and any later ones start from an empty account.
+            this.writes.keySet().removeIf((key) -> key.isSameAccountAs(lifecycle));
+            this.writes.put(lifecycle, MultiVersionMemory.Entry.value(Boolean.FALSE));
+        }
+
+        @Override
+        public void refundAccount(Address address, BigInteger amount) {
+            adjustBalance(address, amount);
+        }
+
+        @Override
+        public void deductEnergyCost(Address address, BigInteger cost) {
+            adjustBalance(address, cost);
+        }
+
+        @Override
+        public void payMiningFee(Address address, BigInteger fee) {
+            adjustBalance(address, fee);
+        }
+
+        private void adjust(StateKey key, BigInteger delta) {
+            MultiVersionMemory.Entry previous = this.writes.get(key);
+            MultiVersionMemory.Entry next = null;
+            if (null != previous) {
+                next = previous.adjustedBy(delta);
+            } else if (this.writes.containsKey(key.lifecycleKey())) {
+                // The account was created/deleted by this task so this is relative to an empty account, not the previous state.
+                next = MultiVersionMemory.Entry.value(delta);
+            } else {
+                next = MultiVersionMemory.Entry.delta(delta);
+            }
+            this.writes.put(key, next);
+        }
+
+        @Override
+        public void removeStorage(Address address, byte[] key) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public void commit() {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public void commitTo(KernelInterface target) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public KernelInterface makeChildKernelInterface() {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public boolean hasAccountState(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public byte[] getCode(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public byte[] getTransformedCode(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public byte[] getObjectGraph(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public byte[] getStorage(Address address, byte[] key) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public BigInteger getBalance(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public BigInteger getNonce(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public byte[] getBlockHashByNumber(long blockNumber) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public boolean accountNonceEquals(Address address, BigInteger nonce) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public boolean accountBalanceIsAtLeast(Address address, BigInteger amount) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public boolean isValidEnergyLimitForCreate(long energyLimit) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public boolean isValidEnergyLimitForNonCreate(long energyLimit) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+
+        @Override
+        public boolean destinationAddressIsSafeForThisVM(Address address) {
+            throw RuntimeAssertionError.unreachable("This class does not implement this method.");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.aion.parallel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+
+
+/**
+ * An alternative to the lock-based {@link AddressResourceMonitor}, used when speculative execution is enabled.
+ *
+ * Rather than acquiring the addresses a task touches (and aborting tasks on conflict), every task runs optimistically against a
+ * {@link SpeculativeKernel} which sees the writes already published by lower tasks in a {@link MultiVersionMemory}.
+ * Once a task finishes, it publishes its own writes and waits for its turn to commit, in index order.  At that point, all lower
+ * tasks have committed so the task's read set is validated:  if any read would now return a different value, the task is
+ * re-executed (by returning false, as for an abort), otherwise its writes are committed to the base kernel.
+ *
+ * This means that non-conflicting tasks never block one another and conflicting tasks are only re-executed once they are known to
+ * have read stale data, instead of being aborted whenever a lower task wants one of their addresses.
+ */
+public class SpeculativeResourceMonitor extends AddressResourceMonitor {
+    private final MultiVersionMemory memory;
+    // Base kernel reads are shared but committing into it is exclusive (since the underlying data stores aren't thread-safe).
+    // The commit frontier of the memory is only moved under the write lock so that readers see a task's writes in exactly one place.
+    private final ReentrantReadWriteLock baseLock;
+    private final AtomicLong reExecutionCount;
+
+    public SpeculativeResourceMonitor() {
+        super();
+        this.memory = new MultiVersionMemory();
+        this.baseLock = new ReentrantReadWriteLock();
+        this.reExecutionCount = new AtomicLong(0L);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        this.memory.clear();
+    }
+
+    /**
+     * In speculative mode, addresses are never locked so this returns immediately.
+     */
+    @Override
+    public void acquire(Address address, TransactionTask task) {
+    }
+
+    /**
+     * In speculative mode, addresses are never locked so this returns immediately.
+     */
+    @Override
+    public void acquireShared(Address address, TransactionTask task) {
+    }
+
+    /**
+     * In speculative mode, tasks never abort each other (they are re-executed instead) so no task is serialized.
+     */
+    @Override
+    public void scheduleTask(TransactionTask task) {
+    }
+
+    @Override
+    public KernelInterface parentKernelForTask(KernelInterface kernel, long index) {
+        return new SpeculativeKernel(this.memory, kernel, this.baseLock, index);
+    }
+
+    /**
+     * Publishes the task's writes, waits for its turn to commit, then validates its reads.
+     * If the reads are still valid, the task's writes are committed to the base kernel.
+     *
+     * @param task The requesting task.
+     * @param isRejected True only if the transaction relating to this task was rejected.
+     *
+     * @return True if commit is successful. False if task need to be re-executed.
+     */
+    @Override
+    public boolean commitKernelForTask(TransactionTask task, boolean isRejected) {
+        SpeculativeKernel view = (SpeculativeKernel) task.getParentKernel();
+
+        // Publish before waiting so that higher tasks can read these writes while we wait.
+        view.publishWrites(isRejected ? null : task.getThisTransactionalKernel());
+
+        // Nothing can abort a task in this mode so this always returns once it is our turn.
+        waitForCommitTurn(task);
+
+        boolean ret = false;
+        if (view.validateReadSet()) {
+            this.baseLock.writeLock().lock();
+            try {
+                if (!isRejected) {
+                    task.getThisTransactionalKernel().commitTo(view.getBaseKernel());
+                }
+                this.memory.markCommitted(task.getIndex());
+            } finally {
+                this.baseLock.writeLock().unlock();
+            }
+            if (!isRejected) {
+                task.outputFlush();
+            }
+            passCommitTurn(task);
+            ret = true;
+        } else {
+            // We keep our turn:  the re-execution will be the next thing to commit.
+            this.reExecutionCount.incrementAndGet();
+            view.startNextExecution();
+        }
+        return ret;
+    }
+
+    /**
+     * In speculative mode, reads can only be validated once it is the task's turn to commit so this commits synchronously.
+     */
+    @Override
+    public boolean handOffForCommit(TransactionTask task, boolean isRejected, HandedOffTasks executor, Runnable onCommitted) {
+        boolean ret = commitKernelForTask(task, isRejected);
+        if (ret) {
+            onCommitted.run();
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of times a task had to be re-executed since this monitor was created.
+     */
+    public long getReExecutionCount() {
+        return this.reExecutionCount.get();
+    }
+}
@@ -0,0 +1,88 @@
+package org.aion.parallel;
+
+import java.util.Arrays;
+import org.aion.types.Address;
+
+/**
+ * A package private class identifying one piece of account state in the {@link MultiVersionMemory}.
+ *
+ * The hash is computed once, up-front, since these keys are looked up on every speculative read (reusing the hash the
+ * {@link Address} already caches).
+ */
+final class StateKey {
+    enum Kind {
+        BALANCE,
+        NONCE,
+        TRANSFORMED_CODE,
+        OBJECT_GRAPH,
+        STORAGE,
+        // Describes whether the account was created or deleted (stored values are Boolean.TRUE or Boolean.FALSE, respectively).
+        LIFECYCLE,
+    }
+
+    private final Kind kind;
+    private final Address address;
+    private final byte[] storageKey;
+    private final int hash;
+
+    private StateKey(Kind kind, Address address, byte[] storageKey) {
+        this.kind = kind;
+        this.address = address;
+        this.storageKey = storageKey;
+        this.hash = (31 * ((31 * kind.hashCode()) + address.hashCode())) + Arrays.hashCode(storageKey);
+    }
+
+    static StateKey forAccount(Kind kind, Address address) {
+        return new StateKey(kind, address, null);
+    }
+
+    static StateKey forStorage(Address address, byte[] storageKey) {
+        return new StateKey(Kind.STORAGE, address, storageKey);
+    }
+
+    Kind getKind() {
+        return this.kind;
+    }
+
+    Address getAddress() {
+        return this.address;
+    }
+
+    byte[] getStorageKey() {
+        return this.storageKey;
+    }
+
+    /**
+     * @return The key describing the creation/deletion of the account this key belongs to.
+     */
+    StateKey lifecycleKey() {
+        return (Kind.LIFECYCLE == this.kind)
+                ? this
+                : new StateKey(Kind.LIFECYCLE, this.address, null);
+    }
+
+    /**
+     * @return True if the other key describes state of the same account as this one.
+     */
+    boolean isSameAccountAs(StateKey other) {
+        return this.address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        boolean isEqual = this == obj;
+        if (!isEqual && (obj instanceof StateKey)) {
+            StateKey other = (StateKey) obj;
+            isEqual = (this.hash == other.hash)
+                    && (this.kind == other.kind)
+                    && this.address.equals(other.address)
+                    && Arrays.equals(this.storageKey, other.storageKey);
+        }
+        return isEqual;
+    }
+}
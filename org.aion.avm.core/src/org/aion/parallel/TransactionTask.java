@@ -8,22 +8,37 @@ import org.aion.kernel.*;
 import org.aion.vm.api.interfaces.KernelInterface;
 import org.aion.vm.api.interfaces.TransactionContext;
 
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * A TransactionTask represent a complete transaction chain started from an external transaction.
  * The purpose of this class is to support asynchronous task abort to achieve concurrency.
  */
 public class TransactionTask implements Comparable<TransactionTask>{
+    private final AddressResourceMonitor resourceMonitor;
     private final KernelInterface parentKernel;
     private TransactionContext externalTransactionContext;
     private volatile boolean abortState;
     private IInstrumentation threadOwningTask;
     private ReentrantDAppStack reentrantDAppStack;
-    private int index;
+    private long index;
     private StringBuffer outBuffer;
     private TransactionalKernel thisTransactionKernel;
+    // The thread blocked in the AddressResourceMonitor on behalf of this task (null if it isn't blocked).
+    private volatile Thread waitingThread;
+    // True if this task touches a hot address, in which case it waits for the previous task touching one (if there is one).
+    private boolean isSerialized;
+    private long serializedAfterIndex;
+    // The number of times this task has been aborted (only touched by the thread running the task).
+    private int abortCount;
+    // True if this is the last task of its batch.
+    private boolean isEndOfBatch;
+    // The executor which handed this task off for commit (null if it isn't waiting in the commit stage).
+    private volatile HandedOffTasks handedOffTo;
 
-    public TransactionTask(KernelInterface parentKernel, TransactionContext ctx, int index){
+    public TransactionTask(AddressResourceMonitor resourceMonitor, KernelInterface parentKernel, TransactionContext ctx, long index){
+        this.resourceMonitor = resourceMonitor;
         this.parentKernel = parentKernel;
         this.externalTransactionContext = ctx;
         this.index = index;
@@ -31,6 +46,10 @@ public class TransactionTask implements Comparable<TransactionTask>{
         this.threadOwningTask = null;
         this.reentrantDAppStack = new ReentrantDAppStack();
         this.outBuffer = new StringBuffer();
+        this.isSerialized = false;
+        this.serializedAfterIndex = -1L;
+        this.abortCount = 0;
+        this.isEndOfBatch = false;
     }
 
     public void startNewTransaction() {
@@ -72,6 +91,46 @@ public class TransactionTask implements Comparable<TransactionTask>{
         if (null != this.threadOwningTask){
             this.threadOwningTask.setAbortState();
         }
+        // If the task is blocked waiting on a resource or its commit, it needs to wake up to observe the abort.
+        signal();
+        // If it was already handed off for commit, its executor needs to take it back and re-execute it.
+        HandedOffTasks executor = this.handedOffTo;
+        if (null != executor) {
+            executor.onAborted(this);
+        }
+    }
+
+    /**
+     * Called by the thread running this task, before it checks the condition it is about to wait on.
+     * Publishing the waiting thread first means that any {@link #signal()} racing with the check can't be lost.
+     */
+    void prepareToWait() {
+        this.waitingThread = Thread.currentThread();
+    }
+
+    /**
+     * Called by the thread running this task to block until {@link #signal()} is called.
+     * Note that this can return spuriously so the caller must re-check its condition.
+     */
+    void waitForSignal() {
+        LockSupport.park(this);
+    }
+
+    /**
+     * Called by the thread running this task once it is done waiting.
+     */
+    void finishWaiting() {
+        this.waitingThread = null;
+    }
+
+    /**
+     * Wakes the thread blocked on behalf of this task, if there is one.
+     */
+    void signal() {
+        Thread waiter = this.waitingThread;
+        if (null != waiter) {
+            LockSupport.unpark(waiter);
+        }
     }
 
     /**
@@ -88,7 +147,7 @@ public class TransactionTask implements Comparable<TransactionTask>{
      *
      * @return The index of the task.
      */
-    public int getIndex() {
+    public long getIndex() {
         return index;
     }
 
@@ -110,6 +169,82 @@ public class TransactionTask implements Comparable<TransactionTask>{
         return externalTransactionContext;
     }
 
+    /**
+     * Get the address resource monitor this task acquires its resources from and commits through.
+     * Tasks sent against the same kernel share a monitor, so their indices (and commit order) are only meaningful within it.
+     *
+     * @return The resource monitor of the task.
+     */
+    public AddressResourceMonitor getResourceMonitor() {
+        return this.resourceMonitor;
+    }
+
+    /**
+     * Get the kernel the per task transactional kernel is built on.
+     *
+     * @return The parent kernel of the task.
+     */
+    KernelInterface getParentKernel() {
+        return this.parentKernel;
+    }
+
+    /**
+     * Check if the current task is run in index order with the other tasks touching hot addresses.
+     *
+     * @return True if the task is serialized.
+     */
+    boolean isSerialized() {
+        return this.isSerialized;
+    }
+
+    /**
+     * Get the index of the task which must commit before this one can start, since they both touch a hot address.
+     *
+     * @return The index of that task, or -1 if there is no such task.
+     */
+    long getSerializedAfterIndex() {
+        return this.serializedAfterIndex;
+    }
+
+    void setSerializedAfterIndex(long index) {
+        this.isSerialized = true;
+        this.serializedAfterIndex = index;
+    }
+
+    /**
+     * Check if the current task is the last of the batch it was sent in.
+     *
+     * @return True if the task ends its batch.
+     */
+    boolean isEndOfBatch() {
+        return this.isEndOfBatch;
+    }
+
+    void setEndOfBatch() {
+        this.isEndOfBatch = true;
+    }
+
+    HandedOffTasks getHandedOffTo() {
+        return this.handedOffTo;
+    }
+
+    void setHandedOffTo(HandedOffTasks executor) {
+        this.handedOffTo = executor;
+    }
+
+    /**
+     * Get the number of times the current task has been aborted.
+     *
+     * @return The abort count of the task.
+     */
+    public int getAbortCount() {
+        return this.abortCount;
+    }
+
+    void incrementAbortCount() {
+        this.abortCount += 1;
+    }
+
     /**
      * Get the per task transactional kernel of the current task.
      *
@@ -140,15 +275,15 @@ public class TransactionTask implements Comparable<TransactionTask>{
      *
      * The purpose of this method is to support {@link java.util.PriorityQueue}.
      * The lower the index, the higher the priority.
+     * Note that indices are only assigned in order within a stream (the tasks sharing a resource monitor) so this is only meaningful
+     * between tasks of the same stream.
      *
      * @param other Another transaction task.
      * @return The result of the comparision.
      */
     @Override
     public int compareTo(TransactionTask other) {
-        int x = this.index;
-        int y = other.index;
-        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+        return Long.compare(this.index, other.index);
     }
 
     @Override
@@ -156,7 +291,8 @@ public class TransactionTask implements Comparable<TransactionTask>{
         boolean isEqual = this == obj;
         if (!isEqual && (obj instanceof TransactionTask)) {
             TransactionTask other = (TransactionTask) obj;
-            isEqual = this.index == other.index;
+            // (tasks of different streams can have the same index)
+            isEqual = (this.resourceMonitor == other.resourceMonitor) && (this.index == other.index);
         }
         return isEqual;
     }
@@ -23,6 +23,7 @@ import org.aion.kernel.Block;
 import org.aion.kernel.TestingKernel;
 import org.aion.kernel.TransactionContextImpl;
 import org.aion.kernel.Transaction;
+import org.aion.kernel.TransactionalKernel;
 import org.aion.vm.api.interfaces.KernelInterface;
 import org.aion.vm.api.interfaces.TransactionContext;
 import org.aion.vm.api.interfaces.TransactionResult;
@@ -34,13 +35,16 @@ import org.junit.rules.TemporaryFolder;
 import legacy_examples.avmstartuptest.MainClass;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -228,21 +232,20 @@ public class AvmImplTest {
         long energyLimit = 10_000_000l;
         Address contractAddr = createDApp(kernel, avm, txData);
         
-        // Try a few invocations of different depths, bearing in mind the change of nextHashCode between each invocation.
-        // We will do 2 zero-depth calls to see the delta between the 2 calls.
-        // Then, we will do an indirect call and verify that the delta is greater.
+        // Try a few invocations of different depths, bearing in mind that these calls don't write their graph so the nextHashCode they
+        // start with is the same each time (the objects they allocate were never stored so their hash codes can be handed out again).
+        // We will do 2 zero-depth calls to see that they get the same hash code.
+        // Then, we will do an indirect call and verify that its hash code is greater.
         // If the hashcode wasn't restored across reentrant calls, this wouldn't be greater as it wouldn't capture the small cost of the original
         // indirect call (since we create at least 1 object in that path).
         int zero0 = callRecursiveHash(kernel, avm, energyLimit, contractAddr, 0);
         int zero1 = callRecursiveHash(kernel, avm, energyLimit, contractAddr, 0);
-        int zero2 = callRecursiveHash(kernel, avm, energyLimit, contractAddr, 0);
         int one0 = callRecursiveHash(kernel, avm, energyLimit, contractAddr, 1);
         int one1 = callRecursiveHash(kernel, avm, energyLimit, contractAddr, 1);
-        int one2 = callRecursiveHash(kernel, avm, energyLimit, contractAddr, 1);
         
-        assertEquals(zero1 - zero0, zero2 - zero1);
-        assertEquals(one1 - one0, one2 - one1);
-        assertTrue((one1 - one0) > (zero1 - zero0));
+        assertEquals(zero0, zero1);
+        assertEquals(one0, one1);
+        assertTrue(one0 > zero0);
         avm.shutdown();
     }
 
@@ -464,6 +467,28 @@ public class AvmImplTest {
         avm.shutdown();
     }
 
+    /**
+     * Tests that DApps deployed with the same code (which share their parsed code) still keep their own state.
+     */
+    @Test
+    public void testSameCodeDeployedTwice() {
+        byte[] incrementorJar = JarBuilder.buildJarForMainAndClassesAndUserlib(IncrementorDApp.class);
+        TestingKernel kernel = new TestingKernel();
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        
+        Address incrementByOne = createDApp(kernel, avm, new CodeAndArguments(incrementorJar, new byte[] {1}).encodeToBytes());
+        Address incrementByFive = createDApp(kernel, avm, new CodeAndArguments(incrementorJar, new byte[] {5}).encodeToBytes());
+        assertArrayEquals(kernel.getTransformedCode(org.aion.types.Address.wrap(incrementByOne.unwrap())), kernel.getTransformedCode(org.aion.types.Address.wrap(incrementByFive.unwrap())));
+        
+        byte[] input = new byte[] {1,2,3};
+        byte[] incrementorCallData = ABIUtil.encodeMethodArguments("incrementArray", input);
+        for (int i = 0; i < 2; ++i) {
+            assertArrayEquals(new byte[] {2,3,4}, (byte[]) callDApp(kernel, avm, incrementByOne, incrementorCallData));
+            assertArrayEquals(new byte[] {6,7,8}, (byte[]) callDApp(kernel, avm, incrementByFive, incrementorCallData));
+        }
+        avm.shutdown();
+    }
+
     /**
      * Tests that a DApp can CREATE for us (but is reverted on failure).
      */
@@ -506,17 +531,19 @@ public class AvmImplTest {
         AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
         
         // We always start out with the PREMINE account, but that should be the only one.
-        assertEquals(1, directory.listFiles().length);
+        // (we only count the account directories, not the one holding the code they share)
+        FilenameFilter accounts = (parent, name) -> name.startsWith("account_");
+        assertEquals(1, directory.listFiles(accounts).length);
         
         // CREATE the spawner (meaning another account). Expect 3 accounts because: deployer, contract, coinbase
         Address spawnerAddress = createDApp(kernel, avm, spanerCreateData);
-        assertEquals(3, directory.listFiles().length);
+        assertEquals(3, directory.listFiles(accounts).length);
         
         // CALL to create and invoke the incrementor. Expect 4 accounts because: deployer, contract1, contract2, coinbase
         boolean shouldFail = false;
         byte[] spawnerCallData = ABIUtil.encodeMethodArguments("spawnOnly", shouldFail);
         Address incrementorAddress = (Address) callDApp(kernel, avm, spawnerAddress, spawnerCallData);
-        assertEquals(4, directory.listFiles().length);
+        assertEquals(4, directory.listFiles(accounts).length);
         
         // Restart the AVM.
         avm.shutdown();
@@ -612,6 +639,155 @@ public class AvmImplTest {
     }
 
 
+    /**
+     * Tests that a DApp resumed from the hot cache sees the state committed by its last call but not the changes of a call which failed.
+     */
+    @Test
+    public void testHotCacheAfterFailedCall() {
+        byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(HotCacheResource.class);
+        byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+        TestingKernel kernel = new TestingKernel();
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        Address contractAddr = createDApp(kernel, avm, txData);
+        
+        // (each call is in a new block since the hot cache drops any DApp loaded in the current block, or later, when a block is run)
+        // The second call resumes the graph left by the first.
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "increment", 2));
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "increment", 3));
+        
+        // The change made by a failed call must not be seen by the next one.
+        byte[] revertData = ABIUtil.encodeMethodArguments("incrementAndRevert");
+        Transaction tx = Transaction.call(deployer, org.aion.types.Address.wrap(contractAddr.unwrap()), kernel.getNonce(deployer), BigInteger.ZERO, revertData, 5_000_000L, 1L);
+        TransactionResult result = avm.run(kernel, new TransactionContext[] {TransactionContextImpl.forExternalTransaction(tx, blockWithNumber(4))})[0].get();
+        assertEquals(AvmTransactionResult.Code.FAILED_REVERT, result.getResultCode());
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "get", 5));
+        assertEquals(3, callHotCacheResource(kernel, avm, contractAddr, "increment", 6));
+        assertEquals(3, callHotCacheResource(kernel, avm, contractAddr, "get", 7));
+        avm.shutdown();
+    }
+
+    /**
+     * Tests that a DApp resumed from the hot cache doesn't keep the state of a call which succeeded but whose changes were discarded by
+     * the kernel.
+     */
+    @Test
+    public void testHotCacheAfterDiscardedKernel() {
+        byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(HotCacheResource.class);
+        byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+        TestingKernel kernel = new TestingKernel();
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        Address contractAddr = createDApp(kernel, avm, txData);
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "increment", 2));
+        
+        // Run a call on top of the kernel but never commit it.
+        TransactionalKernel discardedKernel = new TransactionalKernel(kernel);
+        assertEquals(2, callHotCacheResource(discardedKernel, avm, contractAddr, "increment", 3));
+        
+        // The kernel's graph isn't the one left in the cached DApp so it must be loaded again.
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "get", 4));
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "increment", 5));
+        avm.shutdown();
+    }
+
+    /**
+     * Tests that a DApp in the hot cache isn't resumed for a kernel with different code at the same address, since the cache is shared
+     * by every kernel the AVM is given.
+     */
+    @Test
+    public void testHotCacheWithOtherCodeInAnotherKernel() {
+        byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(HotCacheResource.class);
+        byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+        TestingKernel kernel = new TestingKernel();
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        Address contractAddr = createDApp(kernel, avm, txData);
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "increment", 2));
+        
+        // Put the code and graph of another DApp at the same address, in another kernel.
+        byte[] otherJar = JarBuilder.buildJarForMainAndClassesAndUserlib(HotCacheReplacementResource.class);
+        TestingKernel otherKernel = new TestingKernel();
+        Address otherAddr = createDApp(otherKernel, avm, new CodeAndArguments(otherJar, new byte[0]).encodeToBytes());
+        org.aion.types.Address dappAddress = org.aion.types.Address.wrap(contractAddr.unwrap());
+        org.aion.types.Address otherDappAddress = org.aion.types.Address.wrap(otherAddr.unwrap());
+        otherKernel.setTransformedCode(dappAddress, otherKernel.getTransformedCode(otherDappAddress));
+        otherKernel.putObjectGraph(dappAddress, otherKernel.getObjectGraph(otherDappAddress));
+        
+        // Each kernel runs its own code.
+        assertEquals(100, callHotCacheResource(otherKernel, avm, contractAddr, "get", 3));
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "increment", 4));
+        assertEquals(100, callHotCacheResource(otherKernel, avm, contractAddr, "get", 5));
+        avm.shutdown();
+    }
+
+    /**
+     * Tests that a call which only reads its graph (decoding its arguments and encoding its result, as most DApps do) doesn't store it,
+     * whether the DApp came from the hot cache or had to be loaded.
+     */
+    @Test
+    public void testReadOnlyCallDoesNotStoreGraph() {
+        byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(HotCacheResource.class);
+        byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+        int[] graphWrites = new int[1];
+        TestingKernel kernel = new TestingKernel() {
+            @Override
+            public void putObjectGraph(org.aion.types.Address address, byte[] bytes) {
+                graphWrites[0] += 1;
+                super.putObjectGraph(address, bytes);
+            }
+        };
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        Address contractAddr = createDApp(kernel, avm, txData);
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "increment", 2));
+        int writesBefore = graphWrites[0];
+        
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "get", 3));
+        assertEquals(writesBefore, graphWrites[0]);
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "increment", 4));
+        assertEquals(writesBefore + 1, graphWrites[0]);
+        avm.shutdown();
+        
+        avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "get", 5));
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "get", 6));
+        assertEquals(writesBefore + 1, graphWrites[0]);
+        avm.shutdown();
+    }
+
+    /**
+     * Tests that a DApp whose graph was stored before graphs were stored in chunks (in the old single file) can still be called, and
+     * that its graph is stored in chunks once it is saved.
+     */
+    @Test
+    public void testCallGraphStoredInSingleFile() throws Exception {
+        File directory = folder.newFolder();
+        byte[] jar = JarBuilder.buildJarForMainAndClassesAndUserlib(HotCacheResource.class);
+        byte[] txData = new CodeAndArguments(jar, new byte[0]).encodeToBytes();
+        TestingKernel kernel = new TestingKernel(directory);
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        Address contractAddr = createDApp(kernel, avm, txData);
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "increment", 2));
+        avm.shutdown();
+        
+        // Move the stored graph into the file it was stored in before it was chunked.
+        org.aion.types.Address dappAddress = org.aion.types.Address.wrap(contractAddr.unwrap());
+        byte[] storedGraph = kernel.getObjectGraph(dappAddress);
+        File accountDirectory = new File(directory, "account_" + Helpers.bytesToHexString(contractAddr.unwrap()));
+        for (File file : accountDirectory.listFiles()) {
+            if (file.getName().startsWith("graph")) {
+                assertTrue(file.delete());
+            }
+        }
+        Files.write(new File(accountDirectory, "graph").toPath(), storedGraph);
+        
+        // A new AVM has to load it from the store, and it is then stored in chunks once the call writes it.
+        kernel = new TestingKernel(directory);
+        avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        assertArrayEquals(storedGraph, kernel.getObjectGraph(dappAddress));
+        assertEquals(1, callHotCacheResource(kernel, avm, contractAddr, "get", 3));
+        assertEquals(2, callHotCacheResource(kernel, avm, contractAddr, "increment", 4));
+        assertFalse(new File(accountDirectory, "graph").exists());
+        avm.shutdown();
+    }
+
     private int callRecursiveHash(KernelInterface kernel, AvmImpl avm, long energyLimit, Address contractAddr, int depth) {
         byte[] argData = ABIUtil.encodeMethodArguments("getRecursiveHashCode", depth);
         Transaction call = Transaction.call(deployer, org.aion.types.Address.wrap(contractAddr.unwrap()), kernel.getNonce(deployer), BigInteger.ZERO, argData, energyLimit, 1L);
@@ -626,6 +802,18 @@ public class AvmImplTest {
         return ((Integer)resultObject).intValue();
     }
 
+    private int callHotCacheResource(KernelInterface kernel, AvmImpl avm, Address contractAddr, String methodName, long blockNumber) {
+        byte[] argData = ABIUtil.encodeMethodArguments(methodName);
+        Transaction tx = Transaction.call(deployer, org.aion.types.Address.wrap(contractAddr.unwrap()), kernel.getNonce(deployer), BigInteger.ZERO, argData, 5_000_000L, 1L);
+        TransactionResult result = avm.run(kernel, new TransactionContext[] {TransactionContextImpl.forExternalTransaction(tx, blockWithNumber(blockNumber))})[0].get();
+        assertEquals(AvmTransactionResult.Code.SUCCESS, result.getResultCode());
+        return ((Integer) ABIUtil.decodeOneObject(result.getReturnData())).intValue();
+    }
+
+    private Block blockWithNumber(long blockNumber) {
+        return new Block(new byte[32], blockNumber, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]);
+    }
+
     private int byteSizeOfSerializedString(String string) {
         // Hashcode(4) + length(4) + UTF-8 bytes.
         return (4 + 4 + string.getBytes(StandardCharsets.UTF_8).length);
@@ -1,11 +1,21 @@
 package org.aion.avm.core;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.aion.avm.internal.RuntimeAssertionError;
 import org.aion.kernel.AvmTransactionResult;
+import org.aion.parallel.AddressResourceMonitor;
 import org.aion.parallel.TransactionTask;
 import org.aion.types.Address;
 import org.aion.vm.api.interfaces.SimpleFuture;
@@ -30,7 +40,7 @@ public class HandoffMonitorTest {
     }
 
     @Test
-    public void failEnqueueBeforeFutureGet() {
+    public void enqueueBeforeFutureGet() {
         // Startup.
         MonitorThread thread = new MonitorThread();
         Set<Thread> executorThreads = new HashSet<>();
@@ -39,18 +49,17 @@ public class HandoffMonitorTest {
         thread.startAgainstMonitor(monitor);
         
         // Enqueue transaction.
-        monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction()}));
-        // Second enqueue should fail with RuntimeAssertionError.
-        boolean didFail = false;
-        try {
-            monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction()}));
-        } catch (RuntimeAssertionError e) {
-            didFail = true;
-        }
+        SimpleFuture<TransactionResult>[] firstResults = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction()}));
+        // Batches are pipelined so a second enqueue is permitted before the first result is consumed.
+        SimpleFuture<TransactionResult>[] secondResults = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction(), new FakeTransaction()}));
+        
+        // Consume them out of order to show that each batch has its own results.
+        Assert.assertNotNull(secondResults[1].get());
+        Assert.assertNotNull(secondResults[0].get());
+        Assert.assertNotNull(firstResults[0].get());
         
         monitor.stopAndWaitForShutdown();
         Assert.assertFalse(thread.isAlive());
-        Assert.assertTrue(didFail);
     }
 
     @Test
@@ -181,6 +190,193 @@ public class HandoffMonitorTest {
         }
     }
 
+    @Test
+    public void multipleProducers() throws InterruptedException {
+        // Startup.
+        MonitorThread t1 = new MonitorThread("Executor 0");
+        MonitorThread t2 = new MonitorThread("Executor 1");
+        Set<Thread> executorThreads = new HashSet<>();
+        executorThreads.add(t1);
+        executorThreads.add(t2);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        t1.startAgainstMonitor(monitor);
+        t2.startAgainstMonitor(monitor);
+
+        // Several external threads send batches and consume their own results, concurrently.
+        Thread[] producers = new Thread[4];
+        boolean[] didComplete = new boolean[producers.length];
+        for (int i = 0; i < producers.length; ++i) {
+            int producer = i;
+            producers[i] = new Thread(() -> {
+                for (int j = 0; j < 20; ++j) {
+                    SimpleFuture<TransactionResult>[] results = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction(), new FakeTransaction()}));
+                    Assert.assertNotNull(results[0].get());
+                    Assert.assertNotNull(results[1].get());
+                }
+                didComplete[producer] = true;
+            });
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        monitor.stopAndWaitForShutdown();
+        for (boolean completed : didComplete) {
+            Assert.assertTrue(completed);
+        }
+        Assert.assertFalse(t1.isAlive());
+        Assert.assertFalse(t2.isAlive());
+    }
+
+    @Test
+    public void completionCallbacks() {
+        // Startup.
+        MonitorThread t1 = new MonitorThread("Executor 0");
+        MonitorThread t2 = new MonitorThread("Executor 1");
+        Set<Thread> executorThreads = new HashSet<>();
+        executorThreads.add(t1);
+        executorThreads.add(t2);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        t1.startAgainstMonitor(monitor);
+        t2.startAgainstMonitor(monitor);
+
+        // Collect the results through callbacks, without ever calling get(), and wait for the whole batch to be done.
+        TransactionResultFuture[] results = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction(), new FakeTransaction(), new FakeTransaction()}));
+        Set<TransactionResult> seen = ConcurrentHashMap.newKeySet();
+        for (TransactionResultFuture result : results) {
+            result.getCompletionStage().thenAccept(seen::add);
+        }
+        results[0].getBatchCompletionStage().toCompletableFuture().join();
+        Assert.assertEquals(3, seen.size());
+
+        // The results are still there for get(), in any order.
+        Assert.assertTrue(seen.contains(results[2].get()));
+        Assert.assertTrue(seen.contains(results[0].get()));
+
+        monitor.stopAndWaitForShutdown();
+        Assert.assertFalse(t1.isAlive());
+        Assert.assertFalse(t2.isAlive());
+    }
+
+    @Test
+    public void callbacksRunInIndexOrder() {
+        // Startup (with two executor threads, so the results can become final out of order).
+        MonitorThread t1 = new MonitorThread("Executor 0");
+        MonitorThread t2 = new MonitorThread("Executor 1");
+        Set<Thread> executorThreads = new HashSet<>();
+        executorThreads.add(t1);
+        executorThreads.add(t2);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        t1.startAgainstMonitor(monitor);
+        t2.startAgainstMonitor(monitor);
+
+        // Send two batches, back to back, and collect the results of each in the order their callbacks run.
+        FakeTransaction[] transactions = new FakeTransaction[20];
+        for (int i = 0; i < transactions.length; ++i) {
+            transactions[i] = new FakeTransaction();
+        }
+        TransactionTask[] tasks = wrapTransactionInTasks(transactions);
+        TransactionResultFuture[] first = monitor.sendTransactionsAsynchronously(Arrays.copyOfRange(tasks, 0, 10));
+        TransactionResultFuture[] second = monitor.sendTransactionsAsynchronously(Arrays.copyOfRange(tasks, 10, 20));
+        List<TransactionResult> seenFirst = Collections.synchronizedList(new ArrayList<>());
+        List<TransactionResult> seenSecond = Collections.synchronizedList(new ArrayList<>());
+        for (TransactionResultFuture result : first) {
+            result.getCompletionStage().thenAccept(seenFirst::add);
+        }
+        for (TransactionResultFuture result : second) {
+            result.getCompletionStage().thenAccept(seenSecond::add);
+        }
+        first[0].getBatchCompletionStage().toCompletableFuture().join();
+        second[0].getBatchCompletionStage().toCompletableFuture().join();
+
+        // Every callback ran, in the order the transactions of its batch were sent.
+        Assert.assertEquals(10, seenFirst.size());
+        Assert.assertEquals(10, seenSecond.size());
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertSame(first[i].get(), seenFirst.get(i));
+            Assert.assertSame(second[i].get(), seenSecond.get(i));
+        }
+
+        monitor.stopAndWaitForShutdown();
+        Assert.assertFalse(t1.isAlive());
+        Assert.assertFalse(t2.isAlive());
+    }
+
+    @Test
+    public void callbackWaitingOnLaterResult() throws Exception {
+        // Only one executor thread, so a callback run on it could never see the later result it waits for.
+        MonitorThread thread = new MonitorThread();
+        Set<Thread> executorThreads = new HashSet<>();
+        executorThreads.add(thread);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        thread.startAgainstMonitor(monitor);
+
+        TransactionResultFuture[] results = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction(), new FakeTransaction(), new FakeTransaction()}));
+        CompletableFuture<TransactionResult> later = results[0].getCompletionStage().thenApply((ignored) -> results[2].get()).toCompletableFuture();
+        Assert.assertSame(results[2].get(), later.get(10, TimeUnit.SECONDS));
+        results[0].getBatchCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        monitor.stopAndWaitForShutdown();
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void blockedCallbackOnlyDelaysItsBatch() throws Exception {
+        MonitorThread thread = new MonitorThread();
+        Set<Thread> executorThreads = new HashSet<>();
+        executorThreads.add(thread);
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+
+        // The first batch's callback blocks until the second batch has been published (the thread is only started once it is attached).
+        TransactionTask[] tasks = wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction(), new FakeTransaction(), new FakeTransaction()});
+        TransactionResultFuture[] first = monitor.sendTransactionsAsynchronously(Arrays.copyOfRange(tasks, 0, 2));
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocked = first[0].getCompletionStage().thenApply((ignored) -> {
+            try {
+                return release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }).toCompletableFuture();
+        thread.startAgainstMonitor(monitor);
+        TransactionResultFuture[] second = monitor.sendTransactionsAsynchronously(Arrays.copyOfRange(tasks, 2, 3));
+        second[0].getBatchCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(first[1].getCompletionStage().toCompletableFuture().isDone());
+        release.countDown();
+        Assert.assertTrue(blocked.get(10, TimeUnit.SECONDS));
+        first[0].getBatchCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        monitor.stopAndWaitForShutdown();
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void backgroundFailureCompletesExceptionally() {
+        // No executor threads are started so nothing will be run.
+        Set<Thread> executorThreads = new HashSet<>();
+        executorThreads.add(new MonitorThread());
+        HandoffMonitor monitor = new HandoffMonitor(executorThreads);
+        TransactionResultFuture[] results = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction()}));
+        CompletableFuture<Void> batch = results[0].getBatchCompletionStage().toCompletableFuture();
+        Assert.assertFalse(batch.isDone());
+
+        IllegalStateException failure = new IllegalStateException("background failure");
+        monitor.setBackgroundThrowable(failure);
+        Assert.assertTrue(batch.isCompletedExceptionally());
+        Assert.assertTrue(results[0].getCompletionStage().toCompletableFuture().isCompletedExceptionally());
+        try {
+            results[0].get();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertSame(failure, e);
+        }
+
+        // A batch sent after the failure fails straight away.
+        results = monitor.sendTransactionsAsynchronously(wrapTransactionInTasks(new FakeTransaction[] {new FakeTransaction()}));
+        Assert.assertTrue(results[0].getBatchCompletionStage().toCompletableFuture().isCompletedExceptionally());
+    }
+
     private class MonitorThread extends Thread {
         private HandoffMonitor monitor;
 
@@ -198,11 +394,14 @@ public class HandoffMonitorTest {
         }
         @Override
         public void run() {
-            TransactionTask task = this.monitor.blockingPollForTransaction(null, null);
+            TransactionTask task = this.monitor.blockingPollForTransaction();
             while (null != task) {
+                // Pretend to do some work, so that one thread can't claim every task before the others have woken up.
+                LockSupport.parkNanos(100_000L);
                 // Fake up a result.
                 AvmTransactionResult result = new FakeResult(this);
-                task = this.monitor.blockingPollForTransaction(result, task);
+                this.monitor.publishResult(task, result);
+                task = this.monitor.blockingPollForTransaction();
             }
         }
     }
@@ -312,9 +511,11 @@ public class HandoffMonitorTest {
     }
 
     private static TransactionTask[] wrapTransactionInTasks(FakeTransaction[] transactions) {
+        // (all in one stream, though none of these tests use its resource monitor)
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
         TransactionTask[] tasks = new TransactionTask[transactions.length];
         for (int i = 0; i < transactions.length; ++i) {
-            tasks[i] = new TransactionTask(null, transactions[i], i);
+            tasks[i] = new TransactionTask(monitor, null, transactions[i], i);
         }
         return tasks;
     }
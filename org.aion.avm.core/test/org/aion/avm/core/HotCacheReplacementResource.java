@@ -0,0 +1,14 @@
+package org.aion.avm.core;
+
+import org.aion.avm.userlib.abi.ABIEncoder;
+
+
+/**
+ * Used by AvmImplTest as different code to store at the address of a HotCacheResource, in another kernel.
+ * Every call returns the same value, which HotCacheResource never would.
+ */
+public class HotCacheReplacementResource {
+    public static byte[] main() {
+        return ABIEncoder.encodeOneInteger(100);
+    }
+}
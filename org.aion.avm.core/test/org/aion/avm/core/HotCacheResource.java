@@ -0,0 +1,53 @@
+package org.aion.avm.core;
+
+import avm.Blockchain;
+import org.aion.avm.userlib.abi.ABIDecoder;
+import org.aion.avm.userlib.abi.ABIEncoder;
+
+
+/**
+ * Used by AvmImplTest to verify that a DApp resumed from the hot cache only ever sees the graph which was committed.
+ * The count is kept in an instance and the main class is referenced from a static so that both the instances and the class references
+ * in the graph need to survive being resumed.
+ */
+public class HotCacheResource {
+    private static Counter counter = new Counter();
+    private static Class<?> mainClass = HotCacheResource.class;
+
+    public static byte[] main() {
+        ABIDecoder decoder = new ABIDecoder(Blockchain.getData());
+        String methodName = decoder.decodeMethodName();
+        if (methodName == null) {
+            return new byte[0];
+        } else {
+            if (methodName.equals("increment")) {
+                return ABIEncoder.encodeOneInteger(increment());
+            } else if (methodName.equals("incrementAndRevert")) {
+                increment();
+                Blockchain.revert();
+                return new byte[0];
+            } else if (methodName.equals("get")) {
+                return ABIEncoder.encodeOneInteger(get());
+            } else {
+                return new byte[0];
+            }
+        }
+    }
+
+    public static int increment() {
+        counter.count += 1;
+        return get();
+    }
+
+    public static int get() {
+        // The class reference must still be the same instance we get from the class literal.
+        return (HotCacheResource.class == mainClass)
+                ? counter.count
+                : -1;
+    }
+
+
+    private static class Counter {
+        public int count;
+    }
+}
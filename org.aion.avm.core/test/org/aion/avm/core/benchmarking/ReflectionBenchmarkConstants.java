@@ -16,9 +16,11 @@ class ReflectionBenchmarkConstants {
     // Spins are set to 1 for testing purposes. Recommended spin values:
     // sameSpins ~15,000,000
     // uniqueSpins ~3,000,000
+    // codecSpins ~1,000,000
 
     static int sameSpins = 1;
     static int uniqueSpins = 1;
+    static int codecSpins = 1;
 
     static String targetClassName = ReflectionTarget.class.getCanonicalName();
     static File classpathDirectory = new File(System.getProperty("user.dir") + "/" + ReflectionTarget.class.getPackageName() + "/");
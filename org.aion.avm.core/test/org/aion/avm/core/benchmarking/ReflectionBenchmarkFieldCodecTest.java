@@ -0,0 +1,158 @@
+package org.aion.avm.core.benchmarking;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.core.NodeEnvironment;
+import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.persistence.ByteBufferObjectDeserializer;
+import org.aion.avm.core.persistence.ByteBufferObjectSerializer;
+import org.aion.avm.core.persistence.FieldCodecGenerator;
+import org.aion.avm.core.persistence.FieldCodecTarget;
+import org.aion.avm.core.persistence.FieldCodecTargetSub;
+import org.aion.avm.core.persistence.IGlobalResolver;
+import org.aion.avm.core.persistence.SortedFieldCache;
+import org.aion.avm.core.util.Helpers;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Benchmarking reflection versus the codecs generated by {@link FieldCodecGenerator}, for the automatic graph serialization.
+ *
+ * This benchmark is for:
+ *   - A graph of many small instances (of 2 classes, each with a codec) loaded by a DApp class loader.
+ *   - Measuring:
+ *       writing the instance fields of each object
+ *       reading the instance fields of each object
+ *
+ * Both paths must write the same bytes.
+ */
+public class ReflectionBenchmarkFieldCodecTest {
+    private static int spins = ReflectionBenchmarkConstants.codecSpins;
+
+    private static AvmClassLoader loader;
+    private static Class<?> rootClass;
+    private static List<Object> instances;
+    private static byte[] serialized;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        System.out.println("Running each benchmark " + spins + " times each.");
+
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Class<?> clazz : new Class<?>[] { FieldCodecTarget.class, FieldCodecTargetSub.class }) {
+            classes.put(clazz.getName(), Helpers.loadRequiredResourceAsBytes(Helpers.fulllyQualifiedNameToInternalName(clazz.getName()) + ".class"));
+        }
+        loader = NodeEnvironment.singleton.createInvocationClassLoader(FieldCodecGenerator.addFieldCodecs(classes));
+        Class<?> targetClass = loader.loadClass(FieldCodecTarget.class.getName());
+        Class<?> subClass = loader.loadClass(FieldCodecTargetSub.class.getName());
+        rootClass = targetClass.getSuperclass();
+
+        // Each instance points at the one before it.
+        Constructor<?> constructor = subClass.getConstructor(Void.class, int.class);
+        Field next = targetClass.getDeclaredField("i_nine");
+        next.setAccessible(true);
+        Field value = subClass.getDeclaredField("i_five");
+        value.setAccessible(true);
+        instances = new ArrayList<>();
+        for (int i = 0; i < spins; ++i) {
+            Object instance = constructor.newInstance(null, i);
+            next.set(instance, (i > 0) ? instances.get(i - 1) : null);
+            value.setInt(instance, i);
+            instances.add(instance);
+        }
+        serialized = serialize(new SortedFieldCache(loader, null, null, null));
+        Assert.assertArrayEquals(serialized, serialize(new SortedFieldCache(ReflectionBenchmarkFieldCodecTest.class.getClassLoader(), null, null, null)));
+    }
+
+    // <----------------------------------------benchmarks----------------------------------------->
+
+    @Test
+    public void ReflectionSerializeTest() {
+        long sample = timeSerialize(reflectionCache());
+        ReflectionBenchmarkConstants.printTime("Instance fields write", "Reflection", sample, spins);
+    }
+
+    @Test
+    public void CodecSerializeTest() {
+        long sample = timeSerialize(codecCache());
+        ReflectionBenchmarkConstants.printTime("Instance fields write", "Generated codec", sample, spins);
+    }
+
+    @Test
+    public void ReflectionDeserializeTest() {
+        long sample = timeDeserialize(reflectionCache());
+        ReflectionBenchmarkConstants.printTime("Instance fields read", "Reflection", sample, spins);
+    }
+
+    @Test
+    public void CodecDeserializeTest() {
+        long sample = timeDeserialize(codecCache());
+        ReflectionBenchmarkConstants.printTime("Instance fields read", "Generated codec", sample, spins);
+    }
+
+    // <-----------------------------------------helpers------------------------------------------->
+
+    private static SortedFieldCache codecCache() {
+        return new SortedFieldCache(loader, null, null, null);
+    }
+
+    private static SortedFieldCache reflectionCache() {
+        // (a cache for a different loader won't find codecs for these classes)
+        return new SortedFieldCache(ReflectionBenchmarkFieldCodecTest.class.getClassLoader(), null, null, null);
+    }
+
+    private static long timeSerialize(SortedFieldCache cache) {
+        long start = System.nanoTime();
+        serialize(cache);
+        return System.nanoTime() - start;
+    }
+
+    private static long timeDeserialize(SortedFieldCache cache) {
+        // (each instance is read back into itself, which is all we need to measure the field writes)
+        ByteBufferObjectDeserializer deserializer = new ByteBufferObjectDeserializer(ByteBuffer.wrap(serialized), instances, cache, new NullGlobalResolver(), null);
+        long start = System.nanoTime();
+        for (Object instance : instances) {
+            deserializer.automaticallyDeserializeFromRoot(rootClass, instance);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static byte[] serialize(SortedFieldCache cache) {
+        ByteBuffer buffer = ByteBuffer.allocate(spins * 128);
+        ByteBufferObjectSerializer serializer = new ByteBufferObjectSerializer(buffer, new LinkedList<>(), cache, new NullGlobalResolver(), null);
+        for (Object instance : instances) {
+            serializer.automaticallySerializeToRoot(rootClass, instance);
+        }
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+
+    private static final class NullGlobalResolver implements IGlobalResolver {
+        @Override
+        public String getAsInternalClassName(Object target) {
+            return null;
+        }
+        @Override
+        public int getAsConstant(Object target) {
+            return 0;
+        }
+        @Override
+        public Object getClassObjectForInternalName(String internalClassName) {
+            return null;
+        }
+        @Override
+        public Object getConstantForIdentifier(int constantIdentifier) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.aion.avm.core.persistence;
+
+
+/**
+ * Used within FieldCodecGeneratorTest.
+ * The nested class has the name the generated codec for this class would have, so this class must keep using reflection.
+ */
+public class FieldCodecCollisionTarget extends org.aion.avm.shadow.java.lang.Object {
+    private int i_one;
+    private long i_two;
+
+    // We need to manually define the deserialization constructor since we aren't a transformed test.
+    public FieldCodecCollisionTarget(Void ignore, int readIndex) {
+        super(ignore, readIndex);
+    }
+
+    public static class avm_codec extends org.aion.avm.shadow.java.lang.Object {
+        public avm_codec() {
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.aion.avm.core.persistence;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.core.NodeEnvironment;
+import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.util.Helpers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FieldCodecGeneratorTest {
+    private AvmClassLoader loader;
+    private Class<?> targetClass;
+    private Class<?> subClass;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Class<?> clazz : new Class<?>[] { FieldCodecTarget.class, FieldCodecTargetSub.class }) {
+            classes.put(clazz.getName(), Helpers.loadRequiredResourceAsBytes(Helpers.fulllyQualifiedNameToInternalName(clazz.getName()) + ".class"));
+        }
+        Map<String, byte[]> classesWithCodecs = FieldCodecGenerator.addFieldCodecs(classes);
+        Assert.assertEquals(4, classesWithCodecs.size());
+        Assert.assertTrue(classesWithCodecs.containsKey(FieldCodecTargetSub.class.getName() + FieldCodecGenerator.CODEC_SUFFIX));
+        
+        this.loader = NodeEnvironment.singleton.createInvocationClassLoader(classesWithCodecs);
+        this.targetClass = this.loader.loadClass(FieldCodecTarget.class.getName());
+        this.subClass = this.loader.loadClass(FieldCodecTargetSub.class.getName());
+    }
+
+    @Test
+    public void testInterfacesGetNoCodec() throws Exception {
+        String name = IFieldCodec.class.getName();
+        byte[] bytes = Helpers.loadRequiredResourceAsBytes(Helpers.fulllyQualifiedNameToInternalName(name) + ".class");
+        Map<String, byte[]> classesWithCodecs = FieldCodecGenerator.addFieldCodecs(Collections.singletonMap(name, bytes));
+        Assert.assertEquals(1, classesWithCodecs.size());
+        Assert.assertTrue(bytes == classesWithCodecs.get(name));
+    }
+
+    @Test
+    public void testSameBytesAsReflection() throws Exception {
+        Object other = this.targetClass.getConstructor(Void.class, int.class).newInstance(null, 1);
+        Object instance = populate(this.subClass.getConstructor(Void.class, int.class).newInstance(null, 2), other);
+        
+        byte[] reflected = serialize(reflectionCache(), instance);
+        byte[] generated = serialize(codecCache(), instance);
+        Assert.assertArrayEquals(reflected, generated);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Object other = this.targetClass.getConstructor(Void.class, int.class).newInstance(null, 1);
+        Object instance = populate(this.subClass.getConstructor(Void.class, int.class).newInstance(null, 2), other);
+        byte[] expected = serialize(reflectionCache(), instance);
+        
+        // Read it back through the codecs and check that the reflective path writes the same thing.
+        Object otherCopy = this.targetClass.getConstructor(Void.class, int.class).newInstance(null, 1);
+        Object copy = this.subClass.getConstructor(Void.class, int.class).newInstance(null, 2);
+        ByteBufferObjectDeserializer deserializer = new ByteBufferObjectDeserializer(ByteBuffer.wrap(expected), Collections.singletonList(otherCopy), codecCache(), new TestGlobalResolver(), null);
+        deserializer.automaticallyDeserializeFromRoot(this.targetClass.getSuperclass(), copy);
+        Assert.assertArrayEquals(expected, serialize(reflectionCache(), copy));
+        Assert.assertTrue(otherCopy == getField(this.targetClass, "i_nine", copy));
+        Assert.assertEquals(-5, getField(this.subClass, "i_five", copy));
+        Assert.assertEquals(5, getField(this.targetClass, "i_five", copy));
+    }
+
+
+    @Test
+    public void testCollidingNestedClass() throws Exception {
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Class<?> clazz : new Class<?>[] { FieldCodecCollisionTarget.class, FieldCodecCollisionTarget.avm_codec.class }) {
+            classes.put(clazz.getName(), Helpers.loadRequiredResourceAsBytes(Helpers.fulllyQualifiedNameToInternalName(clazz.getName()) + ".class"));
+        }
+        Map<String, byte[]> classesWithCodecs = FieldCodecGenerator.addFieldCodecs(classes);
+        // The DApp's own class is left as it is, rather than replaced with a codec.
+        Assert.assertTrue(classes.get(FieldCodecCollisionTarget.avm_codec.class.getName()) == classesWithCodecs.get(FieldCodecCollisionTarget.avm_codec.class.getName()));
+        
+        AvmClassLoader loader = NodeEnvironment.singleton.createInvocationClassLoader(classesWithCodecs);
+        Class<?> collisionClass = loader.loadClass(FieldCodecCollisionTarget.class.getName());
+        SortedFieldCache cache = new SortedFieldCache(loader, null, null, null);
+        Assert.assertNull(cache.getFieldCodec(collisionClass));
+        
+        // So the instance fields still go through reflection.
+        Object instance = collisionClass.getConstructor(Void.class, int.class).newInstance(null, 1);
+        setField(collisionClass, "i_one", instance, 1);
+        setField(collisionClass, "i_two", instance, 2L);
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        new ByteBufferObjectSerializer(buffer, new LinkedList<>(), cache, new TestGlobalResolver(), null).automaticallySerializeToRoot(collisionClass.getSuperclass(), instance);
+        Assert.assertEquals(Integer.BYTES + Long.BYTES, buffer.position());
+    }
+
+
+    private Object populate(Object instance, Object other) throws Exception {
+        setField(this.targetClass, "i_one", instance, true);
+        setField(this.targetClass, "i_two", instance, (byte) 2);
+        setField(this.targetClass, "i_three", instance, (short) 3);
+        setField(this.targetClass, "i_four", instance, 'a');
+        setField(this.targetClass, "i_five", instance, 5);
+        setField(this.targetClass, "i_six", instance, 6.0f);
+        setField(this.targetClass, "i_seven", instance, 7L);
+        setField(this.targetClass, "i_eight", instance, 8.0);
+        setField(this.targetClass, "i_nine", instance, other);
+        setField(this.subClass, "i_five", instance, -5);
+        setField(this.subClass, "i_ten", instance, other);
+        return instance;
+    }
+
+    private SortedFieldCache codecCache() {
+        return new SortedFieldCache(this.loader, null, null, null);
+    }
+
+    private SortedFieldCache reflectionCache() {
+        // (a cache for a different loader won't find codecs for these classes)
+        return new SortedFieldCache(FieldCodecGeneratorTest.class.getClassLoader(), null, null, null);
+    }
+
+    private byte[] serialize(SortedFieldCache cache, Object instance) {
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        ByteBufferObjectSerializer serializer = new ByteBufferObjectSerializer(buffer, new LinkedList<>(), cache, new TestGlobalResolver(), null);
+        serializer.automaticallySerializeToRoot(this.targetClass.getSuperclass(), instance);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void setField(Class<?> clazz, String name, Object instance, Object value) throws Exception {
+        Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(instance, value);
+    }
+
+    private static Object getField(Class<?> clazz, String name, Object instance) throws Exception {
+        Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(instance);
+    }
+
+
+    private static final class TestGlobalResolver implements IGlobalResolver {
+        @Override
+        public String getAsInternalClassName(Object target) {
+            return null;
+        }
+        @Override
+        public int getAsConstant(Object target) {
+            return 0;
+        }
+        @Override
+        public Object getClassObjectForInternalName(String internalClassName) {
+            return null;
+        }
+        @Override
+        public Object getConstantForIdentifier(int constantIdentifier) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.aion.avm.core.persistence;
+
+
+/**
+ * Used within FieldCodecGeneratorTest and ReflectionBenchmarkFieldCodecTest.
+ * Unlike ReflectionStructureCodecTarget, this mixes field visibilities since the generated codecs need to handle private fields.
+ */
+public class FieldCodecTarget extends org.aion.avm.shadow.java.lang.Object {
+    public static int s_one;
+
+    private boolean i_one;
+    byte i_two;
+    protected short i_three;
+    private char i_four;
+    public int i_five;
+    private float i_six;
+    private long i_seven;
+    private double i_eight;
+    private FieldCodecTarget i_nine;
+
+    // We need to manually define the deserialization constructor since we aren't a transformed test.
+    public FieldCodecTarget(Void ignore, int readIndex) {
+        super(ignore, readIndex);
+    }
+}
@@ -0,0 +1,16 @@
+package org.aion.avm.core.persistence;
+
+
+/**
+ * Used within FieldCodecGeneratorTest and ReflectionBenchmarkFieldCodecTest.
+ * Hides some of the fields of FieldCodecTarget to make sure that each class is read and written by its own codec.
+ */
+public class FieldCodecTargetSub extends FieldCodecTarget {
+    private int i_five;
+    private Object i_ten;
+
+    // We need to manually define the deserialization constructor since we aren't a transformed test.
+    public FieldCodecTargetSub(Void ignore, int readIndex) {
+        super(ignore, readIndex);
+    }
+}
@@ -511,6 +511,116 @@ public class LoadedDAppTest {
     }
 
 
+    /**
+     * Save a graph in its stored form and verify that loading it only populates the instances as they are used.
+     */
+    @Test
+    public void loadStoredGraphLazily() {
+        ReflectionStructureCodecTarget first = buildChainOfThree();
+        LoadedDAppTarget.s_nine = new org.aion.avm.shadow.java.lang.String("stored");
+        
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class, LoadedDAppTarget.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        byte[] stored = dapp.saveStoredGraph(1, MAX_GRAPH_SIZE);
+        // The stored form is just the plain graph.
+        Assert.assertArrayEquals(dapp.saveEntireGraph(1, MAX_GRAPH_SIZE), stored);
+        
+        clearStaticState();
+        int nextHashCode = dapp.loadStoredGraph(new InternedClasses(), stored.clone());
+        Assert.assertEquals(1, nextHashCode);
+        Assert.assertEquals("stored", LoadedDAppTarget.s_nine.toString());
+        
+        // Each instance is just a stub until it is loaded.
+        ReflectionStructureCodecTarget loaded = ReflectionStructureCodecTarget.s_nine;
+        Assert.assertNotNull(loaded);
+        for (int i = 1; i <= 3; ++i) {
+            Assert.assertEquals(0, loaded.i_five);
+            Assert.assertNull(loaded.i_nine);
+            loaded.lazyLoad();
+            Assert.assertEquals(i, loaded.i_five);
+            loaded = loaded.i_nine;
+        }
+        Assert.assertTrue(ReflectionStructureCodecTarget.s_nine == loaded);
+        Assert.assertTrue(first != loaded);
+    }
+
+    /**
+     * Verify that a stored graph which this LoadedDApp didn't save (so it has no offsets for it) is loaded eagerly.
+     */
+    @Test
+    public void loadStoredGraphEagerlyWhenNotSavedHere() {
+        buildChainOfThree();
+        LoadedDApp saver = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        byte[] stored = saver.saveStoredGraph(1, MAX_GRAPH_SIZE);
+        
+        clearStaticState();
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        Assert.assertEquals(1, dapp.loadStoredGraph(new InternedClasses(), stored));
+        
+        // The instances are populated without being walked.
+        Assert.assertEquals(1, ReflectionStructureCodecTarget.s_nine.i_five);
+        Assert.assertEquals(2, ReflectionStructureCodecTarget.s_nine.i_nine.i_five);
+        Assert.assertEquals(3, ReflectionStructureCodecTarget.s_nine.i_nine.i_nine.i_five);
+        Assert.assertArrayEquals(stored, dapp.saveStoredGraph(1, MAX_GRAPH_SIZE));
+    }
+
+    /**
+     * Verify that saving a graph which was only partially loaded still writes the entire graph.
+     */
+    @Test
+    public void saveStoredGraphLoadsRemainingStubs() {
+        buildChainOfThree();
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        byte[] stored = dapp.saveStoredGraph(1, MAX_GRAPH_SIZE);
+        
+        clearStaticState();
+        dapp.loadStoredGraph(new InternedClasses(), stored);
+        ReflectionStructureCodecTarget.s_nine.lazyLoad();
+        Assert.assertArrayEquals(stored, dapp.saveStoredGraph(1, MAX_GRAPH_SIZE));
+        
+        // Once they have been walked, the instances are all loaded.
+        Assert.assertEquals(3, ReflectionStructureCodecTarget.s_nine.i_nine.i_nine.i_five);
+    }
+
+    /**
+     * Verify that the graph saved by a call is only resumed once the DApp is put into the cache and only if it is still the one stored.
+     */
+    @Test
+    public void takeResidentGraphOnlyWhenUnchanged() {
+        buildChainOfThree();
+        LoadedDApp dapp = new LoadedDApp(this.loader, Arrays.asList(ReflectionStructureCodecTarget.class), ReflectionStructureCodecTarget.class.getName(), this.preserveDebuggability);
+        byte[] stored = dapp.saveStoredGraph(1, MAX_GRAPH_SIZE);
+        InternedClasses internedClasses = new InternedClasses();
+        
+        // Saving isn't enough:  the call could still fail.
+        dapp.noteSavedGraph(stored, internedClasses);
+        Assert.assertNull(dapp.takeResidentGraph(stored));
+        
+        // Once cached, the same graph can be resumed, but only once (since the next call can change the statics).
+        dapp.noteSavedGraph(stored, internedClasses);
+        dapp.cleanForCache();
+        Assert.assertTrue(internedClasses == dapp.takeResidentGraph(stored.clone()));
+        Assert.assertNull(dapp.takeResidentGraph(stored));
+        
+        // A different graph in storage means the statics don't hold it.
+        dapp.noteSavedGraph(stored, internedClasses);
+        dapp.cleanForCache();
+        Assert.assertNull(dapp.takeResidentGraph(dapp.saveStoredGraph(2, MAX_GRAPH_SIZE)));
+    }
+
+    private static ReflectionStructureCodecTarget buildChainOfThree() {
+        ReflectionStructureCodecTarget first = new ReflectionStructureCodecTarget();
+        ReflectionStructureCodecTarget second = new ReflectionStructureCodecTarget();
+        ReflectionStructureCodecTarget third = new ReflectionStructureCodecTarget();
+        first.i_five = 1;
+        first.i_nine = second;
+        second.i_five = 2;
+        second.i_nine = third;
+        third.i_five = 3;
+        third.i_nine = first;
+        ReflectionStructureCodecTarget.s_nine = first;
+        return first;
+    }
+
     private static void clearStaticState() {
         ReflectionStructureCodecTarget.s_one = false;
         ReflectionStructureCodecTarget.s_two = 0;
@@ -540,5 +650,6 @@ public class LoadedDAppTest {
         LoadedDAppTarget.s_six = 0.0f;
         LoadedDAppTarget.s_seven = 0;
         LoadedDAppTarget.s_eight = 0.0d;
+        LoadedDAppTarget.s_nine = null;
     }
 }
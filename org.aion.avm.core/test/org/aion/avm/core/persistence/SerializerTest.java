@@ -3,6 +3,7 @@ package org.aion.avm.core.persistence;
 import org.aion.avm.core.util.Helpers;
 import org.aion.avm.internal.IObjectDeserializer;
 import org.aion.avm.internal.IObjectSerializer;
+import org.aion.avm.internal.OutOfEnergyException;
 import org.aion.avm.internal.RuntimeAssertionError;
 import org.junit.Assert;
 import org.junit.Before;
@@ -12,6 +13,7 @@ import org.junit.Test;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 
 public class SerializerTest {
@@ -347,6 +349,55 @@ public class SerializerTest {
     }
 
 
+    @Test
+    public void testGrowingBuffer() throws Exception {
+        Class<?>[] sortedRoots = buildIntArraysGraph(100, 100);
+        byte[] expected = serializeIntoFixedBuffer(1_000_000, sortedRoots);
+        
+        // Start with a buffer much smaller than the graph - it should be replaced as it grows but produce the same bytes.
+        ByteBuffer initialBuffer = ByteBuffer.allocate(16);
+        ByteBuffer finalBuffer = Serializer.serializeEntireGraph(initialBuffer, 1_000_000, null, null, null, new TestGlobalResolver(), this.cache, new TestNameMapper(), 1, sortedRoots);
+        Assert.assertTrue(initialBuffer != finalBuffer);
+        Assert.assertArrayEquals(expected, Arrays.copyOf(finalBuffer.array(), finalBuffer.position()));
+    }
+
+    @Test
+    public void testGrowingBufferLimit() throws Exception {
+        Class<?>[] sortedRoots = buildIntArraysGraph(100, 100);
+        byte[] expected = serializeIntoFixedBuffer(1_000_000, sortedRoots);
+        
+        // The buffer can grow to exactly the size of the graph but no further.
+        ByteBuffer finalBuffer = Serializer.serializeEntireGraph(ByteBuffer.allocate(16), expected.length, null, null, null, new TestGlobalResolver(), this.cache, new TestNameMapper(), 1, sortedRoots);
+        Assert.assertEquals(expected.length, finalBuffer.position());
+        boolean didFail = false;
+        try {
+            Serializer.serializeEntireGraph(ByteBuffer.allocate(16), expected.length - 1, null, null, null, new TestGlobalResolver(), this.cache, new TestNameMapper(), 1, sortedRoots);
+        } catch (OutOfEnergyException e) {
+            didFail = true;
+        }
+        Assert.assertTrue(didFail);
+    }
+
+
+    private Class<?>[] buildIntArraysGraph(int objectCount, int intCount) {
+        TargetArray array = new TargetArray(objectCount);
+        TargetRoot.root = array;
+        for (int i = 0; i < objectCount; ++i) {
+            TargetIntArray intArray = new TargetIntArray(intCount);
+            for (int j = 0; j < intCount; ++j) {
+                intArray.array[j] = j;
+            }
+            array.array[i] = intArray;
+        }
+        return new Class<?>[] {TargetRoot.class, TargetLeaf.class, TargetArray.class};
+    }
+
+    private byte[] serializeIntoFixedBuffer(int size, Class<?>[] sortedRoots) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        Serializer.serializeEntireGraph(buffer, null, null, new TestGlobalResolver(), this.cache, new TestNameMapper(), 1, sortedRoots);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
     private byte[] serializeDeserializeAsNew(int nextHashCode, Class<?>[] sortedRoots) {
         ByteBuffer buffer = ByteBuffer.allocate(5_000_000);
         TestGlobalResolver resolver = new TestGlobalResolver();
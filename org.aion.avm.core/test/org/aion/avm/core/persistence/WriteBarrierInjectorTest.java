@@ -0,0 +1,187 @@
+package org.aion.avm.core.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.aion.avm.arraywrapper.CharArray;
+import org.aion.avm.arraywrapper.IntArray;
+import org.aion.avm.core.NodeEnvironment;
+import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.CommonInstrumentation;
+import org.aion.avm.internal.Helper;
+import org.aion.avm.internal.IInstrumentation;
+import org.aion.avm.internal.IRuntimeSetup;
+import org.aion.avm.internal.InstrumentationHelpers;
+import org.aion.avm.internal.InternedClasses;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+
+public class WriteBarrierInjectorTest {
+    private static final int MAX_GRAPH_SIZE = 1000;
+
+    private IInstrumentation instrumentation;
+    private Map<String, byte[]> barrieredClasses;
+    private AvmClassLoader loader;
+    private IRuntimeSetup runtimeSetup;
+    private Class<?> targetClass;
+
+    @Before
+    public void setup() throws Exception {
+        String name = WriteBarrierTarget.class.getName();
+        byte[] bytes = Helpers.loadRequiredResourceAsBytes(Helpers.fulllyQualifiedNameToInternalName(name) + ".class");
+        this.barrieredClasses = WriteBarrierInjector.addWriteBarriers(Collections.singletonMap(name, bytes));
+        this.loader = NodeEnvironment.singleton.createInvocationClassLoader(Helpers.mapIncludingHelperBytecode(this.barrieredClasses, Helpers.loadDefaultHelperBytecode()));
+        this.targetClass = this.loader.loadClass(name);
+        
+        this.instrumentation = new CommonInstrumentation();
+        InstrumentationHelpers.attachThread(this.instrumentation);
+        this.runtimeSetup = Helpers.getSetupForLoader(this.loader);
+        InstrumentationHelpers.pushNewStackFrame(this.runtimeSetup, this.loader, 1_000_000L, 1, new InternedClasses());
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationHelpers.popExistingStackFrame(this.runtimeSetup);
+        InstrumentationHelpers.detachThread(this.instrumentation);
+    }
+
+    @Test
+    public void testFieldWrites() throws Exception {
+        this.runtimeSetup.clearGraphWritten();
+        call("readStatic");
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+        call("writeStatic", 1);
+        Assert.assertTrue(this.runtimeSetup.clearGraphWritten());
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+        
+        // Just allocating an object doesn't write anything but storing it somewhere does.
+        Object instance = call("allocate");
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+        this.targetClass.getField("s_two").set(null, instance);
+        // (as though the instance had been loaded with the graph, before the call started)
+        this.runtimeSetup.resetGraphWritten(this.instrumentation.peekNextHashCode());
+        call("writeInstance", 5);
+        Assert.assertTrue(this.runtimeSetup.clearGraphWritten());
+        Assert.assertEquals(6, call("readStatic"));
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+    }
+
+    @Test
+    public void testArrayWrites() throws Exception {
+        IntArray array = new IntArray(new int[] { 1 });
+        this.runtimeSetup.clearGraphWritten();
+        Assert.assertEquals(1, this.targetClass.getMethod("readArray", IntArray.class).invoke(null, array));
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+        this.targetClass.getMethod("writeArray", IntArray.class, int.class).invoke(null, array, 2);
+        Assert.assertTrue(this.runtimeSetup.clearGraphWritten());
+        Assert.assertEquals(2, array.get(0));
+    }
+
+    @Test
+    public void testGetCharsIntoArray() throws Exception {
+        org.aion.avm.shadow.java.lang.String string = new org.aion.avm.shadow.java.lang.String(new CharArray(new char[] { 'a', 'b' }));
+        CharArray array = new CharArray(2);
+        this.runtimeSetup.clearGraphWritten();
+        this.targetClass.getMethod("copyChars", org.aion.avm.shadow.java.lang.String.class, CharArray.class).invoke(null, string, array);
+        Assert.assertTrue(this.runtimeSetup.clearGraphWritten());
+        Assert.assertEquals('b', array.get(1));
+    }
+
+    @Test
+    public void testMutatingCalls() {
+        Assert.assertTrue(WriteBarrierInjector.isMutatingCall("org/aion/avm/arraywrapper/ByteArray", "set"));
+        Assert.assertTrue(WriteBarrierInjector.isMutatingCall("org/aion/avm/internal/IObjectArray", "set"));
+        Assert.assertTrue(WriteBarrierInjector.isMutatingCall("org/aion/avm/shadow/java/lang/System", "avm_arraycopy"));
+        Assert.assertTrue(WriteBarrierInjector.isMutatingCall("org/aion/avm/shadow/java/lang/StringBuilder", "avm_toString"));
+        Assert.assertTrue(WriteBarrierInjector.isMutatingCall("org/aion/avm/shadow/java/lang/String", "avm_getChars"));
+        Assert.assertFalse(WriteBarrierInjector.isMutatingCall("org/aion/avm/arraywrapper/ByteArray", "get"));
+        Assert.assertFalse(WriteBarrierInjector.isMutatingCall("org/aion/avm/shadow/java/lang/String", "avm_length"));
+        Assert.assertFalse(WriteBarrierInjector.isMutatingCall("org/aion/avm/user/Main", "set"));
+    }
+
+    @Test
+    public void testUnchangedGraphIsNotWalked() throws Exception {
+        call("writeStatic", 5);
+        LoadedDApp dapp = new LoadedDApp(this.loader, Collections.singletonList(this.targetClass), this.targetClass.getName(), false);
+        byte[] graph = dapp.saveStoredGraph(1, MAX_GRAPH_SIZE);
+        
+        // Reading gives back the same graph, even if objects were allocated (their hash codes can be reused since they weren't stored).
+        dapp.resetWriteBarriers(this.instrumentation.peekNextHashCode());
+        call("readStatic");
+        Assert.assertTrue(graph == dapp.saveChangedGraph(graph, 1, MAX_GRAPH_SIZE));
+        call("allocate");
+        Assert.assertTrue(graph == dapp.saveChangedGraph(graph, 2, MAX_GRAPH_SIZE));
+        Assert.assertEquals(1, graph[3]);
+        
+        // Writing means the graph is serialized again.
+        dapp.resetWriteBarriers(this.instrumentation.peekNextHashCode());
+        call("writeStatic", 6);
+        byte[] written = dapp.saveChangedGraph(graph, 2, MAX_GRAPH_SIZE);
+        Assert.assertArrayEquals(dapp.saveStoredGraph(2, MAX_GRAPH_SIZE), written);
+        Assert.assertFalse(Arrays.equals(graph, written));
+    }
+
+    @Test
+    public void testWritesToNewObjects() throws Exception {
+        this.runtimeSetup.resetGraphWritten(this.instrumentation.peekNextHashCode());
+        Assert.assertEquals(2, call("writeNewObjects", 1));
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+        
+        // An object allocated after the reset can't be in the graph, even once it is passed somewhere else to be written.
+        Object instance = call("allocate");
+        this.targetClass.getMethod("writeInstanceOf", this.targetClass, int.class).invoke(null, instance, 5);
+        Assert.assertFalse(this.runtimeSetup.clearGraphWritten());
+        
+        // But one allocated before it might be.
+        this.runtimeSetup.resetGraphWritten(this.instrumentation.peekNextHashCode());
+        this.targetClass.getMethod("writeInstanceOf", this.targetClass, int.class).invoke(null, instance, 6);
+        Assert.assertTrue(this.runtimeSetup.clearGraphWritten());
+    }
+
+    @Test
+    public void testBarrierPlacement() {
+        // Writes into objects the method allocated itself (including "this" in a constructor) need no barrier.
+        Assert.assertEquals(Collections.emptyList(), barriersIn("writeNewObjects", "(I)I"));
+        Assert.assertEquals(Collections.emptyList(), barriersIn("<init>", "(I)V"));
+        // Any other field write is checked at runtime while static writes, and writes to arrays from elsewhere, always set the flag.
+        Assert.assertEquals(Collections.singletonList("markFieldWritten"), barriersIn("writeInstanceOf", "(L" + this.targetClass.getName().replace('.', '/') + ";I)V"));
+        Assert.assertEquals(Collections.singletonList("markGraphWritten"), barriersIn("writeStatic", "(I)V"));
+        Assert.assertEquals(Collections.singletonList("markGraphWritten"), barriersIn("writeArray", "(Lorg/aion/avm/arraywrapper/IntArray;I)V"));
+    }
+
+
+    private List<String> barriersIn(String methodName, String descriptor) {
+        ClassNode node = new ClassNode();
+        new ClassReader(this.barrieredClasses.get(this.targetClass.getName())).accept(node, 0);
+        MethodNode method = node.methods.stream()
+                .filter((candidate) -> candidate.name.equals(methodName) && candidate.desc.equals(descriptor))
+                .findFirst().get();
+        List<String> barriers = new ArrayList<>();
+        for (AbstractInsnNode instruction : method.instructions.toArray()) {
+            if ((instruction instanceof MethodInsnNode) && ((MethodInsnNode) instruction).owner.equals(Helper.RUNTIME_HELPER_NAME)) {
+                barriers.add(((MethodInsnNode) instruction).name);
+            }
+        }
+        return barriers;
+    }
+
+    private Object call(String methodName) throws Exception {
+        return this.targetClass.getMethod(methodName).invoke(null);
+    }
+
+    private Object call(String methodName, int argument) throws Exception {
+        return this.targetClass.getMethod(methodName, int.class).invoke(null, argument);
+    }
+}
@@ -0,0 +1,63 @@
+package org.aion.avm.core.persistence;
+
+import org.aion.avm.arraywrapper.CharArray;
+import org.aion.avm.arraywrapper.IntArray;
+
+
+/**
+ * Used within WriteBarrierInjectorTest.
+ * Note that these all must be public, due to reflection restrictions on modern JDK.
+ */
+public class WriteBarrierTarget extends org.aion.avm.shadow.java.lang.Object {
+    public static int s_one;
+    public static WriteBarrierTarget s_two;
+
+    public int i_one;
+
+    public static int readStatic() {
+        return s_one + ((null != s_two) ? s_two.i_one : 0);
+    }
+
+    public static void writeStatic(int value) {
+        s_one = value;
+    }
+
+    public static void writeInstance(int value) {
+        s_two.i_one = value;
+    }
+
+    public static WriteBarrierTarget allocate() {
+        return new WriteBarrierTarget();
+    }
+
+    public WriteBarrierTarget() {
+    }
+
+    public WriteBarrierTarget(int value) {
+        this.i_one = value;
+    }
+
+    public static int writeNewObjects(int value) {
+        WriteBarrierTarget target = new WriteBarrierTarget(value);
+        target.i_one += value;
+        IntArray array = IntArray.initArray(1);
+        array.set(0, target.i_one);
+        return array.get(0);
+    }
+
+    public static void writeInstanceOf(WriteBarrierTarget target, int value) {
+        target.i_one = value;
+    }
+
+    public static int readArray(IntArray array) {
+        return array.get(0);
+    }
+
+    public static void writeArray(IntArray array, int value) {
+        array.set(0, value);
+    }
+
+    public static void copyChars(org.aion.avm.shadow.java.lang.String string, CharArray array) {
+        string.avm_getChars(0, string.avm_length(), array, 0);
+    }
+}
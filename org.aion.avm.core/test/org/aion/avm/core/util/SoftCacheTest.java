@@ -32,4 +32,34 @@ public class SoftCacheTest {
         }
         Assert.assertNull(cache.checkout(key1));
     }
+
+    /**
+     * Checks in an entry with checkinIfAbsent() and fills the cache until its value has been collected, as above.
+     * It then verifies that checkinIfAbsent() replaces the cleared entry but still keeps one which is live.
+     */
+    @Test
+    public void testCheckinIfAbsentAfterClear() throws Exception {
+        SoftCache<String, byte[]> cache = new SoftCache<>();
+        byte[] element1 = new byte[64 * 1024];
+        String key1 = "element1";
+        ReferenceQueue<byte[]> queue = new ReferenceQueue<>();
+        PhantomReference<byte[]> watcher = new PhantomReference<>(element1, queue);
+        cache.checkinIfAbsent(key1, element1);
+        Assert.assertEquals(element1, cache.get(key1));
+        element1 = null;
+        int i = 0;
+        while (watcher != queue.poll()) {
+            String key = "key_" + i;
+            byte[] value = new byte[64 * 1024];
+            cache.checkin(key, value);
+            i += 1;
+        }
+        Assert.assertNull(cache.get(key1));
+        
+        byte[] element2 = new byte[1];
+        cache.checkinIfAbsent(key1, element2);
+        Assert.assertEquals(element2, cache.get(key1));
+        cache.checkinIfAbsent(key1, new byte[1]);
+        Assert.assertEquals(element2, cache.get(key1));
+    }
 }
@@ -0,0 +1,109 @@
+package org.aion.avm.kernel;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.BlockWriteBackKernel;
+import org.aion.kernel.TestingKernel;
+import org.aion.kernel.TransactionalKernel;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class BlockWriteBackKernelTest {
+    @Test
+    public void testCommitsMergedUntilWriteBack() {
+        TestingKernel base = new TestingKernel();
+        BlockWriteBackKernel block = new BlockWriteBackKernel(base);
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] value1 = Helpers.randomBytes(32);
+        byte[] value2 = Helpers.randomBytes(32);
+
+        TransactionalKernel first = block.makeChildKernelInterface();
+        first.adjustBalance(address, BigInteger.valueOf(10L));
+        first.putStorage(address, key, value1);
+        first.commit();
+
+        // The next transaction sees the first one's writes, through the block.
+        TransactionalKernel second = block.makeChildKernelInterface();
+        Assert.assertEquals(BigInteger.valueOf(10L), second.getBalance(address));
+        Assert.assertTrue(Arrays.equals(value1, second.getStorage(address, key)));
+        second.adjustBalance(address, BigInteger.valueOf(5L));
+        second.putStorage(address, key, value2);
+        second.commit();
+
+        // Prove nothing is written back yet.
+        Assert.assertEquals(BigInteger.valueOf(15L), block.getBalance(address));
+        Assert.assertEquals(BigInteger.ZERO, base.getBalance(address));
+        Assert.assertNull(base.getStorage(address, key));
+
+        // Now, write back and prove only the net result landed.
+        block.commit();
+        Assert.assertEquals(BigInteger.valueOf(15L), base.getBalance(address));
+        Assert.assertTrue(Arrays.equals(value2, base.getStorage(address, key)));
+
+        // The block can keep going after a write back.
+        TransactionalKernel third = block.makeChildKernelInterface();
+        third.adjustBalance(address, BigInteger.valueOf(-15L));
+        third.commit();
+        Assert.assertEquals(BigInteger.ZERO, block.getBalance(address));
+        Assert.assertEquals(BigInteger.valueOf(15L), base.getBalance(address));
+        block.commit();
+        Assert.assertEquals(BigInteger.ZERO, base.getBalance(address));
+    }
+
+    @Test
+    public void testChecksSeeBufferedWrites() {
+        TestingKernel base = new TestingKernel();
+        BlockWriteBackKernel block = new BlockWriteBackKernel(base);
+        Address address = Helpers.randomAddress();
+
+        TransactionalKernel transaction = block.makeChildKernelInterface();
+        transaction.incrementNonce(address);
+        transaction.adjustBalance(address, BigInteger.valueOf(100L));
+        transaction.commit();
+
+        // A later transaction's nonce and balance checks must see the buffered writes, not what the base still has.
+        TransactionalKernel next = block.makeChildKernelInterface();
+        Assert.assertTrue(next.accountNonceEquals(address, BigInteger.ONE));
+        Assert.assertFalse(base.accountNonceEquals(address, BigInteger.ONE));
+        Assert.assertTrue(next.accountBalanceIsAtLeast(address, BigInteger.valueOf(100L)));
+        Assert.assertFalse(next.accountBalanceIsAtLeast(address, BigInteger.valueOf(101L)));
+
+        block.commit();
+        Assert.assertTrue(base.accountNonceEquals(address, BigInteger.ONE));
+    }
+
+    @Test
+    public void testNonceAddsToParentNonce() {
+        TestingKernel base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        for (int i = 0; i < 5; ++i) {
+            base.incrementNonce(address);
+        }
+        BlockWriteBackKernel block = new BlockWriteBackKernel(base);
+
+        TransactionalKernel transaction = block.makeChildKernelInterface();
+        Assert.assertEquals(BigInteger.valueOf(5L), transaction.getNonce(address));
+        transaction.incrementNonce(address);
+        Assert.assertEquals(BigInteger.valueOf(6L), transaction.getNonce(address));
+        transaction.commit();
+
+        // The buffered increment is on top of the nonce the account had before the block.
+        Assert.assertEquals(BigInteger.valueOf(6L), block.getNonce(address));
+        Assert.assertTrue(block.accountNonceEquals(address, BigInteger.valueOf(6L)));
+        Assert.assertFalse(block.accountNonceEquals(address, BigInteger.ONE));
+        TransactionalKernel next = block.makeChildKernelInterface();
+        Assert.assertTrue(next.accountNonceEquals(address, BigInteger.valueOf(6L)));
+        next.incrementNonce(address);
+        next.commit();
+        Assert.assertEquals(BigInteger.valueOf(7L), block.getNonce(address));
+        Assert.assertEquals(BigInteger.valueOf(5L), base.getNonce(address));
+
+        block.commit();
+        Assert.assertEquals(BigInteger.valueOf(7L), base.getNonce(address));
+    }
+}
@@ -0,0 +1,112 @@
+package org.aion.avm.kernel;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.PersistentStateKernel;
+import org.aion.kernel.TransactionalKernel;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PersistentStateKernelTest {
+    @Test
+    public void testForksDoNotSeeEachOther() {
+        PersistentStateKernel kernel = new PersistentStateKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        kernel.adjustBalance(address, BigInteger.TEN);
+        kernel.putStorage(address, key, new byte[] { 1 });
+
+        PersistentStateKernel left = kernel.fork();
+        PersistentStateKernel right = kernel.fork();
+        left.adjustBalance(address, BigInteger.ONE);
+        left.putStorage(address, key, new byte[] { 2 });
+        right.deleteAccount(address);
+        kernel.incrementNonce(address);
+
+        Assert.assertEquals(BigInteger.valueOf(11), left.getBalance(address));
+        Assert.assertEquals(2, left.getStorage(address, key)[0]);
+        Assert.assertEquals(BigInteger.ZERO, left.getNonce(address));
+        Assert.assertFalse(right.hasAccountState(address));
+        Assert.assertNull(right.getStorage(address, key));
+        Assert.assertEquals(BigInteger.TEN, kernel.getBalance(address));
+        Assert.assertEquals(1, kernel.getStorage(address, key)[0]);
+        Assert.assertEquals(BigInteger.ONE, kernel.getNonce(address));
+    }
+
+    @Test
+    public void testRestoreSnapshot() {
+        PersistentStateKernel kernel = new PersistentStateKernel();
+        Address address = Helpers.randomAddress();
+        kernel.putObjectGraph(address, new byte[] { 1 });
+        PersistentStateKernel.Snapshot snapshot = kernel.snapshot();
+
+        // Commit a transaction on top of the kernel and then roll the whole thing back.
+        TransactionalKernel transaction = new TransactionalKernel(kernel);
+        transaction.putObjectGraph(address, new byte[] { 2 });
+        transaction.createAccount(Helpers.randomAddress());
+        transaction.commit();
+        Assert.assertEquals(2, kernel.getObjectGraph(address)[0]);
+        Assert.assertEquals(2, kernel.snapshot().accountCount());
+
+        kernel.restore(snapshot);
+        Assert.assertEquals(1, kernel.getObjectGraph(address)[0]);
+        Assert.assertEquals(1, kernel.snapshot().accountCount());
+        // A kernel started from the snapshot sees the same state.
+        Assert.assertEquals(1, new PersistentStateKernel(snapshot).getObjectGraph(address)[0]);
+    }
+
+    @Test
+    public void testManyAccountsAndKeys() {
+        PersistentStateKernel kernel = new PersistentStateKernel();
+        Address[] addresses = new Address[2000];
+        for (int i = 0; i < addresses.length; ++i) {
+            addresses[i] = Helpers.randomAddress();
+            kernel.adjustBalance(addresses[i], BigInteger.valueOf(i));
+        }
+        Address storageAddress = addresses[0];
+        for (int i = 0; i < 2000; ++i) {
+            kernel.putStorage(storageAddress, toBytes(i), toBytes(i));
+        }
+        // These two keys have the same hashCode.
+        kernel.putStorage(storageAddress, new byte[] { 0, 31 }, new byte[] { 1 });
+        kernel.putStorage(storageAddress, new byte[] { 1, 0 }, new byte[] { 2 });
+        PersistentStateKernel.Snapshot before = kernel.snapshot();
+
+        // Remove half of everything.
+        for (int i = 0; i < addresses.length; i += 2) {
+            kernel.deleteAccount(addresses[i + 1]);
+            kernel.removeStorage(storageAddress, toBytes(i));
+        }
+        kernel.putStorage(storageAddress, new byte[] { 0, 31 }, null);
+
+        Assert.assertEquals(addresses.length / 2, kernel.snapshot().accountCount());
+        for (int i = 0; i < addresses.length; ++i) {
+            Assert.assertEquals((0 == (i % 2)), kernel.hasAccountState(addresses[i]));
+            Assert.assertEquals((0 == (i % 2)) ? null : i, toInteger(kernel.getStorage(storageAddress, toBytes(i))));
+        }
+        Assert.assertNull(kernel.getStorage(storageAddress, new byte[] { 0, 31 }));
+        Assert.assertEquals(2, kernel.getStorage(storageAddress, new byte[] { 1, 0 })[0]);
+
+        // The snapshot is unchanged.
+        PersistentStateKernel old = new PersistentStateKernel(before);
+        Assert.assertEquals(addresses.length, before.accountCount());
+        for (int i = 0; i < addresses.length; ++i) {
+            Assert.assertEquals(BigInteger.valueOf(i), old.getBalance(addresses[i]));
+            Assert.assertEquals(Integer.valueOf(i), toInteger(old.getStorage(storageAddress, toBytes(i))));
+        }
+        Assert.assertEquals(1, old.getStorage(storageAddress, new byte[] { 0, 31 })[0]);
+    }
+
+
+    private static byte[] toBytes(int value) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+    }
+
+    private static Integer toInteger(byte[] bytes) {
+        return (null != bytes) ? ByteBuffer.wrap(bytes).getInt() : null;
+    }
+}
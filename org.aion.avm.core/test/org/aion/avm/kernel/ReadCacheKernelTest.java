@@ -0,0 +1,122 @@
+package org.aion.avm.kernel;
+
+import java.util.Arrays;
+
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.ReadCacheKernel;
+import org.aion.kernel.TestingKernel;
+import org.aion.kernel.TransactionalKernel;
+import org.aion.types.Address;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ReadCacheKernelTest {
+    @Test
+    public void testReadsAcrossTransactionsHitCache() {
+        CountingKernel base = new CountingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] code = Helpers.randomBytes(32);
+        byte[] graph = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        byte[] value = Helpers.randomBytes(32);
+        base.setTransformedCode(address, code);
+        base.putObjectGraph(address, graph);
+        base.putStorage(address, key, value);
+        ReadCacheKernel cache = new ReadCacheKernel(base, 1024 * 1024);
+
+        for (int i = 0; i < 3; ++i) {
+            TransactionalKernel transaction = cache.makeChildKernelInterface();
+            Assert.assertTrue(Arrays.equals(code, transaction.getTransformedCode(address)));
+            Assert.assertTrue(Arrays.equals(graph, transaction.getObjectGraph(address)));
+            Assert.assertTrue(Arrays.equals(value, transaction.getStorage(address, key)));
+            // Values the base doesn't have are cached, too.
+            Assert.assertNull(transaction.getStorage(address, new byte[] { 1 }));
+        }
+        Assert.assertEquals(1, base.codeReads);
+        Assert.assertEquals(1, base.graphReads);
+        Assert.assertEquals(2, base.storageReads);
+    }
+
+    @Test
+    public void testCommittedWritesReplaceCachedValues() {
+        CountingKernel base = new CountingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        base.putObjectGraph(address, new byte[] { 1 });
+        ReadCacheKernel cache = new ReadCacheKernel(base, 1024 * 1024);
+        Assert.assertEquals(1, cache.getObjectGraph(address)[0]);
+        Assert.assertNull(cache.getStorage(address, key));
+
+        TransactionalKernel transaction = cache.makeChildKernelInterface();
+        transaction.putObjectGraph(address, new byte[] { 2 });
+        transaction.putStorage(address, key, new byte[] { 3 });
+        transaction.commit();
+
+        // The writes went through to the base and the cache serves them without reading it again.
+        Assert.assertEquals(2, base.getObjectGraph(address)[0]);
+        int graphReads = base.graphReads;
+        Assert.assertEquals(2, cache.getObjectGraph(address)[0]);
+        Assert.assertEquals(3, cache.getStorage(address, key)[0]);
+        Assert.assertEquals(graphReads, base.graphReads);
+        Assert.assertEquals(1, base.storageReads);
+
+        // Deleting the account drops what was cached for it.
+        TransactionalKernel delete = cache.makeChildKernelInterface();
+        delete.deleteAccount(address);
+        delete.commit();
+        Assert.assertNull(cache.getObjectGraph(address));
+        Assert.assertNull(cache.getStorage(address, key));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverBound() {
+        CountingKernel base = new CountingKernel();
+        Address first = Helpers.randomAddress();
+        Address second = Helpers.randomAddress();
+        base.putObjectGraph(first, new byte[600]);
+        base.putObjectGraph(second, new byte[600]);
+        // Room for one of these graphs, but not both.
+        ReadCacheKernel cache = new ReadCacheKernel(base, 1024);
+
+        cache.getObjectGraph(first);
+        cache.getObjectGraph(first);
+        Assert.assertEquals(1, base.graphReads);
+        cache.getObjectGraph(second);
+        cache.getObjectGraph(second);
+        Assert.assertEquals(2, base.graphReads);
+        // The first was evicted to make room for the second.
+        cache.getObjectGraph(first);
+        Assert.assertEquals(3, base.graphReads);
+
+        // Clearing drops everything.
+        cache.clear();
+        cache.getObjectGraph(first);
+        Assert.assertEquals(4, base.graphReads);
+    }
+
+
+    private static class CountingKernel extends TestingKernel {
+        public int codeReads;
+        public int graphReads;
+        public int storageReads;
+
+        @Override
+        public byte[] getTransformedCode(Address address) {
+            this.codeReads += 1;
+            return super.getTransformedCode(address);
+        }
+
+        @Override
+        public byte[] getObjectGraph(Address address) {
+            this.graphReads += 1;
+            return super.getObjectGraph(address);
+        }
+
+        @Override
+        public byte[] getStorage(Address address, byte[] key) {
+            this.storageReads += 1;
+            return super.getStorage(address, key);
+        }
+    }
+}
@@ -88,6 +88,22 @@ public class TransactionalKernelTest {
         Assert.assertEquals(BigInteger.ONE, base.getBalance(address2));
     }
 
+    @Test
+    public void testAdjustmentIsRelativeToParent() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        base.adjustBalance(address, BigInteger.ONE);
+        
+        // Adjusting the balance doesn't snapshot the parent's balance so later changes to it are still visible.
+        TransactionalKernel transaction = new TransactionalKernel(base);
+        transaction.adjustBalance(address, BigInteger.TEN);
+        base.adjustBalance(address, BigInteger.TWO);
+        Assert.assertEquals(BigInteger.valueOf(13L), transaction.getBalance(address));
+        
+        transaction.commit();
+        Assert.assertEquals(BigInteger.valueOf(13L), base.getBalance(address));
+    }
+
     @Test
     public void testCommitDelete() {
         KernelInterface base = new TestingKernel();
@@ -130,4 +146,137 @@ public class TransactionalKernelTest {
         transaction.commit();
         Assert.assertEquals(BigInteger.TWO, base.getBalance(address));
     }
+
+    @Test
+    public void testCommitCoalescedWrites() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        
+        // Repeated writes are coalesced but each is still visible to the next read.
+        TransactionalKernel transaction = new TransactionalKernel(base);
+        byte[] value = null;
+        for (int i = 0; i < 500; ++i) {
+            value = Helpers.randomBytes(32);
+            transaction.putStorage(address, key, value);
+            transaction.adjustBalance(address, BigInteger.TWO);
+            Assert.assertTrue(Arrays.equals(value, transaction.getStorage(address, key)));
+        }
+        transaction.adjustBalance(address, BigInteger.valueOf(-100L));
+        transaction.incrementNonce(address);
+        transaction.incrementNonce(address);
+        Assert.assertEquals(BigInteger.valueOf(900L), transaction.getBalance(address));
+        Assert.assertEquals(BigInteger.TWO, transaction.getNonce(address));
+        
+        // Now, commit through a nested kernel and prove the net result is written back.
+        TransactionalKernel parent = new TransactionalKernel(base);
+        transaction = parent.makeChildKernelInterface();
+        transaction.putStorage(address, key, value);
+        transaction.adjustBalance(address, BigInteger.valueOf(900L));
+        transaction.incrementNonce(address);
+        transaction.incrementNonce(address);
+        transaction.commit();
+        Assert.assertNull(base.getStorage(address, key));
+        parent.commit();
+        Assert.assertTrue(Arrays.equals(value, base.getStorage(address, key)));
+        Assert.assertEquals(BigInteger.valueOf(900L), base.getBalance(address));
+        Assert.assertEquals(BigInteger.TWO, base.getNonce(address));
+    }
+
+    @Test
+    public void testCommitOnlyWritesAfterDelete() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] key2 = Helpers.randomBytes(32);
+        base.putStorage(address, key1, Helpers.randomBytes(32));
+        
+        TransactionalKernel transaction = new TransactionalKernel(base);
+        transaction.putStorage(address, key1, Helpers.randomBytes(32));
+        transaction.incrementNonce(address);
+        transaction.deleteAccount(address);
+        Assert.assertFalse(transaction.hasAccountState(address));
+        byte[] value2 = Helpers.randomBytes(32);
+        transaction.putStorage(address, key2, value2);
+        transaction.adjustBalance(address, BigInteger.valueOf(3L));
+        Assert.assertTrue(transaction.hasAccountState(address));
+        Assert.assertEquals(BigInteger.valueOf(3L), transaction.getBalance(address));
+        
+        // The delete is applied first so neither the base's storage nor our writes from before it survive.
+        transaction.commit();
+        Assert.assertNull(base.getStorage(address, key1));
+        Assert.assertTrue(Arrays.equals(value2, base.getStorage(address, key2)));
+        Assert.assertEquals(BigInteger.valueOf(3L), base.getBalance(address));
+        Assert.assertEquals(BigInteger.ZERO, base.getNonce(address));
+    }
+
+    @Test
+    public void testNonceIncrementsAddToBase() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        base.incrementNonce(address);
+        base.incrementNonce(address);
+        
+        // Each level only counts its own increments so the nonce is the base's plus those of every kernel on the lineage.
+        TransactionalKernel parent = new TransactionalKernel(base);
+        parent.incrementNonce(address);
+        TransactionalKernel child = parent.makeChildKernelInterface();
+        Assert.assertEquals(BigInteger.valueOf(3L), child.getNonce(address));
+        child.incrementNonce(address);
+        Assert.assertEquals(BigInteger.valueOf(4L), child.getNonce(address));
+        Assert.assertEquals(BigInteger.valueOf(3L), parent.getNonce(address));
+        child.commit();
+        Assert.assertEquals(BigInteger.valueOf(4L), parent.getNonce(address));
+        parent.commit();
+        Assert.assertEquals(BigInteger.valueOf(4L), base.getNonce(address));
+    }
+
+    @Test
+    public void testNestedReadsSeeLineageOnly() {
+        KernelInterface base = new TestingKernel();
+        Address address = Helpers.randomAddress();
+        byte[] key = Helpers.randomBytes(32);
+        byte[] baseValue = Helpers.randomBytes(32);
+        base.putStorage(address, key, baseValue);
+        base.adjustBalance(address, BigInteger.ONE);
+        
+        // Build a deep chain where only some levels write to the account.
+        TransactionalKernel root = new TransactionalKernel(base);
+        root.adjustBalance(address, BigInteger.TEN);
+        TransactionalKernel kernel = root;
+        for (int i = 0; i < 9; ++i) {
+            kernel = kernel.makeChildKernelInterface();
+            if (0 == (i % 3)) {
+                kernel.adjustBalance(address, BigInteger.ONE);
+            }
+        }
+        Assert.assertEquals(BigInteger.valueOf(14L), kernel.getBalance(address));
+        Assert.assertTrue(Arrays.equals(baseValue, kernel.getStorage(address, key)));
+        
+        // An abandoned child's writes aren't seen by its parent or by the sibling which replaces it.
+        TransactionalKernel parent = kernel;
+        TransactionalKernel abandoned = parent.makeChildKernelInterface();
+        byte[] abandonedValue = Helpers.randomBytes(32);
+        abandoned.putStorage(address, key, abandonedValue);
+        abandoned.adjustBalance(address, BigInteger.TEN);
+        Assert.assertTrue(Arrays.equals(abandonedValue, abandoned.getStorage(address, key)));
+        Assert.assertTrue(Arrays.equals(baseValue, parent.getStorage(address, key)));
+        TransactionalKernel sibling = parent.makeChildKernelInterface();
+        Assert.assertTrue(Arrays.equals(baseValue, sibling.getStorage(address, key)));
+        Assert.assertEquals(BigInteger.valueOf(14L), sibling.getBalance(address));
+        
+        // Writes made by an ancestor while a child is running are seen by the child.
+        root.incrementNonce(address);
+        Assert.assertEquals(BigInteger.ONE, sibling.getNonce(address));
+        
+        // A committed child's writes are seen by its parent exactly once.
+        byte[] siblingValue = Helpers.randomBytes(32);
+        sibling.putStorage(address, key, siblingValue);
+        sibling.adjustBalance(address, BigInteger.TWO);
+        sibling.commit();
+        Assert.assertTrue(Arrays.equals(siblingValue, parent.getStorage(address, key)));
+        Assert.assertEquals(BigInteger.valueOf(16L), parent.getBalance(address));
+        TransactionalKernel next = parent.makeChildKernelInterface();
+        Assert.assertEquals(BigInteger.valueOf(16L), next.getBalance(address));
+    }
 }
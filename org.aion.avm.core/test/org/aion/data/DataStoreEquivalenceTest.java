@@ -0,0 +1,126 @@
+package org.aion.data;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Checks that the {@link IDataStore} implementations agree on a mix of reads and writes shaped like what running transactions does
+ * to the store:  mostly storage reads, then balance and graph reads, with a smaller share of writes.
+ * Every store is given the same (seeded) sequence of operations and must read the same data, both along the way and at the end.
+ */
+public class DataStoreEquivalenceTest {
+    private static final int ACCOUNT_COUNT = 50;
+    private static final int KEYS_PER_ACCOUNT = 8;
+    private static final int OPERATION_COUNT = 5_000;
+    private static final int CODE_BYTES = 4 * 1024;
+    private static final int GRAPH_BYTES = 2 * 1024;
+    private static final long SEED = 42L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoresReadTheSameData() throws Exception {
+        File directoryRoot = folder.newFolder();
+        File logRoot = folder.newFolder();
+        File mappedRoot = folder.newFolder();
+        long memory = run(() -> new MemoryBackedDataStore());
+        long directory = run(() -> new DirectoryBackedDataStore(directoryRoot));
+        LogStructuredDataStore[] logStore = new LogStructuredDataStore[1];
+        long log = run(() -> {
+            logStore[0] = new LogStructuredDataStore(logRoot);
+            return logStore[0];
+        });
+        logStore[0].close();
+        MappedDataStore[] mappedStore = new MappedDataStore[1];
+        long mapped = run(() -> {
+            mappedStore[0] = new MappedDataStore(mappedRoot);
+            return mappedStore[0];
+        });
+        mappedStore[0].close();
+
+        // The same operations must have read the same data from each store.
+        Assert.assertEquals(memory, directory);
+        Assert.assertEquals(memory, log);
+        Assert.assertEquals(memory, mapped);
+    }
+
+
+    // Returns a checksum of everything read.
+    private static long run(Supplier<IDataStore> factory) {
+        Random random = new Random(SEED);
+        byte[][] addresses = new byte[ACCOUNT_COUNT][];
+        byte[][][] keys = new byte[ACCOUNT_COUNT][KEYS_PER_ACCOUNT][];
+        for (int i = 0; i < ACCOUNT_COUNT; ++i) {
+            addresses[i] = bytes(random, 32);
+            for (int j = 0; j < KEYS_PER_ACCOUNT; ++j) {
+                keys[i][j] = bytes(random, 32);
+            }
+        }
+
+        IDataStore store = factory.get();
+        for (int i = 0; i < ACCOUNT_COUNT; ++i) {
+            IAccountStore account = store.createAccount(addresses[i]);
+            account.setCode(bytes(random, CODE_BYTES));
+            account.setTransformedCode(bytes(random, CODE_BYTES));
+            account.setObjectGraph(bytes(random, GRAPH_BYTES));
+            account.setBalance(BigInteger.valueOf(random.nextInt(1_000_000)));
+            account.setNonce(0L);
+            for (int j = 0; j < KEYS_PER_ACCOUNT; ++j) {
+                account.setData(keys[i][j], bytes(random, 32));
+            }
+        }
+
+        long checksum = 0L;
+        for (int i = 0; i < OPERATION_COUNT; ++i) {
+            int accountIndex = random.nextInt(ACCOUNT_COUNT);
+            IAccountStore account = store.openAccount(addresses[accountIndex]);
+            byte[] key = keys[accountIndex][random.nextInt(KEYS_PER_ACCOUNT)];
+            int operation = random.nextInt(100);
+            if (operation < 50) {
+                checksum = 31 * checksum + Arrays.hashCode(account.getData(key));
+            } else if (operation < 65) {
+                checksum = 31 * checksum + account.getBalance().hashCode();
+            } else if (operation < 75) {
+                checksum = 31 * checksum + Arrays.hashCode(account.getObjectGraph());
+            } else if (operation < 80) {
+                checksum = 31 * checksum + Arrays.hashCode(account.getTransformedCode());
+            } else if (operation < 90) {
+                account.setData(key, bytes(random, 32));
+            } else if (operation < 95) {
+                // A transaction's sender:  balance and nonce.
+                account.setBalance(account.getBalance().subtract(BigInteger.ONE));
+                account.setNonce(account.getNonce() + 1);
+            } else {
+                account.setObjectGraph(bytes(random, GRAPH_BYTES));
+            }
+        }
+
+        // Then everything the operations could have written.
+        for (int i = 0; i < ACCOUNT_COUNT; ++i) {
+            IAccountStore account = store.openAccount(addresses[i]);
+            checksum = 31 * checksum + account.getBalance().hashCode();
+            checksum = 31 * checksum + Long.hashCode(account.getNonce());
+            checksum = 31 * checksum + Arrays.hashCode(account.getObjectGraph());
+            for (int j = 0; j < KEYS_PER_ACCOUNT; ++j) {
+                checksum = 31 * checksum + Arrays.hashCode(account.getData(keys[i][j]));
+            }
+        }
+        return checksum;
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -3,7 +3,10 @@ package org.aion.data;
 import java.io.File;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import org.aion.avm.core.util.ByteArrayWrapper;
 import org.aion.avm.core.util.Helpers;
@@ -57,15 +60,106 @@ public class DirectoryBackedDataStoreTest {
         
         // Check the directory layout contains places for this.
         File[] underTop = storage.listFiles();
-        // This is the 1 account we created.
-        Assert.assertEquals(1, underTop.length);
+        // This is the 1 account we created and the directory of shared code.
+        Assert.assertEquals(2, underTop.length);
         
-        File[] underAccount = underTop[0].listFiles();
+        File[] underAccount = new File(storage, "account_" + Helpers.bytesToHexString(address1)).listFiles();
         // We should see 5, here
         Assert.assertEquals(5, underAccount.length);
         
         // Make sure that the cleanup works correctly.
         store.deleteAccount(address1);
-        Assert.assertEquals(0, storage.listFiles().length);
+        Assert.assertEquals(1, storage.listFiles().length);
+        Assert.assertEquals(0, new File(storage, "transformed_code").listFiles().length);
+    }
+
+    @Test
+    public void testSharedTransformedCode() throws Exception {
+        File storage = folder.newFolder();
+        DirectoryBackedDataStore store = new DirectoryBackedDataStore(storage);
+        File codeDirectory = new File(storage, "transformed_code");
+        
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] address2 = Helpers.randomBytes(32);
+        byte[] code1 = Helpers.randomBytes(100);
+        byte[] code2 = Helpers.randomBytes(100);
+        store.createAccount(address1).setTransformedCode(code1);
+        store.createAccount(address2).setTransformedCode(code1.clone());
+        
+        // The code is only stored once (with its reference count).
+        Assert.assertEquals(2, codeDirectory.listFiles().length);
+        Assert.assertTrue(Arrays.equals(code1, store.openAccount(address2).getTransformedCode()));
+        
+        // Deleting one account leaves the code for the other.
+        store.deleteAccount(address1);
+        Assert.assertTrue(Arrays.equals(code1, store.openAccount(address2).getTransformedCode()));
+        
+        // Setting the same code again keeps it, while replacing it with new code drops the old.
+        IAccountStore account2 = store.openAccount(address2);
+        account2.setTransformedCode(code1);
+        Assert.assertTrue(Arrays.equals(code1, account2.getTransformedCode()));
+        account2.setTransformedCode(code2);
+        Assert.assertTrue(Arrays.equals(code2, account2.getTransformedCode()));
+        Assert.assertEquals(2, codeDirectory.listFiles().length);
+        
+        // A new instance of the store sees the same code.
+        store = new DirectoryBackedDataStore(storage);
+        Assert.assertTrue(Arrays.equals(code2, store.openAccount(address2).getTransformedCode()));
+        store.deleteAccount(address2);
+        Assert.assertEquals(0, codeDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testGraphOnlyRewritesChangedChunks() throws Exception {
+        File storage = folder.newFolder();
+        DirectoryBackedDataStore store = new DirectoryBackedDataStore(storage);
+        byte[] address = Helpers.randomBytes(32);
+        File accountDirectory = new File(storage, "account_" + Helpers.bytesToHexString(address));
+        IAccountStore account = store.createAccount(address);
+        
+        // (seeded so that where the chunks fall is the same every time)
+        byte[] graph = new byte[100 * 1024];
+        new Random(42L).nextBytes(graph);
+        account.setObjectGraph(graph);
+        Assert.assertTrue(Arrays.equals(graph, account.getObjectGraph()));
+        Set<String> chunks = chunkNames(accountDirectory);
+        Assert.assertTrue(chunks.size() > 10);
+        
+        // Changing one byte only replaces the chunk holding it.
+        byte[] changed = graph.clone();
+        changed[50 * 1024] += 1;
+        account.setObjectGraph(changed);
+        Assert.assertTrue(Arrays.equals(changed, store.openAccount(address).getObjectGraph()));
+        Set<String> changedChunks = chunkNames(accountDirectory);
+        Assert.assertEquals(chunks.size(), changedChunks.size());
+        changedChunks.removeAll(chunks);
+        Assert.assertEquals(1, changedChunks.size());
+        
+        // Inserting bytes only replaces the chunks around them, not everything after them.
+        byte[] grown = new byte[changed.length + 100];
+        System.arraycopy(changed, 0, grown, 0, 1024);
+        System.arraycopy(changed, 1024, grown, 1124, changed.length - 1024);
+        account.setObjectGraph(grown);
+        Assert.assertTrue(Arrays.equals(grown, account.getObjectGraph()));
+        Set<String> grownChunks = chunkNames(accountDirectory);
+        grownChunks.removeAll(chunks);
+        Assert.assertTrue(grownChunks.size() <= 3);
+        
+        // An empty graph is still a graph.
+        account.setObjectGraph(new byte[0]);
+        Assert.assertEquals(0, account.getObjectGraph().length);
+        Assert.assertEquals(0, chunkNames(accountDirectory).size());
+        store.deleteAccount(address);
+    }
+
+
+    private static Set<String> chunkNames(File accountDirectory) {
+        Set<String> names = new HashSet<>();
+        for (String name : accountDirectory.list()) {
+            if (name.startsWith("graph_chunk_")) {
+                names.add(name);
+            }
+        }
+        return names;
     }
 }
@@ -0,0 +1,136 @@
+package org.aion.data;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.aion.avm.core.util.ByteArrayWrapper;
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+
+public class LogStructuredDataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSmallAccount() throws Exception {
+        File storage = folder.newFolder();
+        LogStructuredDataStore store = new LogStructuredDataStore(storage);
+
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] code1 = Helpers.randomBytes(100);
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] value1 = Helpers.randomBytes(100);
+        IAccountStore account1 = store.createAccount(address1);
+        Assert.assertNull(store.createAccount(address1));
+        account1.setTransformedCode(code1);
+        account1.setBalance(BigInteger.ONE);
+        account1.setNonce(2L);
+        account1.setData(key1, value1);
+
+        account1 = store.openAccount(address1);
+        Assert.assertTrue(Arrays.equals(code1, account1.getTransformedCode()));
+        Assert.assertEquals(BigInteger.ONE, account1.getBalance());
+        Assert.assertEquals(2L, account1.getNonce());
+        Assert.assertTrue(Arrays.equals(value1, account1.getData(key1)));
+        Assert.assertNull(account1.getObjectGraph());
+
+        // Overwrite a key and add another.
+        byte[] value1_2 = Helpers.randomBytes(10);
+        account1.setData(key1, value1_2);
+        byte[] key2 = Helpers.randomBytes(32);
+        byte[] value2 = Helpers.randomBytes(50);
+        account1.setData(key2, value2);
+        Map<ByteArrayWrapper, byte[]> testing = account1.getStorageEntries();
+        Assert.assertEquals(2, testing.size());
+        Assert.assertTrue(Arrays.equals(value1_2, testing.get(new ByteArrayWrapper(key1))));
+        Assert.assertTrue(Arrays.equals(value2, testing.get(new ByteArrayWrapper(key2))));
+
+        // Everything lives in the one log file.
+        Assert.assertEquals(1, storage.listFiles().length);
+
+        store.deleteAccount(address1);
+        Assert.assertNull(store.openAccount(address1));
+        store.close();
+    }
+
+    @Test
+    public void testReopenReplaysLog() throws Exception {
+        File storage = folder.newFolder();
+        LogStructuredDataStore store = new LogStructuredDataStore(storage);
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] address2 = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        byte[] graph = Helpers.randomBytes(1000);
+        IAccountStore account1 = store.createAccount(address1);
+        account1.setObjectGraph(graph);
+        account1.setData(key, new byte[] { 1 });
+        account1.setData(key, null);
+        account1.setBalance(BigInteger.TEN);
+        store.createAccount(address2).setNonce(5L);
+        store.deleteAccount(address2);
+        long logBytes = store.getLogBytes();
+        store.close();
+
+        // Simulate a crash in the middle of appending a record.
+        try (RandomAccessFile log = new RandomAccessFile(new File(storage, "accounts.log"), "rw")) {
+            log.seek(log.length());
+            log.writeInt(100);
+            log.write(new byte[] { 3, 4, 5 });
+        }
+
+        store = new LogStructuredDataStore(storage);
+        Assert.assertEquals(logBytes, store.getLogBytes());
+        account1 = store.openAccount(address1);
+        Assert.assertTrue(Arrays.equals(graph, account1.getObjectGraph()));
+        Assert.assertNull(account1.getData(key));
+        Assert.assertEquals(BigInteger.TEN, account1.getBalance());
+        Assert.assertNull(store.openAccount(address2));
+
+        // We can keep appending after the dropped record.
+        account1.setNonce(7L);
+        store.close();
+        store = new LogStructuredDataStore(storage);
+        Assert.assertEquals(7L, store.openAccount(address1).getNonce());
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File storage = folder.newFolder();
+        LogStructuredDataStore store = new LogStructuredDataStore(storage);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        IAccountStore account = store.createAccount(address);
+        account.setData(key, new byte[] { 1 });
+
+        // Rewriting the same graph over and over grows the log until it is compacted automatically.
+        long largestLog = 0L;
+        byte[] graph = null;
+        for (int i = 0; i < 300; ++i) {
+            graph = Helpers.randomBytes(10_000);
+            account.setObjectGraph(graph);
+            largestLog = Math.max(largestLog, store.getLogBytes());
+        }
+        Assert.assertTrue(largestLog < (3 * 1024 * 1024));
+        Assert.assertTrue(Arrays.equals(graph, account.getObjectGraph()));
+
+        // An explicit compaction leaves only the live records.
+        store.compact();
+        Assert.assertTrue(store.getLogBytes() < 11_000);
+        Assert.assertTrue(Arrays.equals(graph, account.getObjectGraph()));
+        Assert.assertEquals(1, account.getData(key)[0]);
+        store.close();
+
+        store = new LogStructuredDataStore(storage);
+        Assert.assertTrue(Arrays.equals(graph, store.openAccount(address).getObjectGraph()));
+        store.close();
+    }
+}
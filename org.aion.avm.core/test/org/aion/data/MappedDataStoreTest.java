@@ -0,0 +1,171 @@
+package org.aion.data;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.aion.avm.core.dappreading.JarBuilder;
+import org.aion.avm.core.types.ImmortalDappModule;
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+
+public class MappedDataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSmallAccount() throws Exception {
+        File storage = folder.newFolder();
+        MappedDataStore store = new MappedDataStore(storage, 4096);
+
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] code1 = Helpers.randomBytes(100);
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] value1 = Helpers.randomBytes(100);
+        IAccountStore account1 = store.createAccount(address1);
+        Assert.assertNull(store.createAccount(address1));
+        account1.setTransformedCode(code1);
+        account1.setBalance(BigInteger.ONE);
+        account1.setNonce(2L);
+        account1.setData(key1, value1);
+
+        account1 = store.openAccount(address1);
+        Assert.assertTrue(Arrays.equals(code1, account1.getTransformedCode()));
+        Assert.assertEquals(BigInteger.ONE, account1.getBalance());
+        Assert.assertEquals(2L, account1.getNonce());
+        Assert.assertTrue(Arrays.equals(value1, account1.getData(key1)));
+        account1.setData(key1, null);
+        Assert.assertNull(account1.getData(key1));
+        Assert.assertTrue(account1.getStorageEntries().isEmpty());
+        Assert.assertNull(account1.getObjectGraphBuffer());
+
+        store.deleteAccount(address1);
+        Assert.assertNull(store.openAccount(address1));
+        store.close();
+    }
+
+    @Test
+    public void testBufferViews() throws Exception {
+        File storage = folder.newFolder();
+        MappedDataStore store = new MappedDataStore(storage, 4096);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] graph1 = Helpers.randomBytes(1000);
+        byte[] graph2 = Helpers.randomBytes(1000);
+        IAccountStore account = store.createAccount(address);
+        account.setObjectGraph(graph1);
+
+        ByteBuffer view = account.getObjectGraphBuffer();
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(0, view.position());
+        Assert.assertTrue(Arrays.equals(graph1, toBytes(view)));
+        try {
+            view.put(0, (byte) 1);
+            Assert.fail();
+        } catch (ReadOnlyBufferException e) {
+            // Expected.
+        }
+
+        // Replacing the graph (across several segments, and the compactions that causes) doesn't change a view which was already handed out.
+        for (int i = 0; i < 10; ++i) {
+            account.setObjectGraph(graph2);
+        }
+        Assert.assertTrue(Arrays.equals(graph1, toBytes(view)));
+        Assert.assertTrue(Arrays.equals(graph2, toBytes(account.getObjectGraphBuffer())));
+
+        // A record larger than the segment size gets a segment of its own.
+        byte[] largeGraph = Helpers.randomBytes(10_000);
+        account.setObjectGraph(largeGraph);
+        Assert.assertTrue(Arrays.equals(largeGraph, account.getObjectGraph()));
+        store.close();
+
+        store = new MappedDataStore(storage, 4096);
+        account = store.openAccount(address);
+        Assert.assertTrue(Arrays.equals(largeGraph, toBytes(account.getObjectGraphBuffer())));
+        // We keep appending after what was replayed.
+        account.setNonce(3L);
+        store.close();
+        store = new MappedDataStore(storage, 4096);
+        Assert.assertEquals(3L, store.openAccount(address).getNonce());
+        Assert.assertTrue(Arrays.equals(largeGraph, store.openAccount(address).getObjectGraph()));
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File storage = folder.newFolder();
+        MappedDataStore store = new MappedDataStore(storage, 4096);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] deletedAddress = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        IAccountStore account = store.createAccount(address);
+        store.createAccount(deletedAddress).setObjectGraph(Helpers.randomBytes(2000));
+        store.deleteAccount(deletedAddress);
+
+        // Without compaction, this would take dozens of segments.
+        byte[] graph = null;
+        byte[] value = null;
+        for (int i = 0; i < 100; ++i) {
+            graph = Helpers.randomBytes(1000);
+            value = Helpers.randomBytes(100);
+            account.setObjectGraph(graph);
+            account.setData(key, value);
+            account.setNonce(i);
+        }
+        Assert.assertTrue(store.getSegmentCount() <= 2);
+        // (the segments of older generations are gone from the directory)
+        Assert.assertEquals(store.getSegmentCount(), storage.listFiles((ignored, name) -> name.startsWith("segment_")).length);
+        Assert.assertTrue(Arrays.equals(graph, account.getObjectGraph()));
+        Assert.assertTrue(Arrays.equals(value, account.getData(key)));
+        store.close();
+
+        // Segments from a compaction which never finished are ignored and deleted.
+        File leftover = new File(storage, "segment_99999999_00000000");
+        Files.write(leftover.toPath(), Helpers.randomBytes(4096));
+        store = new MappedDataStore(storage, 4096);
+        Assert.assertFalse(leftover.exists());
+        account = store.openAccount(address);
+        Assert.assertTrue(Arrays.equals(graph, account.getObjectGraph()));
+        Assert.assertTrue(Arrays.equals(value, account.getData(key)));
+        Assert.assertEquals(99L, account.getNonce());
+        Assert.assertNull(store.openAccount(deletedAddress));
+
+        // Compacting on demand leaves only what is current, in one segment.
+        store.compact();
+        Assert.assertEquals(1, store.getSegmentCount());
+        Assert.assertTrue(Arrays.equals(graph, toBytes(account.getObjectGraphBuffer())));
+        store.close();
+        store = new MappedDataStore(storage, 4096);
+        Assert.assertEquals(99L, store.openAccount(address).getNonce());
+        Assert.assertTrue(Arrays.equals(value, store.openAccount(address).getData(key)));
+        store.close();
+    }
+
+    @Test
+    public void testReadJarFromView() throws Exception {
+        File storage = folder.newFolder();
+        MappedDataStore store = new MappedDataStore(storage);
+        byte[] address = Helpers.randomBytes(32);
+        byte[] jar = JarBuilder.buildJarForMainAndClasses(MappedDataStoreTest.class);
+        store.createAccount(address).setTransformedCode(jar);
+
+        ImmortalDappModule module = ImmortalDappModule.readFromJar(store.openAccount(address).getTransformedCodeBuffer());
+        Assert.assertEquals(MappedDataStoreTest.class.getName(), module.mainClass);
+        Assert.assertEquals(1, module.classes.size());
+        store.close();
+    }
+
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,130 @@
+package org.aion.data;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.aion.avm.core.util.Helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+
+public class WriteAheadLogDataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBlockIsOnlyAppliedOnCommit() throws Exception {
+        File logDirectory = folder.newFolder();
+        File storage = folder.newFolder();
+        DirectoryBackedDataStore backing = new DirectoryBackedDataStore(storage);
+        WriteAheadLogDataStore store = new WriteAheadLogDataStore(logDirectory, backing);
+
+        byte[] address = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+        byte[] graph = Helpers.randomBytes(100);
+        IAccountStore account = store.createAccount(address);
+        account.setBalance(BigInteger.TEN);
+        account.setNonce(1L);
+        account.setData(key, new byte[] { 1 });
+        account.setObjectGraph(graph);
+
+        // The block's writes are visible through the store but not yet in the backing store.
+        Assert.assertEquals(BigInteger.TEN, store.openAccount(address).getBalance());
+        Assert.assertTrue(Arrays.equals(graph, account.getObjectGraph()));
+        Assert.assertEquals(1, account.getStorageEntries().size());
+        Assert.assertNull(backing.openAccount(address));
+        Assert.assertEquals(0L, store.getLogBytes());
+
+        store.commitBlock();
+        IAccountStore backingAccount = backing.openAccount(address);
+        Assert.assertEquals(BigInteger.TEN, backingAccount.getBalance());
+        Assert.assertEquals(1L, backingAccount.getNonce());
+        Assert.assertEquals(1, backingAccount.getData(key)[0]);
+        Assert.assertTrue(store.getLogBytes() > 0L);
+
+        // An abandoned block leaves nothing behind.
+        account.setBalance(BigInteger.ONE);
+        store.deleteAccount(address);
+        Assert.assertNull(store.openAccount(address));
+        store.abandonBlock();
+        Assert.assertEquals(BigInteger.TEN, store.openAccount(address).getBalance());
+        store.close();
+    }
+
+    @Test
+    public void testReplayAfterCrash() throws Exception {
+        File logDirectory = folder.newFolder();
+        WriteAheadLogDataStore store = new WriteAheadLogDataStore(logDirectory, new MemoryBackedDataStore());
+        byte[] address1 = Helpers.randomBytes(32);
+        byte[] address2 = Helpers.randomBytes(32);
+        byte[] key = Helpers.randomBytes(32);
+
+        store.createAccount(address1).setBalance(BigInteger.TEN);
+        store.createAccount(address2).setData(key, new byte[] { 1 });
+        store.commitBlock();
+        store.openAccount(address1).setNonce(5L);
+        store.deleteAccount(address2);
+        store.createAccount(address2).setData(new byte[] { 9 }, new byte[] { 2 });
+        store.commitBlock();
+        long logBytes = store.getLogBytes();
+        // This block is never committed.
+        store.openAccount(address1).setBalance(BigInteger.ONE);
+        store.close();
+
+        // Simulate a crash in the middle of appending a block.
+        try (RandomAccessFile log = new RandomAccessFile(new File(logDirectory, "blocks.wal"), "rw")) {
+            log.seek(log.length());
+            log.writeInt(1000);
+            log.write(new byte[] { 1, 2, 3 });
+        }
+
+        // With a memory-backed store, everything comes back from the log (which can't be checkpointed).
+        store = new WriteAheadLogDataStore(logDirectory, new MemoryBackedDataStore());
+        Assert.assertEquals(logBytes, store.getLogBytes());
+        Assert.assertFalse(store.checkpoint());
+        IAccountStore account1 = store.openAccount(address1);
+        Assert.assertEquals(BigInteger.TEN, account1.getBalance());
+        Assert.assertEquals(5L, account1.getNonce());
+        IAccountStore account2 = store.openAccount(address2);
+        Assert.assertNull(account2.getData(key));
+        Assert.assertEquals(2, account2.getData(new byte[] { 9 })[0]);
+        store.close();
+    }
+
+    @Test
+    public void testReplayOverPartiallyAppliedStore() throws Exception {
+        File logDirectory = folder.newFolder();
+        File storage = folder.newFolder();
+        byte[] address = Helpers.randomBytes(32);
+        byte[] key1 = Helpers.randomBytes(32);
+        byte[] key2 = Helpers.randomBytes(32);
+
+        WriteAheadLogDataStore store = new WriteAheadLogDataStore(logDirectory, new DirectoryBackedDataStore(storage));
+        IAccountStore account = store.createAccount(address);
+        account.setData(key1, new byte[] { 1 });
+        store.commitBlock();
+        store.deleteAccount(address);
+        store.createAccount(address).setData(key2, new byte[] { 2 });
+        store.commitBlock();
+        store.close();
+
+        // Replaying the log into the store which already has all of it must end in the same state.
+        store = new WriteAheadLogDataStore(logDirectory, new DirectoryBackedDataStore(storage));
+        account = store.openAccount(address);
+        Assert.assertNull(account.getData(key1));
+        Assert.assertEquals(2, account.getData(key2)[0]);
+
+        // The directory store can make its writes durable so the log can be truncated.
+        Assert.assertTrue(store.checkpoint());
+        Assert.assertEquals(0L, store.getLogBytes());
+        store.close();
+        store = new WriteAheadLogDataStore(logDirectory, new DirectoryBackedDataStore(storage));
+        Assert.assertEquals(2, store.openAccount(address).getData(key2)[0]);
+        store.close();
+    }
+}
@@ -0,0 +1,213 @@
+package org.aion.parallel;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Collections;
+import org.aion.avm.core.AvmInternal;
+import org.aion.avm.core.BlockchainRuntimeImpl;
+import org.aion.avm.core.NodeEnvironment;
+import org.aion.avm.core.classloading.AvmClassLoader;
+import org.aion.avm.core.util.Helpers;
+import org.aion.avm.internal.CommonInstrumentation;
+import org.aion.avm.internal.IInstrumentation;
+import org.aion.avm.internal.IRuntimeSetup;
+import org.aion.avm.internal.InstrumentationHelpers;
+import org.aion.avm.internal.InternedClasses;
+import org.aion.kernel.AvmTransactionResult;
+import org.aion.kernel.TestingKernel;
+import org.aion.kernel.TransactionalKernel;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.KernelInterface;
+import org.aion.vm.api.interfaces.SimpleFuture;
+import org.aion.vm.api.interfaces.TransactionContext;
+import org.aion.vm.api.interfaces.TransactionResult;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+
+/**
+ * A basic allocation benchmark for the address-keyed paths which run on every state access:  acquiring an address in the
+ * {@link AddressResourceMonitor}, reading an account through a chain of {@link TransactionalKernel}s down to the data store and
+ * reading an account through the {@link BlockchainRuntimeImpl}, given the DApp's address.
+ * Since the {@link Address} is used directly as the key everywhere, and the runtime caches it on the DApp's address, these shouldn't
+ * allocate anything once the address is known.
+ * Like the other benchmarks, this prints its measurements and is easily tunable for more hands-on profiling.
+ */
+public class AddressKeyAllocationTest {
+    private static final int ADDRESS_COUNT = 16;
+    private static final int WARMUP_ITERATIONS = 20_000;
+    private static final int ITERATIONS = 100_000;
+    // Anything above this, per operation, means the path allocates (a key wrapper alone is at least 16 bytes).
+    private static final double MAX_BYTES_PER_OPERATION = 1.0;
+
+    @Test
+    public void testAcquireDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task = new TransactionTask(monitor, null, null, 0L);
+        Address[] addresses = randomAddresses();
+
+        // The first acquisition creates the resources, after which acquiring them again (reentrant) is what we measure.
+        Runnable operation = () -> {
+            for (Address address : addresses) {
+                monitor.acquireShared(address, task);
+                monitor.acquire(address, task);
+            }
+        };
+        double bytesPerOperation = measureBytesPerOperation(threads, operation, 2 * ADDRESS_COUNT);
+        System.out.println("ACQUIRE BYTES PER OPERATION: " + bytesPerOperation);
+        monitor.testReleaseResourcesForTask(task);
+        Assert.assertTrue(bytesPerOperation < MAX_BYTES_PER_OPERATION);
+    }
+
+    @Test
+    public void testNestedKernelReadsDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        TestingKernel base = new TestingKernel();
+        Address[] addresses = randomAddresses();
+        byte[] code = new byte[] { 1 };
+        byte[] graph = new byte[] { 2 };
+        for (int i = 0; i < ADDRESS_COUNT; ++i) {
+            base.createAccount(addresses[i]);
+            base.setTransformedCode(addresses[i], code);
+        }
+        // Half the addresses are written within the chain, the other half are read through to the data store.
+        TransactionalKernel outer = new TransactionalKernel(base);
+        for (int i = 0; i < ADDRESS_COUNT; i += 2) {
+            outer.putObjectGraph(addresses[i], graph);
+        }
+        KernelInterface inner = outer.makeChildKernelInterface().makeChildKernelInterface();
+
+        Runnable operation = () -> {
+            for (Address address : addresses) {
+                Assert.assertTrue(inner.hasAccountState(address));
+                Assert.assertSame(code, inner.getTransformedCode(address));
+                inner.getObjectGraph(address);
+            }
+        };
+        double bytesPerOperation = measureBytesPerOperation(threads, operation, 3 * ADDRESS_COUNT);
+        System.out.println("KERNEL READ BYTES PER OPERATION: " + bytesPerOperation);
+        Assert.assertTrue(bytesPerOperation < MAX_BYTES_PER_OPERATION);
+    }
+
+    @Test
+    public void testRuntimeAddressReadsDoNotAllocateKeys() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        // The DApp's addresses and the balances returned to it are shadow objects, which need an attached instrumentation.
+        Assert.assertNotNull(NodeEnvironment.singleton);
+        AvmClassLoader loader = NodeEnvironment.singleton.createInvocationClassLoader(Helpers.mapIncludingHelperBytecode(Collections.emptyMap(), Helpers.loadDefaultHelperBytecode()));
+        IRuntimeSetup runtimeSetup = Helpers.getSetupForLoader(loader);
+        IInstrumentation instrumentation = new CommonInstrumentation();
+        InstrumentationHelpers.attachThread(instrumentation);
+        InstrumentationHelpers.pushNewStackFrame(runtimeSetup, loader, 1_000_000L, 1, new InternedClasses());
+        try {
+            TestingKernel kernel = new TestingKernel();
+            Address[] addresses = randomAddresses();
+            org.aion.avm.shadowapi.avm.Address[] dappAddresses = new org.aion.avm.shadowapi.avm.Address[ADDRESS_COUNT];
+            for (int i = 0; i < ADDRESS_COUNT; ++i) {
+                kernel.createAccount(addresses[i]);
+                kernel.adjustBalance(addresses[i], BigInteger.TEN);
+                kernel.setTransformedCode(addresses[i], new byte[] { 1 });
+                dappAddresses[i] = new org.aion.avm.shadowapi.avm.Address(addresses[i].toBytes());
+            }
+            AddressResourceMonitor monitor = new AddressResourceMonitor();
+            TransactionTask task = new TransactionTask(monitor, null, null, 0L);
+            BlockchainRuntimeImpl runtime = new BlockchainRuntimeImpl(null, kernel, new ResourceMonitorOnlyAvm(monitor), null, task, null, null, runtimeSetup);
+            
+            Runnable codeSizeOperation = () -> {
+                for (org.aion.avm.shadowapi.avm.Address address : dappAddresses) {
+                    Assert.assertEquals(1, runtime.avm_getCodeSize(address));
+                }
+            };
+            double codeSizeBytesPerOperation = measureBytesPerOperation(threads, codeSizeOperation, ADDRESS_COUNT);
+            System.out.println("RUNTIME CODE SIZE BYTES PER OPERATION: " + codeSizeBytesPerOperation);
+            Assert.assertTrue(codeSizeBytesPerOperation < MAX_BYTES_PER_OPERATION);
+            
+            // The balance is always returned in a new object so compare against building just that.
+            org.aion.avm.shadow.java.math.BigInteger[] sink = new org.aion.avm.shadow.java.math.BigInteger[ADDRESS_COUNT];
+            Runnable balanceOperation = () -> {
+                for (int i = 0; i < ADDRESS_COUNT; ++i) {
+                    sink[i] = runtime.avm_getBalance(dappAddresses[i]);
+                }
+            };
+            Runnable resultOnlyOperation = () -> {
+                for (int i = 0; i < ADDRESS_COUNT; ++i) {
+                    sink[i] = new org.aion.avm.shadow.java.math.BigInteger(kernel.getBalance(addresses[i]));
+                }
+            };
+            double balanceBytesPerOperation = measureBytesPerOperation(threads, balanceOperation, ADDRESS_COUNT);
+            double resultBytesPerOperation = measureBytesPerOperation(threads, resultOnlyOperation, ADDRESS_COUNT);
+            System.out.println("RUNTIME BALANCE BYTES PER OPERATION: " + balanceBytesPerOperation + " (RESULT ALONE: " + resultBytesPerOperation + ")");
+            Assert.assertTrue(balanceBytesPerOperation < (resultBytesPerOperation + MAX_BYTES_PER_OPERATION));
+            monitor.testReleaseResourcesForTask(task);
+        } finally {
+            InstrumentationHelpers.popExistingStackFrame(runtimeSetup);
+            InstrumentationHelpers.detachThread(instrumentation);
+        }
+    }
+
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // Only HotSpot-based JVMs can tell us how much a thread allocated.
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static double measureBytesPerOperation(com.sun.management.ThreadMXBean threads, Runnable operation, int operationsPerRun) {
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+            operation.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            operation.run();
+        }
+        long end = threads.getThreadAllocatedBytes(threadId);
+        return (double) (end - start) / ((long) ITERATIONS * operationsPerRun);
+    }
+
+    private static Address[] randomAddresses() {
+        Address[] addresses = new Address[ADDRESS_COUNT];
+        for (int i = 0; i < ADDRESS_COUNT; ++i) {
+            addresses[i] = Helpers.randomAddress();
+        }
+        return addresses;
+    }
+
+
+    /**
+     * Only provides the resource monitor, which is all the runtime needs from the AVM for these reads.
+     */
+    private static class ResourceMonitorOnlyAvm implements AvmInternal {
+        private final AddressResourceMonitor monitor;
+
+        public ResourceMonitorOnlyAvm(AddressResourceMonitor monitor) {
+            this.monitor = monitor;
+        }
+        @Override
+        public AddressResourceMonitor getResourceMonitor(TransactionTask task) {
+            return this.monitor;
+        }
+        @Override
+        public AvmTransactionResult runInternalTransaction(KernelInterface parentKernel, TransactionTask task, TransactionContext context) {
+            throw new AssertionError("Not expected in test");
+        }
+        @Override
+        public void start() {
+            throw new AssertionError("Not expected in test");
+        }
+        @Override
+        public void shutdown() {
+            throw new AssertionError("Not expected in test");
+        }
+        @Override
+        public SimpleFuture<TransactionResult>[] run(KernelInterface kernel, TransactionContext[] transactions) {
+            throw new AssertionError("Not expected in test");
+        }
+    }
+}
@@ -1,6 +1,15 @@
 package org.aion.parallel;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.aion.avm.core.util.ABIUtil;
 import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.Block;
+import org.aion.kernel.Transaction;
+import org.aion.kernel.TransactionContextImpl;
+import org.aion.types.Address;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class AddressResourceMonitorTest {
@@ -25,7 +34,7 @@ public class AddressResourceMonitorTest {
         }
 
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 0);
+            TransactionTask task = new TransactionTask(monitor, null, null, 0);
 
             monitor.acquire(addr1, task);
             monitor.testReleaseResourcesForTask(task);
@@ -38,7 +47,7 @@ public class AddressResourceMonitorTest {
         }
         
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 1);
+            TransactionTask task = new TransactionTask(monitor, null, null, 1);
             monitor.acquire(addr1, task);
 
             while(false == task.inAbortState()){
@@ -55,7 +64,7 @@ public class AddressResourceMonitorTest {
         }
         
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 2);
+            TransactionTask task = new TransactionTask(monitor, null, null, 2);
             monitor.acquire(addr1, task);
 
             while(false == task.inAbortState()){
@@ -93,7 +102,7 @@ public class AddressResourceMonitorTest {
         }
         
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 0);
+            TransactionTask task = new TransactionTask(monitor, null, null, 0);
 
             monitor.acquire(addr1, task);
             monitor.acquire(addr2, task);
@@ -109,7 +118,7 @@ public class AddressResourceMonitorTest {
         }
         
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 1);
+            TransactionTask task = new TransactionTask(monitor, null, null, 1);
             monitor.acquire(addr3, task);
 
             while(false == task.inAbortState()){
@@ -126,7 +135,7 @@ public class AddressResourceMonitorTest {
         }
         
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 2);
+            TransactionTask task = new TransactionTask(monitor, null, null, 2);
             monitor.acquire(addr4, task);
 
             while(false == task.inAbortState()){
@@ -163,7 +172,7 @@ public class AddressResourceMonitorTest {
         }
         
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 0);
+            TransactionTask task = new TransactionTask(monitor, null, null, 0);
 
             monitor.acquire(addr1, task);
             monitor.acquire(addr2, task);
@@ -179,7 +188,7 @@ public class AddressResourceMonitorTest {
         }
 
         public void run(){
-            TransactionTask task = new TransactionTask(null, null, 1);
+            TransactionTask task = new TransactionTask(monitor, null, null, 1);
             monitor.acquire(addr4, task);
             monitor.acquire(addr3, task);
             monitor.acquire(addr2, task);
@@ -208,4 +217,287 @@ public class AddressResourceMonitorTest {
         t2.join();
     }
 
+    @Test
+    public void testAbortWakesWaitingCommit() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+        boolean[] commitResult = new boolean[1];
+
+        // Task 1 takes the resource and then blocks, waiting for its turn to commit.
+        Thread t1 = new Thread(() -> {
+            monitor.acquire(addr1, task1);
+            commitResult[0] = monitor.commitKernelForTask(task1, true);
+        });
+        t1.start();
+        Thread.sleep(100);
+
+        // Task 0 wants the same resource so task 1 must be woken from its commit wait, abort, and release it.
+        monitor.acquire(addr1, task0);
+        t1.join();
+        Assert.assertTrue(task1.inAbortState());
+        Assert.assertFalse(commitResult[0]);
+        Assert.assertTrue(monitor.commitKernelForTask(task0, true));
+    }
+
+    @Test
+    public void testUnrelatedAddressesDoNotBlock() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+
+        // Task 1 holding a resource must not prevent task 0 from taking a different one, in another thread.
+        monitor.acquire(addr2, task1);
+        Thread t0 = new Thread(() -> monitor.acquire(addr1, task0));
+        t0.start();
+        t0.join();
+        Assert.assertFalse(task0.inAbortState());
+        Assert.assertFalse(task1.inAbortState());
+    }
+
+    @Test
+    public void testSharedAcquisitionDoesNotBlock() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+
+        // Task 1 reading a resource must neither block task 0 from reading it nor be aborted by it.
+        monitor.acquireShared(addr1, task1);
+        Thread t0 = new Thread(() -> monitor.acquireShared(addr1, task0));
+        t0.start();
+        t0.join();
+        Assert.assertFalse(task0.inAbortState());
+        Assert.assertFalse(task1.inAbortState());
+    }
+
+    @Test
+    public void testLowerWriterAbortsLaterReaderOnly() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+        TransactionTask task2 = new TransactionTask(monitor, null, null, 2);
+
+        monitor.acquireShared(addr1, task0);
+        monitor.acquireShared(addr1, task2);
+
+        // Task 1 wants to write so it must abort task 2 (which read too early) but wait for task 0 to finish.
+        Thread t1 = new Thread(() -> monitor.acquire(addr1, task1));
+        t1.start();
+        Thread.sleep(100);
+        Assert.assertTrue(t1.isAlive());
+        Assert.assertTrue(task2.inAbortState());
+        Assert.assertFalse(task0.inAbortState());
+
+        monitor.testReleaseResourcesForTask(task2);
+        monitor.testReleaseResourcesForTask(task0);
+        t1.join();
+        Assert.assertFalse(task1.inAbortState());
+    }
+
+    @Test
+    public void testReaderWaitsForLowerWriter() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+
+        // Task 1 must see what task 0 writes so it can't read until task 0 is done with the resource.
+        monitor.acquire(addr1, task0);
+        Thread t1 = new Thread(() -> monitor.acquireShared(addr1, task1));
+        t1.start();
+        Thread.sleep(100);
+        Assert.assertTrue(t1.isAlive());
+
+        monitor.testReleaseResourcesForTask(task0);
+        t1.join();
+        Assert.assertFalse(task0.inAbortState());
+        Assert.assertFalse(task1.inAbortState());
+    }
+
+    @Test
+    public void testUpgradeFromShared() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+
+        // Task 0 reads then writes the resource, which aborts the later reader.
+        monitor.acquireShared(addr1, task0);
+        monitor.acquireShared(addr1, task1);
+        Thread t0 = new Thread(() -> monitor.acquire(addr1, task0));
+        t0.start();
+        Thread.sleep(100);
+        Assert.assertTrue(task1.inAbortState());
+
+        monitor.testReleaseResourcesForTask(task1);
+        t0.join();
+        Assert.assertFalse(task0.inAbortState());
+    }
+
+    @Test
+    public void testHotAddressSerializesTasks() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        ConflictStatistics statistics = monitor.getConflictStatistics();
+        Address hot = Address.wrap(addr1);
+        for (int i = 0; i < ConflictStatistics.HOT_ABORT_THRESHOLD; ++i) {
+            statistics.recordAddressAbort(hot);
+        }
+        Assert.assertTrue(statistics.isHot(addr1));
+        Assert.assertFalse(statistics.isHot(addr2));
+
+        TransactionTask task0 = newCallTask(monitor, addr2, addr1, 0);
+        TransactionTask task1 = newCallTask(monitor, addr3, addr4, 1);
+        TransactionTask task2 = newCallTask(monitor, addr4, addr1, 2);
+        Assert.assertTrue(task0.isSerialized());
+        Assert.assertEquals(-1L, task0.getSerializedAfterIndex());
+        Assert.assertFalse(task1.isSerialized());
+        Assert.assertEquals(0L, task2.getSerializedAfterIndex());
+
+        // Task 2 must not start until task 0 has committed (task 1 is cold so it doesn't matter).
+        Thread t2 = new Thread(() -> {
+            monitor.waitForSerializedTurn(task2);
+            monitor.acquire(addr1, task2);
+        });
+        t2.start();
+        Thread.sleep(100);
+        Assert.assertTrue(t2.isAlive());
+
+        monitor.waitForSerializedTurn(task0);
+        monitor.acquire(addr1, task0);
+        Assert.assertTrue(monitor.commitKernelForTask(task0, true));
+        t2.join();
+        Assert.assertFalse(task2.inAbortState());
+        Assert.assertTrue(monitor.commitKernelForTask(task1, true));
+        Assert.assertTrue(monitor.commitKernelForTask(task2, true));
+
+        Assert.assertEquals(2L, statistics.getSerializedTaskCountForBlock(1L));
+        Assert.assertEquals(2L, statistics.getAbortsSavedForBlock(1L));
+        Assert.assertEquals(0L, statistics.getAbortCountForBlock(1L));
+    }
+
+    @Test
+    public void testAddressStatisticsDecayPerBlock() {
+        ConflictStatistics statistics = new ConflictStatistics();
+        Address hot = Address.wrap(addr1);
+        statistics.recordTaskOutcome(1L, false, true, 0);
+        for (int i = 0; i < 2 * ConflictStatistics.HOT_ABORT_THRESHOLD; ++i) {
+            statistics.recordAddressAbort(hot);
+        }
+        statistics.recordAddressContention(hot);
+        Assert.assertTrue(statistics.isHot(addr1));
+
+        // Each new block halves the counts, so an address which stops causing aborts cools down.
+        statistics.recordTaskOutcome(2L, false, false, 0);
+        Assert.assertEquals(ConflictStatistics.HOT_ABORT_THRESHOLD, statistics.getAbortCount(addr1));
+        Assert.assertEquals(0, statistics.getContentionCount(addr1));
+        Assert.assertTrue(statistics.isHot(addr1));
+        statistics.recordTaskOutcome(3L, false, true, 0);
+        Assert.assertFalse(statistics.isHot(addr1));
+        Assert.assertEquals(1L, statistics.getAbortCountForBlock(2L));
+    }
+
+    @Test
+    public void testHandedOffTasksCommitInOrder() {
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        HandedOffTasks handedOffTasks = new HandedOffTasks(Thread.currentThread());
+        List<Long> committed = new ArrayList<>();
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+        TransactionTask task2 = new TransactionTask(monitor, null, null, 2);
+
+        // Nothing can commit until task 0 is handed off, at which point all three commit, in order.
+        Assert.assertTrue(monitor.handOffForCommit(task2, true, handedOffTasks, () -> committed.add(2L)));
+        Assert.assertTrue(monitor.handOffForCommit(task1, true, handedOffTasks, () -> committed.add(1L)));
+        Assert.assertTrue(committed.isEmpty());
+        Assert.assertFalse(handedOffTasks.isEmpty());
+        Assert.assertTrue(monitor.handOffForCommit(task0, true, handedOffTasks, () -> committed.add(0L)));
+        Assert.assertEquals(List.of(0L, 1L, 2L), committed);
+        Assert.assertTrue(handedOffTasks.isEmpty());
+    }
+
+    @Test
+    public void testAbortedHandedOffTaskIsTakenBack() throws InterruptedException{
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        HandedOffTasks handedOffTasks = new HandedOffTasks(Thread.currentThread());
+        TransactionTask task0 = new TransactionTask(monitor, null, null, 0);
+        TransactionTask task1 = new TransactionTask(monitor, null, null, 1);
+        boolean[] isCommitted = new boolean[2];
+
+        // Task 1 is handed off while still holding its resource, since task 0 hasn't committed.
+        monitor.acquire(addr1, task1);
+        Assert.assertTrue(monitor.handOffForCommit(task1, true, handedOffTasks, () -> isCommitted[1] = true));
+
+        // Task 0 wants the resource so task 1 must be taken back (releasing the resource) to be re-executed.
+        Thread t0 = new Thread(() -> monitor.acquire(addr1, task0));
+        t0.start();
+        TransactionTask aborted = handedOffTasks.takeAbortedTask();
+        while (null == aborted) {
+            handedOffTasks.waitForChange();
+            aborted = handedOffTasks.takeAbortedTask();
+        }
+        t0.join();
+        Assert.assertSame(task1, aborted);
+        Assert.assertFalse(task0.inAbortState());
+        Assert.assertTrue(handedOffTasks.isEmpty());
+
+        Assert.assertTrue(monitor.handOffForCommit(task0, true, handedOffTasks, () -> isCommitted[0] = true));
+        Assert.assertTrue(isCommitted[0]);
+        Assert.assertFalse(isCommitted[1]);
+    }
+
+    @Test
+    public void testAccessPredictionSerializesOnArguments() {
+        AddressResourceMonitor monitor = new AddressResourceMonitor(true, false, 0L, false);
+        byte[] addr5 = Helpers.hexStringToBytes("5555555555555555555555555555555555555555555555555555555555555555");
+
+        // Tasks 0 and 2 both name addr1 (as an argument and as a target) while task 1 touches nothing in common with them.
+        byte[] data = ABIUtil.encodeMethodArguments("transfer", new avm.Address(addr1), 5L);
+        TransactionTask task0 = newCallTask(monitor, addr2, addr3, data, 0);
+        TransactionTask task1 = newCallTask(monitor, addr4, addr5, new byte[0], 1);
+        TransactionTask task2 = newCallTask(monitor, addr5, addr1, new byte[0], 2);
+        Assert.assertFalse(task0.isSerialized());
+        Assert.assertEquals(-1L, task0.getSerializedAfterIndex());
+        // Task 2 also shares addr5 with task 1, so it waits for both of them (the later one being enough).
+        Assert.assertFalse(task1.isSerialized());
+        Assert.assertEquals(1L, task2.getSerializedAfterIndex());
+
+        // Once those have committed, a new task naming the same addresses isn't held back by them.
+        Assert.assertTrue(monitor.commitKernelForTask(task0, true));
+        Assert.assertTrue(monitor.commitKernelForTask(task1, true));
+        Assert.assertTrue(monitor.commitKernelForTask(task2, true));
+        TransactionTask task3 = newCallTask(monitor, addr5, addr3, data, 3);
+        Assert.assertFalse(task3.isSerialized());
+    }
+
+    @Test
+    public void testTasksOfDifferentStreams() {
+        // Each stream numbers its tasks from 0 so tasks of different streams can have the same index without being the same task.
+        AddressResourceMonitor monitor = new AddressResourceMonitor();
+        AddressResourceMonitor otherMonitor = new AddressResourceMonitor();
+        TransactionTask task = new TransactionTask(monitor, null, null, 0);
+        Assert.assertEquals(task, new TransactionTask(monitor, null, null, 0));
+        Assert.assertNotEquals(task, new TransactionTask(otherMonitor, null, null, 0));
+    }
+
+    @Test
+    public void testAccessPredictionScansArguments() {
+        List<Address> predicted = AccessPrediction.predictAddresses(newCallTask(new AddressResourceMonitor(true, false, 0L, false), addr1, addr2, new byte[] { 0x22, 0x33 }, 0).getExternalTransactionCtx());
+        Assert.assertEquals(2, predicted.size());
+
+        byte[] data = ABIUtil.encodeMethodArguments("send", (Object) new avm.Address[] { new avm.Address(addr3), new avm.Address(addr4) });
+        predicted = AccessPrediction.predictAddresses(newCallTask(new AddressResourceMonitor(true, false, 0L, false), addr1, addr2, data, 0).getExternalTransactionCtx());
+        Assert.assertEquals(4, predicted.size());
+        Assert.assertEquals(Address.wrap(addr3), predicted.get(2));
+        Assert.assertEquals(Address.wrap(addr4), predicted.get(3));
+    }
+
+    private TransactionTask newCallTask(AddressResourceMonitor monitor, byte[] sender, byte[] target, long index) {
+        return newCallTask(monitor, sender, target, new byte[0], index);
+    }
+
+    private TransactionTask newCallTask(AddressResourceMonitor monitor, byte[] sender, byte[] target, byte[] data, long index) {
+        Transaction transaction = Transaction.call(Address.wrap(sender), Address.wrap(target), BigInteger.ZERO, BigInteger.ZERO, data, 100_000L, 1L);
+        Block block = new Block(new byte[32], 1L, Address.wrap(addr4), System.currentTimeMillis(), new byte[0]);
+        TransactionTask task = new TransactionTask(monitor, null, TransactionContextImpl.forExternalTransaction(transaction, block), index);
+        monitor.scheduleTask(task);
+        return task;
+    }
 }
@@ -1,5 +1,6 @@
 package org.aion.parallel;
 
+import java.lang.ref.WeakReference;
 import java.math.BigInteger;
 import org.aion.avm.core.AvmConfiguration;
 import org.aion.avm.core.AvmImpl;
@@ -174,6 +175,58 @@ public class AvmParallelTest {
         avm.shutdown();
     }
 
+    /**
+     * The same calls as internalTransactionTest but with a read cache (kept across batches) and block write-back:  the contract's
+     * graph is only read from the kernel once, since every later commit writes through the cache.
+     */
+    @Test
+    public void readCacheTest(){
+        byte[] code = JarBuilder.buildJarForMainAndClassesAndUserlib(TestContract.class);
+
+        int[] graphReads = new int[1];
+        TestingKernel kernel = new TestingKernel() {
+            @Override
+            public byte[] getObjectGraph(org.aion.types.Address address) {
+                graphReads[0] += 1;
+                return super.getObjectGraph(address);
+            }
+        };
+        AvmConfiguration config = new AvmConfiguration();
+        config.readCacheSize = 1024 * 1024;
+        config.enableCrossBlockReadCache = true;
+        config.enableBlockWriteBack = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), config);
+
+        org.aion.types.Address[] users = new org.aion.types.Address[4];
+        Transaction[] batch = new Transaction[users.length + 1];
+        for (int i = 0; i < users.length; ++i) {
+            users[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            batch[i] = Transaction.call(preminedAddress, users[i], BigInteger.valueOf(i), BigInteger.valueOf(15_000_000), new byte[0], 100000L, 1);
+        }
+        batch[users.length] = Transaction.create(preminedAddress, BigInteger.valueOf(users.length), BigInteger.ZERO, new CodeAndArguments(code, null).encodeToBytes(), 10_000_000L, 1);
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, generateCTXBatch(batch));
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        org.aion.types.Address contractAddr = org.aion.types.Address.wrap(results[users.length].get().getReturnData());
+        graphReads[0] = 0;
+
+        byte[] args = ABIUtil.encodeMethodArguments("addValue");
+        for (int round = 0; round < 3; ++round) {
+            batch = new Transaction[users.length];
+            for (int i = 0; i < users.length; ++i) {
+                batch[i] = Transaction.call(users[i], contractAddr, BigInteger.valueOf(round), BigInteger.ONE, args, 200000L, 1);
+            }
+            results = avm.run(kernel, generateCTXBatch(batch));
+            for (SimpleFuture<TransactionResult> f : results){
+                Assert.assertTrue(f.get().getResultCode().isSuccess());
+            }
+        }
+        Assert.assertEquals(BigInteger.valueOf(3L * users.length), kernel.getBalance(contractAddr));
+        Assert.assertEquals(1, graphReads[0]);
+        avm.shutdown();
+    }
+
     /**
      * This test attempts to transfer to 100 users and then from those to 1 user.  This will cause heavy abort behaviour because this is a data hazard.
      */
@@ -214,4 +267,210 @@ public class AvmParallelTest {
         avm.shutdown();
     }
 
+    /**
+     * The same data hazard as heavyAbortTest but with access prediction enabled, so the collecting transfers are chained on the
+     * target they all share rather than discovering the conflict by aborting.
+     */
+    @Test
+    public void predictedConflictTest(){
+        TestingKernel kernel = new TestingKernel();
+        AvmConfiguration config = new AvmConfiguration();
+        config.enableAccessPrediction = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), config);
+
+        int iterations = 50;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        Transaction[] batch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            org.aion.types.Address tempUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            kernel.adjustBalance(tempUser, BigInteger.valueOf(2L * valueToSend));
+            batch[i] = Transaction.call(tempUser, targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, generateCTXBatch(batch));
+        for (SimpleFuture<TransactionResult> f : results){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        // Every transfer but the first waited for the previous one.
+        Assert.assertEquals((long)(iterations - 1), avm.getResourceMonitorForKernel(kernel).getConflictStatistics().getSerializedTaskCountForBlock(block.getNumber()));
+        avm.shutdown();
+    }
+
+    /**
+     * This test sends a second batch, which depends on the first, before consuming any results of the first.
+     */
+    @Test
+    public void pipelinedBatchTest(){
+        TestingKernel kernel = new TestingKernel();
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+
+        int iterations = 20;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds.
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] firstResults = avm.run(kernel, generateCTXBatch(firstBatch));
+
+        // Second batch - collect funds (only possible if this runs after the first batch).
+        Transaction[] secondBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            secondBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] secondResults = avm.run(kernel, generateCTXBatch(secondBatch));
+
+        for (SimpleFuture<TransactionResult> f : secondResults){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        for (SimpleFuture<TransactionResult> f : firstResults){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        avm.shutdown();
+    }
+
+    /**
+     * The same pipelined batches as pipelinedBatchTest but with block write-back enabled:  the kernel only sees the merged writes of
+     * each batch, so the target all the collecting transfers share is only written once.
+     */
+    @Test
+    public void blockWriteBackTest(){
+        org.aion.types.Address targetUser = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        int[] targetWrites = new int[1];
+        TestingKernel kernel = new TestingKernel() {
+            @Override
+            public void adjustBalance(org.aion.types.Address address, BigInteger delta) {
+                if (targetUser.equals(address)) {
+                    targetWrites[0] += 1;
+                }
+                super.adjustBalance(address, delta);
+            }
+        };
+        AvmConfiguration config = new AvmConfiguration();
+        config.enableBlockWriteBack = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), config);
+
+        int iterations = 20;
+        long valueToSend = 1_000_000L;
+        org.aion.types.Address[] tempUsers = new org.aion.types.Address[iterations];
+
+        // First batch - disperse funds.
+        Transaction[] firstBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            tempUsers[i] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            firstBatch[i] = Transaction.call(preminedAddress, tempUsers[i], BigInteger.valueOf(i), BigInteger.valueOf(2L * valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] firstResults = avm.run(kernel, generateCTXBatch(firstBatch));
+
+        // Second batch - collect funds (only possible if it sees the first batch, which may not be written back yet).
+        Transaction[] secondBatch = new Transaction[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            secondBatch[i] = Transaction.call(tempUsers[i], targetUser, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], 100_000L, 1L);
+        }
+        SimpleFuture<TransactionResult>[] secondResults = avm.run(kernel, generateCTXBatch(secondBatch));
+
+        for (SimpleFuture<TransactionResult> f : firstResults){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        for (SimpleFuture<TransactionResult> f : secondResults){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(BigInteger.valueOf((long)iterations * valueToSend), kernel.getBalance(targetUser));
+        Assert.assertEquals(1, targetWrites[0]);
+        Assert.assertEquals(BigInteger.valueOf(iterations), kernel.getNonce(preminedAddress));
+        avm.shutdown();
+    }
+
+    /**
+     * This test has several threads concurrently running batches against the same AVM, each with its own kernel.
+     */
+    @Test
+    public void concurrentCallersTest() throws InterruptedException {
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), new AvmConfiguration());
+        int callerCount = 4;
+        int batchCount = 5;
+        int batchSize = 10;
+        TestingKernel[] kernels = new TestingKernel[callerCount];
+        org.aion.types.Address[] recipients = new org.aion.types.Address[callerCount];
+        Thread[] callers = new Thread[callerCount];
+        Throwable[] failures = new Throwable[callerCount];
+        for (int c = 0; c < callerCount; ++c) {
+            int caller = c;
+            kernels[caller] = new TestingKernel();
+            recipients[caller] = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+            callers[caller] = new Thread(() -> {
+                try {
+                    for (int b = 0; b < batchCount; ++b) {
+                        // Every kernel has the same premined account so the nonces only work out if each kernel is independent.
+                        Transaction[] batch = new Transaction[batchSize];
+                        for (int i = 0; i < batchSize; ++i) {
+                            batch[i] = Transaction.call(preminedAddress, recipients[caller], BigInteger.valueOf(b * batchSize + i), BigInteger.ONE, new byte[0], 100_000L, 1L);
+                        }
+                        for (SimpleFuture<TransactionResult> f : avm.run(kernels[caller], generateCTXBatch(batch))){
+                            Assert.assertTrue(f.get().getResultCode().isSuccess());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures[caller] = t;
+                }
+            });
+        }
+        for (Thread caller : callers) {
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        for (int c = 0; c < callerCount; ++c) {
+            Assert.assertNull(failures[c]);
+            Assert.assertEquals(BigInteger.valueOf(batchCount * batchSize), kernels[c].getBalance(recipients[c]));
+            Assert.assertEquals(BigInteger.valueOf(batchCount * batchSize), kernels[c].getNonce(preminedAddress));
+        }
+        avm.shutdown();
+    }
+
+    /**
+     * This test checks that the AVM lets go of the state it keeps for a kernel (its resource monitor and the kernels stacked on top of
+     * it) once the caller drops the kernel.
+     */
+    @Test
+    public void droppedKernelIsReleasedTest() throws InterruptedException {
+        AvmConfiguration config = new AvmConfiguration();
+        config.readCacheSize = 1024 * 1024;
+        config.enableCrossBlockReadCache = true;
+        config.enableBlockWriteBack = true;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), config);
+
+        WeakReference<?>[] references = runBatchAgainstNewKernel(avm);
+        TestingKernel otherKernel = new TestingKernel();
+        for (int i = 0; (i < 100) && ((null != references[0].get()) || (null != references[1].get())); ++i) {
+            System.gc();
+            Thread.sleep(10);
+            // (the AVM only notices a kernel was collected when it next looks up a kernel)
+            avm.getResourceMonitorForKernel(otherKernel);
+        }
+        Assert.assertNull(references[0].get());
+        Assert.assertNull(references[1].get());
+        avm.shutdown();
+    }
+
+    private WeakReference<?>[] runBatchAgainstNewKernel(AvmImpl avm) {
+        TestingKernel kernel = new TestingKernel();
+        org.aion.types.Address recipient = org.aion.types.Address.wrap(Helpers.randomBytes(org.aion.types.Address.SIZE));
+        Transaction[] batch = new Transaction[]{Transaction.call(preminedAddress, recipient, BigInteger.ZERO, BigInteger.ONE, new byte[0], 100_000L, 1L)};
+        for (SimpleFuture<TransactionResult> f : avm.run(kernel, generateCTXBatch(batch))){
+            Assert.assertTrue(f.get().getResultCode().isSuccess());
+        }
+        Assert.assertEquals(BigInteger.ONE, kernel.getBalance(recipient));
+        return new WeakReference<?>[]{new WeakReference<>(kernel), new WeakReference<>(avm.getResourceMonitorForKernel(kernel))};
+    }
+
 }
@@ -0,0 +1,87 @@
+package org.aion.parallel;
+
+import org.aion.avm.core.AvmConfiguration;
+import org.aion.avm.core.AvmImpl;
+import org.aion.avm.core.CommonAvmFactory;
+import org.aion.avm.core.blockchainruntime.EmptyCapabilities;
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.*;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.SimpleFuture;
+import org.aion.vm.api.interfaces.TransactionContext;
+import org.aion.vm.api.interfaces.TransactionResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+
+/**
+ * Runs the same blocks of balance transfers with different numbers of executor threads, checking that every thread count commits
+ * the same results.
+ * Half of the senders send to a shared recipient so that some of the tasks conflict (and are serialized or aborted) while the rest
+ * can run in parallel.
+ */
+public class ExecutorThreadCountTest {
+    private static final int transfersPerBlock = 32;
+    private static final int blockCount = 3;
+    private static final int[] threadCounts = { 1, 2, 4, 8 };
+    private static final long energyLimit = 100_000L;
+    private static final long energyPrice = 1L;
+
+    @Test
+    public void testSameResultsForAnyThreadCount() {
+        Address[] senders = new Address[transfersPerBlock];
+        Address[] recipients = new Address[transfersPerBlock];
+        Address sharedRecipient = Helpers.randomAddress();
+        for (int i = 0; i < transfersPerBlock; ++i) {
+            senders[i] = Helpers.randomAddress();
+            recipients[i] = ((i % 2) == 0)
+                    ? sharedRecipient
+                    : Helpers.randomAddress();
+        }
+
+        TestingKernel expected = null;
+        for (int threadCount : threadCounts) {
+            TestingKernel kernel = runTransfers(threadCount, senders, recipients);
+            if (null == expected) {
+                expected = kernel;
+            }
+            Assert.assertEquals(BigInteger.valueOf(blockCount * (transfersPerBlock / 2)), kernel.getBalance(sharedRecipient));
+            for (int i = 0; i < transfersPerBlock; ++i) {
+                Assert.assertEquals(expected.getBalance(senders[i]), kernel.getBalance(senders[i]));
+                Assert.assertEquals(BigInteger.valueOf(blockCount), kernel.getNonce(senders[i]));
+                Assert.assertEquals(expected.getBalance(recipients[i]), kernel.getBalance(recipients[i]));
+            }
+        }
+    }
+
+    private TestingKernel runTransfers(int threadCount, Address[] senders, Address[] recipients) {
+        TestingKernel kernel = new TestingKernel();
+        AvmConfiguration config = new AvmConfiguration();
+        config.threadCount = threadCount;
+        AvmImpl avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), config);
+        Block block = new Block(new byte[32], 1, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]);
+        for (Address sender : senders) {
+            kernel.adjustBalance(sender, BigInteger.TEN.pow(18));
+        }
+
+        for (int nonce = 0; nonce < blockCount; ++nonce) {
+            runBlock(avm, kernel, block, senders, recipients, nonce);
+        }
+        avm.shutdown();
+        return kernel;
+    }
+
+    private void runBlock(AvmImpl avm, TestingKernel kernel, Block block, Address[] senders, Address[] recipients, int nonce) {
+        TransactionContext[] contexts = new TransactionContext[senders.length];
+        for (int i = 0; i < senders.length; ++i) {
+            Transaction transfer = Transaction.call(senders[i], recipients[i], BigInteger.valueOf(nonce), BigInteger.ONE, new byte[0], energyLimit, energyPrice);
+            contexts[i] = TransactionContextImpl.forExternalTransaction(transfer, block);
+        }
+        SimpleFuture<TransactionResult>[] results = avm.run(kernel, contexts);
+        for (SimpleFuture<TransactionResult> result : results) {
+            Assert.assertEquals(AvmTransactionResult.Code.SUCCESS, ((AvmTransactionResult) result.get()).getResultCode());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.aion.parallel;
+
+import java.math.BigInteger;
+import org.aion.avm.core.AvmConfiguration;
+import org.aion.avm.core.AvmImpl;
+import org.aion.avm.core.CommonAvmFactory;
+import org.aion.avm.core.blockchainruntime.EmptyCapabilities;
+import org.aion.avm.core.dappreading.JarBuilder;
+import org.aion.avm.core.util.ABIUtil;
+import org.aion.avm.core.util.CodeAndArguments;
+import org.aion.avm.core.util.Helpers;
+import org.aion.kernel.*;
+import org.aion.types.Address;
+import org.aion.vm.api.interfaces.SimpleFuture;
+import org.aion.vm.api.interfaces.TransactionContext;
+import org.aion.vm.api.interfaces.TransactionResult;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Runs batches through the AVM with speculative execution enabled, checking both the resulting state and how many
+ * re-executions were required.
+ */
+public class SpeculativeExecutionTest {
+    private static final Address preminedAddress = TestingKernel.PREMINED_ADDRESS;
+    private static final long energyLimit = 100_000L;
+    private static final long energyPrice = 1L;
+
+    private Block block = new Block(new byte[32], 1, Helpers.randomAddress(), System.currentTimeMillis(), new byte[0]);
+    private TestingKernel kernel;
+    private AvmImpl avm;
+
+    @Before
+    public void setup() {
+        this.kernel = new TestingKernel();
+        AvmConfiguration config = new AvmConfiguration();
+        config.enableSpeculativeExecution = true;
+        this.avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new EmptyCapabilities(), config);
+    }
+
+    @After
+    public void tearDown() {
+        this.avm.shutdown();
+    }
+
+    @Test
+    public void testNonConflictingTransfersDoNotReExecute() {
+        int count = 50;
+        Address[] senders = new Address[count];
+        Address[] recipients = new Address[count];
+        for (int i = 0; i < count; ++i) {
+            senders[i] = Helpers.randomAddress();
+            recipients[i] = Helpers.randomAddress();
+            this.kernel.adjustBalance(senders[i], BigInteger.TEN.pow(18));
+        }
+
+        Transaction[] batch = new Transaction[count];
+        for (int i = 0; i < count; ++i) {
+            batch[i] = Transaction.call(senders[i], recipients[i], BigInteger.ZERO, BigInteger.valueOf(1_000L), new byte[0], energyLimit, energyPrice);
+        }
+        runAndCheckSuccess(batch);
+
+        for (int i = 0; i < count; ++i) {
+            Assert.assertEquals(BigInteger.valueOf(1_000L), this.kernel.getBalance(recipients[i]));
+            Assert.assertEquals(BigInteger.ONE, this.kernel.getNonce(senders[i]));
+        }
+        Assert.assertEquals(0L, getMonitor().getReExecutionCount());
+    }
+
+    @Test
+    public void testDependentTransfersFromOneSender() {
+        // Every one of these depends on the nonce and balance written by the previous one.
+        int count = 20;
+        Address recipient = Helpers.randomAddress();
+        Transaction[] batch = new Transaction[count];
+        for (int i = 0; i < count; ++i) {
+            batch[i] = Transaction.call(preminedAddress, recipient, BigInteger.valueOf(i), BigInteger.valueOf(500_000L), new byte[0], energyLimit, energyPrice);
+        }
+        BigInteger startBalance = this.kernel.getBalance(preminedAddress);
+        runAndCheckSuccess(batch);
+
+        BigInteger totalCost = BigInteger.valueOf(count * (500_000L + batch[0].getTransactionCost() * energyPrice));
+        Assert.assertEquals(BigInteger.valueOf(count * 500_000L), this.kernel.getBalance(recipient));
+        Assert.assertEquals(startBalance.subtract(totalCost), this.kernel.getBalance(preminedAddress));
+        Assert.assertEquals(BigInteger.valueOf(count), this.kernel.getNonce(preminedAddress));
+    }
+
+    @Test
+    public void testPipelinedDependentBatches() {
+        // The second batch continues the nonce sequence of the first so it can only succeed if it commits after it.
+        int count = 10;
+        Address recipient = Helpers.randomAddress();
+        Transaction[] first = new Transaction[count];
+        Transaction[] second = new Transaction[count];
+        for (int i = 0; i < count; ++i) {
+            first[i] = Transaction.call(preminedAddress, recipient, BigInteger.valueOf(i), BigInteger.ONE, new byte[0], energyLimit, energyPrice);
+            second[i] = Transaction.call(preminedAddress, recipient, BigInteger.valueOf(count + i), BigInteger.ONE, new byte[0], energyLimit, energyPrice);
+        }
+        SimpleFuture<TransactionResult>[] firstResults = this.avm.run(this.kernel, toContexts(first));
+        SimpleFuture<TransactionResult>[] secondResults = this.avm.run(this.kernel, toContexts(second));
+        for (int i = 0; i < count; ++i) {
+            Assert.assertTrue(firstResults[i].get().getResultCode().isSuccess());
+            Assert.assertTrue(secondResults[i].get().getResultCode().isSuccess());
+        }
+
+        Assert.assertEquals(BigInteger.valueOf(2 * count), this.kernel.getBalance(recipient));
+        Assert.assertEquals(BigInteger.valueOf(2 * count), this.kernel.getNonce(preminedAddress));
+    }
+
+    @Test
+    public void testCollectIntoOneRecipient() {
+        int count = 100;
+        long valueToSend = 1_000_000L;
+        Address target = Helpers.randomAddress();
+        Address[] senders = new Address[count];
+        for (int i = 0; i < count; ++i) {
+            senders[i] = Helpers.randomAddress();
+            this.kernel.adjustBalance(senders[i], BigInteger.TEN.pow(18));
+        }
+
+        Transaction[] batch = new Transaction[count];
+        for (int i = 0; i < count; ++i) {
+            batch[i] = Transaction.call(senders[i], target, BigInteger.ZERO, BigInteger.valueOf(valueToSend), new byte[0], energyLimit, energyPrice);
+        }
+        runAndCheckSuccess(batch);
+
+        Assert.assertEquals(BigInteger.valueOf(count * valueToSend), this.kernel.getBalance(target));
+        // Nobody reads the target's balance so these adjustments don't conflict.
+        Assert.assertEquals(0L, getMonitor().getReExecutionCount());
+    }
+
+    @Test
+    public void testContractCallsWithInternalTransfers() {
+        byte[] code = JarBuilder.buildJarForMainAndClassesAndUserlib(TestContract.class);
+        Address deployer = Helpers.randomAddress();
+        this.kernel.adjustBalance(deployer, BigInteger.TEN.pow(18));
+        Transaction create = Transaction.create(deployer, BigInteger.ZERO, BigInteger.ZERO, new CodeAndArguments(code, null).encodeToBytes(), 10_000_000L, energyPrice);
+        TransactionResult createResult = runAndCheckSuccess(new Transaction[] {create})[0];
+        Address contract = Address.wrap(createResult.getReturnData());
+
+        // Fund the contract then have several callers each make it send 1000 back to the deployer.
+        int callers = 10;
+        Transaction[] batch = new Transaction[callers + 1];
+        batch[0] = Transaction.call(preminedAddress, contract, BigInteger.ZERO, BigInteger.valueOf(5_000_000L), ABIUtil.encodeMethodArguments("addValue"), energyLimit, energyPrice);
+        for (int i = 0; i < callers; ++i) {
+            Address caller = Helpers.randomAddress();
+            this.kernel.adjustBalance(caller, BigInteger.TEN.pow(18));
+            batch[i + 1] = Transaction.call(caller, contract, BigInteger.ZERO, BigInteger.ZERO, ABIUtil.encodeMethodArguments("doTransfer"), 200_000L, energyPrice);
+        }
+        BigInteger deployerBalance = this.kernel.getBalance(deployer);
+        runAndCheckSuccess(batch);
+
+        Assert.assertEquals(BigInteger.valueOf(5_000_000L - callers * 1_000L), this.kernel.getBalance(contract));
+        Assert.assertEquals(deployerBalance.add(BigInteger.valueOf(callers * 1_000L)), this.kernel.getBalance(deployer));
+    }
+
+
+    private TransactionResult[] runAndCheckSuccess(Transaction[] batch) {
+        SimpleFuture<TransactionResult>[] futures = this.avm.run(this.kernel, toContexts(batch));
+        TransactionResult[] results = new TransactionResult[futures.length];
+        for (int i = 0; i < futures.length; ++i) {
+            results[i] = futures[i].get();
+            Assert.assertTrue(results[i].getResultCode().isSuccess());
+        }
+        return results;
+    }
+
+    private TransactionContext[] toContexts(Transaction[] batch) {
+        TransactionContext[] contexts = new TransactionContext[batch.length];
+        for (int i = 0; i < batch.length; ++i) {
+            contexts[i] = TransactionContextImpl.forExternalTransaction(batch[i], this.block);
+        }
+        return contexts;
+    }
+
+    private SpeculativeResourceMonitor getMonitor() {
+        return (SpeculativeResourceMonitor) this.avm.getResourceMonitorForKernel(this.kernel);
+    }
+}
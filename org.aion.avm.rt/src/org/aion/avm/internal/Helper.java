@@ -14,6 +14,10 @@ public class Helper implements IRuntimeSetup {
     public static final String RUNTIME_HELPER_NAME = "H";
 
     private static IInstrumentation target;
+    // Set by the write barriers ahead of anything in the DApp's code which could change its object graph.
+    private static boolean graphWritten;
+    // The hash code given to the first object allocated after the flag was last cleared, so the barriers can tell which objects are new.
+    private static int firstNewHashCode;
 
 
     public static <T> org.aion.avm.shadow.java.lang.Class<T> wrapAsClass(Class<T> input) {
@@ -63,6 +67,39 @@ public class Helper implements IRuntimeSetup {
         target.enterCatchBlock(depth, size);
     }
 
+    /**
+     * Note:  This is called by the write barriers added when the DApp is loaded.  It should not be called anywhere else.
+     */
+    public static void markGraphWritten() {
+        graphWritten = true;
+    }
+
+    /**
+     * Note:  This is called by the write barriers added when the DApp is loaded, ahead of a PUTFIELD, with the object being written.
+     * It should not be called anywhere else.
+     * A write to an object allocated since the flag was last cleared can't change the object graph:  such an object only becomes part
+     * of the graph when it is stored into one which is already there, which has its own barrier.
+     * 
+     * @param instance The object whose field is about to be written.
+     */
+    public static void markFieldWritten(Object instance) {
+        if (!graphWritten && !isAllocatedSinceCleared(instance)) {
+            graphWritten = true;
+        }
+    }
+
+    private static boolean isAllocatedSinceCleared(Object instance) {
+        boolean isNew = false;
+        if (instance instanceof org.aion.avm.shadow.java.lang.Object) {
+            // Hash codes are handed out in allocation order so the new objects are those from firstNewHashCode up to the next one (a stub
+            // which hasn't been loaded yet has a hash code of 0, which is never in this range).
+            // (compared as unsigned offsets so this still works if the hash codes wrap around during the call)
+            int hashCode = ((org.aion.avm.shadow.java.lang.Object) instance).getIdentityHashCode();
+            isNew = Integer.compareUnsigned(hashCode - firstNewHashCode, target.peekNextHashCode() - firstNewHashCode) < 0;
+        }
+        return isNew;
+    }
+
     @Override
     public void attach(IInstrumentation instrumentation) {
         RuntimeAssertionError.assertTrue(null == target);
@@ -73,4 +110,15 @@ public class Helper implements IRuntimeSetup {
         RuntimeAssertionError.assertTrue(instrumentation == target);
         target = null;
     }
+    @Override
+    public boolean clearGraphWritten() {
+        boolean wasWritten = graphWritten;
+        graphWritten = false;
+        return wasWritten;
+    }
+    @Override
+    public void resetGraphWritten(int nextHashCode) {
+        graphWritten = false;
+        firstNewHashCode = nextHashCode;
+    }
 }
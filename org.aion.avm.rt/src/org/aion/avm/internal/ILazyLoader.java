@@ -0,0 +1,15 @@
+package org.aion.avm.internal;
+
+
+/**
+ * Installed on the instance stubs created when an object graph is loaded lazily, so they can be populated from the stored graph the
+ * first time they are used (see the shadow Object's lazyLoad()).
+ */
+public interface ILazyLoader {
+    /**
+     * Populates the given stub with its data from the stored graph.
+     *
+     * @param instance The stub to populate (its readIndex is its index within the stored graph).
+     */
+    void loadInstance(IObject instance);
+}
@@ -9,4 +9,19 @@ package org.aion.avm.internal;
 public interface IRuntimeSetup {
     public void attach(IInstrumentation instrumentation);
     public void detach(IInstrumentation instrumentation);
+
+    /**
+     * Clears the flag set by the write barriers in the DApp's code, returning whether any of them were hit since it was last cleared.
+     * 
+     * @return True if the DApp might have written to its object graph since the last call.
+     */
+    public boolean clearGraphWritten();
+
+    /**
+     * Clears the flag set by the write barriers in the DApp's code and notes the hash code the next object allocated will get, so that
+     * writes to objects allocated after this point (which can't be part of the object graph, yet) don't set the flag.
+     * 
+     * @param nextHashCode The hash code of the next object the DApp allocates.
+     */
+    public void resetGraphWritten(int nextHashCode);
 }
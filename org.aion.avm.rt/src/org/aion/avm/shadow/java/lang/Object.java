@@ -2,6 +2,7 @@ package org.aion.avm.shadow.java.lang;
 
 import org.aion.avm.ClassNameExtractor;
 import org.aion.avm.internal.IInstrumentation;
+import org.aion.avm.internal.ILazyLoader;
 import org.aion.avm.internal.IObject;
 import org.aion.avm.internal.IObjectDeserializer;
 import org.aion.avm.internal.IObjectSerializer;
@@ -24,6 +25,9 @@ public class Object extends java.lang.Object implements IObject {
     // The readIndex is only used in cases of reentrant calls (this is the serialization index of the instance in the caller frame when serialized for the reentrant call).
     public final int readIndex;
 
+    // Only set on a stub, created when the graph was loaded lazily, until it is populated (see lazyLoad()).
+    private ILazyLoader lazyLoader;
+
     public Object() {
         this.hashCode = IInstrumentation.attachedThreadInstrumentation.get().getNextHashCodeAndIncrement();
         this.readIndex = NEW_INSTANCE_READ_INDEX;
@@ -106,8 +110,22 @@ public class Object extends java.lang.Object implements IObject {
      * Note that this is final since the protected "deserializeSelf" should be over-ridden.
      */
     public final void lazyLoad() {
-        // This now does nothing - will be removed later if we are certain we don't want the lazy loading.
-        // It was originally how the lazy loading system worked when we had the incremental loading design.
+        ILazyLoader loader = this.lazyLoader;
+        if (null != loader) {
+            // Clear this first so that nothing the load does with this instance tries to load it again.
+            this.lazyLoader = null;
+            loader.loadInstance(this);
+        }
+    }
+
+    /**
+     * Called by the persistence layer when it creates this instance as a stub, so that it is populated by the given loader the first
+     * time lazyLoad() is called.
+     *
+     * @param lazyLoader The loader which can populate this instance from the stored graph.
+     */
+    public final void setLazyLoader(ILazyLoader lazyLoader) {
+        this.lazyLoader = lazyLoader;
     }
 
     public void deserializeSelf(java.lang.Class<?> firstRealImplementation, IObjectDeserializer deserializer) {
@@ -3,6 +3,8 @@ package org.aion.avm.shadowapi.avm;
 import org.aion.avm.arraywrapper.ByteArray;
 import org.aion.avm.arraywrapper.CharArray;
 import org.aion.avm.internal.IObject;
+import org.aion.avm.internal.IObjectDeserializer;
+import org.aion.avm.internal.IObjectSerializer;
 import org.aion.avm.shadow.java.lang.Object;
 import org.aion.avm.shadow.java.lang.String;
 import org.aion.avm.internal.IInstrumentation;
@@ -20,6 +22,8 @@ public class Address extends Object {
     public static final int avm_LENGTH = 32;
 
     private ByteArray underlying;
+    // The runtime's own form of this address, if it has cached one here (this isn't part of the address so it is never serialized).
+    private java.lang.Object cachedRuntimeAddress;
 
     /**
      * The constructor which user code can call, directly, to create an Address object.
@@ -147,11 +151,39 @@ public class Address extends Object {
         return code;
     }
 
+    /**
+     * Lets the runtime keep its own form of this address with it, so it doesn't have to build it again each time the address is used.
+     * Since the bytes can still be changed through unwrap(), the runtime must check that the cached form still matches them.
+     * 
+     * @return The object last given to setCachedRuntimeAddress(), or null.
+     */
+    public java.lang.Object getCachedRuntimeAddress() {
+        return this.cachedRuntimeAddress;
+    }
+
+    public void setCachedRuntimeAddress(java.lang.Object cachedRuntimeAddress) {
+        this.cachedRuntimeAddress = cachedRuntimeAddress;
+    }
+
     // Support for deserialization
     public Address(Void ignore, int readIndex) {
         super(ignore, readIndex);
     }
 
+    public void deserializeSelf(java.lang.Class<?> firstRealImplementation, IObjectDeserializer deserializer) {
+        super.deserializeSelf(Address.class, deserializer);
+        
+        // We only store the underlying bytes (read exactly as the automatic implementation would, so the graph is the same).
+        this.underlying = (ByteArray)deserializer.readObject();
+    }
+
+    public void serializeSelf(java.lang.Class<?> firstRealImplementation, IObjectSerializer serializer) {
+        super.serializeSelf(Address.class, serializer);
+        
+        // We only store the underlying bytes (not the cached runtime address).
+        serializer.writeObject(this.underlying);
+    }
+
     private void setUnderlying(ByteArray raw) {
         if (raw == null || raw.length() != avm_LENGTH) {
             throw new IllegalArgumentException();